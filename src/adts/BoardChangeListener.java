@@ -0,0 +1,50 @@
+package adts;
+
+/**
+ * Is told about every change made to the boards of a LobbyModel (but not
+ * the lobby): boards created and renamed, lines drawn and boards cleared.
+ * 
+ * The changes of one board are told in the order they are made, while the
+ * board holds its lock, and board creations while the model holds its lock,
+ * so listeners must be quick and must not call back into the model. The
+ * board is handed over so that a listener can read it, or take its lock,
+ * later on its own thread.
+ */
+public interface BoardChangeListener {
+    /**
+     * @param board the new board
+     * @param boardName the name of the new board
+     */
+    public void boardCreated(Whiteboard board, String boardName);
+
+    /**
+     * @param board the board
+     * @param boardName the new name of the board
+     */
+    public void boardRenamed(Whiteboard board, String boardName);
+
+    /**
+     * @param board the board drawn on
+     * @param line the line drawn
+     */
+    public void lineDrawn(Whiteboard board, Line line);
+
+    /**
+     * @param board the board drawn on
+     * @param strokeThickness the stroke thickness
+     * @param r the red value
+     * @param g the green value
+     * @param b the blue value
+     * @param a the alpha value
+     * @param points the points, x then y, of the polyline; only valid during
+     *            the call
+     * @param pointCount the number of points, at least 2
+     */
+    public void polylineDrawn(Whiteboard board, float strokeThickness, int r,
+            int g, int b, int a, int[] points, int pointCount);
+
+    /**
+     * @param board the board cleared
+     */
+    public void boardCleared(Whiteboard board);
+}
@@ -0,0 +1,20 @@
+package adts;
+
+/**
+ * Is told by a LobbyModel whenever a user enters or leaves a board
+ * (including the lobby). Listeners are called while the model holds its lock,
+ * so they must be quick and must not call back into the model.
+ */
+public interface BoardMembershipListener {
+    /**
+     * @param userID the id of the user who joined
+     * @param boardID the id of the board the user joined
+     */
+    public void userJoinedBoard(int userID, int boardID);
+
+    /**
+     * @param userID the id of the user who left
+     * @param boardID the id of the board the user left
+     */
+    public void userLeftBoard(int userID, int boardID);
+}
@@ -0,0 +1,256 @@
+package adts;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The lines of a board drawn on an image on the server, as a PNG to send to
+ * users joining the board, kept up to date in the background.
+ *
+ * The image is transparent where nothing is drawn, so that a client can
+ * draw it over its own background as it would draw the lines, and the lines
+ * are drawn with a LineRenderer, as the Canvas draws them, so the pixels
+ * are the same. It grows in steps of GROWTH pixels to cover the lines
+ * drawn, up to MAX_WIDTH by MAX_HEIGHT, about a maximized Canvas. A line
+ * that reaches past that is left off the image and sent as a segment after
+ * it, ahead of the lines drawn after the image; parts of lines at negative
+ * coordinates are off every Canvas and left out.
+ *
+ * Only the PNG is kept. Drawing the lines and encoding the PNG take time in
+ * the number of lines and the size of the image, so they are done on one
+ * background thread shared by all the boards, never on the thread of a
+ * join: update hands out the PNG as it is and starts a refresh once
+ * PNG_REFRESH_LINES lines were drawn since it was encoded, or at the first
+ * line. A refresh decodes the PNG, draws the new lines on it and encodes it
+ * again. Until it is done, the lines after the PNG are sent as segments
+ * along with it. A PNG bigger than MAX_PNG_BYTES is not used, and the
+ * raster stops refreshing, so a join never sends more than that in one
+ * message.
+ *
+ * Thread-safety:
+ *
+ * The PNG and what it covers are guarded by the raster's lock, which update
+ * and a refresh only hold to read or replace them. At most one refresh of a
+ * raster runs at a time, and it works on its own copy of the image.
+ */
+class BoardRaster {
+
+    /**
+     * The most pixels the image has across and down
+     */
+    static final int MAX_WIDTH = ThumbnailCache.BOARD_WIDTH;
+    static final int MAX_HEIGHT = ThumbnailCache.BOARD_HEIGHT;
+
+    /**
+     * The image grows by multiples of this many pixels
+     */
+    static final int GROWTH = 256;
+
+    /**
+     * The number of lines drawn since the PNG was encoded that makes the
+     * next update refresh it
+     */
+    static final int PNG_REFRESH_LINES = 1000;
+
+    /**
+     * The biggest PNG sent to a joining user
+     */
+    static final int MAX_PNG_BYTES = 1 << 20;
+
+    private final static Logger LOGGER = Logger.getLogger(BoardRaster.class.getName());
+
+    /**
+     * A single transparent pixel, the PNG of a raster with nothing drawn
+     */
+    private static final byte[] EMPTY_PNG = encode(new BufferedImage(1, 1,
+            BufferedImage.TYPE_INT_ARGB));
+
+    private static final int[] NO_LINES = new int[0];
+
+    /**
+     * Refreshes the rasters of every board, one at a time
+     */
+    private static final ExecutorService REFRESHER = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "BoardRaster");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The image as last encoded, the number of lines it covers, and the
+     * indices of the lines among those that reach past it
+     */
+    private byte[] png;
+    private int pngLines;
+    private int[] outside;
+
+    /**
+     * Whether a refresh is running, and whether the PNG got too big to
+     * refresh again
+     */
+    private boolean refreshing;
+    private boolean stopped;
+
+    /**
+     * Create a raster with no lines
+     */
+    BoardRaster() {
+        this.png = EMPTY_PNG;
+        this.pngLines = 0;
+        this.outside = NO_LINES;
+    }
+
+    /**
+     * Takes the image as it is, and starts a refresh in the background if
+     * it is out of date
+     *
+     * @param lines the lines of the board, starting with those of earlier
+     *            updates
+     * @return the image and the lines
+     */
+    synchronized RasterSnapshot update(final StrokeSnapshot lines) {
+        int behind = lines.size() - this.pngLines;
+        if (!this.refreshing && !this.stopped && behind > 0
+                && (behind >= PNG_REFRESH_LINES || this.pngLines == 0)) {
+            this.refreshing = true;
+            final byte[] png = this.png;
+            final int from = this.pngLines;
+            final int[] outside = this.outside;
+            REFRESHER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refresh(png, from, outside, lines);
+                }
+            });
+        }
+        return new RasterSnapshot(this.png, this.pngLines, this.outside, lines);
+    }
+
+    /**
+     * Draws the lines after the given one on the PNG and encodes it again,
+     * then hands it out; runs on the refresher
+     */
+    private void refresh(byte[] png, int from, int[] outside,
+            StrokeSnapshot lines) {
+        byte[] refreshed = null;
+        int[] refreshedOutside = outside;
+        try {
+            BufferedImage image = from == 0 ? null : ImageIO
+                    .read(new ByteArrayInputStream(png));
+            int[] missed = new int[lines.size() - from];
+            int missedCount = 0;
+            int width = image == null ? 0 : image.getWidth();
+            int height = image == null ? 0 : image.getHeight();
+            for (int i = from; i < lines.size(); i++) {
+                int reach = (int) Math.min(MAX_WIDTH,
+                        Math.ceil(lines.getStrokeThickness(i) / 2) + 1);
+                long right = (long) Math.max(lines.getX1(i), lines.getX2(i)) + reach;
+                long bottom = (long) Math.max(lines.getY1(i), lines.getY2(i)) + reach;
+                if (right > MAX_WIDTH || bottom > MAX_HEIGHT) {
+                    missed[missedCount++] = i;
+                    continue;
+                }
+                width = Math.max(width, (int) right);
+                height = Math.max(height, (int) bottom);
+            }
+            if (width > 0 && height > 0) {
+                image = grow(image, width, height);
+                LineRenderer lineRenderer = new LineRenderer();
+                lineRenderer.begin(image.createGraphics());
+                int next = 0;
+                for (int i = from; i < lines.size(); i++) {
+                    if (next < missedCount && missed[next] == i) {
+                        next++;
+                        continue;
+                    }
+                    lineRenderer.draw(lines.getX1(i), lines.getY1(i),
+                            lines.getX2(i), lines.getY2(i),
+                            lines.getStrokeThickness(i), lines.getR(i),
+                            lines.getG(i), lines.getB(i), lines.getA(i));
+                }
+                lineRenderer.end();
+            }
+            refreshed = image == null ? EMPTY_PNG : encode(image);
+            if (missedCount > 0) {
+                refreshedOutside = Arrays.copyOf(outside, outside.length
+                        + missedCount);
+                System.arraycopy(missed, 0, refreshedOutside, outside.length,
+                        missedCount);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "cannot refresh the image of a board", e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "cannot refresh the image of a board", e);
+        }
+        synchronized (this) {
+            if (refreshed == null || refreshed.length > MAX_PNG_BYTES) {
+                // joins go on with the last PNG and the segments after it
+                this.stopped = true;
+            } else {
+                this.png = refreshed;
+                this.pngLines = lines.size();
+                this.outside = refreshedOutside;
+            }
+            this.refreshing = false;
+        }
+    }
+
+    /**
+     * @return an image at least the given size, up to MAX_WIDTH by
+     *         MAX_HEIGHT, with what is drawn on the given one, which is
+     *         returned if it is big enough
+     */
+    private static BufferedImage grow(BufferedImage image, int width,
+            int height) {
+        width = Math.min(MAX_WIDTH, roundUp(width));
+        height = Math.min(MAX_HEIGHT, roundUp(height));
+        if (image != null) {
+            width = Math.max(width, image.getWidth());
+            height = Math.max(height, image.getHeight());
+            if (width == image.getWidth() && height == image.getHeight()
+                    && image.getType() == BufferedImage.TYPE_INT_ARGB)
+                return image;
+        }
+        BufferedImage grown = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        if (image != null) {
+            Graphics2D g = grown.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+        }
+        return grown;
+    }
+
+    private static int roundUp(int size) {
+        return (size + GROWTH - 1) / GROWTH * GROWTH;
+    }
+
+    /**
+     * @return the image as a PNG
+     */
+    private static byte[] encode(BufferedImage image) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", bytes);
+        } catch (IOException e) {
+            // written to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
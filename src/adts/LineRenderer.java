@@ -0,0 +1,147 @@
+package adts;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+
+/**
+ * Draws many segments with one graphics context, reusing strokes and colors.
+ *
+ * A batch of segments is drawn between begin and end with the same
+ * Graphics2D, which end disposes. The stroke and color are only set when
+ * they differ from the last segment's, and are taken from small caches
+ * keyed by stroke width and packed ARGB, so replaying a board makes a
+ * BasicStroke or a Color only the first time a style is seen.
+ *
+ * The caches are direct-mapped: each key has one slot, and a style that
+ * lands in a taken slot replaces the one there. They hold at most
+ * CACHE_SIZE strokes and CACHE_SIZE colors however many styles are used.
+ *
+ * Thread-safety:
+ *
+ * Not threadsafe; each renderer is only used by one thread: the Canvas's
+ * and a TiledRaster's on the event dispatch thread, and those drawing a
+ * board's image (BoardRaster) or thumbnail (ThumbnailCache) on the
+ * background thread that draws it.
+ */
+public class LineRenderer {
+
+    /**
+     * The number of slots of each cache, a power of two
+     */
+    public static final int CACHE_SIZE = 256;
+
+    private final int[] strokeKeys;
+    private final BasicStroke[] strokes;
+    private final int[] colorKeys;
+    private final Color[] colors;
+
+    /**
+     * The context of the batch being drawn, and the stroke and color last
+     * set on it; null between batches
+     */
+    private Graphics2D g;
+    private BasicStroke currentStroke;
+    private Color currentColor;
+
+    /**
+     * Create a renderer with empty caches
+     */
+    public LineRenderer() {
+        this.strokeKeys = new int[CACHE_SIZE];
+        this.strokes = new BasicStroke[CACHE_SIZE];
+        this.colorKeys = new int[CACHE_SIZE];
+        this.colors = new Color[CACHE_SIZE];
+    }
+
+    /**
+     * Starts a batch of segments drawn on the given context
+     *
+     * @param g
+     *            the context to draw with, disposed by end
+     */
+    public void begin(Graphics2D g) {
+        this.g = g;
+        this.currentStroke = null;
+        this.currentColor = null;
+    }
+
+    /**
+     * Draws a segment with its stroke width and color
+     *
+     * @param l
+     *            the segment to draw
+     */
+    public void draw(Line l) {
+        draw(l.getX1(), l.getY1(), l.getX2(), l.getY2(),
+                l.getStrokeThickness(), l.getR(), l.getG(), l.getB(), l.getA());
+    }
+
+    /**
+     * Draws a segment given by its values, as kept in a StrokeSnapshot
+     */
+    public void draw(int x1, int y1, int x2, int y2, float strokeThickness,
+            int r, int g, int b, int a) {
+        BasicStroke stroke = stroke(strokeThickness);
+        if (stroke != this.currentStroke) {
+            this.g.setStroke(stroke);
+            this.currentStroke = stroke;
+        }
+        Color color = color(r, g, b, a);
+        if (color != this.currentColor) {
+            this.g.setColor(color);
+            this.currentColor = color;
+        }
+        this.g.drawLine(x1, y1, x2, y2);
+    }
+
+    /**
+     * Ends the batch and disposes its context
+     */
+    public void end() {
+        this.g.dispose();
+        this.g = null;
+        this.currentStroke = null;
+        this.currentColor = null;
+    }
+
+    /**
+     * @return a stroke of the given width with round caps and joins
+     */
+    public BasicStroke stroke(float width) {
+        int key = Float.floatToIntBits(width);
+        int slot = slot(key);
+        BasicStroke stroke = this.strokes[slot];
+        if (stroke == null || this.strokeKeys[slot] != key) {
+            stroke = new BasicStroke(width, BasicStroke.CAP_ROUND,
+                    BasicStroke.JOIN_ROUND);
+            this.strokes[slot] = stroke;
+            this.strokeKeys[slot] = key;
+        }
+        return stroke;
+    }
+
+    /**
+     * @return the color with the given components
+     * @throws IllegalArgumentException
+     *             if a component is outside 0 to 255
+     */
+    public Color color(int r, int g, int b, int a) {
+        if (((r | g | b | a) & ~0xff) != 0)
+            return new Color(r, g, b, a);
+        int key = (a << 24) | (r << 16) | (g << 8) | b;
+        int slot = slot(key);
+        Color color = this.colors[slot];
+        if (color == null || this.colorKeys[slot] != key) {
+            color = new Color(r, g, b, a);
+            this.colors[slot] = color;
+            this.colorKeys[slot] = key;
+        }
+        return color;
+    }
+
+    private static int slot(int key) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+    }
+}
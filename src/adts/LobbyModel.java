@@ -2,11 +2,12 @@ package adts;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -23,6 +24,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  *      users and boards can change, so the rep invariant
  *      is preserved.
  * 
+ * The board a user is in is also kept by user ID, and always
+ * agrees with the sets of users in each board.
+ *      Both are changed together, in the same methods, so we
+ *      can find a user's board without looking at every board.
+ * 
  * No two users have the same ID. No two boards have the same ID
  *      This is ensured by using two atomic integers. When we 
  *      receive a new user, we increment the integer and assign
@@ -41,10 +47,20 @@ import java.util.concurrent.atomic.AtomicInteger;
  *      
  * Concurrency argument:
  *      All fields have been made final and atomic. 
- *      Thread safe classes (ex. synchronizedMap, AtomicInteger) 
- *      have been used everywhere possible. We have
- *      synchronized all methods that access or
- *      modify the state.
+ *      The maps and the sets of users in each board are concurrent,
+ *      so they can be read at any time without locking.
+ *      Every method that changes which users and boards exist, their
+ *      names, or who is in which board is synchronized, so those
+ *      changes happen one at a time and each of them preserves the
+ *      rep invariant before the next starts.
+ *      The methods used for every stroke (finding a user's board,
+ *      adding a line, getting a board's users) are not synchronized:
+ *      they only read the concurrent maps and lock the one Whiteboard
+ *      they draw on, so strokes on different boards never wait for
+ *      each other, for logins, or for name changes. While a user is
+ *      moving between boards such a reader may briefly see them in
+ *      neither board; the user's own requests are handled one at a
+ *      time, so this only affects strokes racing with someone else's move.
  *      
  */
 public class LobbyModel {
@@ -61,18 +77,39 @@ public class LobbyModel {
     /**
      * Key = user ID Value = user with the given ID
      */
-    private final Map<Integer, User> userForID;
+    private final ConcurrentMap<Integer, User> userForID;
 
     /**
      * Key = board ID Value = board with the given ID
      */
-    private final Map<Integer, Whiteboard> boardForID;
+    private final ConcurrentMap<Integer, Whiteboard> boardForID;
 
     /**
      * Key = board ID Value = list of IDs of users who are using the board with
      * the given ID
      */
-    private final Map<Integer, Set<Integer>> userIDsForBoardID;
+    private final ConcurrentMap<Integer, Set<Integer>> userIDsForBoardID;
+
+    /**
+     * Key = user ID Value = ID of the board the user with the given ID is in
+     */
+    private final ConcurrentMap<Integer, Integer> boardIDForUserID;
+
+    /**
+     * The listeners told about every user entering or leaving a board
+     */
+    private final List<BoardMembershipListener> membershipListeners;
+
+    /**
+     * The listeners told about every change to the boards, shared with the
+     * boards
+     */
+    private final List<BoardChangeListener> changeListeners;
+
+    /**
+     * The previews of the boards shown in the lobby, threadsafe
+     */
+    private final ThumbnailCache thumbnails;
 
     /**
      * The ID of the lobby, which is the "board" where users are put
@@ -86,20 +123,29 @@ public class LobbyModel {
     public LobbyModel() {
         uniqueUserID = new AtomicInteger(0);
         uniqueBoardID = new AtomicInteger(0);
-        userForID = Collections.synchronizedMap(new HashMap<Integer, User>());
-        boardForID = Collections
-                .synchronizedMap(new HashMap<Integer, Whiteboard>());
-        userIDsForBoardID = Collections
-                .synchronizedMap(new HashMap<Integer, Set<Integer>>());
+        userForID = new ConcurrentHashMap<Integer, User>();
+        boardForID = new ConcurrentHashMap<Integer, Whiteboard>();
+        userIDsForBoardID = new ConcurrentHashMap<Integer, Set<Integer>>();
+        boardIDForUserID = new ConcurrentHashMap<Integer, Integer>();
+        membershipListeners = new CopyOnWriteArrayList<BoardMembershipListener>();
+        changeListeners = new CopyOnWriteArrayList<BoardChangeListener>();
+        thumbnails = new ThumbnailCache(ThumbnailCache.DEFAULT_BUDGET_BYTES);
         
         this.boardForID.put(LOBBY_ID, new Whiteboard(LOBBY_ID, "Lobby"));
-        this.userIDsForBoardID.put(LOBBY_ID, new HashSet<Integer>());
+        this.userIDsForBoardID.put(LOBBY_ID, newUserIDSet());
+    }
+
+    /**
+     * @return an empty set of user IDs that can be read while it changes
+     */
+    private static Set<Integer> newUserIDSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
     }
 
     /**
      * @return the set of all the whiteboard names
      */
-    public synchronized Set<String> getWhiteboardNames() {
+    public Set<String> getWhiteboardNames() {
         Set<String> whiteboardNames = new HashSet<String>();
         for (Whiteboard wb : this.boardForID.values()) {
             whiteboardNames.add(wb.getBoardName());
@@ -110,7 +156,7 @@ public class LobbyModel {
     /**
      * @return the set of all whiteboard IDs
      */
-    public synchronized Set<Integer> getWhiteboardIDs() {
+    public Set<Integer> getWhiteboardIDs() {
         return this.boardForID.keySet();
     }
 
@@ -119,15 +165,12 @@ public class LobbyModel {
      * @return the user ids of all the users who are in the same board(s) as the
      *         user with the given userID
      */
-    public synchronized Set<Integer> getUserIDsOfUsersInSameBoardAsGivenUserID(
+    public Set<Integer> getUserIDsOfUsersInSameBoardAsGivenUserID(
             int userID) {
         Set<Integer> userIDs = new HashSet<Integer>();
-        // iterate through each boardID
-        for (int boardID : this.boardForID.keySet()) {
-            // if the set of users ids in that board include the given userID
-            if (this.userIDsForBoardID.get(boardID).contains(userID)) {
-                userIDs.addAll(this.userIDsForBoardID.get(boardID));
-            }
+        Integer boardID = this.boardIDForUserID.get(userID);
+        if (boardID != null) {
+            userIDs.addAll(this.userIDsForBoardID.get(boardID));
         }
         return userIDs;
     }
@@ -138,20 +181,16 @@ public class LobbyModel {
      * @return the board ID of the board that the user with the given userID is
      *         in, or -1 if the user is not in any board
      */
-    public synchronized int getBoardIDThatUserIDIsIn(int userID) {
-        for (int boardID : this.boardForID.keySet()) {
-            if (this.userIDsForBoardID.get(boardID).contains(userID)) {
-                return boardID;
-            }
-        }
-        return LOBBY_ID;
+    public int getBoardIDThatUserIDIsIn(int userID) {
+        Integer boardID = this.boardIDForUserID.get(userID);
+        return boardID == null ? LOBBY_ID : boardID;
     }
 
     /**
      * @param userID the id of the user
      * @return the username for the user with the given id
      */
-    public synchronized String getUserNameForUserID(int userID) {
+    public String getUserNameForUserID(int userID) {
         return this.userForID.get(userID).getName();
     }
 
@@ -164,13 +203,15 @@ public class LobbyModel {
      * @throws IllegalArgumentException
      *             if the boardID does not exist
      */
-    public synchronized Set<String> getUserNamesForBoardID(int boardID) {
+    public Set<String> getUserNamesForBoardID(int boardID) {
         if (!(this.boardForID.keySet().contains(boardID)))
             throw new IllegalArgumentException(String.format(
                     "boardID=%d does not exist!", boardID));
         Set<String> userNames = new HashSet<String>();
         for (Integer userID : this.userIDsForBoardID.get(boardID)) {
-            userNames.add(this.userForID.get(userID).getName());
+            User user = this.userForID.get(userID);
+            if (user != null)
+                userNames.add(user.getName());
         }
         return userNames;
     }
@@ -247,24 +288,64 @@ public class LobbyModel {
      */
     public synchronized int addBoard(String name) {
         int id = this.uniqueBoardID.getAndIncrement();
-        Whiteboard board = new Whiteboard(id, name);
-        this.userIDsForBoardID.put(id, new HashSet<Integer>());
         Set<String> userNames = new HashSet<String>();
         for(Whiteboard brd: this.boardForID.values()){
             userNames.add(brd.getBoardName());
         }
-        if(!userNames.contains(name)){
-            this.boardForID.put(id, board);
-            return id;
+        if(userNames.contains(name)){
+            int incrementer = 1;
+            while(userNames.contains(String.format("%s(%d)",name,incrementer))){
+                incrementer++;
+            }
+            name = String.format("%s(%d)",name,incrementer);
         }
-        int incrementer = 1;
-        while(userNames.contains(String.format("%s(%d)",name,incrementer))){
-            incrementer++;
+        Whiteboard board = new Whiteboard(id, name, this.changeListeners);
+        this.putBoard(board);
+        for (BoardChangeListener listener : this.changeListeners) {
+            listener.boardCreated(board, name);
         }
-        this.boardForID.get(id).setBoardName(String.format("%s(%d)",name,incrementer));
         return id;
     }
 
+    /**
+     * Adds back a board that existed before, with its own id and name, as
+     * when the boards are read back from a BoardJournal. Boards added later
+     * get higher ids. The change listeners are not told.
+     * 
+     * @param boardID
+     *            the id the board had
+     * @param name
+     *            the name the board had
+     * @throws IllegalArgumentException
+     *             if a board with that id exists
+     */
+    public synchronized void restoreBoard(int boardID, String name) {
+        if (this.boardForID.containsKey(boardID))
+            throw new IllegalArgumentException(String.format(
+                    "boardID=%d already exists!", boardID));
+        this.putBoard(new Whiteboard(boardID, name, this.changeListeners));
+        if (this.uniqueBoardID.get() <= boardID)
+            this.uniqueBoardID.set(boardID + 1);
+    }
+
+    private void putBoard(Whiteboard board) {
+        // the members' set goes first so that a board is never seen without one
+        this.userIDsForBoardID.put(board.getBoardID(), newUserIDSet());
+        this.boardForID.put(board.getBoardID(), board);
+    }
+
+    /**
+     * Renames the board with the given ID, keeping the name given
+     * 
+     * @param boardID
+     *            the id of the board
+     * @param name
+     *            the new name
+     */
+    public synchronized void renameBoard(int boardID, String name) {
+        getBoard(boardID).setBoardName(name);
+    }
+
     /**
      * Adds a board to the lobby with an automatically generated name and
      * default height and width
@@ -294,13 +375,14 @@ public class LobbyModel {
         if (!(this.userForID.keySet().contains(userID)))
             throw new IllegalArgumentException(String.format(
                     "userID=%d does not exist!", userID));
-        for (int bID : this.boardForID.keySet()) {
-            if (this.userIDsForBoardID.get(bID).contains(userID)) {
-                this.userIDsForBoardID.get(bID).remove(userID);
-            }
+        Integer previousBoardID = this.boardIDForUserID.put(userID, boardID);
+        if (previousBoardID != null) {
+            this.userIDsForBoardID.get(previousBoardID).remove(userID);
+            this.fireUserLeftBoard(userID, previousBoardID);
         }
         Set<Integer> userIDs = this.userIDsForBoardID.get(boardID);
         userIDs.add(userID);
+        this.fireUserJoinedBoard(userID, boardID);
     }
 
     /**
@@ -321,7 +403,7 @@ public class LobbyModel {
         if (!(this.userForID.keySet().contains(userID)))
             throw new IllegalArgumentException(String.format(
                     "userID=%d does not exist!", userID));
-        this.userIDsForBoardID.get(boardID).remove(userID);
+        // whichever board the user is in, they go back to the lobby
         this.userJoinBoard(userID, LOBBY_ID);
     }
 
@@ -333,8 +415,44 @@ public class LobbyModel {
      */
     public synchronized void deleteUser(int userID) {
         this.userForID.remove(userID);
-        for (int boardID : this.userIDsForBoardID.keySet()) {
-            this.userIDsForBoardID.get(boardID).remove(userID);
+        Integer boardID = this.boardIDForUserID.remove(userID);
+        if (boardID != null && this.userIDsForBoardID.get(boardID).remove(userID)) {
+            this.fireUserLeftBoard(userID, boardID);
+        }
+    }
+
+    /**
+     * Registers a listener to be told whenever a user enters or leaves a
+     * board. It is not told about the users already in boards.
+     * 
+     * @param listener
+     *            the listener to add
+     */
+    public void addBoardMembershipListener(BoardMembershipListener listener) {
+        this.membershipListeners.add(listener);
+    }
+
+    /**
+     * Registers a listener to be told about every change made to the boards
+     * from now on, including boards already there. It is not told about
+     * the changes made before.
+     * 
+     * @param listener
+     *            the listener to add
+     */
+    public void addBoardChangeListener(BoardChangeListener listener) {
+        this.changeListeners.add(listener);
+    }
+
+    private void fireUserJoinedBoard(int userID, int boardID) {
+        for (BoardMembershipListener listener : this.membershipListeners) {
+            listener.userJoinedBoard(userID, boardID);
+        }
+    }
+
+    private void fireUserLeftBoard(int userID, int boardID) {
+        for (BoardMembershipListener listener : this.membershipListeners) {
+            listener.userLeftBoard(userID, boardID);
         }
     }
 
@@ -346,7 +464,7 @@ public class LobbyModel {
      * @return the set of user ids of the users in the board with the given
      *         board id
      */
-    public synchronized Set<Integer> getUserIDsForBoardID(int boardID) {
+    public Set<Integer> getUserIDsForBoardID(int boardID) {
         return this.userIDsForBoardID.get(boardID);
     }
 
@@ -358,11 +476,35 @@ public class LobbyModel {
      * @param boardID
      *            the id of the board we should add the line to
      */
-    public synchronized void addLineToBoardID(Line l, int boardID) {
-        if (!(this.boardForID.keySet().contains(boardID)))
-            throw new IllegalArgumentException(String.format(
-                    "boardID=%d does not exist!", boardID));
-        this.boardForID.get(boardID).addLine(l);
+    public void addLineToBoardID(Line l, int boardID) {
+        getBoard(boardID).addLine(l);
+    }
+
+    /**
+     * Draws a polyline on a board, as one segment per pair of consecutive
+     * points
+     * 
+     * @param strokeThickness
+     *            the stroke thickness
+     * @param r
+     *            the red value
+     * @param g
+     *            the green value
+     * @param b
+     *            the blue value
+     * @param a
+     *            the alpha value
+     * @param points
+     *            the points, x then y, of the polyline
+     * @param pointCount
+     *            the number of points, at least 2
+     * @param boardID
+     *            the id of the board we should add the polyline to
+     */
+    public void addPolylineToBoardID(float strokeThickness, int r, int g,
+            int b, int a, int[] points, int pointCount, int boardID) {
+        getBoard(boardID).addPolyline(strokeThickness, r, g, b, a, points,
+                pointCount);
     }
 
     /**
@@ -372,28 +514,106 @@ public class LobbyModel {
      *            the id of the board
      * @return the lines on that board
      */
-    public synchronized List<Line> getLinesForBoardID(int boardID) {
-        if (!(this.boardForID.keySet().contains(boardID)))
-            throw new IllegalArgumentException(String.format(
-                    "boardID=%d does not exist!", boardID));
-        return this.boardForID.get(boardID).getLines();
+    public StrokeSnapshot getLinesForBoardID(int boardID) {
+        return getBoard(boardID).getLines();
+    }
+
+    /**
+     * Gets the lines for the board with the given boardID, the first ones as
+     * an image
+     * 
+     * @param boardID
+     *            the id of the board
+     * @return the image and lines of that board
+     */
+    public RasterSnapshot getRasterForBoardID(int boardID) {
+        return getBoard(boardID).getRaster();
+    }
+
+    /**
+     * Gets a small preview of the board with the given boardID, from the
+     * cache of the previews asked for last, as it was last drawn; one that
+     * is behind the board is drawn again in the background
+     * 
+     * @param boardID
+     *            the id of the board
+     * @param listener
+     *            told the preview returned, and again once it is drawn if
+     *            it is behind; may be null
+     * @return the preview, a PNG of ThumbnailCache.WIDTH by
+     *         ThumbnailCache.HEIGHT pixels
+     */
+    public byte[] getThumbnailForBoardID(int boardID,
+            ThumbnailListener listener) {
+        return this.thumbnails.get(getBoard(boardID), listener);
     }
     
+    /**
+     * Gets the tiles of the board with the given boardID that changed since
+     * a version
+     * 
+     * @param boardID
+     *            the id of the board
+     * @param sinceVersion
+     *            a version of the board
+     * @return the tiles changed since that version
+     */
+    public TileChanges getTileChangesForBoardID(int boardID, long sinceVersion) {
+        return getBoard(boardID).getTileChangesSince(sinceVersion);
+    }
+
+    /**
+     * Gets the lines touching one tile of the board with the given boardID
+     * 
+     * @param boardID
+     *            the id of the board
+     * @param tileX
+     *            the column of the tile
+     * @param tileY
+     *            the row of the tile
+     * @return the lines touching that tile
+     */
+    public TileSnapshot getTileForBoardID(int boardID, int tileX, int tileY) {
+        return getBoard(boardID).getTile(tileX, tileY);
+    }
+
     /**
      * Clears the board with the given ID
      * @param boardID the board to clear
      */
-    public synchronized void clearBoard(int boardID){
-        this.boardForID.get(boardID).clearBoard();
+    public void clearBoard(int boardID){
+        getBoard(boardID).clearBoard();
+    }
+
+    /**
+     * @param boardID the id of the board
+     * @return the board with the given id
+     * @throws IllegalArgumentException
+     *             if the boardID does not exist
+     */
+    private Whiteboard getBoard(int boardID) {
+        Whiteboard board = this.boardForID.get(boardID);
+        if (board == null)
+            throw new IllegalArgumentException(String.format(
+                    "boardID=%d does not exist!", boardID));
+        return board;
     }
   
     /**
      * @return the whiteboards
      */
-    public synchronized Collection<Whiteboard> getWhiteboards(){
+    public Collection<Whiteboard> getWhiteboards(){
         return this.boardForID.values();
     }
 
+    /**
+     * @param boardID the id of the board
+     * @return the whiteboard with the given id, or null if there is none
+     */
+    public Whiteboard getWhiteboard(int boardID){
+        return this.boardForID.get(boardID);
+    }
+
     /**
      * @return true if the rep invariant is satisfied.
      * 
@@ -403,21 +623,32 @@ public class LobbyModel {
      * 3) All boards have unique ids (satisfied because we use board IDs as keys)
      * 4) All users have unique names
      * 5) All boards have unique names
+     * 6) Each user's board agrees with the sets of users in each board
      * 
+     * It is checked while no users or boards are being changed.
      */
-    public boolean checkRep(){
+    public synchronized boolean checkRep(){
         
         // 1) One user per board
         Set<Integer> userIDsInBoard = new HashSet<Integer>();
         for(int boardID : this.boardForID.keySet()){
             for(int userID : this.userIDsForBoardID.get(boardID)){
-                if(userIDsInBoard.contains(userIDsInBoard)){
+                if(userIDsInBoard.contains(userID)){
                     return false;
                 }
                 userIDsInBoard.add(userID);
+                
+                // 6) Each user's board agrees with the sets of users in each board
+                if(!Integer.valueOf(boardID).equals(this.boardIDForUserID.get(userID))){
+                    return false;
+                }
             }
         }
         
+        if(userIDsInBoard.size() != this.boardIDForUserID.size()){
+            return false;
+        }
+        
         // 4) All users have unique names
         Set<String> userNames = new HashSet<String>();
         for(User user : this.userForID.values()){
@@ -0,0 +1,172 @@
+package adts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The line segments of a board that was evicted from the heap, kept in a
+ * memory-mapped file instead, so that they take pages the operating system
+ * can drop rather than heap the collector has to go through.
+ *
+ * The file is a sequence of fixed 24-byte records, one per segment, in the
+ * order they were drawn: [x1] [y1] [x2] [y2] [float strokeThickness]
+ * [int argb], all 4 bytes, big-endian, the same six values a StrokeStore
+ * keeps. It is only a cache of the board while it is idle, not a copy that
+ * outlives the server (that is what BoardJournal is for), so it is never
+ * forced to disk.
+ *
+ * Concurrency argument:
+ *      The mapping is written once, before the object is handed out, and
+ *      only read afterwards; Whiteboard only uses it holding its lock.
+ */
+class MappedStrokes {
+
+    /**
+     * The bytes of one segment in the file
+     */
+    static final int RECORD_BYTES = 24;
+
+    private final File file;
+    private final MappedByteBuffer mapping;
+    private final int size;
+
+    private MappedStrokes(File file, MappedByteBuffer mapping, int size) {
+        this.file = file;
+        this.mapping = mapping;
+        this.size = size;
+    }
+
+    /**
+     * Writes the lines to a file, replacing it, and maps it
+     *
+     * @param file the file to keep the lines in
+     * @param lines the lines
+     * @return the mapped lines
+     * @throws IOException if the file cannot be written or mapped, or the
+     *             lines take more than 2GB
+     */
+    static MappedStrokes write(File file, StrokeSnapshot lines)
+            throws IOException {
+        int size = lines.size();
+        if ((long) RECORD_BYTES * size > Integer.MAX_VALUE)
+            throw new IOException(size + " segments are too many to map");
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer mapping;
+        try {
+            // the mapping stays valid once the channel is closed
+            mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) RECORD_BYTES * size);
+        } finally {
+            channel.close();
+        }
+        for (int i = 0; i < size; i++) {
+            mapping.putInt(lines.getX1(i));
+            mapping.putInt(lines.getY1(i));
+            mapping.putInt(lines.getX2(i));
+            mapping.putInt(lines.getY2(i));
+            mapping.putFloat(lines.getStrokeThickness(i));
+            mapping.putInt(lines.getARGB(i));
+        }
+        return new MappedStrokes(file, mapping, size);
+    }
+
+    /**
+     * @return the number of segments
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Reads the segments back onto the heap
+     *
+     * @return a store with the segments, in order
+     */
+    StrokeStore read() {
+        StrokeStore lines = new StrokeStore();
+        for (int i = 0; i < this.size; i++) {
+            int position = i * RECORD_BYTES;
+            int argb = this.mapping.getInt(position + 20);
+            lines.add(this.mapping.getInt(position),
+                    this.mapping.getInt(position + 4),
+                    this.mapping.getInt(position + 8),
+                    this.mapping.getInt(position + 12),
+                    this.mapping.getFloat(position + 16), (argb >>> 16) & 0xff,
+                    (argb >>> 8) & 0xff, argb & 0xff, argb >>> 24);
+        }
+        return lines;
+    }
+
+    /**
+     * @return the segments as they are in the file, read from the mapping
+     *         as they are asked for rather than copied onto the heap; the
+     *         mapping is let go with the snapshot
+     */
+    StrokeSnapshot snapshot() {
+        return new MappedSnapshot(this.mapping, this.size);
+    }
+
+    /**
+     * A snapshot read from the mapping; absolute reads leave the mapping's
+     * position alone, so it is as threadsafe as any snapshot
+     */
+    private static class MappedSnapshot extends StrokeSnapshot {
+
+        private final MappedByteBuffer mapping;
+
+        private MappedSnapshot(MappedByteBuffer mapping, int size) {
+            super(null, size);
+            this.mapping = mapping;
+        }
+
+        @Override
+        public int getX1(int index) {
+            return this.mapping.getInt(position(index));
+        }
+
+        @Override
+        public int getY1(int index) {
+            return this.mapping.getInt(position(index) + 4);
+        }
+
+        @Override
+        public int getX2(int index) {
+            return this.mapping.getInt(position(index) + 8);
+        }
+
+        @Override
+        public int getY2(int index) {
+            return this.mapping.getInt(position(index) + 12);
+        }
+
+        @Override
+        public float getStrokeThickness(int index) {
+            return this.mapping.getFloat(position(index) + 16);
+        }
+
+        @Override
+        public int getARGB(int index) {
+            return this.mapping.getInt(position(index) + 20);
+        }
+
+        private int position(int index) {
+            if (index < 0 || index >= size())
+                throw new IndexOutOfBoundsException(String.format(
+                        "index=%d, size=%d", index, size()));
+            return index * RECORD_BYTES;
+        }
+    }
+
+    /**
+     * Deletes the file; the mapping is let go with this object and the
+     * snapshots taken of it
+     */
+    void delete() {
+        this.file.delete();
+    }
+}
@@ -0,0 +1,74 @@
+package adts;
+
+/**
+ * The lines of a board at one point in time, as taken by
+ * Whiteboard.getRaster: a PNG image of the first ones, and the rest as
+ * segments still to be drawn over it, so that a user joining the board is
+ * sent an image the size of a Canvas and a bounded number of segments
+ * rather than every segment ever drawn.
+ *
+ * The segments are those among the first lines that reach past the image,
+ * then the lines drawn after it, each in the order they were drawn.
+ *
+ * Concurrency argument:
+ *      All fields are final and the PNG and the indices are never changed
+ *      once made, so it is immutable and threadsafe.
+ */
+public class RasterSnapshot {
+
+    private final byte[] png;
+    private final int imageLines;
+    private final int[] outside;
+    private final StrokeSnapshot lines;
+
+    RasterSnapshot(byte[] png, int imageLines, int[] outside,
+            StrokeSnapshot lines) {
+        this.png = png;
+        this.imageLines = imageLines;
+        this.outside = outside;
+        this.lines = lines;
+    }
+
+    /**
+     * @return the image, a transparent PNG with the lines drawn the way a
+     *         Canvas draws them, its top left corner at 0, 0; shared, so
+     *         not to be changed
+     */
+    public byte[] getPNG() {
+        return this.png;
+    }
+
+    /**
+     * @return the index of the first line after the image; the lines before
+     *         it are in the image, but for those that reach past it
+     */
+    public int getFirstLineAfterImage() {
+        return Math.min(this.imageLines, this.lines.size());
+    }
+
+    /**
+     * @return the number of lines to draw over the image
+     */
+    public int getSegmentCount() {
+        return this.outside.length + this.lines.size()
+                - getFirstLineAfterImage();
+    }
+
+    /**
+     * @param i the index of a line to draw over the image, from 0 to
+     *            getSegmentCount(), excluded
+     * @return the index of that line in getLines()
+     */
+    public int getSegment(int i) {
+        if (i < this.outside.length)
+            return this.outside[i];
+        return getFirstLineAfterImage() + i - this.outside.length;
+    }
+
+    /**
+     * @return all the lines of the board, including those in the image
+     */
+    public StrokeSnapshot getLines() {
+        return this.lines;
+    }
+}
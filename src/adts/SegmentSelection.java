@@ -0,0 +1,52 @@
+package adts;
+
+/**
+ * Some of the segments of a board at one point in time, in the order they
+ * were drawn, as picked by a query on the board such as
+ * Whiteboard.getLinesInRegion.
+ * 
+ * Concurrency argument:
+ *      The indices are a copy never handed out and the lines are a
+ *      StrokeSnapshot, so the selection is immutable and threadsafe.
+ */
+public class SegmentSelection {
+
+    private final StrokeSnapshot lines;
+    private final int[] segments;
+
+    SegmentSelection(StrokeSnapshot lines, int[] segments) {
+        this.lines = lines;
+        this.segments = segments;
+    }
+
+    /**
+     * @return the number of segments selected
+     */
+    public int size() {
+        return this.segments.length;
+    }
+
+    /**
+     * @param i the position of the segment in the selection, from 0 to size()-1
+     * @return the index of that segment on the board
+     */
+    public int getIndex(int i) {
+        return this.segments[i];
+    }
+
+    /**
+     * @param i the position of the segment in the selection, from 0 to size()-1
+     * @return the segment as a Line
+     */
+    public Line getLine(int i) {
+        return this.lines.getLine(this.segments[i]);
+    }
+
+    /**
+     * @param i the position of the segment in the selection, from 0 to size()-1
+     * @return the segment in the same format as Line.toString
+     */
+    public String toString(int i) {
+        return this.lines.toString(this.segments[i]);
+    }
+}
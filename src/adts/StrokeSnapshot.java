@@ -0,0 +1,106 @@
+package adts;
+
+/**
+ * The segments of a board at one point in time, as taken by
+ * StrokeStore.snapshot, or by MappedStrokes.snapshot for an evicted board.
+ * Reading a snapshot never copies segments or creates Line objects unless
+ * asked to.
+ * 
+ * Concurrency argument:
+ *      The snapshot only reads chunk slots below its size, which the store
+ *      never writes again, so it is immutable and threadsafe.
+ */
+public class StrokeSnapshot {
+
+    private final StrokeStore.Chunk[] chunks;
+    private final int size;
+
+    StrokeSnapshot(StrokeStore.Chunk[] chunks, int size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    /**
+     * @return the number of segments
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public int getX1(int index) {
+        return chunk(index).x1[offset(index)];
+    }
+
+    public int getY1(int index) {
+        return chunk(index).y1[offset(index)];
+    }
+
+    public int getX2(int index) {
+        return chunk(index).x2[offset(index)];
+    }
+
+    public int getY2(int index) {
+        return chunk(index).y2[offset(index)];
+    }
+
+    public float getStrokeThickness(int index) {
+        return chunk(index).strokeThickness[offset(index)];
+    }
+
+    /**
+     * @return the color of the segment at the given index, packed as
+     *         (a << 24) | (r << 16) | (g << 8) | b
+     */
+    public int getARGB(int index) {
+        return chunk(index).argb[offset(index)];
+    }
+
+    public int getR(int index) {
+        return (getARGB(index) >>> 16) & 0xff;
+    }
+
+    public int getG(int index) {
+        return (getARGB(index) >>> 8) & 0xff;
+    }
+
+    public int getB(int index) {
+        return getARGB(index) & 0xff;
+    }
+
+    public int getA(int index) {
+        return getARGB(index) >>> 24;
+    }
+
+    /**
+     * @param index the index of the segment
+     * @return the segment at the given index as a Line
+     */
+    public Line getLine(int index) {
+        return new Line(getX1(index), getY1(index), getX2(index),
+                getY2(index), getStrokeThickness(index), getR(index),
+                getG(index), getB(index), getA(index));
+    }
+
+    /**
+     * @param index the index of the segment
+     * @return the segment at the given index in the same format as
+     *         Line.toString, without creating a Line
+     */
+    public String toString(int index) {
+        return String.format("%d %d %d %d %f %d %d %d %d", getX1(index),
+                getY1(index), getX2(index), getY2(index),
+                getStrokeThickness(index), getR(index), getG(index),
+                getB(index), getA(index));
+    }
+
+    private StrokeStore.Chunk chunk(int index) {
+        if (index < 0 || index >= this.size)
+            throw new IndexOutOfBoundsException(String.format(
+                    "index=%d, size=%d", index, this.size));
+        return this.chunks[index >>> StrokeStore.CHUNK_SHIFT];
+    }
+
+    private static int offset(int index) {
+        return index & (StrokeStore.CHUNK_SIZE - 1);
+    }
+}
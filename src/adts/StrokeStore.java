@@ -0,0 +1,214 @@
+package adts;
+
+/**
+ * The line segments drawn on a board, stored column by column in primitive
+ * arrays instead of as Line objects.
+ * 
+ * Each segment takes six ints: its four coordinates, its color packed as
+ * ARGB, and its stroke thickness. That is 24 bytes per segment (plus the
+ * unused part of the last chunk), against about 56 for a Line object and the
+ * list slot pointing to it, and the collector sees a few arrays per thousand
+ * segments instead of one object per segment.
+ * 
+ * The store only ever grows at the end. Segments live in fixed-size chunks
+ * that are never moved or overwritten once written (the first chunk starts
+ * small and is copied as it grows, so that boards with few strokes stay
+ * small). A snapshot is the current list of chunks and the number of
+ * segments in it: taking one copies nothing, and it keeps reading the same
+ * segments however many are appended later.
+ * 
+ * Color components are kept in 8 bits each, which is all a java.awt.Color
+ * takes.
+ * 
+ * Concurrency argument:
+ *      Appending is not threadsafe; Whiteboard only appends while holding
+ *      its lock. Taking and reading snapshots is threadsafe and never waits
+ *      for the writer: the writer fills a segment and installs any new list
+ *      of chunks before it publishes the segment by writing the volatile
+ *      size, and a reader reads the size before the list of chunks, so it
+ *      sees every segment it counts. The list of chunks is volatile too: a
+ *      reader may get a list installed after the size it read, and then
+ *      sees that list and its chunks fully built, and in them every segment
+ *      it counts, since a new list keeps or copies all written segments.
+ */
+public class StrokeStore {
+
+    /**
+     * log2 of the number of segments in a chunk
+     */
+    static final int CHUNK_SHIFT = 10;
+
+    /**
+     * The number of segments in a chunk
+     */
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    /**
+     * The capacity of the first chunk of a new store
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The chunks, in order. Replaced, never changed, when a chunk is added
+     * or the first chunk grows, since snapshots share it.
+     */
+    private volatile Chunk[] chunks;
+
+    /**
+     * The number of segments written and published
+     */
+    private volatile int size;
+
+    /**
+     * Create an empty store
+     */
+    public StrokeStore() {
+        this.chunks = new Chunk[] { new Chunk(INITIAL_CAPACITY) };
+        this.size = 0;
+    }
+
+    /**
+     * @param l the line to add after the others
+     */
+    public void add(Line l) {
+        add(l.getX1(), l.getY1(), l.getX2(), l.getY2(),
+                l.getStrokeThickness(), l.getR(), l.getG(), l.getB(), l.getA());
+    }
+
+    /**
+     * Adds a segment after the others
+     * 
+     * @param x1 The first x coordinate
+     * @param y1 The first y coordinate
+     * @param x2 The second x coordinate
+     * @param y2 The second y coordinate
+     * @param strokeThickness The stroke thickness
+     * @param r The red value
+     * @param g The green value
+     * @param b The blue value
+     * @param a The alpha value
+     */
+    public void add(int x1, int y1, int x2, int y2, float strokeThickness,
+            int r, int g, int b, int a) {
+        int index = this.size;
+        set(index, x1, y1, x2, y2, strokeThickness, argb(r, g, b, a));
+        this.size = index + 1;
+    }
+
+    /**
+     * Adds the segments of a polyline after the others, all published at
+     * once, so a snapshot has either all of them or none
+     * 
+     * @param strokeThickness The stroke thickness of every segment
+     * @param r The red value
+     * @param g The green value
+     * @param b The blue value
+     * @param a The alpha value
+     * @param points the points, x then y, of the polyline
+     * @param pointCount the number of points, at least 2, each one after the
+     *            first making a segment
+     */
+    public void addPolyline(float strokeThickness, int r, int g, int b, int a,
+            int[] points, int pointCount) {
+        if (pointCount < 2 || 2 * pointCount > points.length)
+            throw new IllegalArgumentException("bad point count " + pointCount);
+        int index = this.size;
+        int argb = argb(r, g, b, a);
+        for (int i = 1; i < pointCount; i++) {
+            set(index + i - 1, points[2 * i - 2], points[2 * i - 1],
+                    points[2 * i], points[2 * i + 1], strokeThickness, argb);
+        }
+        this.size = index + pointCount - 1;
+    }
+
+    private static int argb(int r, int g, int b, int a) {
+        return ((a & 0xff) << 24) | ((r & 0xff) << 16) | ((g & 0xff) << 8)
+                | (b & 0xff);
+    }
+
+    /**
+     * Writes a segment, which readers do not see until size is raised past it
+     */
+    private void set(int index, int x1, int y1, int x2, int y2,
+            float strokeThickness, int argb) {
+        int chunkIndex = index >>> CHUNK_SHIFT;
+        int offset = index & (CHUNK_SIZE - 1);
+        Chunk[] chunks = this.chunks;
+        if (chunkIndex == chunks.length) {
+            Chunk[] newChunks = new Chunk[chunkIndex + 1];
+            System.arraycopy(chunks, 0, newChunks, 0, chunkIndex);
+            newChunks[chunkIndex] = new Chunk(CHUNK_SIZE);
+            this.chunks = chunks = newChunks;
+        } else if (offset == chunks[chunkIndex].x1.length) {
+            // only the first chunk can be smaller than CHUNK_SIZE
+            Chunk[] newChunks = chunks.clone();
+            newChunks[chunkIndex] = chunks[chunkIndex].grow(offset);
+            this.chunks = chunks = newChunks;
+        }
+        Chunk chunk = chunks[chunkIndex];
+        chunk.x1[offset] = x1;
+        chunk.y1[offset] = y1;
+        chunk.x2[offset] = x2;
+        chunk.y2[offset] = y2;
+        chunk.strokeThickness[offset] = strokeThickness;
+        chunk.argb[offset] = argb;
+    }
+
+    /**
+     * @return the number of segments
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the segments added so far, which stay the same when more are
+     *         added
+     */
+    public StrokeSnapshot snapshot() {
+        int size = this.size;
+        return new StrokeSnapshot(this.chunks, size);
+    }
+
+    /**
+     * The columns of up to CHUNK_SIZE segments
+     */
+    static class Chunk {
+        final int[] x1;
+        final int[] y1;
+        final int[] x2;
+        final int[] y2;
+
+        /**
+         * The colors, packed as (a << 24) | (r << 16) | (g << 8) | b
+         */
+        final int[] argb;
+
+        final float[] strokeThickness;
+
+        private Chunk(int capacity) {
+            this.x1 = new int[capacity];
+            this.y1 = new int[capacity];
+            this.x2 = new int[capacity];
+            this.y2 = new int[capacity];
+            this.argb = new int[capacity];
+            this.strokeThickness = new float[capacity];
+        }
+
+        /**
+         * @param used the number of segments written in this chunk
+         * @return a chunk with twice the capacity (at most CHUNK_SIZE) and
+         *         the same first used segments
+         */
+        private Chunk grow(int used) {
+            Chunk grown = new Chunk(Math.min(2 * this.x1.length, CHUNK_SIZE));
+            System.arraycopy(this.x1, 0, grown.x1, 0, used);
+            System.arraycopy(this.y1, 0, grown.y1, 0, used);
+            System.arraycopy(this.x2, 0, grown.x2, 0, used);
+            System.arraycopy(this.y2, 0, grown.y2, 0, used);
+            System.arraycopy(this.argb, 0, grown.argb, 0, used);
+            System.arraycopy(this.strokeThickness, 0, grown.strokeThickness, 0, used);
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package adts;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Small previews of boards for the lobby's list of boards, as PNGs, kept for
+ * the boards asked for most recently.
+ *
+ * A thumbnail is WIDTH by HEIGHT pixels and shows the top left BOARD_WIDTH
+ * by BOARD_HEIGHT pixels of its board, about a maximized Canvas, on white.
+ * Each thumbnail remembers the version of the board it was drawn at and how
+ * many lines it has; when it is asked for again after more lines were
+ * drawn, only those lines are drawn on it and the PNG is encoded again. It
+ * is only drawn from the start if the board was cleared since. A thumbnail
+ * whose board did not change is handed out as it is, without looking at
+ * the lines, so asking for the thumbnail of an evicted board does not read
+ * its file each time; drawing one reads the lines from the file as they
+ * are needed rather than onto the heap.
+ *
+ * Drawing and encoding take time in the number of lines, so they are done
+ * on one background thread shared by all the caches, never on the thread
+ * that asks: get hands out the thumbnail as last drawn, or a blank one if
+ * it never was, and starts bringing it up to date if it is behind; a
+ * listener given is told it again once it is.
+ *
+ * The thumbnails take at most the budget given: once they take more, those
+ * asked for least recently are dropped, down to the one just drawn.
+ *
+ * Thread-safety:
+ *
+ * The map of thumbnails and the bytes they take are guarded by the cache's
+ * lock, which is only held to find, count and drop thumbnails. The PNG a
+ * thumbnail hands out and the listeners waiting for it are guarded by the
+ * thumbnail's lock, which takes its board's to read its version, never the
+ * other way around, and is held to tell the listeners but never while
+ * drawing. The image is only used
+ * by the background thread, which refreshes one thumbnail at a time, and a
+ * board is only held while its lines are read. A thumbnail dropped while
+ * being drawn is drawn to the end, handed to its listeners and let go.
+ */
+public class ThumbnailCache {
+
+    /**
+     * The size of a thumbnail in pixels
+     */
+    public static final int WIDTH = 80;
+    public static final int HEIGHT = 50;
+
+    /**
+     * The part of a board a thumbnail shows, from 0, 0
+     */
+    public static final int BOARD_WIDTH = 1920;
+    public static final int BOARD_HEIGHT = 1200;
+
+    /**
+     * The budget when none is given, for a few hundred thumbnails
+     */
+    public static final long DEFAULT_BUDGET_BYTES = 4L << 20;
+
+    private static final double SCALE = (double) WIDTH / BOARD_WIDTH;
+
+    /**
+     * The bytes a thumbnail takes besides its PNG: its image and about what
+     * its objects take
+     */
+    private static final int IMAGE_BYTES = WIDTH * HEIGHT * 4 + 256;
+
+    private final static Logger LOGGER = Logger.getLogger(ThumbnailCache.class.getName());
+
+    /**
+     * The thumbnail of a board with nothing drawn, handed out until a
+     * board's thumbnail is first drawn
+     */
+    private static final byte[] BLANK_PNG = encode(blank());
+
+    /**
+     * Draws the thumbnails of every cache, one at a time
+     */
+    private static final ExecutorService REFRESHER = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "ThumbnailCache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final long budgetBytes;
+
+    /**
+     * The thumbnails by board ID, least recently asked for first
+     */
+    private final LinkedHashMap<Integer, Thumbnail> thumbnails;
+
+    /**
+     * The bytes the thumbnails in the map take, as last counted
+     */
+    private long bytes;
+
+    /**
+     * The number of lines drawn on thumbnails so far
+     */
+    private long drawnLines;
+
+    /**
+     * Create an empty cache
+     *
+     * @param budgetBytes
+     *            the most bytes the thumbnails take at once, though the one
+     *            last drawn is kept even if it alone takes more
+     */
+    public ThumbnailCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        this.thumbnails = new LinkedHashMap<Integer, Thumbnail>(16, 0.75f, true);
+    }
+
+    /**
+     * Gets the thumbnail of a board as it was last drawn, and starts drawing
+     * the lines drawn on the board since in the background
+     *
+     * @param board
+     *            the board
+     * @return the thumbnail, a PNG; shared, so not to be changed
+     */
+    public byte[] get(Whiteboard board) {
+        return get(board, null);
+    }
+
+    /**
+     * Gets the thumbnail of a board as it was last drawn, and starts drawing
+     * the lines drawn on the board since in the background
+     *
+     * @param board
+     *            the board
+     * @param listener
+     *            told the thumbnail returned before get returns, and again
+     *            once it is drawn if it is behind the board; may be null
+     * @return the thumbnail as last drawn, or a blank one if it never was,
+     *         a PNG; shared, so not to be changed
+     */
+    public byte[] get(final Whiteboard board, ThumbnailListener listener) {
+        final Thumbnail thumbnail;
+        synchronized (this) {
+            Thumbnail found = this.thumbnails.get(board.getBoardID());
+            if (found == null) {
+                found = new Thumbnail();
+                this.thumbnails.put(board.getBoardID(), found);
+            }
+            thumbnail = found;
+        }
+        synchronized (thumbnail) {
+            byte[] png = thumbnail.png == null ? BLANK_PNG : thumbnail.png;
+            if (listener != null)
+                listener.thumbnailReady(board.getBoardID(), png);
+            if (thumbnail.png != null && board.getVersion() == thumbnail.version)
+                return png;
+            if (listener != null)
+                thumbnail.listeners.add(listener);
+            if (!thumbnail.refreshing) {
+                thumbnail.refreshing = true;
+                REFRESHER.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh(thumbnail, board);
+                    }
+                });
+            }
+            return png;
+        }
+    }
+
+    /**
+     * Brings a thumbnail up to date, hands it out and tells its listeners;
+     * runs on the refresher
+     */
+    private void refresh(Thumbnail thumbnail, Whiteboard board) {
+        int drawn = 0;
+        try {
+            drawn = thumbnail.update(board);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "cannot draw the thumbnail of a board", e);
+        }
+        byte[] png = thumbnail.drawnPng;
+        synchronized (this) {
+            this.drawnLines += drawn;
+            if (png != null
+                    && this.thumbnails.get(board.getBoardID()) == thumbnail) {
+                int size = IMAGE_BYTES + png.length;
+                this.bytes += size - thumbnail.countedBytes;
+                thumbnail.countedBytes = size;
+                trim(thumbnail);
+            }
+        }
+        synchronized (thumbnail) {
+            if (png != null) {
+                thumbnail.png = png;
+                thumbnail.version = thumbnail.drawnVersion;
+            } else {
+                png = BLANK_PNG;
+            }
+            for (ThumbnailListener listener : thumbnail.listeners) {
+                try {
+                    listener.thumbnailReady(board.getBoardID(), png);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "a thumbnail listener failed", e);
+                }
+            }
+            thumbnail.listeners.clear();
+            thumbnail.refreshing = false;
+        }
+    }
+
+    /**
+     * Drops the thumbnails asked for least recently until the rest fit the
+     * budget, keeping the given one; called holding the lock
+     */
+    private void trim(Thumbnail keep) {
+        Iterator<Thumbnail> eldest = this.thumbnails.values().iterator();
+        while (this.bytes > this.budgetBytes && eldest.hasNext()) {
+            Thumbnail thumbnail = eldest.next();
+            if (thumbnail == keep)
+                break;
+            this.bytes -= thumbnail.countedBytes;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return the number of thumbnails kept
+     */
+    public synchronized int size() {
+        return this.thumbnails.size();
+    }
+
+    /**
+     * @return the bytes the thumbnails kept take
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * @return the number of lines drawn on thumbnails so far, counting
+     *         those drawn again after a clear or a drop
+     */
+    public synchronized long getDrawnLines() {
+        return this.drawnLines;
+    }
+
+    /**
+     * The thumbnail of one board. The PNG handed out, its version and the
+     * listeners are guarded by its own lock, countedBytes by the cache's,
+     * and the rest is only used by the refresher.
+     */
+    private static class Thumbnail {
+        private byte[] png;
+        private long version;
+        private boolean refreshing;
+        private final List<ThumbnailListener> listeners = new ArrayList<ThumbnailListener>();
+
+        private long countedBytes;
+
+        private final LineRenderer lineRenderer = new LineRenderer();
+        private BufferedImage image;
+
+        /**
+         * The PNG last drawn, the version of the board it was drawn at, and
+         * how many of its lines are drawn on it
+         */
+        private byte[] drawnPng;
+        private long drawnVersion;
+        private int lines;
+
+        /**
+         * Brings the image up to date with its board and encodes it
+         *
+         * @return the number of lines drawn
+         */
+        int update(Whiteboard board) {
+            long version;
+            long clearedVersion;
+            StrokeSnapshot lines;
+            synchronized (board) {
+                version = board.getVersion();
+                if (this.drawnPng != null && version == this.drawnVersion)
+                    return 0;
+                clearedVersion = board.getClearedVersion();
+                lines = board.peekLines();
+            }
+            boolean restart = this.image == null
+                    || clearedVersion > this.drawnVersion
+                    || lines.size() < this.lines;
+            if (restart) {
+                this.image = blank();
+                this.lines = 0;
+            }
+            int drawn = lines.size() - this.lines;
+            if (drawn > 0 || restart) {
+                draw(lines, this.lines);
+                this.drawnPng = encode(this.image);
+            }
+            this.drawnVersion = version;
+            this.lines = lines.size();
+            return drawn;
+        }
+
+        /**
+         * Draws the lines from the given one on, scaled down; a line is at
+         * least a pixel wide so that thin lines still show
+         */
+        private void draw(StrokeSnapshot lines, int from) {
+            Graphics2D g = this.image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g.scale(SCALE, SCALE);
+            float minThickness = (float) (1 / SCALE);
+            this.lineRenderer.begin(g);
+            for (int i = from; i < lines.size(); i++) {
+                this.lineRenderer.draw(lines.getX1(i), lines.getY1(i),
+                        lines.getX2(i), lines.getY2(i),
+                        Math.max(minThickness, lines.getStrokeThickness(i)),
+                        lines.getR(i), lines.getG(i), lines.getB(i),
+                        lines.getA(i));
+            }
+            this.lineRenderer.end();
+        }
+    }
+
+    /**
+     * @return a white image the size of a thumbnail
+     */
+    private static BufferedImage blank() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * @return the image as a PNG
+     */
+    private static byte[] encode(BufferedImage image) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", bytes);
+        } catch (IOException e) {
+            // written to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
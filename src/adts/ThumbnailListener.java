@@ -0,0 +1,17 @@
+package adts;
+
+/**
+ * Is told by a ThumbnailCache the thumbnail of a board it asked for, as it
+ * was last drawn, and again once it is brought up to date if it was behind.
+ * The first call is made on the thread that asked and the second on the
+ * cache's background thread, both holding the thumbnail's lock, so that the
+ * second comes after the first; listeners must be quick, threadsafe, and
+ * must not call back into the cache.
+ */
+public interface ThumbnailListener {
+    /**
+     * @param boardID the id of the board
+     * @param png the thumbnail, a PNG; shared, so not to be changed
+     */
+    public void thumbnailReady(int boardID, byte[] png);
+}
@@ -0,0 +1,62 @@
+package adts;
+
+/**
+ * The tiles of a board that changed since a version, as taken by
+ * Whiteboard.getTileChangesSince.
+ * 
+ * Concurrency argument:
+ *      All fields are final and the tiles are a copy never handed out, so it
+ *      is immutable and threadsafe.
+ */
+public class TileChanges {
+
+    private final long version;
+    private final boolean allChanged;
+    private final int[] tiles;
+
+    TileChanges(long version, boolean allChanged, int[] tiles) {
+        this.version = version;
+        this.allChanged = allChanged;
+        this.tiles = tiles;
+    }
+
+    /**
+     * @return the version of the board now, to ask for the next changes since
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return true if the board was cleared or an oversize segment (see
+     *         TileIndex) was drawn since the version asked about, so that
+     *         every tile held from before has to be taken again; the tiles
+     *         listed are then only some of those that changed
+     */
+    public boolean isAllChanged() {
+        return this.allChanged;
+    }
+
+    /**
+     * @return the number of tiles that changed
+     */
+    public int getTileCount() {
+        return this.tiles.length / 2;
+    }
+
+    /**
+     * @param i a changed tile, from 0 to getTileCount()-1
+     * @return the column of that tile
+     */
+    public int getTileX(int i) {
+        return this.tiles[2 * i];
+    }
+
+    /**
+     * @param i a changed tile, from 0 to getTileCount()-1
+     * @return the row of that tile
+     */
+    public int getTileY(int i) {
+        return this.tiles[2 * i + 1];
+    }
+}
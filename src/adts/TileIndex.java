@@ -0,0 +1,474 @@
+package adts;
+
+import java.util.Arrays;
+
+/**
+ * Splits a board into square tiles of TILE_SIZE pixels and keeps, for each
+ * tile that has been drawn on, the indices of the segments that touch it and
+ * the version of the board when one last did.
+ *
+ * A segment is indexed in the tiles its stroke may cover: for each column of
+ * tiles it crosses, the tiles between where it enters and leaves the column,
+ * widened by half its stroke thickness. A long diagonal is thus indexed in
+ * the tiles along it rather than in every tile of its bounding box. Tiles are
+ * only made when a segment touches them, so the empty parts of a huge board
+ * cost nothing.
+ *
+ * A segment whose stroke would cover more than MAX_TILES_PER_SEGMENT tiles
+ * is not put in its tiles but kept aside, with its widened bounding box, in
+ * a list of oversize segments that every query goes through. Indexing a
+ * segment thus takes at most that many tiles however long or thick it is.
+ * Few segments are that big, and a board where many are costs queries a
+ * scan of them rather than memory and time for each tile they cross.
+ *
+ * Tiles are kept in an open addressing table keyed by their packed
+ * coordinates, so indexing a segment allocates nothing unless a tile is made
+ * or its index grows.
+ *
+ * The tiles make a uniform grid for region queries: the segments that may
+ * touch a region are those in the tiles it overlaps, found with one table
+ * lookup per tile, so a query costs the tiles it covers and the segments in
+ * them whatever the size of the board. intersects then tells which of them
+ * really touch it.
+ *
+ * Concurrency argument:
+ *      Not threadsafe; a Whiteboard only uses its index holding its own lock.
+ */
+public class TileIndex {
+
+    /**
+     * Tiles are TILE_SIZE = 1 << TILE_SHIFT pixels square
+     */
+    public static final int TILE_SHIFT = 8;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    /**
+     * The most tiles a segment is indexed in; a bigger one is oversize
+     */
+    public static final int MAX_TILES_PER_SEGMENT = 64;
+
+    private static final int[] NO_SEGMENTS = new int[0];
+
+    /**
+     * The segments touching one tile, in the order they were drawn
+     */
+    private static class Tile {
+        private final int tileX;
+        private final int tileY;
+        private int[] segments = new int[4];
+        private int size;
+        private long version;
+
+        private Tile(int tileX, int tileY) {
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        private void add(int index, long version) {
+            if (this.size == this.segments.length)
+                this.segments = Arrays.copyOf(this.segments, 2 * this.size);
+            this.segments[this.size++] = index;
+            this.version = version;
+        }
+    }
+
+    /**
+     * The table of tiles: slots hold a tile and its key, or null
+     */
+    private long[] keys;
+    private Tile[] tiles;
+    private int tileCount;
+    private int segmentCount;
+
+    /**
+     * The oversize segments in the order they were drawn: their indices,
+     * the left, top, right and bottom of their widened bounding boxes, and
+     * the versions of the board once they were drawn
+     */
+    private int[] oversize = NO_SEGMENTS;
+    private int[] oversizeBounds = NO_SEGMENTS;
+    private long[] oversizeVersions = new long[0];
+    private int oversizeCount;
+
+    /**
+     * Creates an index with no tiles
+     */
+    public TileIndex() {
+        this.keys = new long[64];
+        this.tiles = new Tile[64];
+    }
+
+    /**
+     * @param coordinate a board coordinate, may be negative
+     * @return the coordinate of the tile it is in
+     */
+    public static int tileOf(int coordinate) {
+        return coordinate >> TILE_SHIFT;
+    }
+
+    /**
+     * Indexes a segment in the tiles it touches
+     *
+     * @param index the index of the segment on the board
+     * @param x1 the x coordinate of the first end
+     * @param y1 the y coordinate of the first end
+     * @param x2 the x coordinate of the second end
+     * @param y2 the y coordinate of the second end
+     * @param strokeThickness the stroke thickness
+     * @param version the version of the board once the segment is drawn; the
+     *            version of the tiles it touches
+     */
+    public void add(int index, int x1, int y1, int x2, int y2,
+            float strokeThickness, long version) {
+        int pad = (int) Math.ceil(strokeThickness / 2) + 1;
+        if (cover(x1, y1, x2, y2, pad, index, version, false) > MAX_TILES_PER_SEGMENT)
+            addOversize(index, Math.min(x1, x2) - pad, Math.min(y1, y2) - pad,
+                    Math.max(x1, x2) + pad, Math.max(y1, y2) + pad, version);
+        else
+            cover(x1, y1, x2, y2, pad, index, version, true);
+        this.segmentCount++;
+    }
+
+    /**
+     * Goes through the tiles a segment's stroke may cover, indexing it in
+     * them or only counting them; counting stops past MAX_TILES_PER_SEGMENT
+     *
+     * @return the number of tiles, or a number past MAX_TILES_PER_SEGMENT if
+     *         there are more
+     */
+    private int cover(int x1, int y1, int x2, int y2, int pad, int index,
+            long version, boolean add) {
+        int minX = Math.min(x1, x2);
+        int maxX = Math.max(x1, x2);
+        int lastColumn = tileOf(maxX + pad);
+        long count = 0;
+        for (int tileX = tileOf(minX - pad); tileX <= lastColumn; tileX++) {
+            // where the segment is within this column, as far as its ends go
+            int left = Math.max(minX, tileX << TILE_SHIFT);
+            int right = Math.min(maxX, (tileX << TILE_SHIFT) + TILE_SIZE - 1);
+            left = Math.min(left, maxX);
+            right = Math.max(right, minX);
+            double yLeft = yAt(x1, y1, x2, y2, left);
+            double yRight = yAt(x1, y1, x2, y2, right);
+            int top = (int) Math.floor(Math.min(yLeft, yRight)) - pad;
+            int bottom = (int) Math.ceil(Math.max(yLeft, yRight)) + pad;
+            if (x1 == x2) {
+                top = Math.min(y1, y2) - pad;
+                bottom = Math.max(y1, y2) + pad;
+            }
+            int firstRow = tileOf(top);
+            int lastRow = tileOf(bottom);
+            if (!add) {
+                count += (long) lastRow - firstRow + 1;
+                if (count > MAX_TILES_PER_SEGMENT)
+                    break;
+                continue;
+            }
+            for (int tileY = firstRow; tileY <= lastRow; tileY++) {
+                tile(tileX, tileY).add(index, version);
+            }
+        }
+        return (int) Math.min(count, MAX_TILES_PER_SEGMENT + 1);
+    }
+
+    private void addOversize(int index, int left, int top, int right,
+            int bottom, long version) {
+        if (this.oversizeCount == this.oversize.length) {
+            int capacity = Math.max(4, 2 * this.oversizeCount);
+            this.oversize = Arrays.copyOf(this.oversize, capacity);
+            this.oversizeBounds = Arrays.copyOf(this.oversizeBounds,
+                    4 * capacity);
+            this.oversizeVersions = Arrays.copyOf(this.oversizeVersions,
+                    capacity);
+        }
+        int i = this.oversizeCount++;
+        this.oversize[i] = index;
+        this.oversizeBounds[4 * i] = left;
+        this.oversizeBounds[4 * i + 1] = top;
+        this.oversizeBounds[4 * i + 2] = right;
+        this.oversizeBounds[4 * i + 3] = bottom;
+        this.oversizeVersions[i] = version;
+    }
+
+    /**
+     * @return true if the widened bounding box of the i-th oversize segment
+     *         overlaps the region
+     */
+    private boolean oversizeOverlaps(int i, int left, int top, int right,
+            int bottom) {
+        return this.oversizeBounds[4 * i] <= right
+                && this.oversizeBounds[4 * i + 1] <= bottom
+                && this.oversizeBounds[4 * i + 2] >= left
+                && this.oversizeBounds[4 * i + 3] >= top;
+    }
+
+    private static double yAt(int x1, int y1, int x2, int y2, int x) {
+        if (x1 == x2)
+            return y1;
+        return y1 + (double) (x - x1) * (y2 - y1) / (x2 - x1);
+    }
+
+    /**
+     * @param tileX the column of the tile
+     * @param tileY the row of the tile
+     * @return a copy of the indices of the segments touching the tile, in the
+     *         order they were drawn; empty if none do
+     */
+    public int[] getSegments(int tileX, int tileY) {
+        Tile tile = this.tiles[find(key(tileX, tileY))];
+        int size = tile == null ? 0 : tile.size;
+        int[] found = size == 0 ? NO_SEGMENTS : Arrays.copyOf(tile.segments,
+                size);
+        if (this.oversizeCount == 0)
+            return found;
+        int left = tileX << TILE_SHIFT;
+        int top = tileY << TILE_SHIFT;
+        int[] merged = new int[size + this.oversizeCount];
+        int count = 0;
+        int next = 0;
+        // both lists are in the order the segments were drawn: merge them
+        for (int i = 0; i < this.oversizeCount; i++) {
+            if (!oversizeOverlaps(i, left, top, left + TILE_SIZE - 1, top
+                    + TILE_SIZE - 1))
+                continue;
+            while (next < size && found[next] < this.oversize[i])
+                merged[count++] = found[next++];
+            merged[count++] = this.oversize[i];
+        }
+        while (next < size)
+            merged[count++] = found[next++];
+        return Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * @param left the smallest x of the region
+     * @param top the smallest y of the region
+     * @param right the largest x of the region, included
+     * @param bottom the largest y of the region, included
+     * @return the indices of the segments indexed in the tiles the region
+     *         overlaps and of the oversize segments near it, each once, in the order they were drawn; a superset of
+     *         the segments touching the region
+     */
+    public int[] getSegmentsInRegion(int left, int top, int right, int bottom) {
+        int firstColumn = tileOf(left);
+        int lastColumn = tileOf(right);
+        int firstRow = tileOf(top);
+        int lastRow = tileOf(bottom);
+        long regionTiles = ((long) lastColumn - firstColumn + 1)
+                * ((long) lastRow - firstRow + 1);
+        int[] found = new int[16];
+        int size = 0;
+        if (regionTiles <= this.tileCount) {
+            for (int tileX = firstColumn; tileX <= lastColumn; tileX++) {
+                for (int tileY = firstRow; tileY <= lastRow; tileY++) {
+                    Tile tile = this.tiles[find(key(tileX, tileY))];
+                    if (tile != null) {
+                        found = append(found, size, tile);
+                        size += tile.size;
+                    }
+                }
+            }
+        } else {
+            // a region bigger than the drawn part of the board: go through
+            // the tiles there are rather than the ones it covers
+            for (Tile tile : this.tiles) {
+                if (tile != null && tile.tileX >= firstColumn
+                        && tile.tileX <= lastColumn && tile.tileY >= firstRow
+                        && tile.tileY <= lastRow) {
+                    found = append(found, size, tile);
+                    size += tile.size;
+                }
+            }
+        }
+        for (int i = 0; i < this.oversizeCount; i++) {
+            if (oversizeOverlaps(i, left, top, right, bottom)) {
+                if (size == found.length)
+                    found = Arrays.copyOf(found, 2 * size);
+                found[size++] = this.oversize[i];
+            }
+        }
+        // a segment is in every tile it touches: sort and keep one of each
+        Arrays.sort(found, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || found[i] != found[unique - 1])
+                found[unique++] = found[i];
+        }
+        return Arrays.copyOf(found, unique);
+    }
+
+    private static int[] append(int[] found, int size, Tile tile) {
+        if (size + tile.size > found.length)
+            found = Arrays.copyOf(found, Math.max(2 * found.length, size
+                    + tile.size));
+        System.arraycopy(tile.segments, 0, found, size, tile.size);
+        return found;
+    }
+
+    /**
+     * @param x1 the x coordinate of the first end of the segment
+     * @param y1 the y coordinate of the first end of the segment
+     * @param x2 the x coordinate of the second end of the segment
+     * @param y2 the y coordinate of the second end of the segment
+     * @param strokeThickness the stroke thickness of the segment
+     * @param left the smallest x of the region
+     * @param top the smallest y of the region
+     * @param right the largest x of the region, included
+     * @param bottom the largest y of the region, included
+     * @return true if the segment, widened by half its stroke thickness on
+     *         every side, touches the region
+     */
+    public static boolean intersects(int x1, int y1, int x2, int y2,
+            float strokeThickness, int left, int top, int right, int bottom) {
+        double pad = strokeThickness / 2.0;
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        // clip the segment, from t=0 at its first end to t=1 at its second,
+        // to the widened region one axis at a time
+        double enter = 0;
+        double leave = 1;
+        if (dx == 0) {
+            if (x1 < left - pad || x1 > right + pad)
+                return false;
+        } else {
+            double a = (left - pad - x1) / dx;
+            double b = (right + pad - x1) / dx;
+            enter = Math.max(enter, Math.min(a, b));
+            leave = Math.min(leave, Math.max(a, b));
+        }
+        if (dy == 0) {
+            if (y1 < top - pad || y1 > bottom + pad)
+                return false;
+        } else {
+            double a = (top - pad - y1) / dy;
+            double b = (bottom + pad - y1) / dy;
+            enter = Math.max(enter, Math.min(a, b));
+            leave = Math.min(leave, Math.max(a, b));
+        }
+        return enter <= leave;
+    }
+
+    /**
+     * @param tileX the column of the tile
+     * @param tileY the row of the tile
+     * @return the version when a segment last touched the tile, 0 if none has
+     */
+    public long getVersion(int tileX, int tileY) {
+        Tile tile = this.tiles[find(key(tileX, tileY))];
+        long version = tile == null ? 0 : tile.version;
+        int left = tileX << TILE_SHIFT;
+        int top = tileY << TILE_SHIFT;
+        for (int i = 0; i < this.oversizeCount; i++) {
+            if (oversizeOverlaps(i, left, top, left + TILE_SIZE - 1, top
+                    + TILE_SIZE - 1))
+                version = Math.max(version, this.oversizeVersions[i]);
+        }
+        return version;
+    }
+
+    /**
+     * @param version a version of the board
+     * @return the tiles touched by a segment drawn after that version, as
+     *         their column then row, in no particular order; oversize
+     *         segments are left out, see hasOversizeSince
+     */
+    public int[] getTilesChangedSince(long version) {
+        int count = 0;
+        for (Tile tile : this.tiles) {
+            if (tile != null && tile.version > version)
+                count++;
+        }
+        int[] changed = new int[2 * count];
+        int i = 0;
+        for (Tile tile : this.tiles) {
+            if (tile != null && tile.version > version) {
+                changed[i++] = tile.tileX;
+                changed[i++] = tile.tileY;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param version a version of the board
+     * @return true if an oversize segment was drawn after that version, so
+     *         that more tiles changed than getTilesChangedSince lists
+     */
+    public boolean hasOversizeSince(long version) {
+        return this.oversizeCount > 0
+                && this.oversizeVersions[this.oversizeCount - 1] > version;
+    }
+
+    /**
+     * @return the number of tiles touched by at least one segment
+     */
+    public int getTileCount() {
+        return this.tileCount;
+    }
+
+    /**
+     * @return the number of oversize segments, kept out of the tiles
+     */
+    public int getOversizeCount() {
+        return this.oversizeCount;
+    }
+
+    /**
+     * @return the number of segments indexed
+     */
+    public int getSegmentCount() {
+        return this.segmentCount;
+    }
+
+    /**
+     * @return the tile with the given coordinates, made if there is none
+     */
+    private Tile tile(int tileX, int tileY) {
+        long key = key(tileX, tileY);
+        int slot = find(key);
+        Tile tile = this.tiles[slot];
+        if (tile == null) {
+            tile = new Tile(tileX, tileY);
+            this.keys[slot] = key;
+            this.tiles[slot] = tile;
+            if (++this.tileCount > this.tiles.length / 2)
+                grow();
+        }
+        return tile;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it belongs
+     */
+    private int find(long key) {
+        int mask = this.tiles.length - 1;
+        int slot = hash(key) & mask;
+        while (this.tiles[slot] != null && this.keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = this.keys;
+        Tile[] oldTiles = this.tiles;
+        this.keys = new long[2 * oldKeys.length];
+        this.tiles = new Tile[2 * oldTiles.length];
+        for (int i = 0; i < oldTiles.length; i++) {
+            if (oldTiles[i] != null) {
+                int slot = find(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.tiles[slot] = oldTiles[i];
+            }
+        }
+    }
+
+    private static long key(int tileX, int tileY) {
+        return ((long) tileX << 32) | (tileY & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+}
@@ -0,0 +1,45 @@
+package adts;
+
+/**
+ * The segments touching one tile of a board at one point in time, as taken
+ * by Whiteboard.getTile, in the order they were drawn.
+ * 
+ * Concurrency argument:
+ *      Adds only final fields to a SegmentSelection, so it is immutable and
+ *      threadsafe.
+ */
+public class TileSnapshot extends SegmentSelection {
+
+    private final int tileX;
+    private final int tileY;
+    private final long version;
+
+    TileSnapshot(int tileX, int tileY, long version, StrokeSnapshot lines,
+            int[] segments) {
+        super(lines, segments);
+        this.tileX = tileX;
+        this.tileY = tileY;
+        this.version = version;
+    }
+
+    /**
+     * @return the column of the tile
+     */
+    public int getTileX() {
+        return this.tileX;
+    }
+
+    /**
+     * @return the row of the tile
+     */
+    public int getTileY() {
+        return this.tileY;
+    }
+
+    /**
+     * @return the version of the board the snapshot was taken at
+     */
+    public long getVersion() {
+        return this.version;
+    }
+}
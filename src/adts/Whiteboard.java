@@ -1,6 +1,9 @@
 package adts;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -9,7 +12,17 @@ import java.util.List;
  * Concurrency argument:
  *      The id is a final private integer and the name is a string (immutable). 
  *      The name and lines are the only field that can be changed, so we synchronize all
- *      the methods that manipulate them. Thus the class is threadsafe.
+ *      the methods that manipulate them. The lines are only handed out as snapshots,
+ *      which are taken without the lock and never change, so a reader can go through
+ *      a big board while lines are still being drawn on it. The version and the
+ *      tile index only change with the lines, under the same lock, and the
+ *      change listeners are told of each change under it too, so they see
+ *      the changes of a board in the order they were made. A board is evicted
+ *      and paged back in under the lock too, and getLines, the one reader
+ *      that does not take the lock, takes it when it finds the board evicted.
+ *      The raster is only swapped under the lock, and drawn on under its own
+ *      lock from a snapshot, so drawing it does not hold up drawing lines.
+ *      Thus the class is threadsafe.
  */
 public class Whiteboard {
     
@@ -24,10 +37,45 @@ public class Whiteboard {
     private String boardName;
 
     /**
-     * The list of lines that have been drawn The last line is the latest one
-     * that has been drawn
+     * The lines that have been drawn. The last line is the latest one
+     * that has been drawn. Null while the board is evicted.
      */
-    private final List<Line> drawnLines;
+    private volatile StrokeStore drawnLines;
+
+    /**
+     * The lines while the board is evicted, null otherwise
+     */
+    private MappedStrokes evictedLines;
+
+    /**
+     * The number of changes made to the board: lines and polylines drawn and
+     * clears. A client that has the board as of a version can ask which tiles
+     * changed since.
+     */
+    private long version;
+
+    /**
+     * The version right after the board was last cleared, 0 if never
+     */
+    private long clearedVersion;
+
+    /**
+     * The drawn lines by the tiles they touch. Null while the board is
+     * evicted.
+     */
+    private TileIndex tiles;
+
+    /**
+     * The drawn lines as an image for users joining the board, made at the
+     * first join and dropped when the board is cleared or evicted
+     */
+    private BoardRaster raster;
+
+    /**
+     * Told about every change to the board; shared with the LobbyModel that
+     * made the board, which may add to it
+     */
+    private final List<BoardChangeListener> changeListeners;
 
     /**
      * Creates a board with the given boardID and boardName. The
@@ -39,9 +87,27 @@ public class Whiteboard {
      *            the name of the board
      */
     public Whiteboard(int boardID, String boardName) {
+        this(boardID, boardName, Collections.<BoardChangeListener> emptyList());
+    }
+
+    /**
+     * Creates a board with the given boardID and boardName, telling the
+     * given listeners about its changes
+     * 
+     * @param boardID
+     *            the ID of the board
+     * @param boardName
+     *            the name of the board
+     * @param changeListeners
+     *            the listeners, read at each change
+     */
+    Whiteboard(int boardID, String boardName,
+            List<BoardChangeListener> changeListeners) {
         this.boardID = boardID;
         this.boardName = boardName;
-        this.drawnLines = new ArrayList<Line>();
+        this.drawnLines = new StrokeStore();
+        this.tiles = new TileIndex();
+        this.changeListeners = changeListeners;
     }
 
     /**
@@ -60,14 +126,173 @@ public class Whiteboard {
      * @param l the line to add to the list of drawn lines
      */
     public synchronized void addLine(Line l) {
+        pageIn();
+        int index = this.drawnLines.size();
         this.drawnLines.add(l);
+        this.version++;
+        this.tiles.add(index, l.getX1(), l.getY1(), l.getX2(), l.getY2(),
+                l.getStrokeThickness(), this.version);
+        for (BoardChangeListener listener : this.changeListeners) {
+            listener.lineDrawn(this, l);
+        }
+    }
+
+    /**
+     * Adds the segments of a polyline to the drawn lines, all at once
+     * 
+     * @param strokeThickness The stroke thickness
+     * @param r The red value
+     * @param g The green value
+     * @param b The blue value
+     * @param a The alpha value
+     * @param points the points, x then y, of the polyline
+     * @param pointCount the number of points, at least 2
+     */
+    public synchronized void addPolyline(float strokeThickness, int r, int g,
+            int b, int a, int[] points, int pointCount) {
+        pageIn();
+        int index = this.drawnLines.size();
+        this.drawnLines.addPolyline(strokeThickness, r, g, b, a, points,
+                pointCount);
+        this.version++;
+        for (int i = 1; i < pointCount; i++) {
+            this.tiles.add(index++, points[2 * i - 2], points[2 * i - 1],
+                    points[2 * i], points[2 * i + 1], strokeThickness,
+                    this.version);
+        }
+        for (BoardChangeListener listener : this.changeListeners) {
+            listener.polylineDrawn(this, strokeThickness, r, g, b, a,
+                    points, pointCount);
+        }
+    }
+
+    /**
+     * @return all the drawn lines, as a snapshot which does not change when
+     *         more lines are drawn or the board is cleared
+     */
+    public StrokeSnapshot getLines() {
+        StrokeStore lines = this.drawnLines;
+        if (lines == null) {
+            synchronized (this) {
+                pageIn();
+                lines = this.drawnLines;
+            }
+        }
+        return lines.snapshot();
+    }
+
+    /**
+     * Takes the image of the board, to send to a user joining it instead of
+     * all its lines, and starts bringing it up to date with the lines drawn
+     * in the background if it is far behind; the lines the image does not
+     * have are sent after it
+     * 
+     * @return the image and all the lines, as a snapshot which does not
+     *         change when more lines are drawn or the board is cleared
+     */
+    public RasterSnapshot getRaster() {
+        BoardRaster raster;
+        StrokeSnapshot lines;
+        synchronized (this) {
+            pageIn();
+            if (this.raster == null)
+                this.raster = new BoardRaster();
+            raster = this.raster;
+            lines = this.drawnLines.snapshot();
+        }
+        return raster.update(lines);
+    }
+
+    /**
+     * Reads the lines without paging the board in, for a look at a board
+     * nobody may be in; an evicted board's lines are read from its file as
+     * the snapshot is read, without copying them onto the heap
+     * 
+     * @return all the drawn lines, as a snapshot which does not change when
+     *         more lines are drawn or the board is cleared
+     */
+    public synchronized StrokeSnapshot peekLines() {
+        if (this.drawnLines == null)
+            return this.evictedLines.snapshot();
+        return this.drawnLines.snapshot();
+    }
+
+    /**
+     * @return the version of the board, the number of changes made to it
+     */
+    public synchronized long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the version right after the board was last cleared, 0 if it
+     *         never was
+     */
+    public synchronized long getClearedVersion() {
+        return this.clearedVersion;
+    }
+
+    /**
+     * @param sinceVersion a version of the board, as given by getVersion or an
+     *            earlier TileChanges
+     * @return the tiles touched by a line drawn after that version, and
+     *         whether the board was cleared or a line too big to list its
+     *         tiles was drawn since
+     */
+    public synchronized TileChanges getTileChangesSince(long sinceVersion) {
+        pageIn();
+        return new TileChanges(this.version, sinceVersion < this.clearedVersion
+                || this.tiles.hasOversizeSince(sinceVersion),
+                this.tiles.getTilesChangedSince(sinceVersion));
+    }
+
+    /**
+     * @param tileX the column of the tile
+     * @param tileY the row of the tile
+     * @return the lines touching the tile, in the order they were drawn, as a
+     *         snapshot which does not change when more lines are drawn
+     */
+    public synchronized TileSnapshot getTile(int tileX, int tileY) {
+        pageIn();
+        return new TileSnapshot(tileX, tileY, this.version,
+                this.drawnLines.snapshot(), this.tiles.getSegments(tileX, tileY));
     }
 
     /**
-     * @return all the drawn lines
+     * Finds the lines whose stroke touches a region of the board, for
+     * drawing part of a board, erasing or hit testing
+     * 
+     * @param x the smallest x of the region
+     * @param y the smallest y of the region
+     * @param width the width of the region, at least 1
+     * @param height the height of the region, at least 1
+     * @return the lines touching the region, in the order they were drawn,
+     *         as a selection which does not change when more lines are drawn
      */
-    public synchronized List<Line> getLines() {
-        return this.drawnLines;
+    public SegmentSelection getLinesInRegion(int x, int y, int width,
+            int height) {
+        if (width < 1 || height < 1)
+            throw new IllegalArgumentException(String.format(
+                    "width=%d, height=%d", width, height));
+        int right = x + width - 1;
+        int bottom = y + height - 1;
+        StrokeSnapshot lines;
+        int[] candidates;
+        synchronized (this) {
+            pageIn();
+            lines = this.drawnLines.snapshot();
+            candidates = this.tiles.getSegmentsInRegion(x, y, right, bottom);
+        }
+        // the tiles only narrow it down; check each line against the region
+        // itself, out of the lock since the snapshot does not change
+        int size = 0;
+        for (int index : candidates) {
+            if (TileIndex.intersects(lines.getX1(index), lines.getY1(index),
+                    lines.getX2(index), lines.getY2(index),
+                    lines.getStrokeThickness(index), x, y, right, bottom))
+                candidates[size++] = index;
+        }
+        return new SegmentSelection(lines, Arrays.copyOf(candidates, size));
     }
 
     /**
@@ -91,6 +316,9 @@ public class Whiteboard {
      */
     public synchronized void setBoardName(String boardName) {
         this.boardName = boardName;
+        for (BoardChangeListener listener : this.changeListeners) {
+            listener.boardRenamed(this, boardName);
+        }
     }
     
     
@@ -98,6 +326,73 @@ public class Whiteboard {
      * Deletes all the lines in the board
      */
     public synchronized void clearBoard(){
-        this.drawnLines.clear();
+        if (this.evictedLines != null) {
+            // nothing to page in
+            this.evictedLines.delete();
+            this.evictedLines = null;
+        }
+        // a new store, so that snapshots of the old one stay as they are
+        // and the arrays of a big board are let go with the last of them
+        this.drawnLines = new StrokeStore();
+        this.tiles = new TileIndex();
+        this.raster = null;
+        this.version++;
+        this.clearedVersion = this.version;
+        for (BoardChangeListener listener : this.changeListeners) {
+            listener.boardCleared(this);
+        }
+    }
+
+    /**
+     * Moves the lines of the board off the heap into a memory-mapped file,
+     * along with their tile index and raster, until they are next needed: any
+     * method that reads or draws lines pages them back in first. Snapshots
+     * taken before keep the lines they have.
+     * 
+     * @param file the file to keep the lines in, replaced if it exists
+     * @return whether the board was evicted; it is not if it has no lines or
+     *         is evicted already
+     * @throws IOException if the file cannot be written, in which case the
+     *             board stays as it was
+     */
+    public synchronized boolean evict(File file) throws IOException {
+        if (this.drawnLines == null || this.drawnLines.size() == 0)
+            return false;
+        this.evictedLines = MappedStrokes.write(file, this.drawnLines.snapshot());
+        this.drawnLines = null;
+        this.tiles = null;
+        this.raster = null;
+        return true;
+    }
+
+    /**
+     * @return whether the lines of the board are in its file rather than on
+     *         the heap
+     */
+    public synchronized boolean isEvicted() {
+        return this.drawnLines == null;
+    }
+
+    /**
+     * Reads the lines back from the file if the board is evicted, and
+     * rebuilds their tile index; called holding the lock. Every segment is
+     * indexed at the current version, so a client asking which tiles
+     * changed since an earlier one is sent every tile with lines.
+     */
+    private void pageIn() {
+        if (this.drawnLines != null)
+            return;
+        StrokeStore lines = this.evictedLines.read();
+        StrokeSnapshot snapshot = lines.snapshot();
+        TileIndex tiles = new TileIndex();
+        for (int i = 0; i < snapshot.size(); i++) {
+            tiles.add(i, snapshot.getX1(i), snapshot.getY1(i),
+                    snapshot.getX2(i), snapshot.getY2(i),
+                    snapshot.getStrokeThickness(i), this.version);
+        }
+        this.evictedLines.delete();
+        this.evictedLines = null;
+        this.tiles = tiles;
+        this.drawnLines = lines;
     }
 }
@@ -0,0 +1,150 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+import protocol.ClientSideMessageMaker;
+import protocol.MessageHandler;
+import server.WhiteboardServer;
+
+/**
+ * Compares joining a big board with the single board_lines response, with
+ * the chunked one and with the board's image (raster): the time until the
+ * first lines can be drawn, the time until all of them are in, the longest
+ * line the client had to read, which bounds what the client holds in memory
+ * at once, and all the characters read. The first raster join finds no
+ * image yet, gets every line as chunks and starts drawing the image in the
+ * background on the server; once it is drawn, the second only sends it.
+ * 
+ * usage: BoardJoinBenchmark [LINES...] (default 10000 100000 1000000)
+ * 
+ * Run with a heap of a few GB for the largest board.
+ */
+public class BoardJoinBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] boardSizes = { 10000, 100000, 1000000 };
+        if (args.length > 0) {
+            boardSizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                boardSizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("join\tlines\tfirst lines(ms)\tall lines(ms)\tlongest line(chars)\tall(chars)");
+        for (int lines : boardSizes) {
+            WhiteboardServer server = new WhiteboardServer(0);
+            server.serve();
+            Connection drawer = new Connection(server.getPort());
+            drawer.send(ClientSideMessageMaker.makeRequestStringCreateBoard("big"));
+            drawer.readUntil(MessageHandler.RESP_BOARD_IDS);
+            for (int i = 0; i < lines; i++) {
+                drawer.out.println(String.format("%s %d %d %d %d 2.000000 0 0 0 255",
+                        MessageHandler.REQ_DRAW, i % 800, i % 600, (i + 7) % 800, (i + 3) % 600));
+                // wait for the lines to come back every so often, so that the
+                // drawer's queue stays below its high water mark
+                if (i % 1000 == 999 || i == lines - 1) {
+                    drawer.out.flush();
+                    for (int j = i - i % 1000; j <= i; j++) {
+                        drawer.readUntil(MessageHandler.RESP_DRAW);
+                    }
+                }
+            }
+
+            join(server.getPort(), lines, "single", true);
+            join(server.getPort(), lines, MessageHandler.JOIN_CHUNKED, true);
+            join(server.getPort(), lines, MessageHandler.JOIN_RASTER, true);
+            long start = System.nanoTime();
+            while (join(server.getPort(), lines, MessageHandler.JOIN_RASTER, false) > 0) {
+                Thread.sleep(10);
+            }
+            System.out.println(String.format("image drawn after %.1f ms",
+                    (System.nanoTime() - start) / 1e6));
+            join(server.getPort(), lines, MessageHandler.JOIN_RASTER, true);
+            drawer.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return for a raster join, the number of lines sent after the image
+     */
+    private static int join(int port, int lines, String mode, boolean print) throws IOException {
+        Connection joiner = new Connection(port);
+        joiner.readUntil(MessageHandler.RESP_WELCOME);
+        long start = System.nanoTime();
+        if (mode.equals(MessageHandler.JOIN_CHUNKED))
+            joiner.send(ClientSideMessageMaker.makeRequestStringJoinBoardIDChunked(0));
+        else if (mode.equals(MessageHandler.JOIN_RASTER))
+            joiner.send(ClientSideMessageMaker.makeRequestStringJoinBoardIDRaster(0));
+        else
+            joiner.send(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        long firstLines = 0;
+        int afterImage = 0;
+        int longest = 0;
+        long all = 0;
+        String done = mode.equals("single") ? MessageHandler.RESP_BOARD_LINES
+                : MessageHandler.RESP_BOARD_LINES_END;
+        while (true) {
+            String line = joiner.in.readLine();
+            if (line == null)
+                throw new IOException("server closed the connection");
+            longest = Math.max(longest, line.length());
+            all += line.length() + 1;
+            int space = line.indexOf(' ');
+            String command = space < 0 ? line : line.substring(0, space);
+            if (firstLines == 0 && (command.equals(MessageHandler.RESP_BOARD_LINES_CHUNK)
+                    || command.equals(MessageHandler.RESP_BOARD_LINES)
+                    || command.equals(MessageHandler.RESP_BOARD_RASTER)))
+                firstLines = System.nanoTime() - start;
+            if (command.equals(MessageHandler.RESP_BOARD_RASTER))
+                afterImage = Integer.parseInt(line.split(" ", 4)[2]);
+            if (command.equals(done))
+                break;
+        }
+        long allLines = System.nanoTime() - start;
+        if (print)
+            System.out.println(String.format("%s\t%d\t%.1f\t%.1f\t%d\t%d", mode,
+                    lines, firstLines / 1e6, allLines / 1e6, longest, all));
+        joiner.close();
+        return afterImage;
+    }
+
+    /**
+     * A blocking connection to the server
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+
+        Connection(int port) throws IOException {
+            this.socket = new Socket("localhost", port);
+            this.out = new PrintWriter(this.socket.getOutputStream(), false);
+            this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        }
+
+        void send(String request) {
+            this.out.println(request);
+            this.out.flush();
+        }
+
+        /**
+         * Reads lines until one with the given command
+         */
+        void readUntil(String command) throws IOException {
+            String line;
+            while ((line = this.in.readLine()) != null) {
+                if (line.equals(command) || line.startsWith(command + " "))
+                    return;
+            }
+            throw new IOException("server closed the connection");
+        }
+
+        void close() throws IOException {
+            this.socket.close();
+        }
+    }
+}
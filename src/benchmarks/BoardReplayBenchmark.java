@@ -0,0 +1,122 @@
+package benchmarks;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import adts.Line;
+import adts.LineRenderer;
+import view.SegmentDrain;
+
+/**
+ * Measures replaying a big board onto the Canvas's drawing buffer the way
+ * Canvas.drawLineSegment used to (a new graphics context, BasicStroke and
+ * Color for every segment, the context never disposed) and with a
+ * LineRenderer (one context per drained batch, cached strokes and colors).
+ *
+ * The board is made of strokes of STROKE_LENGTH segments, each with one of
+ * the widths and colors the Canvas offers. Each mode runs ROUNDS times and
+ * the fastest round is reported, since drawing time varies a lot from run
+ * to run. Runs headless.
+ *
+ * usage: BoardReplayBenchmark [SEGMENTS] (default 500000)
+ */
+public class BoardReplayBenchmark {
+
+    private static final int STROKE_LENGTH = 40;
+    private static final int ROUNDS = 7;
+    private static final float[] WIDTHS = { 1, 5, 11, 25 };
+    private static final Color[] COLORS = { Color.BLACK, Color.BLUE, Color.CYAN,
+            Color.DARK_GRAY, Color.GRAY, Color.GREEN, Color.MAGENTA,
+            Color.ORANGE, Color.PINK, Color.RED, Color.WHITE, Color.YELLOW };
+
+    public static void main(String[] args) {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        Line[] board = board(segments);
+        System.out.println("mode\tbest ms\tB/segment\tns/segment");
+        long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+        long[] allocated = new long[2];
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int mode = 0; mode < 2; mode++) {
+                long[] result = run(board, mode == 1);
+                best[mode] = Math.min(best[mode], result[0]);
+                allocated[mode] = result[1];
+            }
+        }
+        for (int mode = 0; mode < 2; mode++) {
+            System.out.println(String.format("%s\t%.0f\t%.0f\t%.0f",
+                    mode == 1 ? "LineRenderer" : "context per segment",
+                    best[mode] / 1e6, (double) allocated[mode] / board.length,
+                    (double) best[mode] / board.length));
+        }
+    }
+
+    /**
+     * @return the nanoseconds taken and the bytes allocated
+     */
+    private static long[] run(Line[] board, boolean renderer) {
+        BufferedImage buffer = new BufferedImage(1000, 800, BufferedImage.TYPE_INT_ARGB);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = allocatedBytes(threads);
+        long start = System.nanoTime();
+        if (renderer) {
+            LineRenderer lineRenderer = new LineRenderer();
+            for (int i = 0; i < board.length; i += SegmentDrain.MAX_SEGMENTS_PER_DRAIN) {
+                lineRenderer.begin(buffer.createGraphics());
+                int end = Math.min(board.length, i + SegmentDrain.MAX_SEGMENTS_PER_DRAIN);
+                for (int j = i; j < end; j++) {
+                    lineRenderer.draw(board[j]);
+                }
+                lineRenderer.end();
+            }
+        } else {
+            for (Line l : board) {
+                Graphics2D g = (Graphics2D) buffer.getGraphics();
+                g.setStroke(new BasicStroke(l.getStrokeThickness(), 1, 1));
+                g.setColor(new Color(l.getR(), l.getG(), l.getB(), l.getA()));
+                g.drawLine(l.getX1(), l.getY1(), l.getX2(), l.getY2());
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        return new long[] { elapsed, allocatedBytes(threads) - allocatedBefore };
+    }
+
+    /**
+     * @return a board of random walk strokes
+     */
+    private static Line[] board(int segments) {
+        Random random = new Random(17);
+        Line[] board = new Line[segments];
+        int x = 500;
+        int y = 400;
+        float width = 1;
+        Color color = Color.BLACK;
+        for (int i = 0; i < segments; i++) {
+            if (i % STROKE_LENGTH == 0) {
+                x = 210 + random.nextInt(770);
+                y = 10 + random.nextInt(780);
+                width = WIDTHS[random.nextInt(WIDTHS.length)];
+                color = COLORS[random.nextInt(COLORS.length)];
+            }
+            int nx = Math.max(210, Math.min(980, x + random.nextInt(21) - 10));
+            int ny = Math.max(10, Math.min(790, y + random.nextInt(21) - 10));
+            board[i] = new Line(x, y, nx, ny, width, color.getRed(),
+                    color.getGreen(), color.getBlue(), color.getAlpha());
+            x = nx;
+            y = ny;
+        }
+        return board;
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,139 @@
+package benchmarks;
+
+import java.util.Set;
+
+import adts.LobbyModel;
+import protocol.OutgoingServerMessage;
+import server.ConnectionRegistry;
+import server.UserConnection;
+
+/**
+ * Measures the cost of fanning a draw out to a board of three users while
+ * the total number of users on the server grows. With the board-scoped
+ * registry the cost should stay flat; before it, every draw walked every
+ * connection on the server.
+ * 
+ * The connections are stubs that only count what they are sent, so this
+ * measures the fan-out itself and none of the socket writing.
+ * 
+ * usage: BroadcastFanOutBenchmark [TOTAL_USERS...] (default 1000 10000 100000)
+ */
+public class BroadcastFanOutBenchmark {
+
+    private static final int BOARD_MEMBERS = 3;
+    private static final int USERS_PER_OTHER_BOARD = 10;
+    private static final int WARMUP_DRAWS = 200000;
+    private static final int MEASURED_DRAWS = 1000000;
+    private static final String DRAW = "draw 0 1 2 3 4.000000 5 6 7 8";
+
+    public static void main(String[] args) {
+        int[] populations = { 1000, 10000, 100000 };
+        if (args.length > 0) {
+            populations = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                populations[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("total users\tns per draw fan-out");
+        for (int population : populations) {
+            run(population);
+        }
+    }
+
+    private static void run(int population) {
+        CountingConnection.received = 0;
+        LobbyModel lobbyModel = new LobbyModel();
+        ConnectionRegistry registry = new ConnectionRegistry();
+        lobbyModel.addBoardMembershipListener(registry);
+
+        int drawingBoardID = lobbyModel.addBoard("drawing");
+        int otherBoardID = LobbyModel.LOBBY_ID;
+        CountingConnection drawer = null;
+        for (int i = 0; i < population; i++) {
+            int userID = lobbyModel.addUser("user" + i);
+            CountingConnection connection = new CountingConnection(userID);
+            registry.add(connection);
+            if (i < BOARD_MEMBERS) {
+                lobbyModel.userJoinBoard(userID, drawingBoardID);
+                if (drawer == null)
+                    drawer = connection;
+            } else {
+                // spread everybody else over other boards and the lobby
+                if (i % USERS_PER_OTHER_BOARD == 0)
+                    otherBoardID = lobbyModel.addBoard("other" + i);
+                if (i % 2 == 0)
+                    lobbyModel.userJoinBoard(userID, otherBoardID);
+            }
+        }
+
+        for (int i = 0; i < WARMUP_DRAWS; i++) {
+            registry.broadcastToBoard(DRAW, drawingBoardID, drawer.getUserID());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_DRAWS; i++) {
+            registry.broadcastToBoard(DRAW, drawingBoardID, drawer.getUserID());
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%d\t%.1f", population,
+                (double) elapsed / MEASURED_DRAWS));
+        if (CountingConnection.received != (long) (WARMUP_DRAWS + MEASURED_DRAWS)
+                * (BOARD_MEMBERS - 1))
+            throw new IllegalStateException("draws reached the wrong users");
+    }
+
+    /**
+     * A connection that only counts the messages it is sent
+     */
+    private static class CountingConnection implements UserConnection {
+        private static long received = 0;
+        private final int userID;
+
+        CountingConnection(int userID) {
+            this.userID = userID;
+        }
+
+        public int getUserID() {
+            return this.userID;
+        }
+
+        public void output(String message) {
+            received++;
+        }
+
+        public void output(OutgoingServerMessage message) {
+            received++;
+        }
+
+        public void broadcast(String message) {
+        }
+
+        public void broadcast(String message, Set<Integer> userIDs) {
+        }
+
+        public void broadcastToBoard(String message, int boardID) {
+        }
+
+        public void broadcastToBoard(OutgoingServerMessage message, int boardID) {
+        }
+
+        public void broadcastToBoard(OutgoingServerMessage message,
+                String feature, OutgoingServerMessage fallback, int boardID) {
+        }
+
+        public void enableFeature(String feature) {
+        }
+
+        /**
+         * Every user asked for every feature, as the client does
+         */
+        public boolean hasFeature(String feature) {
+            return true;
+        }
+
+        public void switchToBinaryProtocol(String lastTextMessage) {
+        }
+
+        public void closeSocket() {
+        }
+    }
+}
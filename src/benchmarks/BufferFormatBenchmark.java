@@ -0,0 +1,117 @@
+package benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import adts.Line;
+import adts.LineRenderer;
+
+/**
+ * Measures, for several pixel formats of the Canvas's drawing buffer, how
+ * fast a board replays onto it and how fast it is copied to the screen, as
+ * paintComponent does.
+ *
+ * Runs headless, so the "screen" is an int RGB image, the format of a usual
+ * 24 bit display and what createCompatibleImage gives for one. A buffer in
+ * the same format is copied without conversion; the others are converted
+ * pixel by pixel on every copy.
+ *
+ * usage: BufferFormatBenchmark [SEGMENTS] (default 100000)
+ */
+public class BufferFormatBenchmark {
+
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+    private static final int BLITS = 200;
+    private static final int ROUNDS = 3;
+
+    private static final int[] TYPES = { BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR };
+    private static final String[] NAMES = { "INT_RGB (compatible)", "INT_ARGB",
+            "INT_ARGB_PRE", "3BYTE_BGR", "4BYTE_ABGR" };
+
+    public static void main(String[] args) {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Line[] board = board(segments);
+        BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        System.out.println("buffer\treplay ns/segment\tblit ms\tblit Mpixels/s");
+        long[] bestReplay = new long[TYPES.length];
+        long[] bestBlit = new long[TYPES.length];
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int t = 0; t < TYPES.length; t++) {
+                BufferedImage buffer = new BufferedImage(WIDTH, HEIGHT, TYPES[t]);
+                long replay = replay(buffer, board);
+                long blit = blit(buffer, screen);
+                if (round == 0 || replay < bestReplay[t])
+                    bestReplay[t] = replay;
+                if (round == 0 || blit < bestBlit[t])
+                    bestBlit[t] = blit;
+            }
+        }
+        for (int t = 0; t < TYPES.length; t++) {
+            double blitNanos = (double) bestBlit[t] / BLITS;
+            System.out.println(String.format("%s\t%.0f\t%.2f\t%.0f", NAMES[t],
+                    (double) bestReplay[t] / board.length, blitNanos / 1e6,
+                    WIDTH * HEIGHT / blitNanos * 1e3));
+        }
+    }
+
+    /**
+     * @return the nanoseconds taken to draw the board on the buffer
+     */
+    private static long replay(BufferedImage buffer, Line[] board) {
+        Graphics2D g = buffer.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.dispose();
+        LineRenderer renderer = new LineRenderer();
+        long start = System.nanoTime();
+        renderer.begin(buffer.createGraphics());
+        for (Line l : board) {
+            renderer.draw(l);
+        }
+        renderer.end();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return the nanoseconds taken to copy the buffer to the screen BLITS
+     *         times
+     */
+    private static long blit(BufferedImage buffer, BufferedImage screen) {
+        Graphics2D g = screen.createGraphics();
+        long start = System.nanoTime();
+        for (int i = 0; i < BLITS; i++) {
+            g.drawImage(buffer, 0, 0, null);
+        }
+        long elapsed = System.nanoTime() - start;
+        g.dispose();
+        return elapsed;
+    }
+
+    /**
+     * @return a board of random walk strokes
+     */
+    private static Line[] board(int segments) {
+        Random random = new Random(17);
+        Line[] board = new Line[segments];
+        int x = 500;
+        int y = 400;
+        for (int i = 0; i < segments; i++) {
+            if (i % 40 == 0) {
+                x = 210 + random.nextInt(770);
+                y = 10 + random.nextInt(780);
+            }
+            int nx = Math.max(210, Math.min(980, x + random.nextInt(21) - 10));
+            int ny = Math.max(10, Math.min(790, y + random.nextInt(21) - 10));
+            board[i] = new Line(x, y, nx, ny, 1 + (i / 40) % 3 * 5, 0, 0,
+                    (i / 40) % 256, 255);
+            x = nx;
+            y = ny;
+        }
+        return board;
+    }
+}
@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import adts.Line;
+import adts.LobbyModel;
+import adts.Whiteboard;
+import server.IdleBoardEvictor;
+
+/**
+ * Measures the heap a LobbyModel takes when most of its boards are idle,
+ * with the idle boards' lines on the heap and evicted by an
+ * IdleBoardEvictor, and how long paging one back in takes.
+ *
+ * BOARDS boards get SEGMENTS segments each, and only ACTIVE of them have a
+ * user in them. An evictor with a tiny idle time is then started, and the
+ * heap measured again once it has evicted every other board. Paging in is
+ * timed by asking evicted boards for their lines, as joining them does.
+ *
+ * usage: ColdBoardBenchmark [BOARDS] [SEGMENTS] [ACTIVE] (default 200 20000
+ * 10)
+ */
+public class ColdBoardBenchmark {
+
+    public static void main(String[] args) throws IOException,
+            InterruptedException {
+        int boards = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int segments = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int active = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        long before = usedHeap();
+        LobbyModel lobbyModel = new LobbyModel();
+        int[] boardIDs = new int[boards];
+        for (int i = 0; i < boards; i++) {
+            boardIDs[i] = lobbyModel.addBoard("board" + i);
+            for (int j = 0; j < segments; j++) {
+                lobbyModel.addLineToBoardID(new Line(j % 1000, j % 700,
+                        (j + 13) % 1000, (j + 29) % 700, 1 + j % 11, j & 0xff,
+                        i & 0xff, 0, 255), boardIDs[i]);
+            }
+        }
+        for (int i = 0; i < active; i++) {
+            lobbyModel.userJoinBoard(lobbyModel.addUser("user" + i), boardIDs[i]);
+        }
+        long resident = usedHeap() - before;
+
+        File directory = Files.createTempDirectory("cold").toFile();
+        IdleBoardEvictor evictor = new IdleBoardEvictor(lobbyModel, directory, 1);
+        lobbyModel.addBoardMembershipListener(evictor);
+        while (evictor.getEvictionCount() < boards - active) {
+            Thread.sleep(10);
+        }
+        long evicted = evictor.getEvictionCount();
+        long cold = usedHeap() - before;
+
+        long start = System.nanoTime();
+        int pagedIn = 0;
+        for (int i = active; i < boards; i += Math.max(1, boards / 20)) {
+            pagedIn += lobbyModel.getLinesForBoardID(boardIDs[i]).size() > 0 ? 1 : 0;
+        }
+        long pageInNanos = (System.nanoTime() - start) / pagedIn;
+
+        System.out.println("boards\tsegments\tactive\tevicted\tresident MB\tevicted MB\tpage in ms");
+        System.out.println(String.format("%d\t%d\t%d\t%d\t%.1f\t%.1f\t%.2f",
+                boards, segments, active, evicted, resident / 1e6, cold / 1e6,
+                pageInNanos / 1e6));
+
+        evictor.close();
+        for (Whiteboard board : lobbyModel.getWhiteboards()) {
+            board.clearBoard();
+        }
+        directory.delete();
+    }
+
+    /**
+     * @return the heap in use after three full collections
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
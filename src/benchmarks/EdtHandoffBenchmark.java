@@ -0,0 +1,145 @@
+package benchmarks;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+import adts.Line;
+import view.SegmentDrain;
+
+/**
+ * Compares handing received segments to the event dispatch thread the way
+ * Canvas used to (one invokeLater of a new Thread object per segment, each
+ * drawn with its own Graphics2D) with a SegmentDrain (a lock-free queue and
+ * one drain task per batch, drawn with one Graphics2D).
+ *
+ * The reader thread posts segments as they would come from a busy board, in
+ * bursts of BURST with a short pause between them. Every PROBE_EVERY
+ * segments it also posts an empty task and records how long it waited on the
+ * event queue, which is the lag a mouse event would see.
+ *
+ * Runs headless, drawing on an image instead of a window.
+ *
+ * usage: EdtHandoffBenchmark [SEGMENTS] (default 200000)
+ */
+public class EdtHandoffBenchmark {
+
+    private static final int BURST = 20;
+    private static final long PAUSE_NANOS = 20000;
+    private static final int PROBE_EVERY = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Line[] lines = new Line[segments];
+        for (int i = 0; i < segments; i++) {
+            int x = 200 + (i * 7) % 700;
+            int y = 20 + (i * 13) % 700;
+            lines[i] = new Line(x, y, x + 5, y + 3, 2, 0, 0, 255, 255);
+        }
+        System.out.println("mode\tEDT tasks\tEDT cpu ms\treader B/segment\tprobe avg us\tprobe max us");
+        for (int round = 0; round < 2; round++) {
+            run(lines, false, round == 1);
+            run(lines, true, round == 1);
+        }
+        System.exit(0);
+    }
+
+    private static void run(Line[] lines, boolean drained, boolean print) throws Exception {
+        final BufferedImage buffer = new BufferedImage(1000, 800, BufferedImage.TYPE_INT_ARGB);
+        final AtomicLong tasks = new AtomicLong();
+        final AtomicLong probeTotal = new AtomicLong();
+        final AtomicLong probeMax = new AtomicLong();
+        final long[] edtThread = new long[1];
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                edtThread[0] = Thread.currentThread().getId();
+            }
+        });
+        SegmentDrain drain = new SegmentDrain(new SegmentDrain.Target() {
+            public void drawSegments(List<Line> segments) {
+                tasks.incrementAndGet();
+                Graphics2D g = buffer.createGraphics();
+                for (Line l : segments) {
+                    draw(g, l);
+                }
+                g.dispose();
+            }
+
+            public void clear() {
+            }
+
+            public void drawImage(BufferedImage image) {
+            }
+        });
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long edtCpuBefore = threads.getThreadCpuTime(edtThread[0]);
+        long allocatedBefore = allocatedBytes(threads);
+        long probes = 0;
+        for (int i = 0; i < lines.length; i++) {
+            if (drained) {
+                drain.add(lines[i]);
+            } else {
+                final Line line = lines[i];
+                SwingUtilities.invokeLater(new Thread() {
+                    @Override
+                    public void run() {
+                        tasks.incrementAndGet();
+                        Graphics2D g = buffer.createGraphics();
+                        draw(g, line);
+                        g.dispose();
+                    }
+                });
+            }
+            if (i % PROBE_EVERY == 0) {
+                final long posted = System.nanoTime();
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        long waited = System.nanoTime() - posted;
+                        probeTotal.addAndGet(waited);
+                        if (waited > probeMax.get())
+                            probeMax.set(waited);
+                    }
+                });
+                probes++;
+            }
+            if (i % BURST == BURST - 1) {
+                long until = System.nanoTime() + PAUSE_NANOS;
+                while (System.nanoTime() < until) {
+                }
+            }
+        }
+        long allocated = allocatedBytes(threads) - allocatedBefore;
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+            }
+        });
+        long edtCpu = threads.getThreadCpuTime(edtThread[0]) - edtCpuBefore;
+        if (print)
+            System.out.println(String.format("%s\t%d\t%.0f\t%.0f\t%.0f\t%.0f",
+                    drained ? "SegmentDrain" : "invokeLater", tasks.get(),
+                    edtCpu / 1e6, (double) allocated / lines.length,
+                    probeTotal.get() / 1e3 / probes, probeMax.get() / 1e3));
+    }
+
+    private static void draw(Graphics2D g, Line l) {
+        g.setStroke(new BasicStroke(l.getStrokeThickness(), 1, 1));
+        g.setColor(new Color(l.getR(), l.getG(), l.getB(), l.getA()));
+        g.drawLine(l.getX1(), l.getY1(), l.getX2(), l.getY2());
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,168 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import protocol.MessageHandler;
+import protocol.OutgoingServerMessage;
+
+/**
+ * Compares the CPU time, allocation and writes per stroke of fanning one draw
+ * out to a busy board, the way the writers used to do it and the way they do
+ * it now.
+ * 
+ * per-recipient: every recipient's autoflushing PrintWriter encodes the line
+ * itself and writes it out on its own.
+ * 
+ * encode-once: the line is encoded once into an OutgoingServerMessage, and
+ * every recipient copies its read-only view of those bytes into its batch.
+ * 
+ * Recipients write to a stream that discards the bytes and counts the writes,
+ * each of which would be a system call on a socket.
+ * 
+ * usage: EncodeOnceBenchmark [RECIPIENTS...] (default 10 50 200)
+ */
+public class EncodeOnceBenchmark {
+
+    private static final int WARMUP_STROKES = 20000;
+    private static final int MEASURED_STROKES = 100000;
+
+    /**
+     * How many strokes a recipient's writer batches before it writes, a
+     * typical burst for a busy board
+     */
+    private static final int STROKES_PER_BATCH = 8;
+
+    public static void main(String[] args) {
+        int[] recipientCounts = { 10, 50, 200 };
+        if (args.length > 0) {
+            recipientCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                recipientCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("mode\trecipients\tns/stroke\tbytes allocated/stroke\twrites/stroke");
+        for (int recipients : recipientCounts) {
+            run(new PerRecipient(recipients), recipients);
+            run(new EncodeOnce(recipients), recipients);
+        }
+    }
+
+    private static void run(Mode mode, int recipients) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < WARMUP_STROKES; i++) {
+            mode.fanOut(stroke(i));
+        }
+        CountingOutputStream.writes = 0;
+        long bytesBefore = allocatedBytes(threads);
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < MEASURED_STROKES; i++) {
+            mode.fanOut(stroke(i));
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long bytes = allocatedBytes(threads) - bytesBefore;
+        System.out.println(String.format("%s\t%d\t%.0f\t%s\t%.1f", mode.name(),
+                recipients, (double) cpu / MEASURED_STROKES,
+                bytes < 0 ? "n/a" : String.format("%.0f", (double) bytes / MEASURED_STROKES),
+                (double) CountingOutputStream.writes / MEASURED_STROKES));
+    }
+
+    private static String stroke(int i) {
+        return String.format("%s 0 %d %d %d %d 2.000000 255 0 0",
+                MessageHandler.RESP_DRAW, i % 800, i % 600, (i + 3) % 800, (i + 5) % 600);
+    }
+
+    /**
+     * @return the bytes allocated so far by this thread, or -1 if the JVM
+     *         does not say
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private interface Mode {
+        String name();
+
+        void fanOut(String message);
+    }
+
+    private static class PerRecipient implements Mode {
+        private final PrintWriter[] writers;
+
+        PerRecipient(int recipients) {
+            this.writers = new PrintWriter[recipients];
+            for (int i = 0; i < recipients; i++) {
+                this.writers[i] = new PrintWriter(new CountingOutputStream(), true);
+            }
+        }
+
+        public String name() {
+            return "per-recipient";
+        }
+
+        public void fanOut(String message) {
+            for (PrintWriter writer : this.writers) {
+                writer.println(message);
+            }
+        }
+    }
+
+    private static class EncodeOnce implements Mode {
+        private final byte[][] batches;
+        private final int[] batchLengths;
+        private final OutputStream out = new CountingOutputStream();
+        private int strokes = 0;
+
+        EncodeOnce(int recipients) {
+            this.batches = new byte[recipients][8192];
+            this.batchLengths = new int[recipients];
+        }
+
+        public String name() {
+            return "encode-once";
+        }
+
+        public void fanOut(String message) {
+            OutgoingServerMessage outgoingMessage = new OutgoingServerMessage(message);
+            boolean flush = ++this.strokes % STROKES_PER_BATCH == 0;
+            for (int i = 0; i < this.batches.length; i++) {
+                ByteBuffer bytes = outgoingMessage.getEncoded();
+                int length = bytes.remaining();
+                bytes.get(this.batches[i], this.batchLengths[i], length);
+                this.batchLengths[i] += length;
+                if (flush) {
+                    try {
+                        this.out.write(this.batches[i], 0, this.batchLengths[i]);
+                    } catch (java.io.IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    this.batchLengths[i] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards what is written to it, counting the writes
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private static long writes = 0;
+
+        @Override
+        public void write(int b) {
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes++;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import protocol.ClientSideMessageMaker;
+import protocol.OutgoingServerMessageQueue;
+import server.WhiteboardServer;
+import server.WhiteboardServer.IOMode;
+import server.WhiteboardServer.ThreadMode;
+
+/**
+ * Compares the thread modes of the THREADS server: memory per connection and
+ * the latency of a broadcast to every connected user.
+ * 
+ * For each mode and client count, a server is started on an ephemeral port
+ * and the clients connect from this JVM. The clients are all drained by one
+ * selector thread so that they do not add threads of their own. Once the
+ * logins have settled we measure the heap growth and thread count, then one
+ * client creates boards and we time how long it takes until every other
+ * client has received the resulting board_ids broadcast.
+ * 
+ * The heap figure includes the few hundred bytes per client that the client
+ * side channels cost, and does not include platform thread stacks, which live
+ * outside the heap; compare the thread counts for those.
+ * 
+ * POOL runs on the server's default pool of DEFAULT_POOL_SIZE threads, so it
+ * is only measured with as many clients as that pool serves; the server
+ * turns the rest away.
+ * 
+ * usage: ExecutionModeBenchmark [CLIENTS...] (default 128 1000 5000 10000)
+ * 
+ * Run with a heap of a few GB and a raised open file limit, since every
+ * client is two sockets in this process.
+ */
+public class ExecutionModeBenchmark {
+
+    /**
+     * The number of broadcasts timed per run
+     */
+    private static final int ROUNDS = 20;
+
+    /**
+     * How long the clients must receive nothing before the server is
+     * considered settled
+     */
+    private static final long QUIET_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int[] clientCounts = { 128, 1000, 5000, 10000 };
+        if (args.length > 0) {
+            clientCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                clientCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("mode\tclients\theap/conn(B)\tthreads\tbroadcast p50(ms)\tbroadcast max(ms)");
+        for (ThreadMode mode : ThreadMode.values()) {
+            for (int clients : clientCounts) {
+                run(mode, clients);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Measures one mode with the given number of clients
+     */
+    private static void run(ThreadMode mode, int clients) throws Exception {
+        ExecutorService executor;
+        try {
+            executor = WhiteboardServer.createConnectionExecutor(mode,
+                    WhiteboardServer.DEFAULT_POOL_SIZE);
+        } catch (IllegalArgumentException e) {
+            System.out.println(mode + "\t" + clients + "\tskipped: " + e.getMessage());
+            return;
+        }
+        WhiteboardServer server = new WhiteboardServer(0,
+                OutgoingServerMessageQueue.DEFAULT_HIGH_WATER_MARK,
+                IOMode.THREADS, 0, executor);
+        if (clients > server.getMaxConnections()) {
+            System.out.println(mode + "\t" + clients + "\tskipped: the pool serves "
+                    + server.getMaxConnections() + " users");
+            server.close();
+            return;
+        }
+        server.serve();
+
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        Clients connections = new Clients(server.getPort(), clients);
+        connections.awaitQuiet();
+        long heapPerConnection = (usedHeap() - heapBefore) / clients;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+
+        long[] latencies = new long[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            connections.send(0, ClientSideMessageMaker
+                    .makeRequestStringCreateBoard("bench" + round));
+            connections.awaitBoardIDs((round + 1L) * (clients - 1));
+            latencies[round] = System.nanoTime() - start;
+            connections.awaitQuiet();
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format("%s\t%d\t%d\t%d\t%.2f\t%.2f", mode,
+                clients, heapPerConnection, threads,
+                latencies[ROUNDS / 2] / 1e6, latencies[ROUNDS - 1] / 1e6));
+
+        connections.close();
+        server.close();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the heap in use after a few rounds of garbage collection
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The benchmark's clients, all read by a single selector thread which
+     * counts the board_ids lines every client but the first receives
+     */
+    private static class Clients implements Runnable {
+        private static final byte[] BOARD_IDS = "board_ids".getBytes();
+
+        private final List<SocketChannel> channels;
+        private final Queue<SocketChannel> unregistered;
+        private final Selector selector;
+        private final AtomicLong boardIDsReceived;
+        private final Thread readerThread;
+        private volatile long lastReadMillis;
+
+        /**
+         * Connects the clients, one after the other
+         */
+        Clients(int port, int clients) throws IOException {
+            this.channels = new ArrayList<SocketChannel>();
+            this.unregistered = new ConcurrentLinkedQueue<SocketChannel>();
+            this.selector = Selector.open();
+            this.boardIDsReceived = new AtomicLong(0);
+            this.lastReadMillis = System.currentTimeMillis();
+            this.readerThread = new Thread(this, "benchmark-clients");
+            this.readerThread.setDaemon(true);
+            this.readerThread.start();
+            for (int i = 0; i < clients; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(
+                        "127.0.0.1", port));
+                channel.configureBlocking(false);
+                this.channels.add(channel);
+                this.unregistered.add(channel);
+                this.selector.wakeup();
+            }
+        }
+
+        /**
+         * Sends a request from one client
+         */
+        void send(int client, String request) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap((request + "\n").getBytes());
+            while (buffer.hasRemaining()) {
+                this.channels.get(client).write(buffer);
+            }
+        }
+
+        /**
+         * Waits until nothing has been received for QUIET_MILLIS
+         */
+        void awaitQuiet() throws InterruptedException {
+            while (System.currentTimeMillis() - this.lastReadMillis < QUIET_MILLIS) {
+                Thread.sleep(50);
+            }
+        }
+
+        /**
+         * Waits until the clients have received the given number of
+         * board_ids lines in total
+         */
+        void awaitBoardIDs(long total) {
+            while (this.boardIDsReceived.get() < total) {
+                Thread.yield();
+            }
+        }
+
+        void close() throws IOException, InterruptedException {
+            this.readerThread.interrupt();
+            this.selector.wakeup();
+            this.readerThread.join();
+            this.selector.close();
+            for (SocketChannel channel : this.channels) {
+                channel.close();
+            }
+        }
+
+        /**
+         * Reads every client, counting the lines that start with board_ids
+         */
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    this.selector.select();
+                    SocketChannel channel;
+                    while ((channel = this.unregistered.poll()) != null) {
+                        // the attachment is how far into "board_ids" the
+                        // current line matches, or -1 once it does not
+                        channel.register(this.selector, SelectionKey.OP_READ,
+                                new int[] { 0 });
+                    }
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        buffer.clear();
+                        if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                            key.cancel();
+                            continue;
+                        }
+                        this.lastReadMillis = System.currentTimeMillis();
+                        countBoardIDs(buffer, (int[]) key.attachment(),
+                                this.channels.get(0) == key.channel());
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void countBoardIDs(ByteBuffer buffer, int[] match, boolean creator) {
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < buffer.position(); i++) {
+                if (bytes[i] == '\n') {
+                    match[0] = 0;
+                } else if (match[0] >= 0 && match[0] < BOARD_IDS.length) {
+                    match[0] = bytes[i] == BOARD_IDS[match[0]] ? match[0] + 1 : -1;
+                    if (match[0] == BOARD_IDS.length && !creator) {
+                        this.boardIDsReceived.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+}
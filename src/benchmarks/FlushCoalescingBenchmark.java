@@ -0,0 +1,115 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import protocol.OutgoingServerMessage;
+import protocol.OutgoingServerMessageQueue;
+
+/**
+ * Measures what the writer's flush delay buys: the socket writes per message
+ * and the enqueue-to-flush latency of one user's OutgoingServerMessageQueue,
+ * writing to a loopback socket that is read as fast as it arrives, for
+ * several flush delays and message rates.
+ *
+ * Each write is one system call and, on a socket that keeps up, about one
+ * packet, so writes/message is the figure the delay should bring down under
+ * load while a low rate keeps its latency.
+ *
+ * usage: FlushCoalescingBenchmark [MESSAGES_PER_SECOND...]
+ * (default 100 10000 100000)
+ */
+public class FlushCoalescingBenchmark {
+
+    /**
+     * The flush delays compared, in microseconds
+     */
+    private static final long[] DELAYS_MICROS = { 0, 500, 2000, 5000 };
+
+    /**
+     * The seconds measured per run
+     */
+    private static final int SECONDS = 2;
+
+    /**
+     * The most messages queued in one go; a broadcast to a busy board comes
+     * in bursts like this
+     */
+    private static final int BURST = 8;
+
+    public static void main(String[] args) throws Exception {
+        int[] rates = { 100, 10000, 100000 };
+        if (args.length > 0) {
+            rates = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                rates[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("messages/s\tdelay(us)\twrites/message\tbatch size\tavg latency(us)\tmax latency(us)");
+        for (int round = 0; round < 2; round++) {
+            for (int rate : rates) {
+                for (long delay : DELAYS_MICROS) {
+                    run(rate, delay, round == 1);
+                }
+            }
+        }
+    }
+
+    private static void run(int rate, long delayMicros, boolean print) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        Socket sender = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        final Socket receiver = serverSocket.accept();
+        serverSocket.close();
+        Thread drain = new Thread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[65536];
+                try {
+                    InputStream in = receiver.getInputStream();
+                    while (in.read(buffer) != -1) {
+                    }
+                } catch (IOException e) {
+                }
+            }
+        });
+        drain.start();
+
+        OutgoingServerMessageQueue queue = new OutgoingServerMessageQueue(
+                sender.getOutputStream(), Integer.MAX_VALUE,
+                TimeUnit.MICROSECONDS.toNanos(delayMicros));
+        Thread writer = new Thread(queue);
+        writer.start();
+
+        OutgoingServerMessage message = new OutgoingServerMessage(
+                "draw 120 340 125 352 2.000000 0 0 0 255");
+        int burst = Math.max(1, Math.min(BURST, rate / 1000));
+        long interval = TimeUnit.SECONDS.toNanos(1) * burst / rate;
+        long messages = (long) rate * SECONDS;
+        long next = System.nanoTime();
+        for (long sent = 0; sent < messages; sent += burst) {
+            while (System.nanoTime() < next) {
+            }
+            for (int i = 0; i < burst; i++) {
+                queue.addMessage(message);
+            }
+            next += interval;
+        }
+        while (queue.getFlushedMessageCount() < messages) {
+            Thread.sleep(1);
+        }
+        if (print)
+            System.out.println(String.format("%d\t%d\t%.3f\t%.1f\t%.0f\t%.0f",
+                    rate, delayMicros,
+                    (double) queue.getWriteCount() / messages,
+                    queue.getAverageBatchSize(),
+                    queue.getAverageFlushLatencyNanos() / 1000.0,
+                    queue.getMaxFlushLatencyNanos() / 1000.0));
+
+        queue.close();
+        writer.join();
+        drain.join();
+        receiver.close();
+    }
+}
@@ -0,0 +1,107 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import adts.Line;
+import adts.LobbyModel;
+import server.BoardJournal;
+
+/**
+ * Measures how long a BoardJournal takes to read a board back when the board
+ * has a long history but few live lines, with compaction off and on.
+ *
+ * A board is drawn on for HISTORY lines in total and cleared every LIVE
+ * lines, so that LIVE lines are live at the end whatever the history. With
+ * compaction off the log keeps all of it; with it on (at the default
+ * compaction size) the journal rewrites the log as a snapshot whenever it is
+ * mostly garbage. The log's length and the best of ROUNDS readings back are
+ * reported.
+ *
+ * usage: JournalCompactionBenchmark [LIVE] [HISTORY...] (default 50000 and
+ * 100000 1000000 4000000)
+ */
+public class JournalCompactionBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int live = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int[] histories = { 100000, 1000000, 4000000 };
+        if (args.length > 1) {
+            histories = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                histories[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("history\tlive\tcompaction\tlog MB\tcompactions\trecover ms");
+        for (int history : histories) {
+            for (int mode = 0; mode < 2; mode++) {
+                boolean compacting = mode == 1;
+                File directory = Files.createTempDirectory("journal").toFile();
+                long compactions = write(directory, live, history, compacting);
+                long length = new File(directory, "board-0.log").length();
+                long best = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    best = Math.min(best, recover(directory, live));
+                }
+                System.out.println(String.format("%d\t%d\t%s\t%.1f\t%d\t%.1f",
+                        history, live, compacting ? "on" : "off",
+                        length / 1e6, compactions, best / 1e6));
+                delete(directory);
+            }
+        }
+    }
+
+    /**
+     * Draws the board's history through a journal
+     *
+     * @return the number of compactions
+     */
+    private static long write(File directory, int live, int history,
+            boolean compacting) throws IOException {
+        LobbyModel lobbyModel = new LobbyModel();
+        BoardJournal journal = new BoardJournal(directory,
+                BoardJournal.DEFAULT_COMMIT_INTERVAL_NANOS,
+                compacting ? BoardJournal.DEFAULT_COMPACTION_BYTES : Long.MAX_VALUE);
+        journal.recover(lobbyModel);
+        lobbyModel.addBoardChangeListener(journal);
+        int boardID = lobbyModel.addBoard("board");
+        for (int i = 1; i <= history; i++) {
+            lobbyModel.addLineToBoardID(new Line(i % 1000, i % 700,
+                    (i + 13) % 1000, (i + 29) % 700, 1 + i % 11, i & 0xff,
+                    (i >>> 8) & 0xff, 0, 255), boardID);
+            if (i % live == 0 && i < history)
+                lobbyModel.clearBoard(boardID);
+        }
+        journal.close();
+        return journal.getCompactionCount();
+    }
+
+    /**
+     * @return the nanoseconds taken to read the board back
+     */
+    private static long recover(File directory, int live) throws IOException {
+        LobbyModel lobbyModel = new LobbyModel();
+        BoardJournal journal = new BoardJournal(directory,
+                BoardJournal.DEFAULT_COMMIT_INTERVAL_NANOS, Long.MAX_VALUE);
+        long start = System.nanoTime();
+        journal.recover(lobbyModel);
+        long taken = System.nanoTime() - start;
+        journal.close();
+        if (lobbyModel.getLinesForBoardID(0).size() != live)
+            throw new IllegalStateException("the board did not come back whole");
+        return taken;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
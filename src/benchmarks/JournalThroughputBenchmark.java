@@ -0,0 +1,290 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import adts.Line;
+import adts.LobbyModel;
+import protocol.AsciiCharSequence;
+import protocol.ClientSideMessageMaker;
+import protocol.MessageHandler;
+import protocol.OutgoingServerMessage;
+import server.BoardJournal;
+import server.ConnectionRegistry;
+import server.UserConnection;
+
+/**
+ * Measures how many strokes per second LobbyModel takes with its boards kept
+ * only in memory and with a BoardJournal logging them to disk.
+ *
+ * Each drawing thread draws on its own board as fast as it can, either
+ * through MessageHandler (a req_draw is parsed, the line added to the board
+ * and the draw sent to WATCHERS other users on the board, whose connections
+ * only count what they get) or on the model directly, as in
+ * LobbyDrawThroughputBenchmark (find the drawer's board, add the line to it
+ * and get the board's users). The second is the most the journal could ever
+ * be asked to keep up with. With the journal, the committer writes and
+ * fsyncs the strokes in the background, in a temporary directory, and its
+ * commits and bytes are reported.
+ *
+ * Besides strokes per second, the CPU time the drawing threads take per
+ * stroke is reported, and the share of one CPU the journal's own threads
+ * take. On a machine with a CPU to spare for the committer, throughput goes
+ * as the drawing threads' CPU per stroke; with as many drawing threads as
+ * CPUs, the committer's share comes out of theirs as well. On one CPU, the
+ * journal's strokes per second were 0.98 of the memory's through
+ * MessageHandler, where the committer took 3-4% of the CPU; with the model
+ * directly they were 0.86-0.88, the committer taking 10-13% of the CPU to
+ * write about 100 MB/s, while the drawing threads' CPU per stroke was
+ * within 1% of the memory's either way.
+ *
+ * usage: JournalThroughputBenchmark [THREADS...] (default 1 4)
+ */
+public class JournalThroughputBenchmark {
+
+    private static final long WARMUP_MILLIS = 1000;
+    private static final long MEASURED_MILLIS = 3000;
+    private static final int ROUNDS = 3;
+    private static final int WATCHERS = 4;
+
+    /**
+     * Boards are cleared after this many lines so the run does not fill the
+     * heap
+     */
+    private static final int LINES_BEFORE_CLEAR = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = { 1, 4 };
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("path\tthreads\tmemory strokes/s\tjournal strokes/s\tratio"
+                + "\tmemory ns/stroke\tjournal ns/stroke\tratio\tjournal CPU\tcommits/s\tMB/s written");
+        for (int path = 0; path < 2; path++) {
+            boolean viaServer = path == 0;
+            for (int threads : threadCounts) {
+                double[] memory = { 0, Double.MAX_VALUE };
+                double[] journaled = { 0, Double.MAX_VALUE };
+                // the best of each, alternating so both see the same machine
+                for (int round = 0; round < ROUNDS; round++) {
+                    double[] result = run(threads, viaServer, null);
+                    memory[0] = Math.max(memory[0], result[0]);
+                    memory[1] = Math.min(memory[1], result[1]);
+                    File directory = Files.createTempDirectory("journal").toFile();
+                    BoardJournal journal = new BoardJournal(directory);
+                    result = run(threads, viaServer, journal);
+                    if (result[0] > journaled[0])
+                        journaled = result;
+                    else
+                        journaled[1] = Math.min(journaled[1], result[1]);
+                    delete(directory);
+                }
+                System.out.println(String.format(
+                        "%s\t%d\t%.0f\t%.0f\t%.2f\t%.0f\t%.0f\t%.2f\t%.0f%%\t%.0f\t%.1f",
+                        viaServer ? "req_draw" : "model", threads, memory[0],
+                        journaled[0], journaled[0] / memory[0], memory[1],
+                        journaled[1], journaled[1] / memory[1],
+                        100 * journaled[2], journaled[3], journaled[4] / 1e6));
+            }
+        }
+    }
+
+    /**
+     * @return strokes per second, the drawing threads' CPU nanoseconds per
+     *         stroke, and with a journal the share of a CPU its threads took
+     *         and its commits and bytes per second
+     */
+    private static double[] run(int threads, final boolean viaServer,
+            BoardJournal journal) throws InterruptedException, IOException {
+        final LobbyModel lobbyModel = new LobbyModel();
+        if (journal != null)
+            lobbyModel.addBoardChangeListener(journal);
+        ConnectionRegistry connections = new ConnectionRegistry();
+        lobbyModel.addBoardMembershipListener(connections);
+        final CountingConnection[] drawers = new CountingConnection[threads];
+        for (int i = 0; i < threads; i++) {
+            int boardID = lobbyModel.addBoard("board" + i);
+            drawers[i] = new CountingConnection(lobbyModel.addUser("drawer" + i),
+                    connections);
+            connections.add(drawers[i]);
+            lobbyModel.userJoinBoard(drawers[i].getUserID(), boardID);
+            for (int w = 0; w < WATCHERS; w++) {
+                CountingConnection watcher = new CountingConnection(
+                        lobbyModel.addUser("watcher" + i + "_" + w), connections);
+                connections.add(watcher);
+                lobbyModel.userJoinBoard(watcher.getUserID(), boardID);
+            }
+        }
+        final byte[] request = ClientSideMessageMaker.makeRequestStringDraw(
+                new Line(1, 2, 3, 4, 2, 255, 0, 0, 255)).getBytes();
+
+        final AtomicLong strokes = new AtomicLong();
+        final AtomicLong cpuNanos = new AtomicLong();
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long start = System.currentTimeMillis();
+        final long measureFrom = start + WARMUP_MILLIS;
+        final long end = measureFrom + MEASURED_MILLIS;
+        final long[] journalFrom = new long[3];
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final CountingConnection drawer = drawers[i];
+            workers.add(new Thread(new Runnable() {
+                public void run() {
+                    Line line = new Line(1, 2, 3, 4, 2, 255, 0, 0, 255);
+                    AsciiCharSequence view = new AsciiCharSequence();
+                    int drawerID = drawer.getUserID();
+                    long measured = 0;
+                    long cpuFrom = -1;
+                    int lines = 0;
+                    long now = System.currentTimeMillis();
+                    while (now < end) {
+                        for (int j = 0; j < 100; j++) {
+                            if (viaServer) {
+                                MessageHandler.handleMessage(view.reset(request,
+                                        0, request.length), drawer, lobbyModel);
+                            } else {
+                                int boardID = lobbyModel.getBoardIDThatUserIDIsIn(drawerID);
+                                lobbyModel.addLineToBoardID(line, boardID);
+                                lobbyModel.getUserIDsForBoardID(boardID);
+                            }
+                            if (++lines == LINES_BEFORE_CLEAR) {
+                                lobbyModel.clearBoard(lobbyModel
+                                        .getBoardIDThatUserIDIsIn(drawerID));
+                                lines = 0;
+                            }
+                        }
+                        now = System.currentTimeMillis();
+                        if (now >= measureFrom) {
+                            if (cpuFrom < 0)
+                                cpuFrom = threadBean.getCurrentThreadCpuTime();
+                            else
+                                measured += 100;
+                        }
+                    }
+                    strokes.addAndGet(measured);
+                    cpuNanos.addAndGet(threadBean.getCurrentThreadCpuTime() - cpuFrom);
+                    done.countDown();
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        if (journal != null) {
+            Thread.sleep(WARMUP_MILLIS);
+            journalFrom[0] = journal.getCommitCount();
+            journalFrom[1] = journal.getCommittedBytes();
+            journalFrom[2] = journalCpuNanos(threadBean);
+        }
+        done.await();
+        double seconds = MEASURED_MILLIS / 1000.0;
+        double nanosPerStroke = (double) cpuNanos.get() / strokes.get();
+        if (journal == null)
+            return new double[] { strokes.get() / seconds, nanosPerStroke };
+        double[] result = { strokes.get() / seconds, nanosPerStroke,
+                (journalCpuNanos(threadBean) - journalFrom[2]) / (seconds * 1e9),
+                (journal.getCommitCount() - journalFrom[0]) / seconds,
+                (journal.getCommittedBytes() - journalFrom[1]) / seconds };
+        journal.close();
+        return result;
+    }
+
+    /**
+     * @return the CPU time the live journal threads took so far
+     */
+    private static long journalCpuNanos(ThreadMXBean threadBean) {
+        long nanos = 0;
+        for (ThreadInfo thread : threadBean.dumpAllThreads(false, false)) {
+            if (thread.getThreadName().startsWith("BoardJournal"))
+                nanos += Math.max(0, threadBean.getThreadCpuTime(thread.getThreadId()));
+        }
+        return nanos;
+    }
+
+    /**
+     * A connection that counts the bytes it would write
+     */
+    private static class CountingConnection implements UserConnection {
+        private final int userID;
+        private final ConnectionRegistry connections;
+        private long bytes;
+
+        CountingConnection(int userID, ConnectionRegistry connections) {
+            this.userID = userID;
+            this.connections = connections;
+        }
+
+        public int getUserID() {
+            return this.userID;
+        }
+
+        public void output(String message) {
+            output(new OutgoingServerMessage(message));
+        }
+
+        public void output(OutgoingServerMessage message) {
+            this.bytes += message.getEncodedLength();
+        }
+
+        public void broadcast(String message) {
+            this.connections.broadcast(message, this.userID);
+        }
+
+        public void broadcast(String message, Set<Integer> userIDs) {
+            this.connections.broadcast(message, userIDs, this.userID);
+        }
+
+        public void broadcastToBoard(String message, int boardID) {
+            this.connections.broadcastToBoard(message, boardID, this.userID);
+        }
+
+        public void broadcastToBoard(OutgoingServerMessage message, int boardID) {
+            this.connections.broadcastToBoard(message, boardID, this.userID);
+        }
+
+        public void broadcastToBoard(OutgoingServerMessage message,
+                String feature, OutgoingServerMessage fallback, int boardID) {
+            this.connections.broadcastToBoard(message, feature, fallback,
+                    boardID, this.userID);
+        }
+
+        public void enableFeature(String feature) {
+        }
+
+        /**
+         * Every user asked for every feature, as the client does
+         */
+        public boolean hasFeature(String feature) {
+            return true;
+        }
+
+        public void switchToBinaryProtocol(String lastTextMessage) {
+        }
+
+        public void closeSocket() {
+        }
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,124 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import adts.Line;
+import adts.LobbyModel;
+
+/**
+ * Measures how many strokes per second LobbyModel takes as the number of
+ * drawing threads grows, each thread drawing on its own board.
+ * 
+ * A stroke does what MessageHandler does for req_draw: find the drawer's
+ * board, add the line to it and get the board's users. One extra thread keeps
+ * logging users in, moving them between boards and renaming them, so the
+ * strokes also compete with lobby changes.
+ * 
+ * usage: LobbyDrawThroughputBenchmark [THREADS...] (default 1 2 4 8)
+ */
+public class LobbyDrawThroughputBenchmark {
+
+    private static final long WARMUP_MILLIS = 1000;
+    private static final long MEASURED_MILLIS = 3000;
+
+    /**
+     * Boards are cleared after this many lines so the run does not fill the
+     * heap
+     */
+    private static final int LINES_BEFORE_CLEAR = 10000;
+
+    /**
+     * Users in the lobby besides the drawers
+     */
+    private static final int IDLE_USERS = 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] threadCounts = { 1, 2, 4, 8 };
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("threads\tstrokes/s\tlobby changes/s");
+        for (int threads : threadCounts) {
+            run(threads);
+        }
+    }
+
+    private static void run(int threads) throws InterruptedException {
+        final LobbyModel lobbyModel = new LobbyModel();
+        for (int i = 0; i < IDLE_USERS; i++) {
+            lobbyModel.addUser("idle" + i);
+        }
+        final int[] boardIDs = new int[threads];
+        final int[] drawerIDs = new int[threads];
+        for (int i = 0; i < threads; i++) {
+            boardIDs[i] = lobbyModel.addBoard("board" + i);
+            drawerIDs[i] = lobbyModel.addUser("drawer" + i);
+            lobbyModel.userJoinBoard(drawerIDs[i], boardIDs[i]);
+        }
+
+        final AtomicLong strokes = new AtomicLong();
+        final AtomicLong lobbyChanges = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads + 1);
+        final long start = System.currentTimeMillis();
+        final long measureFrom = start + WARMUP_MILLIS;
+        final long end = measureFrom + MEASURED_MILLIS;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int drawerID = drawerIDs[i];
+            workers.add(new Thread(new Runnable() {
+                public void run() {
+                    Line line = new Line(1, 2, 3, 4, 2, 255, 0, 0, 255);
+                    long measured = 0;
+                    int lines = 0;
+                    long now = System.currentTimeMillis();
+                    while (now < end) {
+                        for (int j = 0; j < 100; j++) {
+                            int boardID = lobbyModel.getBoardIDThatUserIDIsIn(drawerID);
+                            lobbyModel.addLineToBoardID(line, boardID);
+                            lobbyModel.getUserIDsForBoardID(boardID);
+                            if (++lines == LINES_BEFORE_CLEAR) {
+                                lobbyModel.clearBoard(boardID);
+                                lines = 0;
+                            }
+                        }
+                        now = System.currentTimeMillis();
+                        if (now >= measureFrom)
+                            measured += 100;
+                    }
+                    strokes.addAndGet(measured);
+                    done.countDown();
+                }
+            }));
+        }
+        workers.add(new Thread(new Runnable() {
+            public void run() {
+                long measured = 0;
+                int round = 0;
+                while (System.currentTimeMillis() < end) {
+                    int userID = lobbyModel.addUser("churn" + round);
+                    lobbyModel.userJoinBoard(userID, boardIDs[round % boardIDs.length]);
+                    lobbyModel.changeUserName("renamed" + round, userID);
+                    lobbyModel.deleteUser(userID);
+                    round++;
+                    if (System.currentTimeMillis() >= measureFrom)
+                        measured++;
+                }
+                lobbyChanges.addAndGet(measured);
+                done.countDown();
+            }
+        }));
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        done.await();
+        double seconds = MEASURED_MILLIS / 1000.0;
+        System.out.println(String.format("%d\t%.0f\t%.0f", threads,
+                strokes.get() / seconds, lobbyChanges.get() / seconds));
+    }
+}
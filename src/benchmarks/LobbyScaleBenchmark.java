@@ -0,0 +1,89 @@
+package benchmarks;
+
+import java.util.Random;
+
+import adts.Line;
+import adts.LobbyModel;
+
+/**
+ * Measures the per-stroke work LobbyModel does for req_draw as the lobby
+ * grows: finding the drawer's board, adding the line and getting the
+ * board's users. The latency should not depend on how many boards and users
+ * there are.
+ * 
+ * usage: LobbyScaleBenchmark [BOARDS:USERS...]
+ *        (default 100:500 1000:5000 10000:50000)
+ */
+public class LobbyScaleBenchmark {
+
+    private static final int WARMUP_STROKES = 500000;
+    private static final int MEASURED_STROKES = 2000000;
+
+    /**
+     * Boards are cleared after this many lines so the run does not fill the
+     * heap
+     */
+    private static final int LINES_BEFORE_CLEAR = 10000;
+
+    public static void main(String[] args) {
+        String[] sizes = { "100:500", "1000:5000", "10000:50000" };
+        if (args.length > 0)
+            sizes = args;
+        System.out.println("boards\tusers\tsetup(ms)\tns/stroke");
+        for (String size : sizes) {
+            String[] parts = size.split(":");
+            run(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        }
+    }
+
+    private static void run(int boards, int users) {
+        long setupStart = System.nanoTime();
+        LobbyModel lobbyModel = new LobbyModel();
+        int[] boardIDs = new int[boards];
+        for (int i = 0; i < boards; i++) {
+            boardIDs[i] = lobbyModel.addBoard("board" + i);
+        }
+        int[] userIDs = new int[users];
+        for (int i = 0; i < users; i++) {
+            userIDs[i] = lobbyModel.addUser("user" + i);
+            lobbyModel.userJoinBoard(userIDs[i], boardIDs[i % boards]);
+        }
+        long setupMillis = (System.nanoTime() - setupStart) / 1000000;
+
+        // draw from random users so lookups are not all in the cache
+        Random random = new Random(42);
+        int[] drawers = new int[4096];
+        for (int i = 0; i < drawers.length; i++) {
+            drawers[i] = userIDs[random.nextInt(users)];
+        }
+        Line line = new Line(1, 2, 3, 4, 2, 255, 0, 0, 255);
+        long members = 0;
+        members += strokes(lobbyModel, drawers, line, WARMUP_STROKES);
+        long start = System.nanoTime();
+        members += strokes(lobbyModel, drawers, line, MEASURED_STROKES);
+        long elapsed = System.nanoTime() - start;
+        if (members == 0)
+            throw new IllegalStateException("no board had any members");
+        System.out.println(String.format("%d\t%d\t%d\t%.1f", boards, users,
+                setupMillis, (double) elapsed / MEASURED_STROKES));
+    }
+
+    /**
+     * @return the total number of board members seen, so the work is not
+     *         optimized away
+     */
+    private static long strokes(LobbyModel lobbyModel, int[] drawers, Line line, int count) {
+        long members = 0;
+        int lines = 0;
+        for (int i = 0; i < count; i++) {
+            int boardID = lobbyModel.getBoardIDThatUserIDIsIn(drawers[i & (drawers.length - 1)]);
+            lobbyModel.addLineToBoardID(line, boardID);
+            members += lobbyModel.getUserIDsForBoardID(boardID).size();
+            if (++lines == LINES_BEFORE_CLEAR) {
+                lobbyModel.clearBoard(boardID);
+                lines = 0;
+            }
+        }
+        return members;
+    }
+}
@@ -0,0 +1,270 @@
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Set;
+
+import adts.Line;
+import adts.LobbyModel;
+import protocol.AsciiCharSequence;
+import protocol.CommandTable;
+import protocol.MessageHandler;
+import protocol.MessageTokenizer;
+import protocol.OutgoingServerMessage;
+import server.UserConnection;
+
+/**
+ * Measures the CPU time and allocation per req_draw of reading it the way the
+ * server used to and the way it does now, once warmed up.
+ *
+ * parse: only reading the request, from the bytes of the line to the command
+ * and nine numbers.
+ *   split: the line is decoded into a String, split for the command, looked
+ *   up through a chain of equals and split again to parse each field.
+ *   tokenizer: the line is viewed in place as an AsciiCharSequence, the
+ *   command found in a CommandTable and the fields parsed by a
+ *   MessageTokenizer.
+ *
+ * handle: the whole request, also storing the line on a board and encoding
+ * the draw response for the board's users. The board is cleared every so
+ * often, as its store grows.
+ *
+ * Parsing a req_draw allocates nothing once warmed up, but handling one is
+ * not allocation free, and cannot be while the draw goes out
+ * asynchronously: the Line, the OutgoingServerMessage and its encoded bytes
+ * wait in the queues of the board's users after the request returns. The
+ * response is encoded straight from the line; formatting it with
+ * String.format made a handled req_draw allocate about 3000 bytes, and it
+ * now allocates about 200.
+ *
+ * usage: MessageParseBenchmark [REQUESTS] (default 2000000)
+ */
+public class MessageParseBenchmark {
+
+    private static final String[] COMMANDS = { "get_board_ids",
+            "set_username", "create_board", "get_current_board_id",
+            "get_users_for_board_id", "join_board_id", "logout",
+            "get_users_in_my_board", "leave_board", "req_draw", "req_clear" };
+
+    private static final int LINES_BEFORE_CLEAR = 100000;
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        byte[][] lines = new byte[1024][];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = String.format("%s %d %d %d %d %f %d %d %d %d",
+                    MessageHandler.REQ_DRAW, i % 800, i % 600, (i + 3) % 800,
+                    (i + 5) % 600, 2f + i % 4, i % 256, 0, 0, 255).getBytes();
+        }
+        System.out.println("mode\tns/request\tbytes allocated/request");
+        for (int round = 0; round < 3; round++) {
+            boolean print = round == 2;
+            run(new SplitParse(), lines, requests, print);
+            run(new TokenizerParse(), lines, requests, print);
+            run(new SplitHandle(), lines, requests, print);
+            run(new TokenizerHandle(), lines, requests, print);
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+
+    private static void run(Mode mode, byte[][] lines, int requests, boolean print) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long bytesBefore = allocatedBytes(threads);
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < requests; i++) {
+            mode.request(lines[i & (lines.length - 1)]);
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long bytes = allocatedBytes(threads) - bytesBefore;
+        if (print)
+            System.out.println(String.format("%s\t%.0f\t%s", mode.name(),
+                    (double) cpu / requests,
+                    bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / requests)));
+    }
+
+    /**
+     * @return the bytes allocated so far by this thread, or -1 if the JVM
+     *         does not say
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private interface Mode {
+        String name();
+
+        void request(byte[] line);
+    }
+
+    /**
+     * @return the line read the old way: the command's index in COMMANDS,
+     *         or null if it is not a req_draw
+     */
+    private static Line splitDraw(byte[] bytes) {
+        String input = new String(bytes, OutgoingServerMessage.CHARSET);
+        String command = input.split(" ")[0];
+        int opcode = -1;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (command.equals(COMMANDS[i])) {
+                opcode = i;
+                break;
+            }
+        }
+        if (opcode != 9)
+            return null;
+        String[] splitInput = input.split(" ");
+        return new Line(Integer.parseInt(splitInput[1]),
+                Integer.parseInt(splitInput[2]), Integer.parseInt(splitInput[3]),
+                Integer.parseInt(splitInput[4]), Float.parseFloat(splitInput[5]),
+                Integer.parseInt(splitInput[6]), Integer.parseInt(splitInput[7]),
+                Integer.parseInt(splitInput[8]), Integer.parseInt(splitInput[9]));
+    }
+
+    private static class SplitParse implements Mode {
+        public String name() {
+            return "parse split";
+        }
+
+        public void request(byte[] line) {
+            Line l = splitDraw(line);
+            sink += l.getX1() + l.getA() + (long) l.getStrokeThickness();
+        }
+    }
+
+    private static class TokenizerParse implements Mode {
+        private final AsciiCharSequence view = new AsciiCharSequence();
+        private final MessageTokenizer tokenizer = new MessageTokenizer();
+        private final CommandTable commands = new CommandTable(COMMANDS);
+
+        public String name() {
+            return "parse tokenizer";
+        }
+
+        public void request(byte[] line) {
+            CharSequence input = this.view.reset(line, 0, line.length);
+            this.tokenizer.reset(input).next();
+            if (this.commands.lookup(input, this.tokenizer.getTokenStart(),
+                    this.tokenizer.getTokenEnd()) != 9)
+                return;
+            long sum = 0;
+            for (int i = 0; i < 4; i++) {
+                sum += this.tokenizer.nextInt();
+            }
+            sum += (long) this.tokenizer.nextFloat();
+            for (int i = 0; i < 4; i++) {
+                sum += this.tokenizer.nextInt();
+            }
+            sink += sum;
+        }
+    }
+
+    /**
+     * Handles requests for a user alone on a board
+     */
+    private static abstract class Handle implements Mode {
+        protected final LobbyModel lobbyModel = new LobbyModel();
+        protected final DiscardingConnection connection;
+        private final int boardID;
+        private int lines = 0;
+
+        Handle() {
+            this.boardID = this.lobbyModel.addBoard("board");
+            this.connection = new DiscardingConnection(this.lobbyModel.addUser("drawer"));
+            this.lobbyModel.userJoinBoard(this.connection.getUserID(), this.boardID);
+        }
+
+        public void request(byte[] line) {
+            handle(line);
+            if (++this.lines == LINES_BEFORE_CLEAR) {
+                this.lobbyModel.clearBoard(this.boardID);
+                this.lines = 0;
+            }
+        }
+
+        abstract void handle(byte[] line);
+    }
+
+    private static class SplitHandle extends Handle {
+        public String name() {
+            return "handle split";
+        }
+
+        void handle(byte[] line) {
+            MessageHandler.handleDraw(splitDraw(line), this.connection, this.lobbyModel);
+        }
+    }
+
+    private static class TokenizerHandle extends Handle {
+        private final AsciiCharSequence view = new AsciiCharSequence();
+
+        public String name() {
+            return "handle tokenizer";
+        }
+
+        void handle(byte[] line) {
+            MessageHandler.handleMessage(this.view.reset(line, 0, line.length),
+                    this.connection, this.lobbyModel);
+        }
+    }
+
+    /**
+     * A connection that drops what is sent to it
+     */
+    private static class DiscardingConnection implements UserConnection {
+        private final int userID;
+
+        DiscardingConnection(int userID) {
+            this.userID = userID;
+        }
+
+        public int getUserID() {
+            return this.userID;
+        }
+
+        public void output(String message) {
+        }
+
+        public void output(OutgoingServerMessage message) {
+            sink += message.getEncodedLength();
+        }
+
+        public void broadcast(String message) {
+        }
+
+        public void broadcast(String message, Set<Integer> userIDs) {
+        }
+
+        public void broadcastToBoard(String message, int boardID) {
+        }
+
+        public void broadcastToBoard(OutgoingServerMessage message, int boardID) {
+        }
+
+        public void broadcastToBoard(OutgoingServerMessage message,
+                String feature, OutgoingServerMessage fallback, int boardID) {
+        }
+
+        public void enableFeature(String feature) {
+        }
+
+        /**
+         * Every user asked for every feature, as the client does
+         */
+        public boolean hasFeature(String feature) {
+            return true;
+        }
+
+        public void switchToBinaryProtocol(String lastTextMessage) {
+        }
+
+        public void closeSocket() {
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Set;
+
+import adts.Line;
+import adts.LobbyModel;
+import protocol.AsciiCharSequence;
+import protocol.ClientSideMessageMaker;
+import protocol.MessageHandler;
+import protocol.OutgoingServerMessage;
+import server.ConnectionRegistry;
+import server.UserConnection;
+import view.StrokeBatcher;
+
+/**
+ * Compares the messages and server CPU time of a scribble sent one req_draw
+ * per mouse event and sent the way StrokeBatcher sends it, one req_polyline
+ * per FLUSH_MILLIS (or MAX_POINTS), for several mouse event rates.
+ *
+ * The server side is MessageHandler handling the requests of one user on a
+ * board with other users, whose connections only count what they get.
+ *
+ * usage: PolylineBatchingBenchmark [MOUSE_EVENTS_PER_SECOND...]
+ * (default 125 250 500 1000)
+ */
+public class PolylineBatchingBenchmark {
+
+    /**
+     * The users on the board besides the one drawing
+     */
+    private static final int WATCHERS = 10;
+
+    /**
+     * The seconds of scribbling measured per mode
+     */
+    private static final int SECONDS = 200;
+
+    private static final int LINES_BEFORE_CLEAR = 100000;
+
+    public static void main(String[] args) {
+        int[] rates = { 125, 250, 500, 1000 };
+        if (args.length > 0) {
+            rates = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                rates[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("events/s\tmode\tmessages/s\tserver us/s\tbytes/s per watcher");
+        for (int round = 0; round < 2; round++) {
+            for (int rate : rates) {
+                run(rate, false, round == 1);
+                run(rate, true, round == 1);
+            }
+        }
+    }
+
+    private static void run(int rate, boolean batched, boolean print) {
+        LobbyModel lobbyModel = new LobbyModel();
+        ConnectionRegistry connections = new ConnectionRegistry();
+        lobbyModel.addBoardMembershipListener(connections);
+        int boardID = lobbyModel.addBoard("board");
+        CountingConnection drawer = new CountingConnection(
+                lobbyModel.addUser("drawer"), connections);
+        connections.add(drawer);
+        lobbyModel.userJoinBoard(drawer.getUserID(), boardID);
+        CountingConnection watcher = null;
+        for (int i = 0; i < WATCHERS; i++) {
+            watcher = new CountingConnection(lobbyModel.addUser("watcher" + i),
+                    connections);
+            connections.add(watcher);
+            lobbyModel.userJoinBoard(watcher.getUserID(), boardID);
+        }
+
+        int pointsPerMessage = Math.min(StrokeBatcher.MAX_POINTS,
+                Math.max(2, 1 + rate * StrokeBatcher.FLUSH_MILLIS / 1000));
+        int events = rate * SECONDS;
+        byte[][] requests = batched ? polylines(events, pointsPerMessage) : draws(events);
+
+        AsciiCharSequence view = new AsciiCharSequence();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        watcher.bytes = 0;
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        int segments = 0;
+        for (byte[] request : requests) {
+            MessageHandler.handleMessage(view.reset(request, 0, request.length),
+                    drawer, lobbyModel);
+            segments += batched ? pointsPerMessage - 1 : 1;
+            if (segments >= LINES_BEFORE_CLEAR) {
+                lobbyModel.clearBoard(boardID);
+                segments = 0;
+            }
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        if (print)
+            System.out.println(String.format("%d\t%s\t%.0f\t%.0f\t%.0f", rate,
+                    batched ? "polyline/" + pointsPerMessage : "draw",
+                    (double) requests.length / SECONDS,
+                    (double) cpu / 1000 / SECONDS,
+                    (double) watcher.bytes / SECONDS));
+    }
+
+    /**
+     * @return a req_draw per mouse event of a scribble
+     */
+    private static byte[][] draws(int events) {
+        byte[][] requests = new byte[events][];
+        for (int i = 0; i < events; i++) {
+            requests[i] = ClientSideMessageMaker.makeRequestStringDraw(
+                    new Line(x(i), y(i), x(i + 1), y(i + 1), 2, 0, 0, 0, 255)).getBytes();
+        }
+        return requests;
+    }
+
+    /**
+     * @return the req_polylines of the same scribble, each going on from the
+     *         last point of the one before
+     */
+    private static byte[][] polylines(int events, int pointsPerMessage) {
+        int segmentsPerMessage = pointsPerMessage - 1;
+        byte[][] requests = new byte[events / segmentsPerMessage][];
+        int[] points = new int[2 * pointsPerMessage];
+        for (int m = 0; m < requests.length; m++) {
+            for (int p = 0; p < pointsPerMessage; p++) {
+                points[2 * p] = x(m * segmentsPerMessage + p);
+                points[2 * p + 1] = y(m * segmentsPerMessage + p);
+            }
+            requests[m] = ClientSideMessageMaker.makeRequestStringPolyline(2,
+                    0, 0, 0, 255, points, pointsPerMessage).getBytes();
+        }
+        return requests;
+    }
+
+    private static int x(int i) {
+        return 400 + (int) (300 * Math.sin(i * 0.013));
+    }
+
+    private static int y(int i) {
+        return 300 + (int) (200 * Math.cos(i * 0.029));
+    }
+
+    /**
+     * A connection that counts the bytes it would write
+     */
+    private static class CountingConnection implements UserConnection {
+        private final int userID;
+        private final ConnectionRegistry connections;
+        private long bytes;
+
+        CountingConnection(int userID, ConnectionRegistry connections) {
+            this.userID = userID;
+            this.connections = connections;
+        }
+
+        public int getUserID() {
+            return this.userID;
+        }
+
+        public void output(String message) {
+            output(new OutgoingServerMessage(message));
+        }
+
+        public void output(OutgoingServerMessage message) {
+            this.bytes += message.getEncodedLength();
+        }
+
+        public void broadcast(String message) {
+            this.connections.broadcast(message, this.userID);
+        }
+
+        public void broadcast(String message, Set<Integer> userIDs) {
+            this.connections.broadcast(message, userIDs, this.userID);
+        }
+
+        public void broadcastToBoard(String message, int boardID) {
+            this.connections.broadcastToBoard(message, boardID, this.userID);
+        }
+
+        public void broadcastToBoard(OutgoingServerMessage message, int boardID) {
+            this.connections.broadcastToBoard(message, boardID, this.userID);
+        }
+
+        public void broadcastToBoard(OutgoingServerMessage message,
+                String feature, OutgoingServerMessage fallback, int boardID) {
+            this.connections.broadcastToBoard(message, feature, fallback,
+                    boardID, this.userID);
+        }
+
+        public void enableFeature(String feature) {
+        }
+
+        /**
+         * Every user asked for every feature, as the client does
+         */
+        public boolean hasFeature(String feature) {
+            return true;
+        }
+
+        public void switchToBinaryProtocol(String lastTextMessage) {
+        }
+
+        public void closeSocket() {
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package benchmarks;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import adts.Line;
+import view.DirtyRegion;
+
+/**
+ * Compares the cost of putting received segments on screen the way Canvas
+ * used to (the whole buffer copied for every segment) with copying the whole
+ * buffer once per frame, and with copying only the dirty region once per
+ * frame as Canvas does now.
+ *
+ * Runs headless: the "screen" is an image the size of the Canvas window, and
+ * a repaint is the drawImage that Canvas.paintComponent does, clipped to the
+ * repainted area. Each user scribbles a random walk at MOUSE_HZ segments per
+ * second.
+ *
+ * usage: RepaintRegionBenchmark [USERS...] (default 1 5 20)
+ */
+public class RepaintRegionBenchmark {
+
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+
+    /**
+     * The segments each user draws per second
+     */
+    private static final int MOUSE_HZ = 60;
+
+    /**
+     * The length of a frame, as in Canvas
+     */
+    private static final int FRAME_MILLIS = 16;
+
+    /**
+     * The seconds of drawing simulated per run
+     */
+    private static final int SECONDS = 10;
+
+    public static void main(String[] args) {
+        int[] userCounts = { 1, 5, 20 };
+        if (args.length > 0) {
+            userCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                userCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("users\tmode\trepaints/s\tpixels copied/s\tcpu ms/s");
+        for (int round = 0; round < 2; round++) {
+            for (int users : userCounts) {
+                Line[] segments = scribbles(users);
+                run(users, segments, "full/segment", round == 1);
+                run(users, segments, "full/frame", round == 1);
+                run(users, segments, "dirty/frame", round == 1);
+            }
+        }
+    }
+
+    private static void run(int users, Line[] segments, String mode, boolean print) {
+        BufferedImage buffer = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D bufferGraphics = buffer.createGraphics();
+        bufferGraphics.setColor(Color.WHITE);
+        bufferGraphics.fillRect(0, 0, WIDTH, HEIGHT);
+        Graphics2D screenGraphics = screen.createGraphics();
+        DirtyRegion dirty = new DirtyRegion();
+        Rectangle full = new Rectangle(0, 0, WIDTH, HEIGHT);
+
+        // segments arrive evenly over the simulated time
+        int segmentsPerFrame = users * MOUSE_HZ * FRAME_MILLIS / 1000;
+        long repaints = 0;
+        long pixels = 0;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < segments.length; i++) {
+            Line l = segments[i];
+            bufferGraphics.setStroke(new BasicStroke(l.getStrokeThickness(), 1, 1));
+            bufferGraphics.setColor(new Color(l.getR(), l.getG(), l.getB(), l.getA()));
+            bufferGraphics.drawLine(l.getX1(), l.getY1(), l.getX2(), l.getY2());
+            Rectangle area = null;
+            if (mode.equals("full/segment")) {
+                area = full;
+            } else {
+                dirty.add(l);
+                boolean frameOver = (i + 1) % Math.max(1, segmentsPerFrame) == 0
+                        || i == segments.length - 1;
+                if (frameOver) {
+                    Rectangle region = dirty.take();
+                    area = mode.equals("full/frame") ? full : region.intersection(full);
+                }
+            }
+            if (area != null) {
+                screenGraphics.setClip(area);
+                screenGraphics.drawImage(buffer, 0, 0, null);
+                repaints++;
+                pixels += (long) area.width * area.height;
+            }
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        if (print)
+            System.out.println(String.format("%d\t%s\t%d\t%d\t%.1f", users, mode,
+                    repaints / SECONDS, pixels / SECONDS, cpu / 1e6 / SECONDS));
+        bufferGraphics.dispose();
+        screenGraphics.dispose();
+    }
+
+    /**
+     * @return the segments of every user's random walk, interleaved in the
+     *         order they would arrive
+     */
+    private static Line[] scribbles(int users) {
+        Random random = new Random(users);
+        int[] x = new int[users];
+        int[] y = new int[users];
+        for (int u = 0; u < users; u++) {
+            x[u] = 200 + random.nextInt(WIDTH - 220);
+            y[u] = 20 + random.nextInt(HEIGHT - 40);
+        }
+        Line[] segments = new Line[users * MOUSE_HZ * SECONDS];
+        for (int i = 0; i < segments.length; i++) {
+            int u = i % users;
+            int nx = Math.max(200, Math.min(WIDTH - 20, x[u] + random.nextInt(21) - 10));
+            int ny = Math.max(20, Math.min(HEIGHT - 20, y[u] + random.nextInt(21) - 10));
+            segments[i] = new Line(x[u], y[u], nx, ny, 5, 0, 0, 255, 255);
+            x[u] = nx;
+            y[u] = ny;
+        }
+        return segments;
+    }
+}
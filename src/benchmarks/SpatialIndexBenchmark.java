@@ -0,0 +1,148 @@
+package benchmarks;
+
+import java.util.Random;
+
+import adts.Line;
+import adts.SegmentSelection;
+import adts.StrokeSnapshot;
+import adts.StrokeStore;
+import adts.TileIndex;
+import adts.Whiteboard;
+
+/**
+ * Measures drawing on a Whiteboard, which indexes every segment by tile, and
+ * querying regions of it, at several board sizes.
+ *
+ * Each board is random walk strokes at the same density, on a square of
+ * DENSITY pixels per segment, so a region of a given size holds about as
+ * many segments on every board. Insert throughput is compared with adding
+ * to a bare StrokeStore; query latency, for windows of VIEW_WIDTH x
+ * VIEW_HEIGHT and hit tests of HIT_SIZE pixels square at random places, is
+ * compared with checking every segment.
+ *
+ * Needs a heap of about 3 GB for 10M segments (-Xmx3g).
+ *
+ * usage: SpatialIndexBenchmark [SEGMENTS...] (default 100000 1000000 10000000)
+ */
+public class SpatialIndexBenchmark {
+
+    private static final int DENSITY = 256;
+    private static final int STROKE_LENGTH = 40;
+    private static final int VIEW_WIDTH = 1000;
+    private static final int VIEW_HEIGHT = 800;
+    private static final int HIT_SIZE = 8;
+    private static final int QUERIES = 1000;
+    private static final int SCANS = 5;
+
+    public static void main(String[] args) {
+        int[] sizes = { 100000, 1000000, 10000000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.println("segments\tstore Mseg/s\tindexed Mseg/s"
+                + "\twindow us\twindow hits\thit test us\tscan us\tscan hits");
+        for (int segments : sizes) {
+            run(segments);
+        }
+    }
+
+    private static void run(int segments) {
+        int side = (int) Math.sqrt((double) segments * DENSITY);
+
+        StrokeStore store = new StrokeStore();
+        Walk walk = new Walk(side);
+        long start = System.nanoTime();
+        for (int i = 0; i < segments; i++) {
+            store.add(walk.next(i));
+        }
+        long storeNanos = System.nanoTime() - start;
+        store = null;
+
+        Whiteboard board = new Whiteboard(0);
+        walk = new Walk(side);
+        start = System.nanoTime();
+        for (int i = 0; i < segments; i++) {
+            board.addLine(walk.next(i));
+        }
+        long boardNanos = System.nanoTime() - start;
+
+        Random random = new Random(5);
+        long windowHits = 0;
+        long windowNanos = 0;
+        long hitNanos = 0;
+        // the first half warms up
+        for (int round = 0; round < 2; round++) {
+            windowHits = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                SegmentSelection found = board.getLinesInRegion(
+                        random.nextInt(side), random.nextInt(side), VIEW_WIDTH,
+                        VIEW_HEIGHT);
+                windowHits += found.size();
+            }
+            windowNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                board.getLinesInRegion(random.nextInt(side),
+                        random.nextInt(side), HIT_SIZE, HIT_SIZE);
+            }
+            hitNanos = System.nanoTime() - start;
+        }
+
+        StrokeSnapshot lines = board.getLines();
+        start = System.nanoTime();
+        long scanned = 0;
+        for (int q = 0; q < SCANS; q++) {
+            int x = random.nextInt(side);
+            int y = random.nextInt(side);
+            for (int i = 0; i < lines.size(); i++) {
+                if (TileIndex.intersects(lines.getX1(i), lines.getY1(i),
+                        lines.getX2(i), lines.getY2(i),
+                        lines.getStrokeThickness(i), x, y, x + VIEW_WIDTH - 1,
+                        y + VIEW_HEIGHT - 1))
+                    scanned++;
+            }
+        }
+        long scanNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(
+                "%d\t%.1f\t%.1f\t%.0f\t%d\t%.1f\t%.0f\t%d", segments,
+                segments * 1e3 / storeNanos, segments * 1e3 / boardNanos,
+                windowNanos / 1e3 / QUERIES, windowHits / QUERIES, hitNanos
+                        / 1e3 / QUERIES, scanNanos / 1e3 / SCANS, scanned
+                        / SCANS));
+    }
+
+    /**
+     * Random walk strokes of STROKE_LENGTH segments over a square board
+     */
+    private static class Walk {
+        private final int side;
+        private final Random random = new Random(17);
+        private int x;
+        private int y;
+
+        Walk(int side) {
+            this.side = side;
+        }
+
+        Line next(int i) {
+            if (i % STROKE_LENGTH == 0) {
+                this.x = this.random.nextInt(this.side);
+                this.y = this.random.nextInt(this.side);
+            }
+            int nx = Math.max(0, Math.min(this.side - 1, this.x
+                    + this.random.nextInt(41) - 20));
+            int ny = Math.max(0, Math.min(this.side - 1, this.y
+                    + this.random.nextInt(41) - 20));
+            Line l = new Line(this.x, this.y, nx, ny,
+                    1 + (i / STROKE_LENGTH) % 3 * 5, 0, 0, 0, 255);
+            this.x = nx;
+            this.y = ny;
+            return l;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import adts.Line;
+import adts.StrokeStore;
+
+/**
+ * Compares the heap taken by a board's strokes kept as a List of Line
+ * objects and kept in a StrokeStore, and how long a full collection takes
+ * with each of them live.
+ * 
+ * usage: StrokeMemoryBenchmark [STROKES] (default 2000000)
+ * 
+ * Run with a heap of at least 1 GB.
+ */
+public class StrokeMemoryBenchmark {
+
+    public static void main(String[] args) {
+        int strokes = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        System.out.println("storage\tstrokes\tbytes/stroke\tfull gc(ms)");
+
+        long before = usedHeap();
+        List<Line> lines = new ArrayList<Line>();
+        for (int i = 0; i < strokes; i++) {
+            lines.add(new Line(i % 800, i % 600, (i + 1) % 800, (i + 1) % 600,
+                    2.0f + (i % 5), i % 256, (i / 3) % 256, (i / 7) % 256, 255));
+        }
+        report("List<Line>", strokes, before, lines.size());
+        lines = null;
+
+        before = usedHeap();
+        StrokeStore store = new StrokeStore();
+        for (int i = 0; i < strokes; i++) {
+            store.add(i % 800, i % 600, (i + 1) % 800, (i + 1) % 600,
+                    2.0f + (i % 5), i % 256, (i / 3) % 256, (i / 7) % 256, 255);
+        }
+        report("StrokeStore", strokes, before, store.size());
+    }
+
+    /**
+     * Prints the heap growth since before and the length of a full
+     * collection, while the strokes are still live
+     */
+    private static void report(String name, int strokes, long before, int size) {
+        long start = System.nanoTime();
+        long after = usedHeap();
+        long gcMillis = (System.nanoTime() - start) / 1000000 / 3;
+        if (size != strokes)
+            throw new IllegalStateException("lost strokes");
+        System.out.println(String.format("%s\t%d\t%.1f\t%d", name, strokes,
+                (double) (after - before) / strokes, gcMillis));
+    }
+
+    /**
+     * @return the heap in use after three full collections
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,109 @@
+package benchmarks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import adts.Line;
+import adts.ThumbnailCache;
+import adts.ThumbnailListener;
+import adts.Whiteboard;
+
+/**
+ * Measures what a get_board_thumbnail costs the server: what the thread
+ * handling it spends, which is only handing out the thumbnail as last drawn,
+ * and how long the background thread takes to draw a board's thumbnail from
+ * scratch, as an empty cache does, and to bring it up to date after a few
+ * strokes, and how many thumbnails the default budget keeps.
+ *
+ * usage: ThumbnailCacheBenchmark [SEGMENTS] [NEW] [BOARDS] (default 100000
+ * 50 2000)
+ */
+public class ThumbnailCacheBenchmark {
+
+    private static final int ROUNDS = 20;
+
+    /**
+     * Drawing a big board from scratch takes long, so fewer rounds of it
+     */
+    private static final int COLD_ROUNDS = 3;
+
+    public static void main(String[] args) throws InterruptedException {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int added = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int boards = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        Whiteboard board = new Whiteboard(1);
+        for (int i = 0; i < segments; i++) {
+            board.addLine(line(i));
+        }
+
+        BlockingQueue<byte[]> refreshed = new LinkedBlockingQueue<byte[]>();
+        ThumbnailListener listener = listener(refreshed);
+        long cold = 0;
+        for (int round = 0; round < COLD_ROUNDS + 1; round++) {
+            long start = System.nanoTime();
+            new ThumbnailCache(ThumbnailCache.DEFAULT_BUDGET_BYTES).get(board,
+                    listener);
+            refreshed.take();
+            refreshed.take();
+            if (round >= 1)
+                cold += System.nanoTime() - start;
+        }
+
+        ThumbnailCache cache = new ThumbnailCache(ThumbnailCache.DEFAULT_BUDGET_BYTES);
+        cache.get(board, listener);
+        refreshed.take();
+        refreshed.take();
+        long incremental = 0;
+        long asked = 0;
+        long hit = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < added; i++) {
+                board.addLine(line(i * 31 + round));
+            }
+            long start = System.nanoTime();
+            cache.get(board, listener);
+            asked += System.nanoTime() - start;
+            refreshed.take();
+            refreshed.take();
+            incremental += System.nanoTime() - start;
+            start = System.nanoTime();
+            cache.get(board);
+            hit += System.nanoTime() - start;
+        }
+
+        for (int i = 0; i < boards; i++) {
+            Whiteboard small = new Whiteboard(i + 2);
+            small.addLine(line(i));
+            cache.get(small, listener);
+            refreshed.take();
+            refreshed.take();
+        }
+
+        System.out.println("segments\tnew\tfrom scratch ms\tup to date ms\tasked behind us\tunchanged us\tkept of " + boards + "\tkept KB");
+        System.out.println(String.format("%d\t%d\t%.2f\t%.3f\t%.1f\t%.1f\t%d\t%d",
+                segments, added, cold / 1e6 / COLD_ROUNDS, incremental / 1e6 / ROUNDS,
+                asked / 1e3 / ROUNDS, hit / 1e3 / ROUNDS, cache.size(),
+                cache.getBytes() / 1024));
+    }
+
+    /**
+     * @return a listener that puts the thumbnails it is told in the queue:
+     *         the one handed out, then the one drawn
+     */
+    private static ThumbnailListener listener(
+            final BlockingQueue<byte[]> refreshed) {
+        return new ThumbnailListener() {
+            @Override
+            public void thumbnailReady(int boardID, byte[] png) {
+                refreshed.add(png);
+            }
+        };
+    }
+
+    private static Line line(int i) {
+        return new Line(i % 1900, i % 1100, (i * 7 + 13) % 1900,
+                (i * 3 + 29) % 1100, 1 + i % 11, i & 0xff, (i >> 8) & 0xff, 0,
+                255);
+    }
+}
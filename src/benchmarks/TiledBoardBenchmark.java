@@ -0,0 +1,148 @@
+package benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import adts.Line;
+import adts.LineRenderer;
+import adts.StrokeSnapshot;
+import adts.StrokeStore;
+import adts.TileIndex;
+import adts.TileSnapshot;
+import adts.Whiteboard;
+import view.TiledRaster;
+
+/**
+ * Measures what tiles save on a board much bigger than the window.
+ *
+ * The board is BOARD_SIZE pixels square, covered by random walk strokes. A
+ * client showing a VIEW_WIDTH x VIEW_HEIGHT viewport either gets the whole
+ * history and replays it onto a window-sized image, as the Canvas does on
+ * join, or asks for the visible tiles and draws only those on a TiledRaster.
+ * The viewport then pans across the board in PAN_STEPS steps, fetching the
+ * tiles that come into view, to show that the tiles held stay bounded by the
+ * viewport.
+ *
+ * Also reports what the tile index costs when drawing, against adding to a
+ * bare StrokeStore. Runs headless.
+ *
+ * usage: TiledBoardBenchmark [SEGMENTS] (default 1000000)
+ */
+public class TiledBoardBenchmark {
+
+    private static final int BOARD_SIZE = 16384;
+    private static final int VIEW_WIDTH = 1000;
+    private static final int VIEW_HEIGHT = 800;
+    private static final int STROKE_LENGTH = 40;
+    private static final int PAN_STEPS = 40;
+    private static final int PAN_STEP = 200;
+
+    public static void main(String[] args) {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Line[] lines = board(segments);
+
+        long start = System.nanoTime();
+        StrokeStore store = new StrokeStore();
+        for (Line l : lines) {
+            store.add(l);
+        }
+        long storeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        Whiteboard board = new Whiteboard(0);
+        for (Line l : lines) {
+            board.addLine(l);
+        }
+        long boardNanos = System.nanoTime() - start;
+        System.out.println(String.format(
+                "draw ns/segment: StrokeStore %.0f, Whiteboard with tiles %.0f",
+                (double) storeNanos / segments, (double) boardNanos / segments));
+
+        Rectangle viewport = new Rectangle(BOARD_SIZE / 2, BOARD_SIZE / 2,
+                VIEW_WIDTH, VIEW_HEIGHT);
+        System.out.println("join\tsegments sent\tms");
+        start = System.nanoTime();
+        StrokeSnapshot snapshot = board.getLines();
+        BufferedImage window = new BufferedImage(VIEW_WIDTH, VIEW_HEIGHT,
+                BufferedImage.TYPE_INT_RGB);
+        LineRenderer renderer = new LineRenderer();
+        Graphics2D g = window.createGraphics();
+        g.translate(-viewport.x, -viewport.y);
+        renderer.begin(g);
+        for (int i = 0; i < snapshot.size(); i++) {
+            renderer.draw(snapshot.getLine(i));
+        }
+        renderer.end();
+        System.out.println(String.format("whole history\t%d\t%.0f",
+                snapshot.size(), (System.nanoTime() - start) / 1e6));
+
+        TiledRaster raster = new TiledRaster(TiledRaster.maxTilesFor(
+                VIEW_WIDTH, VIEW_HEIGHT), Color.WHITE);
+        start = System.nanoTime();
+        long sent = fetchMissing(board, raster, viewport);
+        System.out.println(String.format("visible tiles\t%d\t%.0f", sent,
+                (System.nanoTime() - start) / 1e6));
+
+        long fetched = 0;
+        int maxHeld = 0;
+        start = System.nanoTime();
+        for (int step = 0; step < PAN_STEPS; step++) {
+            viewport.x += PAN_STEP;
+            viewport.y += PAN_STEP / 2;
+            fetched += fetchMissing(board, raster, viewport);
+            maxHeld = Math.max(maxHeld, raster.getTileCount());
+        }
+        System.out.println(String.format(
+                "pan %d steps: %d segments sent, %.0f ms, at most %d tiles (%d KB) held",
+                PAN_STEPS, fetched, (System.nanoTime() - start) / 1e6, maxHeld,
+                maxHeld * TileIndex.TILE_SIZE * TileIndex.TILE_SIZE * 4 / 1024));
+    }
+
+    /**
+     * Gets the visible tiles the raster does not hold from the board and
+     * draws them, as a client would with get_tile
+     *
+     * @return the number of segments sent for them
+     */
+    private static long fetchMissing(Whiteboard board, TiledRaster raster,
+            Rectangle viewport) {
+        long sent = 0;
+        for (int[] missing : raster.getMissingTiles(viewport)) {
+            TileSnapshot tile = board.getTile(missing[0], missing[1]);
+            List<Line> lines = new ArrayList<Line>(tile.size());
+            for (int i = 0; i < tile.size(); i++) {
+                lines.add(tile.getLine(i));
+            }
+            raster.setTile(missing[0], missing[1], lines);
+            sent += tile.size();
+        }
+        return sent;
+    }
+
+    /**
+     * @return random walk strokes spread over the whole board
+     */
+    private static Line[] board(int segments) {
+        Random random = new Random(17);
+        Line[] board = new Line[segments];
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < segments; i++) {
+            if (i % STROKE_LENGTH == 0) {
+                x = random.nextInt(BOARD_SIZE);
+                y = random.nextInt(BOARD_SIZE);
+            }
+            int nx = Math.max(0, Math.min(BOARD_SIZE - 1, x + random.nextInt(41) - 20));
+            int ny = Math.max(0, Math.min(BOARD_SIZE - 1, y + random.nextInt(41) - 20));
+            board[i] = new Line(x, y, nx, ny, 1 + (i / STROKE_LENGTH) % 3 * 5,
+                    0, 0, (i / STROKE_LENGTH) % 256, 255);
+            x = nx;
+            y = ny;
+        }
+        return board;
+    }
+}
@@ -0,0 +1,141 @@
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import adts.Line;
+import protocol.BinaryProtocol;
+import protocol.MessageHandler;
+import protocol.OutgoingServerMessage;
+
+/**
+ * Compares the bytes on the wire, CPU time and allocation per stroke of
+ * sending a draw as text and as a BinaryProtocol frame, and of reading it
+ * back.
+ *
+ * text: the server formats "draw ..." and the client splits the line and
+ * parses its nine tokens, as ClientSideResponseHandler does.
+ *
+ * binary: the server encodes a draw frame and the client decodes it.
+ *
+ * Strokes are short mouse drags across a large board, the usual case.
+ *
+ * usage: WireCodecBenchmark [STROKES] (default 1000000)
+ */
+public class WireCodecBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int strokes = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Line[] lines = new Line[strokes];
+        for (int i = 0; i < strokes; i++) {
+            int x = (i * 37) % 1600;
+            int y = (i * 91) % 1200;
+            lines[i] = new Line(x, y, x + (i % 7) - 3, y + (i % 5) - 2,
+                    (i % 4) + 1, i % 256, (i * 3) % 256, (i * 7) % 256, 255);
+        }
+        System.out.println("mode\tbytes/stroke\tencode ns/stroke\tdecode ns/stroke\tbytes allocated/stroke");
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            boolean print = round == WARMUP_ROUNDS;
+            run(new Text(), lines, print);
+            run(new Binary(), lines, print);
+        }
+    }
+
+    private static void run(Codec codec, Line[] lines, boolean print) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        byte[][] encoded = new byte[lines.length][];
+        long wireBytes = 0;
+        long bytesBefore = allocatedBytes(threads);
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < lines.length; i++) {
+            encoded[i] = codec.encode(lines[i]);
+        }
+        long encodeCpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long checksum = 0;
+        cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < lines.length; i++) {
+            checksum += codec.decode(encoded[i]).getX2();
+            wireBytes += encoded[i].length;
+        }
+        long decodeCpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long bytes = allocatedBytes(threads) - bytesBefore;
+        if (!print)
+            return;
+        System.out.println(String.format("%s\t%.1f\t%.0f\t%.0f\t%s\t(checksum %d)",
+                codec.name(), (double) wireBytes / lines.length,
+                (double) encodeCpu / lines.length,
+                (double) decodeCpu / lines.length,
+                bytes < 0 ? "n/a" : String.format("%.0f", (double) bytes / lines.length),
+                checksum));
+    }
+
+    /**
+     * @return the bytes allocated so far by this thread, or -1 if the JVM
+     *         does not say
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private interface Codec {
+        String name();
+
+        byte[] encode(Line line);
+
+        Line decode(byte[] bytes);
+    }
+
+    private static class Text implements Codec {
+        public String name() {
+            return "text";
+        }
+
+        public byte[] encode(Line line) {
+            return String.format("%s %s\n", MessageHandler.RESP_DRAW, line)
+                    .getBytes(OutgoingServerMessage.CHARSET);
+        }
+
+        public Line decode(byte[] bytes) {
+            String input = new String(bytes, 0, bytes.length - 1,
+                    OutgoingServerMessage.CHARSET);
+            String command = input.split(" ")[0];
+            String[] tokens = input.replace(command, "").trim().split(" ");
+            return new Line(Integer.parseInt(tokens[0]),
+                    Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]),
+                    Integer.parseInt(tokens[3]), Float.parseFloat(tokens[4]),
+                    Integer.parseInt(tokens[5]), Integer.parseInt(tokens[6]),
+                    Integer.parseInt(tokens[7]), Integer.parseInt(tokens[8]));
+        }
+    }
+
+    private static class Binary implements Codec, BinaryProtocol.Receiver {
+        private Line decoded;
+
+        public String name() {
+            return "binary";
+        }
+
+        public byte[] encode(Line line) {
+            return BinaryProtocol.encodeDraw(line);
+        }
+
+        public Line decode(byte[] bytes) {
+            BinaryProtocol.decode(bytes, 0, bytes.length, this);
+            return this.decoded;
+        }
+
+        public void onText(CharSequence message) {
+            throw new IllegalStateException(message.toString());
+        }
+
+        public void onDraw(Line line) {
+            this.decoded = line;
+        }
+    }
+}
@@ -1,19 +1,24 @@
 package controller;
 
+import java.awt.Component;
 import java.awt.Container;
+import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
-import java.io.BufferedReader;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -23,8 +28,10 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.DefaultListModel;
 import javax.swing.GroupLayout;
+import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -32,12 +39,17 @@ import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import logger.BoardLogger;
+import protocol.BinaryProtocol;
 import protocol.BoardListItem;
 import protocol.Client;
 import protocol.ClientSideMessageMaker;
 import protocol.MessageHandler;
+import protocol.MessageInputStream;
+import protocol.OutgoingServerMessage;
 import view.Canvas;
 import adts.Line;
 import adts.LobbyModel;
@@ -119,12 +131,23 @@ public class WhiteboardClient extends JFrame implements Client {
 	/**
 	 * The output stream
 	 */
-	private PrintWriter out;
+	private OutputStream out;
 	
 	/**
-	 * The input stream
+	 * The input stream, read by the background thread
 	 */
-	private BufferedReader in;
+	private MessageInputStream in;
+
+	/**
+	 * True once requests are sent as BinaryProtocol frames; guarded by this
+	 */
+	private boolean binary;
+
+	/**
+	 * True once the server takes our strokes as polylines and sends us
+	 * polylines; set by the background thread
+	 */
+	private volatile boolean polylines;
 
 	/**
 	 * Background thread to handle incoming messages
@@ -166,6 +189,19 @@ public class WhiteboardClient extends JFrame implements Client {
 	 */
 	private final DefaultListModel<String> lstMdlBoards;
 
+	/**
+	 * The previews of the boards, by board ID, and the boards whose previews
+	 * were asked for since the lobby was last shown; only used on the event
+	 * dispatch thread
+	 */
+	private final Map<Integer, ImageIcon> thumbnails;
+	private final Set<Integer> requestedThumbnails;
+
+	/**
+	 * Shown in place of a preview that has not come yet
+	 */
+	private final ImageIcon noThumbnail;
+
 	/**
 	 * List of user
 	 */
@@ -225,9 +261,8 @@ public class WhiteboardClient extends JFrame implements Client {
 				}
 				LOGGER.info("Hostname (IP) inputted: " + hostName);
 				this.socket = new Socket(hostName, this.port);
-				this.out = new PrintWriter(socket.getOutputStream(), true);
-				this.in = new BufferedReader(new InputStreamReader(
-						socket.getInputStream()));
+				this.out = socket.getOutputStream();
+				this.in = new MessageInputStream(socket.getInputStream());
 			} catch (Exception ex) {
 
 				LOGGER.severe("Failed to connect to server ");
@@ -255,12 +290,34 @@ public class WhiteboardClient extends JFrame implements Client {
 		this.btnCreateBoard = new JButton("Create Whiteboard");
 		this.btnCreateBoard.addActionListener(new CreateWhiteboardListener());
 
-		// create the list of boards
+		// create the list of boards, with the previews of the boards in
+		// view asked for as they scroll into it
+		this.thumbnails = new HashMap<Integer, ImageIcon>();
+		this.requestedThumbnails = new HashSet<Integer>();
+		this.noThumbnail = new ImageIcon(new BufferedImage(
+				MessageHandler.THUMBNAIL_WIDTH, MessageHandler.THUMBNAIL_HEIGHT,
+				BufferedImage.TYPE_INT_ARGB));
 		this.lstMdlBoards = new DefaultListModel<String>();
 		this.lstBoards = new JList<String>(this.lstMdlBoards);
 		this.lstBoards.setSelectedIndex(0);
 		this.lstBoards.addMouseListener(new JoinBoardListener());
+		this.lstBoards.setCellRenderer(new BoardCellRenderer());
+		this.lstBoards.setFixedCellHeight(MessageHandler.THUMBNAIL_HEIGHT + 4);
 		this.scrollLstBoards = new JScrollPane(this.lstBoards);
+		this.scrollLstBoards.getViewport().addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				requestVisibleThumbnails();
+			}
+		});
+		// the boards may have changed while we were in one
+		this.addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentShown(ComponentEvent e) {
+				requestedThumbnails.clear();
+				requestVisibleThumbnails();
+			}
+		});
 
 		// create the list of users
 		this.lstMdlUsers = new DefaultListModel<String>();
@@ -337,11 +394,78 @@ public class WhiteboardClient extends JFrame implements Client {
 	 * Makes a request to the server
 	 * @param req the request to make
 	 */
-	public void makeRequest(String req) {
-		out.println(req);
+	public synchronized void makeRequest(String req) {
+		if (this.binary)
+			write(BinaryProtocol.encodeText(req));
+		else
+			write((req + "\n").getBytes(OutgoingServerMessage.CHARSET));
 		LOGGER.fine("REQ: " + req);
 	}
 
+	/**
+	 * Asks the server to draw a line, as a draw frame once the server
+	 * accepted BinaryProtocol
+	 * @param l the line to draw
+	 */
+	public synchronized void makeDrawRequest(Line l) {
+		if (this.binary)
+			write(BinaryProtocol.encodeDraw(l));
+		else
+			makeRequest(ClientSideMessageMaker.makeRequestStringDraw(l));
+	}
+
+	/**
+	 * Writes and flushes a request; a failed write is only logged, the
+	 * background thread notices the connection is gone
+	 * @param bytes the encoded request
+	 */
+	private void write(byte[] bytes) {
+		try {
+			out.write(bytes);
+			out.flush();
+		} catch (IOException e) {
+			LOGGER.severe("Failed to send request");
+		}
+	}
+
+	/**
+	 * When the server tells us the features it has, ask for the binary
+	 * protocol and send frames from now on, and ask for polylines
+	 * @param features the names of the features
+	 */
+	public synchronized void onReceiveFeatures(Set<String> features) {
+		if (features.contains(BinaryProtocol.FEATURE) && !this.binary) {
+			makeRequest(ClientSideMessageMaker
+					.makeRequestStringUseFeature(BinaryProtocol.FEATURE));
+			this.binary = true;
+		}
+		if (features.contains(MessageHandler.FEATURE_POLYLINE)) {
+			makeRequest(ClientSideMessageMaker
+					.makeRequestStringUseFeature(MessageHandler.FEATURE_POLYLINE));
+		}
+	}
+
+	/**
+	 * When the server switched a feature on; for the binary protocol, every
+	 * message after this one is a frame. Called on the background thread
+	 * reading the input.
+	 * @param feature the name of the feature
+	 */
+	public void onReceiveFeatureEnabled(String feature) {
+		if (feature.equals(BinaryProtocol.FEATURE))
+			this.in.setBinary();
+		else if (feature.equals(MessageHandler.FEATURE_POLYLINE))
+			this.polylines = true;
+	}
+
+	/**
+	 * @return true if strokes may be sent as req_polyline, which a server
+	 *         without the polyline feature does not know
+	 */
+	public boolean usesPolylines() {
+		return this.polylines;
+	}
+
 	/**
 	 * When we receive a list of names for the lobby, 
 	 * populate the users list
@@ -392,6 +516,46 @@ public class WhiteboardClient extends JFrame implements Client {
 		labelUserName.setText("User: User" + String.valueOf(id));
 	}
 
+	/**
+	 * Asks for the previews of the boards in view that were not asked for
+	 * since the lobby was last shown. Must be called on the event dispatch
+	 * thread.
+	 */
+	private void requestVisibleThumbnails() {
+		if (boardListItems == null)
+			return;
+		int first = lstBoards.getFirstVisibleIndex();
+		int last = Math.min(lstBoards.getLastVisibleIndex(),
+				boardListItems.size() - 1);
+		if (first < 0)
+			return;
+		for (int i = first; i <= last; i++) {
+			int boardID = boardListItems.get(i).getBoardID();
+			if (requestedThumbnails.add(boardID))
+				makeRequest(ClientSideMessageMaker
+						.makeRequestStringGetBoardThumbnail(boardID));
+		}
+	}
+
+	/**
+	 * Shows each board's name next to its preview
+	 */
+	private class BoardCellRenderer extends DefaultListCellRenderer {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Component getListCellRendererComponent(JList<?> list,
+				Object value, int index, boolean isSelected, boolean cellHasFocus) {
+			super.getListCellRendererComponent(list, value, index, isSelected,
+					cellHasFocus);
+			ImageIcon thumbnail = null;
+			if (boardListItems != null && index < boardListItems.size())
+				thumbnail = thumbnails.get(boardListItems.get(index).getBoardID());
+			setIcon(thumbnail != null ? thumbnail : noThumbnail);
+			return this;
+		}
+	}
+
 	private class SetUserNameListener implements ActionListener {
 		@Override
 		public void actionPerformed(ActionEvent e) {
@@ -431,7 +595,7 @@ public class WhiteboardClient extends JFrame implements Client {
 			canvas = new Canvas(self, user.getName(), -1, newBoard);
 			canvas.setVisible(true);
 			setVisible(false);
-			out.println(ClientSideMessageMaker
+			makeRequest(ClientSideMessageMaker
 					.makeRequestStringCreateBoard(newBoard));
 		}
 	}
@@ -448,8 +612,8 @@ public class WhiteboardClient extends JFrame implements Client {
 								boardListItem.getBoardName());
 						canvas.setVisible(true);
 						setVisible(false);
-						out.println(MessageHandler
-								.makeRequestStringJoinBoardID(boardListItem
+						makeRequest(MessageHandler
+								.makeRequestStringJoinBoardIDTiles(boardListItem
 										.getBoardID()));
 					}
 				}
@@ -470,12 +634,61 @@ public class WhiteboardClient extends JFrame implements Client {
 		}
 	}
 
+	@Override
+	public void onReceiveBoardLinesBegin(int numberOfLines, Set<String> userNames) {
+		if (canvas != null) {
+			canvas.onReceiveBoardLinesBegin(numberOfLines, userNames);
+		}
+	}
+
+	@Override
+	public void onReceiveBoardRaster(BufferedImage image, int numberOfLines,
+			Set<String> userNames) {
+		if (canvas != null) {
+			canvas.onReceiveBoardRaster(image, numberOfLines, userNames);
+		}
+	}
+
+	@Override
+	public void onReceivePolyline(List<Line> segments) {
+		if (canvas != null)
+			canvas.onReceivePolyline(segments);
+	}
+
+	@Override
+	public void onReceiveBoardLinesChunk(List<Line> ls) {
+		if (canvas != null) {
+			canvas.onReceiveBoardLinesChunk(ls);
+		}
+	}
+
+	@Override
+	public void onReceiveBoardLinesEnd() {
+		if (canvas != null) {
+			canvas.onReceiveBoardLinesEnd();
+		}
+	}
+
 	@Override
 	public void onReceiveClear() {
 		if (canvas != null)
 			canvas.onReceiveClear();
 	}
 
+	@Override
+	public void onReceiveTileChanges(long version, boolean allChanged,
+			List<Point> tiles) {
+		if (canvas != null)
+			canvas.onReceiveTileChanges(version, allChanged, tiles);
+	}
+
+	@Override
+	public void onReceiveTile(int tileX, int tileY, long version,
+			List<Line> lines) {
+		if (canvas != null)
+			canvas.onReceiveTile(tileX, tileY, version, lines);
+	}
+
 	@Override
 	public void onReceiveUsers(int boardID, List<String> users) {
 		if (canvas != null)
@@ -520,6 +733,20 @@ public class WhiteboardClient extends JFrame implements Client {
 					lstMdlBoards.addElement(boardListItem.getBoardName());
 					;
 				}
+				requestVisibleThumbnails();
+			}
+		});
+	}
+
+	@Override
+	public void onReceiveBoardThumbnail(int boardID, BufferedImage image) {
+		final int finalBoardID = boardID;
+		final ImageIcon thumbnail = new ImageIcon(image);
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				thumbnails.put(finalBoardID, thumbnail);
+				lstBoards.repaint();
 			}
 		});
 	}
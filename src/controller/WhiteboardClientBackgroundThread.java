@@ -1,10 +1,12 @@
 package controller;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.logging.Logger;
 
+import protocol.BinaryProtocol;
 import protocol.ClientSideResponseHandler;
+import protocol.MessageInputStream;
+import adts.Line;
 
 /**
  * Use this class to send tasks to Swing. It must be used whenever mutating the
@@ -18,7 +20,7 @@ public class WhiteboardClientBackgroundThread extends Thread {
 			.getLogger(WhiteboardClientBackgroundThread.class.getName());
 
 	private final WhiteboardClient gui;
-	private final BufferedReader in;
+	private final MessageInputStream in;
 
 	/**
 	 * Set the parameters using this Constructor.
@@ -28,7 +30,7 @@ public class WhiteboardClientBackgroundThread extends Thread {
 	 * @param in
 	 *            server response
 	 */
-	public WhiteboardClientBackgroundThread(WhiteboardClient gui, BufferedReader in) {
+	public WhiteboardClientBackgroundThread(WhiteboardClient gui, MessageInputStream in) {
 		this.gui = gui;
 		this.in = in;
 	}
@@ -38,12 +40,21 @@ public class WhiteboardClientBackgroundThread extends Thread {
 	 * This client background thread listens for responses from the server and handles them.
 	 */
 	public void run() {
-		String serverResponse;
-		try {
-			while ((serverResponse = in.readLine()) != null) {
+		BinaryProtocol.Receiver receiver = new BinaryProtocol.Receiver() {
+			@Override
+			public void onText(CharSequence message) {
+				String serverResponse = message.toString();
 				LOGGER.config(serverResponse);
-				ClientSideResponseHandler.handleResponse(serverResponse,
-						this.gui);
+				ClientSideResponseHandler.handleResponse(serverResponse, gui);
+			}
+
+			@Override
+			public void onDraw(Line l) {
+				gui.onReceiveDraw(l);
+			}
+		};
+		try {
+			while (in.readMessage(receiver)) {
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
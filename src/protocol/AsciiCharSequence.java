@@ -0,0 +1,86 @@
+package protocol;
+
+import java.nio.charset.Charset;
+
+/**
+ * A reusable view of ASCII bytes as characters, so that a line can be
+ * handled where it was read instead of being decoded into a new String first.
+ * Lines with other characters are still decoded into Strings by the readers,
+ * since their bytes are not one character each.
+ *
+ * Thread-safety:
+ *
+ * Not threadsafe; a view is reset and read by the thread that read the bytes,
+ * and is only valid until those bytes change. Whoever needs to keep the text
+ * calls toString.
+ */
+public class AsciiCharSequence implements CharSequence {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private byte[] bytes;
+    private int offset;
+    private int length;
+
+    /**
+     * Create an empty view
+     */
+    public AsciiCharSequence() {
+        this.bytes = new byte[0];
+        this.offset = 0;
+        this.length = 0;
+    }
+
+    /**
+     * Makes this a view of the given bytes, which must all be ASCII
+     *
+     * @param bytes
+     *            the bytes to view
+     * @param offset
+     *            where the text starts
+     * @param length
+     *            the number of bytes of text
+     * @return this view
+     */
+    public AsciiCharSequence reset(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * @return true if all the given bytes are ASCII characters
+     */
+    public static boolean isAscii(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return this.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= this.length)
+            throw new IndexOutOfBoundsException("index " + index);
+        return (char) this.bytes[this.offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > this.length || start > end)
+            throw new IndexOutOfBoundsException("range " + start + " " + end);
+        return new String(this.bytes, this.offset + start, end - start, ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.bytes, this.offset, this.length, ASCII);
+    }
+}
@@ -0,0 +1,97 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * Base64 (RFC 4648, with padding and no line breaks), to send bytes such as
+ * the PNG of a board as one token of a text message. The platform's
+ * java.util.Base64 is newer than the Java this is built for.
+ *
+ * Thread-safety:
+ *
+ * Only static methods without shared state, so threadsafe.
+ */
+class Base64Codec {
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    /**
+     * The value of each character of the alphabet, -1 for the others
+     */
+    private static final int[] VALUES = new int[128];
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    /**
+     * @param bytes the bytes to encode
+     * @return the bytes in base64
+     */
+    static String encode(byte[] bytes) {
+        char[] text = new char[(bytes.length + 2) / 3 * 4];
+        int t = 0;
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+            int group = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8
+                    | (bytes[i + 2] & 0xff);
+            text[t++] = ALPHABET[group >>> 18];
+            text[t++] = ALPHABET[(group >>> 12) & 0x3f];
+            text[t++] = ALPHABET[(group >>> 6) & 0x3f];
+            text[t++] = ALPHABET[group & 0x3f];
+        }
+        int left = bytes.length - i;
+        if (left > 0) {
+            int group = (bytes[i] & 0xff) << 16
+                    | (left == 2 ? (bytes[i + 1] & 0xff) << 8 : 0);
+            text[t++] = ALPHABET[group >>> 18];
+            text[t++] = ALPHABET[(group >>> 12) & 0x3f];
+            text[t++] = left == 2 ? ALPHABET[(group >>> 6) & 0x3f] : '=';
+            text[t++] = '=';
+        }
+        return new String(text);
+    }
+
+    /**
+     * @param text bytes in base64
+     * @return the bytes
+     * @throws IllegalArgumentException if the text is not base64
+     */
+    static byte[] decode(String text) {
+        int length = text.length();
+        if (length % 4 != 0)
+            throw new IllegalArgumentException("base64 of length " + length);
+        int padding = 0;
+        if (length > 0 && text.charAt(length - 1) == '=')
+            padding = text.charAt(length - 2) == '=' ? 2 : 1;
+        byte[] bytes = new byte[length / 4 * 3 - padding];
+        int b = 0;
+        for (int i = 0; i < length; i += 4) {
+            int group = 0;
+            for (int j = 0; j < 4; j++) {
+                char c = text.charAt(i + j);
+                int value;
+                if (c == '=' && i + 4 == length && j >= 4 - padding) {
+                    value = 0;
+                } else {
+                    value = c < 128 ? VALUES[c] : -1;
+                    if (value < 0)
+                        throw new IllegalArgumentException("not base64: " + c);
+                }
+                group = group << 6 | value;
+            }
+            bytes[b++] = (byte) (group >>> 16);
+            if (b < bytes.length)
+                bytes[b++] = (byte) (group >>> 8);
+            if (b < bytes.length)
+                bytes[b++] = (byte) group;
+        }
+        return bytes;
+    }
+}
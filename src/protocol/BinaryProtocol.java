@@ -0,0 +1,196 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import adts.Line;
+
+/**
+ * The binary framing that a client and the server can switch to instead of
+ * newline-delimited text.
+ * 
+ * The server advertises it right after welcome with "features binary". A
+ * client that wants it sends "use_feature binary" as its last text line and
+ * writes frames from then on; the server answers "feature_enabled binary" as
+ * its last text line and writes frames from then on. Clients that never ask
+ * keep the text protocol.
+ * 
+ * A frame is [length] [opcode] [body], where length is a varint counting the
+ * opcode and the body:
+ * 
+ * OP_TEXT: the body is a text protocol message, without its newline, so every
+ * message keeps working unchanged.
+ * 
+ * OP_DRAW: a req_draw (client to server) or a draw (server to client), with
+ * the body x1, y1, x2 - x1, y2 - y1 as zigzag varints, then the stroke
+ * thickness as a float and the color as an ARGB int, both 4 bytes big-endian.
+ * A typical stroke takes 16 bytes instead of about 45 as text, and is read
+ * without splitting or parsing strings.
+ */
+public class BinaryProtocol {
+
+    /**
+     * The name of this feature in features, use_feature and feature_enabled
+     */
+    public static final String FEATURE = "binary";
+
+    public static final byte OP_TEXT = 0;
+    public static final byte OP_DRAW = 1;
+
+    /**
+     * The longest frame accepted; the largest text messages (board_lines for
+     * a big board) should be asked for in chunks instead
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 26;
+
+    /**
+     * Told about each frame that is decoded
+     */
+    public interface Receiver {
+        /**
+         * @param message a text protocol message, which may be a view of
+         *                the bytes read and is only valid during this call
+         */
+        public void onText(CharSequence message);
+
+        /**
+         * @param line the line of a draw frame
+         */
+        public void onDraw(Line line);
+    }
+
+    /**
+     * @param message a text protocol message, without its newline
+     * @return the frame carrying the message
+     */
+    public static byte[] encodeText(String message) {
+        byte[] text = message.getBytes(OutgoingServerMessage.CHARSET);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(text.length + 6);
+        writeVarint(frame, text.length + 1);
+        frame.write(OP_TEXT);
+        frame.write(text, 0, text.length);
+        return frame.toByteArray();
+    }
+
+    /**
+     * @param line the line to draw
+     * @return the draw frame for the line
+     */
+    public static byte[] encodeDraw(Line line) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(24);
+        body.write(OP_DRAW);
+        writeVarint(body, zigzag(line.getX1()));
+        writeVarint(body, zigzag(line.getY1()));
+        writeVarint(body, zigzag(line.getX2() - line.getX1()));
+        writeVarint(body, zigzag(line.getY2() - line.getY1()));
+        writeInt(body, Float.floatToIntBits(line.getStrokeThickness()));
+        writeInt(body, ((line.getA() & 0xff) << 24) | ((line.getR() & 0xff) << 16)
+                | ((line.getG() & 0xff) << 8) | (line.getB() & 0xff));
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 1);
+        writeVarint(frame, body.size());
+        byte[] bodyBytes = body.toByteArray();
+        frame.write(bodyBytes, 0, bodyBytes.length);
+        return frame.toByteArray();
+    }
+
+    /**
+     * Decodes the frame at the start of the given bytes, if all of it is
+     * there
+     * 
+     * @param bytes
+     *            the bytes received
+     * @param offset
+     *            where the frame starts
+     * @param length
+     *            the number of bytes received from offset on
+     * @param receiver
+     *            told about the frame
+     * @return the number of bytes the frame took, or 0 if it has not all
+     *         arrived yet
+     * @throws IllegalArgumentException
+     *             if the frame is malformed or too long
+     */
+    public static int decode(byte[] bytes, int offset, int length, Receiver receiver) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        long varint = readVarint(buffer);
+        if (varint < 0)
+            return 0;
+        if (varint == 0 || varint > MAX_FRAME_LENGTH)
+            throw new IllegalArgumentException("bad frame length " + varint);
+        int frameLength = (int) varint;
+        if (buffer.remaining() < frameLength)
+            return 0;
+        int bodyStart = buffer.position();
+        int frameEnd = bodyStart + frameLength;
+        byte opcode = buffer.get();
+        if (opcode == OP_TEXT) {
+            receiver.onText(new String(bytes, bodyStart + 1, frameLength - 1,
+                    OutgoingServerMessage.CHARSET));
+        } else if (opcode == OP_DRAW) {
+            buffer.limit(frameEnd);
+            int x1 = readZigzag(buffer);
+            int y1 = readZigzag(buffer);
+            int x2 = x1 + readZigzag(buffer);
+            int y2 = y1 + readZigzag(buffer);
+            if (buffer.remaining() != 8)
+                throw new IllegalArgumentException("bad draw frame");
+            float strokeThickness = Float.intBitsToFloat(buffer.getInt());
+            int argb = buffer.getInt();
+            receiver.onDraw(new Line(x1, y1, x2, y2, strokeThickness,
+                    (argb >>> 16) & 0xff, (argb >>> 8) & 0xff, argb & 0xff, argb >>> 24));
+        } else {
+            throw new IllegalArgumentException("unknown opcode " + opcode);
+        }
+        return frameEnd - offset;
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /**
+     * @return the zigzag varint at the buffer's position, which must all be
+     *         there
+     */
+    private static int readZigzag(ByteBuffer buffer) {
+        long varint = readVarint(buffer);
+        if (varint < 0)
+            throw new IllegalArgumentException("bad draw frame");
+        int n = (int) varint;
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * @return the varint at the buffer's position as an unsigned 32 bit
+     *         value, or -1 if it has not all arrived yet
+     * @throws IllegalArgumentException
+     *             if it is longer than an int
+     */
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.hasRemaining())
+                return -1;
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,94 @@
+package protocol;
+
+import java.util.Set;
+
+import adts.RasterSnapshot;
+import adts.StrokeSnapshot;
+
+/**
+ * The lines of a board sent in pieces, for clients that joined with
+ * join_board_id [boardID] chunked:
+ * 
+ * board_lines_begin [numberOfUserNames] [numberOfLines] [userName1] ... [userName_N]
+ * board_lines_chunk [numberOfLinesInChunk] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a] ...
+ * ...
+ * board_lines_end
+ * 
+ * or for clients that joined with join_board_id [boardID] raster, the lines
+ * not in the image of the board in place of all of them:
+ * 
+ * board_raster [numberOfUserNames] [numberOfLinesAfterImage] [userName1] ... [userName_N] [base64PNG]
+ * board_lines_chunk ... (zero or more)
+ * board_lines_end
+ * 
+ * Each chunk holds at most MessageHandler.BOARD_LINES_CHUNK_SIZE lines and is
+ * only formatted when the previous piece is being written, so the memory a
+ * join takes on either side depends on the chunk size and not on the size of
+ * the board.
+ */
+class BoardLinesMessage extends OutgoingServerMessage {
+
+    /**
+     * The lines being sent
+     */
+    private final StrokeSnapshot lines;
+
+    /**
+     * The image the lines are sent after, or null to send all of them
+     */
+    private final RasterSnapshot raster;
+
+    /**
+     * The index of the first line of the next chunk, among those sent
+     */
+    private final int nextLine;
+
+    /**
+     * Make the first piece, board_lines_begin
+     * @param lines the lines of the board
+     * @param userNames the names of the users in the board
+     */
+    BoardLinesMessage(StrokeSnapshot lines, Set<String> userNames) {
+        this(MessageHandler.makeResponseBoardLinesBegin(lines.size(), userNames), lines, null, 0);
+    }
+
+    /**
+     * Make the first piece, board_raster
+     * @param raster the image and lines of the board
+     * @param userNames the names of the users in the board
+     */
+    BoardLinesMessage(RasterSnapshot raster, Set<String> userNames) {
+        this(MessageHandler.makeResponseBoardRaster(raster, userNames),
+                raster.getLines(), raster, 0);
+    }
+
+    private BoardLinesMessage(String message, StrokeSnapshot lines,
+            RasterSnapshot raster, int nextLine) {
+        super(message);
+        this.lines = lines;
+        this.raster = raster;
+        this.nextLine = nextLine;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return true;
+    }
+
+    /**
+     * @return the next chunk, or board_lines_end once all the lines were sent
+     */
+    @Override
+    public OutgoingServerMessage next() {
+        int count = this.raster == null ? this.lines.size()
+                : this.raster.getSegmentCount();
+        if (this.nextLine == count)
+            return new OutgoingServerMessage(MessageHandler.RESP_BOARD_LINES_END);
+        int end = Math.min(count,
+                this.nextLine + MessageHandler.BOARD_LINES_CHUNK_SIZE);
+        String chunk = this.raster == null
+                ? MessageHandler.makeResponseBoardLinesChunk(this.lines, this.nextLine, end)
+                : MessageHandler.makeResponseBoardRasterChunk(this.raster, this.nextLine, end);
+        return new BoardLinesMessage(chunk, this.lines, this.raster, end);
+    }
+}
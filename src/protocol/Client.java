@@ -1,5 +1,7 @@
 package protocol;
 
+import java.awt.Point;
+import java.awt.image.BufferedImage;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -13,10 +15,18 @@ import adts.Line;
 public interface Client {
     public void onReceiveUsernameChanged(String rcvdName);
     public void onReceiveBoardIDs(Map<Integer, String> boardNameForID);
+    public void onReceiveBoardThumbnail(int boardID, BufferedImage image);
     public void onReceiveWelcome(int id);
     public void onReceiveDraw(Line l);
+    public void onReceivePolyline(List<Line> segments);
     public void onReceiveBoardLines(List<Line> ls, Set<String> userNames);
+    public void onReceiveBoardLinesBegin(int numberOfLines, Set<String> userNames);
+    public void onReceiveBoardLinesChunk(List<Line> ls);
+    public void onReceiveBoardRaster(BufferedImage image, int numberOfLines, Set<String> userNames);
+    public void onReceiveBoardLinesEnd();
     public void onReceiveClear();
     public void onReceiveUsers(int boardID, List<String> users);
     public void onReceiveCurrentBoardID(int boardID);
+    public void onReceiveTileChanges(long version, boolean allChanged, List<Point> tiles);
+    public void onReceiveTile(int tileX, int tileY, long version, List<Line> lines);
 }
@@ -18,7 +18,15 @@ public class ClientSideMessageMaker {
     public static final String REQ_GET_USERS_IN_MY_BOARD = "get_users_in_my_board";
     public static final String REQ_LEAVE_BOARD = "leave_board";
     public static final String REQ_DRAW = "req_draw";
+    public static final String REQ_POLYLINE = "req_polyline";
     public static final String REQ_CLEAR = "req_clear";
+    public static final String REQ_USE_FEATURE = "use_feature";
+    public static final String REQ_GET_TILE_CHANGES = "get_tile_changes";
+    public static final String REQ_GET_TILE = "get_tile";
+    public static final String REQ_GET_BOARD_THUMBNAIL = "get_board_thumbnail";
+    public static final String JOIN_CHUNKED = "chunked";
+    public static final String JOIN_RASTER = "raster";
+    public static final String JOIN_TILES = "tiles";
 
     public static final String RESP_BOARD_IDS = "board_ids";
     public static final String RESP_USERS_FOR_BOARD = "users_for_board_id";
@@ -27,6 +35,7 @@ public class ClientSideMessageMaker {
     public static final String RESP_DONE = "done";
     public static final String RESP_LOGGED_OUT = "logged_out";
     public static final String RESP_DRAW = "draw";
+    public static final String RESP_POLYLINE = "polyline";
     public static final String RESP_BOARD_LINES = "board_lines";
 
     /**
@@ -82,6 +91,50 @@ public class ClientSideMessageMaker {
                 boardID);
     }
 
+    /**
+     * Returns the String corresponding to a request to join the board 
+     * with ID specified by the argument, getting its lines back in chunks
+     * (board_lines_begin, board_lines_chunk..., board_lines_end).
+     * @param the ID of the board to join
+     */
+    public static String makeRequestStringJoinBoardIDChunked(int boardID) {
+        return String.format("%s %d %s", ClientSideMessageMaker.REQ_JOIN_BOARD_ID,
+                boardID, ClientSideMessageMaker.JOIN_CHUNKED);
+    }
+
+    /**
+     * Returns the String corresponding to a request to join the board 
+     * with ID specified by the argument, getting it back as an image and
+     * the lines drawn after it (board_raster, board_lines_chunk...,
+     * board_lines_end).
+     * @param the ID of the board to join
+     */
+    public static String makeRequestStringJoinBoardIDRaster(int boardID) {
+        return String.format("%s %d %s", ClientSideMessageMaker.REQ_JOIN_BOARD_ID,
+                boardID, ClientSideMessageMaker.JOIN_RASTER);
+    }
+
+    /**
+     * Returns the String corresponding to a request to join the board 
+     * with ID specified by the argument, getting back only its users
+     * (board_lines with no lines), to ask for its lines by tile (get_tile).
+     * @param the ID of the board to join
+     */
+    public static String makeRequestStringJoinBoardIDTiles(int boardID) {
+        return String.format("%s %d %s", ClientSideMessageMaker.REQ_JOIN_BOARD_ID,
+                boardID, ClientSideMessageMaker.JOIN_TILES);
+    }
+
+    /**
+     * Returns the String corresponding to a request for a small preview of
+     * the board with ID specified by the argument, to show in the lobby.
+     * @param boardID the ID of the board
+     */
+    public static String makeRequestStringGetBoardThumbnail(int boardID) {
+        return String.format("%s %d",
+                ClientSideMessageMaker.REQ_GET_BOARD_THUMBNAIL, boardID);
+    }
+
     /**
      * Returns the String corresponding to a request to log out.
      */
@@ -112,6 +165,28 @@ public class ClientSideMessageMaker {
                 line.toString());
     }
     
+    /**
+     * Returns the String corresponding to a request to draw a polyline, one
+     * segment between each two consecutive points, on the current board.
+     * @param strokeThickness the stroke thickness of every segment
+     * @param r the red value
+     * @param g the green value
+     * @param b the blue value
+     * @param a the alpha value
+     * @param points the points, x then y
+     * @param pointCount the number of points, at least 2
+     */
+    public static String makeRequestStringPolyline(float strokeThickness,
+            int r, int g, int b, int a, int[] points, int pointCount) {
+        StringBuilder request = new StringBuilder(String.format(
+                "%s %f %d %d %d %d %d", ClientSideMessageMaker.REQ_POLYLINE,
+                strokeThickness, r, g, b, a, pointCount));
+        for (int i = 0; i < 2 * pointCount; i++) {
+            request.append(' ').append(points[i]);
+        }
+        return request.toString();
+    }
+
     /**
      * Returns the String corresponding to a request to clear the current board.
      */
@@ -119,4 +194,35 @@ public class ClientSideMessageMaker {
         return String.format("%s", ClientSideMessageMaker.REQ_CLEAR);
     }
 
+    /**
+     * Returns the String corresponding to a request to use a feature the
+     * server advertised, such as BinaryProtocol.FEATURE.
+     * @param feature the name of the feature
+     */
+    public static String makeRequestStringUseFeature(String feature) {
+        return String.format("%s %s", ClientSideMessageMaker.REQ_USE_FEATURE,
+                feature);
+    }
+
+    /**
+     * Returns the String corresponding to a request for the tiles of the
+     * current board that changed since a version.
+     * @param version the version of the board the tiles held are from, 0 for none
+     */
+    public static String makeRequestStringGetTileChanges(long version) {
+        return String.format("%s %d", ClientSideMessageMaker.REQ_GET_TILE_CHANGES,
+                version);
+    }
+
+    /**
+     * Returns the String corresponding to a request for the lines touching
+     * one tile of the current board.
+     * @param tileX the column of the tile
+     * @param tileY the row of the tile
+     */
+    public static String makeRequestStringGetTile(int tileX, int tileY) {
+        return String.format("%s %d %d", ClientSideMessageMaker.REQ_GET_TILE,
+                tileX, tileY);
+    }
+
 }
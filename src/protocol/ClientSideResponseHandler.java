@@ -1,13 +1,21 @@
 package protocol;
 
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.imageio.ImageIO;
+
 import controller.WhiteboardClient;
 import adts.Line;
 import adts.LobbyModel;
@@ -27,20 +35,40 @@ public class ClientSideResponseHandler {
 		String[] tokens = input.replace(command, "").trim().split(" ");
 		if (command.equals(MessageHandler.RESP_BOARD_IDS)) {
 			handleBoardIDs(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_BOARD_THUMBNAIL)) {
+			handleBoardThumbnail(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_USERNAME_CHANGED)) {
 			handleUsernameChanged(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_WELCOME)) {
 			handleWelcome(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_DRAW)) {
 			handleDraw(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_POLYLINE)) {
+			handlePolyline(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_BOARD_LINES)) {
 			handleBoardLines(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_BOARD_LINES_BEGIN)) {
+			handleBoardLinesBegin(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_BOARD_LINES_CHUNK)) {
+			handleBoardLinesChunk(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_BOARD_RASTER)) {
+			handleBoardRaster(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_BOARD_LINES_END)) {
+			userGUI.onReceiveBoardLinesEnd();
 		} else if (command.equals(MessageHandler.RESP_CLEAR)) {
 			handleClear(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_USERS_FOR_BOARD)) {
 			handleUsersForBoard(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_CURRENT_BOARD_ID)) {
 			handleCurrentBoardID(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_TILE_CHANGES)) {
+			handleTileChanges(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_TILE)) {
+			handleTile(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_FEATURES)) {
+			userGUI.onReceiveFeatures(new HashSet<String>(Arrays.asList(tokens)));
+		} else if (command.equals(MessageHandler.RESP_FEATURE_ENABLED)) {
+			userGUI.onReceiveFeatureEnabled(tokens[0]);
 		}
 	}
 
@@ -76,6 +104,18 @@ public class ClientSideResponseHandler {
 		userGUI.onReceiveBoardIDs(boardNameForID);
 	}
 
+	private static void handleBoardThumbnail(String[] tokens, WhiteboardClient userGUI) {
+		int boardID = Integer.parseInt(tokens[0]);
+		try {
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+					Base64Codec.decode(tokens[1])));
+			if (image != null)
+				userGUI.onReceiveBoardThumbnail(boardID, image);
+		} catch (IOException | IllegalArgumentException e) {
+			LOGGER.log(Level.WARNING, "cannot read the thumbnail of board " + boardID, e);
+		}
+	}
+
 	private static void handleUsernameChanged(String[] tokens, WhiteboardClient userGUI) {
 		userGUI.onReceiveUsernameChanged(tokens[0]);
 	}
@@ -98,14 +138,96 @@ public class ClientSideResponseHandler {
 		userGUI.onReceiveDraw(l);
 	}
 
+	private static void handlePolyline(String[] tokens, WhiteboardClient userGUI) {
+		float strokeThickness = Float.parseFloat(tokens[0]);
+		int r = Integer.parseInt(tokens[1]);
+		int g = Integer.parseInt(tokens[2]);
+		int b = Integer.parseInt(tokens[3]);
+		int a = Integer.parseInt(tokens[4]);
+		int pointCount = Integer.parseInt(tokens[5]);
+		List<Line> segments = new ArrayList<Line>(pointCount - 1);
+		for (int i = 1; i < pointCount; i++) {
+			int p = 6 + 2 * (i - 1);
+			segments.add(new Line(Integer.parseInt(tokens[p]),
+					Integer.parseInt(tokens[p + 1]),
+					Integer.parseInt(tokens[p + 2]),
+					Integer.parseInt(tokens[p + 3]), strokeThickness, r, g, b,
+					a));
+		}
+		userGUI.onReceivePolyline(segments);
+	}
+
 	public static void handleBoardLines(String[] tokens, WhiteboardClient userGUI) {
-		List<Line> lines = new ArrayList<Line>();
 		Set<String> userNames = new HashSet<String>();
 		int numUsers = Integer.parseInt(tokens[0]);
 		int i = 0;
 		for (i = 2; i < numUsers + 2; i++) {
 			userNames.add(tokens[i]);
 		}
+		userGUI.onReceiveBoardLines(parseLines(tokens, i), userNames);
+	}
+
+	private static void handleBoardLinesBegin(String[] tokens, WhiteboardClient userGUI) {
+		Set<String> userNames = new HashSet<String>();
+		int numUsers = Integer.parseInt(tokens[0]);
+		int numLines = Integer.parseInt(tokens[1]);
+		for (int i = 2; i < numUsers + 2; i++) {
+			userNames.add(tokens[i]);
+		}
+		userGUI.onReceiveBoardLinesBegin(numLines, userNames);
+	}
+
+	private static void handleBoardRaster(String[] tokens, WhiteboardClient userGUI) {
+		Set<String> userNames = new HashSet<String>();
+		int numUsers = Integer.parseInt(tokens[0]);
+		int numLines = Integer.parseInt(tokens[1]);
+		for (int i = 2; i < numUsers + 2; i++) {
+			userNames.add(tokens[i]);
+		}
+		BufferedImage image;
+		try {
+			image = ImageIO.read(new ByteArrayInputStream(Base64Codec
+					.decode(tokens[numUsers + 2])));
+		} catch (IOException | IllegalArgumentException e) {
+			// the lines after the image are still drawn
+			LOGGER.log(Level.WARNING, "cannot read the board's image", e);
+			image = null;
+		}
+		userGUI.onReceiveBoardRaster(image, numLines, userNames);
+	}
+
+	private static void handleBoardLinesChunk(String[] tokens, WhiteboardClient userGUI) {
+		userGUI.onReceiveBoardLinesChunk(parseLines(tokens, 1));
+	}
+
+	private static void handleTileChanges(String[] tokens, WhiteboardClient userGUI) {
+		long version = Long.parseLong(tokens[0]);
+		boolean allChanged = Boolean.parseBoolean(tokens[1]);
+		int numTiles = Integer.parseInt(tokens[2]);
+		List<Point> tiles = new ArrayList<Point>(numTiles);
+		for (int i = 0; i < numTiles; i++) {
+			tiles.add(new Point(Integer.parseInt(tokens[3 + 2 * i]),
+					Integer.parseInt(tokens[4 + 2 * i])));
+		}
+		userGUI.onReceiveTileChanges(version, allChanged, tiles);
+	}
+
+	private static void handleTile(String[] tokens, WhiteboardClient userGUI) {
+		int tileX = Integer.parseInt(tokens[0]);
+		int tileY = Integer.parseInt(tokens[1]);
+		long version = Long.parseLong(tokens[2]);
+		userGUI.onReceiveTile(tileX, tileY, version, parseLines(tokens, 4));
+	}
+
+	/**
+	 * @param tokens
+	 *            the tokens of a response
+	 * @param i
+	 *            the index of the token where the lines start
+	 * @return the lines, nine tokens each, from the given index to the end
+	 */
+	private static List<Line> parseLines(String[] tokens, int i) {
+		List<Line> lines = new ArrayList<Line>();
 		int x1, y1, x2, y2, r, g, b, a;
 		float strokeThickness;
 		while (i < tokens.length) {
@@ -121,6 +243,6 @@ public class ClientSideResponseHandler {
 			i = i + 9;
 			lines.add(new Line(x1, y1, x2, y2, strokeThickness, r, g, b, a));
 		}
-		userGUI.onReceiveBoardLines(lines, userNames);
+		return lines;
 	}
 }
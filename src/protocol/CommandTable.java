@@ -0,0 +1,107 @@
+package protocol;
+
+/**
+ * Finds the opcode of a command, given as a range of characters, without
+ * making a String of it. The opcode of a command is its index in the list the
+ * table was made with.
+ *
+ * The commands are kept in an open-addressed hash table with at least twice
+ * as many slots as commands, so a lookup hashes the range once and compares
+ * it with one command, rarely two.
+ *
+ * Thread-safety:
+ *
+ * Immutable once made, so it may be shared by all threads.
+ */
+public class CommandTable {
+
+    /**
+     * The commands, by opcode
+     */
+    private final String[] commands;
+
+    /**
+     * The slots of the hash table, each holding an opcode plus one, or 0 if
+     * the slot is empty
+     */
+    private final int[] slots;
+
+    /**
+     * The number of slots minus one; the number of slots is a power of two
+     */
+    private final int mask;
+
+    /**
+     * Make a table of the given commands
+     *
+     * @param commands
+     *            the commands, with no duplicates, by opcode
+     */
+    public CommandTable(String... commands) {
+        this.commands = commands.clone();
+        int size = Integer.highestOneBit(Math.max(2, commands.length) * 4 - 1);
+        this.slots = new int[size];
+        this.mask = size - 1;
+        for (int opcode = 0; opcode < commands.length; opcode++) {
+            String command = commands[opcode];
+            if (lookup(command, 0, command.length()) != -1)
+                throw new IllegalArgumentException("duplicate command " + command);
+            int slot = slot(hash(command, 0, command.length()));
+            while (this.slots[slot] != 0) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.slots[slot] = opcode + 1;
+        }
+    }
+
+    /**
+     * @param input
+     *            the characters holding the command
+     * @param start
+     *            where the command starts
+     * @param end
+     *            where the command ends, exclusive
+     * @return the opcode of the command, or -1 if it is not in this table
+     */
+    public int lookup(CharSequence input, int start, int end) {
+        for (int slot = slot(hash(input, start, end)); this.slots[slot] != 0; slot = (slot + 1) & this.mask) {
+            int opcode = this.slots[slot] - 1;
+            if (regionEquals(this.commands[opcode], input, start, end))
+                return opcode;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of commands in this table
+     */
+    public int size() {
+        return this.commands.length;
+    }
+
+    private int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & this.mask;
+    }
+
+    /**
+     * @return the same hash as String.hashCode of the range
+     */
+    private static int hash(CharSequence input, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + input.charAt(i);
+        }
+        return hash;
+    }
+
+    private static boolean regionEquals(String command, CharSequence input,
+            int start, int end) {
+        if (command.length() != end - start)
+            return false;
+        for (int i = 0; i < command.length(); i++) {
+            if (command.charAt(i) != input.charAt(start + i))
+                return false;
+        }
+        return true;
+    }
+}
@@ -1,14 +1,20 @@
 package protocol;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 import adts.Line;
 import adts.LobbyModel;
+import adts.RasterSnapshot;
+import adts.StrokeSnapshot;
+import adts.ThumbnailCache;
+import adts.ThumbnailListener;
+import adts.TileChanges;
+import adts.TileSnapshot;
 import adts.Whiteboard;
-import server.UserThread;
+import server.UserConnection;
 
 /**
  * Is used by the server to handle messages and update the ADT accordingly.
@@ -24,7 +30,12 @@ public class MessageHandler {
     public static final String REQ_GET_USERS_IN_MY_BOARD = "get_users_in_my_board";
     public static final String REQ_LEAVE_BOARD = "leave_board";
     public static final String REQ_DRAW = "req_draw";
+    public static final String REQ_POLYLINE = "req_polyline";
     public static final String REQ_CLEAR = "req_clear";
+    public static final String REQ_USE_FEATURE = "use_feature";
+    public static final String REQ_GET_TILE_CHANGES = "get_tile_changes";
+    public static final String REQ_GET_TILE = "get_tile";
+    public static final String REQ_GET_BOARD_THUMBNAIL = "get_board_thumbnail";
 
     public static final String RESP_BOARD_IDS = "board_ids";
     public static final String RESP_USERNAME_CHANGED = "changed_username";
@@ -34,52 +45,211 @@ public class MessageHandler {
     public static final String RESP_DONE = "done";
     public static final String RESP_LOGGED_OUT = "logged_out";
     public static final String RESP_DRAW = "draw";
+    public static final String RESP_POLYLINE = "polyline";
     public static final String RESP_BOARD_LINES = "board_lines";
+    public static final String RESP_BOARD_LINES_BEGIN = "board_lines_begin";
+    public static final String RESP_BOARD_LINES_CHUNK = "board_lines_chunk";
+    public static final String RESP_BOARD_LINES_END = "board_lines_end";
+    public static final String RESP_BOARD_RASTER = "board_raster";
     public static final String RESP_CLEAR = "clear_board";
     public static final String RESP_WELCOME = "welcome";
+    public static final String RESP_FEATURES = "features";
+    public static final String RESP_FEATURE_ENABLED = "feature_enabled";
+    public static final String RESP_TILE_CHANGES = "tile_changes";
+    public static final String RESP_TILE = "tile";
+    public static final String RESP_BOARD_THUMBNAIL = "board_thumbnail";
+
+    /**
+     * Added to join_board_id to get the board's lines in chunks
+     */
+    public static final String JOIN_CHUNKED = "chunked";
+
+    /**
+     * Added to join_board_id to get the board as an image and the lines
+     * drawn after it, in chunks
+     */
+    public static final String JOIN_RASTER = "raster";
+
+    /**
+     * Added to join_board_id to get none of the board's lines, for a user
+     * who asks for them by tile
+     */
+    public static final String JOIN_TILES = "tiles";
+
+    /**
+     * The most lines sent in one board_lines_chunk
+     */
+    public static final int BOARD_LINES_CHUNK_SIZE = 1000;
+
+    /**
+     * The size in pixels of the thumbnail sent in a board_thumbnail
+     */
+    public static final int THUMBNAIL_WIDTH = ThumbnailCache.WIDTH;
+    public static final int THUMBNAIL_HEIGHT = ThumbnailCache.HEIGHT;
+
+    /**
+     * The feature a user asks for to get polylines as polyline messages;
+     * users who did not get them as draw messages
+     */
+    public static final String FEATURE_POLYLINE = "polyline";
+
+    /**
+     * The most points accepted in one req_polyline
+     */
+    public static final int MAX_POLYLINE_POINTS = 1024;
+
+    /**
+     * The thickest stroke accepted in a draw or a polyline, a tile across;
+     * the Canvas draws with at most 25
+     */
+    public static final float MAX_STROKE_THICKNESS = 256;
+
+    /**
+     * The farthest from 0 a coordinate accepted in a draw or a polyline is,
+     * on either axis; far past any screen, and small enough that a board's
+     * tiles and images never overflow an int
+     */
+    public static final int MAX_COORDINATE = 1 << 20;
+
+    /**
+     * Whether draw responses can be encoded digit by digit: true if the
+     * default locale formats numbers with ASCII digits and CHARSET encodes
+     * them as ASCII, as it does almost everywhere
+     */
+    private static final boolean ASCII_DRAWS = Arrays.equals(
+            String.format("%s %d %d", RESP_DRAW, -1234567890, 9876)
+                    .getBytes(OutgoingServerMessage.CHARSET),
+            new byte[] { 'd', 'r', 'a', 'w', ' ', '-', '1', '2', '3', '4',
+                    '5', '6', '7', '8', '9', '0', ' ', '9', '8', '7', '6' });
+
+    /**
+     * The stroke thicknesses of the latest draw responses as %f formats
+     * them, encoded, by a hash of their bits: strokes come in a few
+     * thicknesses, so a response rarely needs a Formatter. An entry is
+     * replaced by another thread at worst, never changed.
+     */
+    private static final FormattedThickness[] THICKNESSES = new FormattedThickness[64];
+
+    /**
+     * The opcodes of the requests, their indexes in REQUESTS
+     */
+    private static final int OP_GET_BOARD_IDS = 0;
+    private static final int OP_SET_USERNAME = 1;
+    private static final int OP_CREATE_BOARD = 2;
+    private static final int OP_GET_CURRENT_BOARD_ID = 3;
+    private static final int OP_GET_USERS_FOR_BOARD_ID = 4;
+    private static final int OP_JOIN_BOARD_ID = 5;
+    private static final int OP_LOGOUT = 6;
+    private static final int OP_GET_USERS_IN_MY_BOARD = 7;
+    private static final int OP_LEAVE_BOARD = 8;
+    private static final int OP_DRAW = 9;
+    private static final int OP_CLEAR = 10;
+    private static final int OP_USE_FEATURE = 11;
+    private static final int OP_POLYLINE = 12;
+    private static final int OP_GET_TILE_CHANGES = 13;
+    private static final int OP_GET_TILE = 14;
+    private static final int OP_GET_BOARD_THUMBNAIL = 15;
+
+    private static final CommandTable REQUESTS = new CommandTable(
+            REQ_GET_BOARD_IDS, REQ_SET_USERNAME, REQ_CREATE_BOARD,
+            REQ_GET_CURRENT_BOARD_ID, REQ_GET_USERS_FOR_BOARD_ID,
+            REQ_JOIN_BOARD_ID, REQ_LOGOUT, REQ_GET_USERS_IN_MY_BOARD,
+            REQ_LEAVE_BOARD, REQ_DRAW, REQ_CLEAR, REQ_USE_FEATURE,
+            REQ_POLYLINE, REQ_GET_TILE_CHANGES, REQ_GET_TILE,
+            REQ_GET_BOARD_THUMBNAIL);
+
+    /**
+     * Each thread handling messages reads them with its own tokenizer
+     */
+    private static final ThreadLocal<MessageTokenizer> TOKENIZER = new ThreadLocal<MessageTokenizer>() {
+        @Override
+        protected MessageTokenizer initialValue() {
+            return new MessageTokenizer();
+        }
+    };
 
     /**
      * Is used on the server's side.
-     * Handles the input String and updates the input lobbyModel appropriately.
-     * Also sends the appropriate response back to the input UserThread.
+     * Handles the input message and updates the input lobbyModel appropriately.
+     * Also sends the appropriate response back to the input UserConnection.
+     * 
+     * The command is looked up in place and req_draw is parsed in place, so
+     * the input may be a view of the bytes that were read (see
+     * AsciiCharSequence); it is only read during this call.
      * @param input
      * @param userThread
      * @param lobbyModel
      */
-    public static void handleMessage(String input, UserThread userThread,
+    public static void handleMessage(CharSequence input, UserConnection userThread,
             LobbyModel lobbyModel) {
-        String command = input.split(" ")[0];
+        MessageTokenizer tokenizer = TOKENIZER.get().reset(input);
+        if (!tokenizer.next())
+            return;
+        int opcode = REQUESTS.lookup(input, tokenizer.getTokenStart(),
+                tokenizer.getTokenEnd());
 
-        if (command.equals(MessageHandler.REQ_GET_BOARD_IDS)) {
-            MessageHandler.handleRequestGetBoardIDs(input, userThread,
+        switch (opcode) {
+        case OP_GET_BOARD_IDS:
+            MessageHandler.handleRequestGetBoardIDs(input.toString(), userThread,
+                    lobbyModel);
+            break;
+        case OP_SET_USERNAME:
+            MessageHandler.handleRequestSetUsername(input.toString(), userThread,
                     lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_SET_USERNAME)) {
-            MessageHandler.handleRequestSetUsername(input, userThread,
+            break;
+        case OP_CREATE_BOARD:
+            MessageHandler.handleRequestCreateBoard(input.toString(), userThread,
                     lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_CREATE_BOARD)) {
-            MessageHandler.handleRequestCreateBoard(input, userThread,
+            break;
+        case OP_GET_CURRENT_BOARD_ID:
+            MessageHandler.handleRequestGetCurrentBoard(input.toString(), userThread,
                     lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_GET_CURRENT_BOARD_ID)) {
-            MessageHandler.handleRequestGetCurrentBoard(input, userThread,
+            break;
+        case OP_GET_USERS_FOR_BOARD_ID:
+            MessageHandler.handleRequestGetUsersForBoardID(input.toString(), userThread,
                     lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_GET_USERS_FOR_BOARD_ID)) {
-            MessageHandler.handleRequestGetUsersForBoardID(input, userThread,
+            break;
+        case OP_JOIN_BOARD_ID:
+            MessageHandler.handleRequestJoinBoardID(input.toString(), userThread,
                     lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_JOIN_BOARD_ID)) {
-            MessageHandler.handleRequestJoinBoardID(input, userThread,
+            break;
+        case OP_LOGOUT:
+            MessageHandler.handleRequestLogout(input.toString(), userThread, lobbyModel);
+            break;
+        case OP_GET_USERS_IN_MY_BOARD:
+            MessageHandler.handleRequestGetUsersInMyBoard(input.toString(), userThread,
                     lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_LOGOUT)) {
-            MessageHandler.handleRequestLogout(input, userThread, lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_GET_USERS_IN_MY_BOARD)) {
-            MessageHandler.handleRequestGetUsersInMyBoard(input, userThread,
+            break;
+        case OP_LEAVE_BOARD:
+            MessageHandler.handleRequestLeaveBoard(input.toString(), userThread,
                     lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_LEAVE_BOARD)) {
-            MessageHandler.handleRequestLeaveBoard(input, userThread,
+            break;
+        case OP_DRAW:
+            MessageHandler.handleRequestDraw(tokenizer, userThread, lobbyModel);
+            break;
+        case OP_CLEAR:
+            MessageHandler.handleRequestClear(input.toString(), userThread, lobbyModel);
+            break;
+        case OP_USE_FEATURE:
+            MessageHandler.handleRequestUseFeature(input.toString(), userThread);
+            break;
+        case OP_POLYLINE:
+            MessageHandler.handleRequestPolyline(tokenizer, userThread, lobbyModel);
+            break;
+        case OP_GET_TILE_CHANGES:
+            MessageHandler.handleRequestGetTileChanges(input.toString(), userThread,
                     lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_DRAW)) {
-            MessageHandler.handleRequestDraw(input, userThread, lobbyModel);
-        } else if (command.equals(MessageHandler.REQ_CLEAR)) {
-            MessageHandler.handleRequestClear(input, userThread, lobbyModel);
+            break;
+        case OP_GET_TILE:
+            MessageHandler.handleRequestGetTile(input.toString(), userThread,
+                    lobbyModel);
+            break;
+        case OP_GET_BOARD_THUMBNAIL:
+            MessageHandler.handleRequestGetBoardThumbnail(input.toString(),
+                    userThread, lobbyModel);
+            break;
+        default:
+            break;
         }
     }
 
@@ -88,7 +258,7 @@ public class MessageHandler {
      * Resp: board_ids [id1] [userName1] [id2] [userName2] [id3] [userName3]
      */
     private static void handleRequestGetBoardIDs(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
             userThread.output(MessageHandler.makeResponseBoardIDs(lobbyModel.getWhiteboards()));
     }
 
@@ -99,7 +269,7 @@ public class MessageHandler {
      * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
      */
     private static void handleRequestSetUsername(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         Set<String> userNames = new HashSet<String>();
         Set<Integer> userIDsOfUsersInSameBoard = new HashSet<Integer>();
 
@@ -134,7 +304,7 @@ public class MessageHandler {
      * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
      */
     private static void handleRequestCreateBoard(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         String[] splitString = input.split(" ");
         int userID = userThread.getUserID();
         String boardName = splitString[1];
@@ -153,7 +323,7 @@ public class MessageHandler {
      * Resp: current_board_id [boardID]
      */
     private static void handleRequestGetCurrentBoard(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
                 .getUserID());
         userThread.output(MessageHandler.makeResponseCurrentBoardID(boardID));
@@ -164,7 +334,7 @@ public class MessageHandler {
      * Resp: users_for_board [boardID] [userName1] [userName2]...
      */
     private static void handleRequestGetUsersForBoardID(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = Integer.parseInt(input.split(" ")[1]);
         Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
         userThread.output(MessageHandler.makeResponseUsersForBoardID(boardID,
@@ -173,21 +343,51 @@ public class MessageHandler {
 
     /**
      * Req: join_board_id [boardID]
+     * Req: join_board_id [boardID] chunked
+     * Req: join_board_id [boardID] raster
+     * Req: join_board_id [boardID] tiles
      * Resp (to all users in board): users_for_board_id [boardID] [userName1] [userName2]...
      * Resp (to user who made request): board_lines [numberOfUserNames] [numberOfLines] [userName1] [userName2] ... [userName_N] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...
+     * Resp (to user who made request, if chunked): board_lines_begin [numberOfUserNames] [numberOfLines] [userName1] ... [userName_N]
+     *                                             board_lines_chunk [numberOfLinesInChunk] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]... (one or more)
+     *                                             board_lines_end
+     * Resp (to user who made request, if raster): board_raster [numberOfUserNames] [numberOfLinesAfterImage] [userName1] ... [userName_N] [base64PNG]
+     *                                            board_lines_chunk [numberOfLinesInChunk] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]... (zero or more)
+     *                                            board_lines_end
+     * Resp (to user who made request, if tiles): board_lines [numberOfUserNames] 0 [userName1] ... [userName_N]
      * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
      */
     private static void handleRequestJoinBoardID(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
-        int boardID = Integer.parseInt(input.split(" ")[1]);
+            UserConnection userThread, LobbyModel lobbyModel) {
+        String[] splitInput = input.split(" ");
+        int boardID = Integer.parseInt(splitInput[1]);
+        boolean chunked = splitInput.length > 2 && splitInput[2].equals(MessageHandler.JOIN_CHUNKED);
+        boolean raster = splitInput.length > 2 && splitInput[2].equals(MessageHandler.JOIN_RASTER);
+        boolean tiles = splitInput.length > 2 && splitInput[2].equals(MessageHandler.JOIN_TILES);
         try {
             lobbyModel.userJoinBoard(userThread.getUserID(), boardID);
             Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
             String response = MessageHandler.makeResponseUsersForBoardID(
                     boardID, userNames);
-            List<Line> lines = lobbyModel.getLinesForBoardID(boardID);
+            if (raster) {
+                RasterSnapshot image = lobbyModel.getRasterForBoardID(boardID);
+                userThread.broadcast(response);
+                userThread.output(new BoardLinesMessage(image, userNames));
+                notifyLobbyUsers(userThread, lobbyModel, true, boardID);
+                return;
+            }
+            if (tiles) {
+                userThread.broadcast(response);
+                userThread.output(MessageHandler.makeResponseBoardUsers(userNames));
+                notifyLobbyUsers(userThread, lobbyModel, true, boardID);
+                return;
+            }
+            StrokeSnapshot lines = lobbyModel.getLinesForBoardID(boardID);
             userThread.broadcast(response);
-            userThread.output(MessageHandler.makeResponseBoardLines(lines,userNames));
+            if (chunked)
+                userThread.output(new BoardLinesMessage(lines, userNames));
+            else
+                userThread.output(MessageHandler.makeResponseBoardLines(lines,userNames));
             notifyLobbyUsers(userThread, lobbyModel, true, boardID);
         } catch (Exception ex) {
             userThread.output(MessageHandler.makeResponseFailed());
@@ -201,7 +401,7 @@ public class MessageHandler {
      * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
      */
     private static void handleRequestLogout(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
                 .getUserID());
         lobbyModel.deleteUser(userThread.getUserID());
@@ -222,7 +422,7 @@ public class MessageHandler {
      * (if not in a board): failed
      */
     private static void handleRequestGetUsersInMyBoard(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread.getUserID());
         if (boardID != -1) {
             Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
@@ -240,7 +440,7 @@ public class MessageHandler {
      * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
      */
     private static void handleRequestLeaveBoard(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
                 .getUserID());
         if (boardID != -1) {
@@ -257,54 +457,262 @@ public class MessageHandler {
     /**
      * Req: req_draw [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]
      * Resp (to all users in board including user who made request): draw [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]
-     * (if not in a board): failed
+     * (if not in a board, or with a stroke thickness that is not a number
+     * from 0 to MAX_STROKE_THICKNESS or a coordinate past MAX_COORDINATE): failed
      */
-    private static void handleRequestDraw(String input, UserThread userThread,
-            LobbyModel lobbyModel) {
-        int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
-                .getUserID());
-        if (boardID != -1) {
-            String[] splitInput = input.split(" ");
-            int x1 = Integer.parseInt(splitInput[1]);
-            int y1 = Integer.parseInt(splitInput[2]);
+    private static void handleRequestDraw(MessageTokenizer tokenizer,
+            UserConnection userThread, LobbyModel lobbyModel) {
+        if (lobbyModel.getBoardIDThatUserIDIsIn(userThread.getUserID()) != -1) {
+            int x1 = tokenizer.nextInt();
+            int y1 = tokenizer.nextInt();
 
-            int x2 = Integer.parseInt(splitInput[3]);
-            int y2 = Integer.parseInt(splitInput[4]);
+            int x2 = tokenizer.nextInt();
+            int y2 = tokenizer.nextInt();
 
-            float strokeThickness = Float.parseFloat(splitInput[5]);
+            float strokeThickness = tokenizer.nextFloat();
 
-            int r = Integer.parseInt(splitInput[6]);
-            int g = Integer.parseInt(splitInput[7]);
-            int b = Integer.parseInt(splitInput[8]);
-            int a = Integer.parseInt(splitInput[9]);
+            int r = tokenizer.nextInt();
+            int g = tokenizer.nextInt();
+            int b = tokenizer.nextInt();
+            int a = tokenizer.nextInt();
 
             Line line = new Line(x1, y1, x2, y2, strokeThickness, r, g, b, a);
+            handleDraw(line, userThread, lobbyModel);
+        } else {
+            userThread.output(MessageHandler.makeResponseFailed());
+        }
+    }
+
+    /**
+     * Req: req_polyline [strokeThickness] [r] [g] [b] [a] [numberOfPoints] [x1] [y1] [x2] [y2]...
+     * Resp (to all users in board including user who made request, if they asked for the polyline feature): polyline [strokeThickness] [r] [g] [b] [a] [numberOfPoints] [x1] [y1] [x2] [y2]...
+     * (to the other users in board): draw [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a], once per segment
+     * (if not in a board, with fewer than 2 or more than MAX_POLYLINE_POINTS points,
+     * or with a stroke thickness or a coordinate a draw would fail for): failed
+     * 
+     * The polyline is stored as one segment between each two consecutive
+     * points, all added at once, so users joining later get them as lines.
+     */
+    private static void handleRequestPolyline(MessageTokenizer tokenizer,
+            UserConnection userThread, LobbyModel lobbyModel) {
+        int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
+                .getUserID());
+        if (boardID == -1) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        float strokeThickness = tokenizer.nextFloat();
+        int r = tokenizer.nextInt();
+        int g = tokenizer.nextInt();
+        int b = tokenizer.nextInt();
+        int a = tokenizer.nextInt();
+        int pointCount = tokenizer.nextInt();
+        if (pointCount < 2 || pointCount > MessageHandler.MAX_POLYLINE_POINTS) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        int[] points = new int[2 * pointCount];
+        boolean valid = isValidStrokeThickness(strokeThickness);
+        for (int i = 0; i < points.length; i++) {
+            points[i] = tokenizer.nextInt();
+            valid &= isValidCoordinate(points[i]);
+        }
+        if (!valid) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        lobbyModel.addPolylineToBoardID(strokeThickness, r, g, b, a, points,
+                pointCount, boardID);
+
+        OutgoingServerMessage response = new OutgoingServerMessage(
+                MessageHandler.makeResponsePolyline(strokeThickness, r, g, b,
+                        a, points, pointCount));
+        OutgoingServerMessage draws = new PolylineDrawsMessage(strokeThickness,
+                r, g, b, a, points, pointCount);
+        userThread.broadcastToBoard(response, FEATURE_POLYLINE, draws, boardID);
+        userThread.output(userThread.hasFeature(FEATURE_POLYLINE) ? response
+                : draws);
+    }
+
+    /**
+     * Handles a line drawn by a user, whether it came as a req_draw or as a
+     * BinaryProtocol draw frame. The response is sent as a draw frame to the
+     * users who switched to frames. A line that a draw would fail for is not
+     * drawn and answered with failed, whichever way it came.
+     * @param line the line drawn
+     * @param userThread the user who drew it
+     * @param lobbyModel
+     */
+    public static void handleDraw(Line line, UserConnection userThread,
+            LobbyModel lobbyModel) {
+        int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
+                .getUserID());
+        if (boardID != -1 && isValid(line)) {
             lobbyModel.addLineToBoardID(line, boardID);
 
-            Set<Integer> userIDsOfUsersInSameBoard = lobbyModel
-                    .getUserIDsForBoardID(boardID);
-            String response = MessageHandler.makeResponseDraw(line);
+            OutgoingServerMessage response = new OutgoingServerMessage(line);
 
-            userThread.broadcast(response, userIDsOfUsersInSameBoard);
+            userThread.broadcastToBoard(response, boardID);
             userThread.output(response);
         } else {
             userThread.output(MessageHandler.makeResponseFailed());
         }
     }
 
+    /**
+     * @param line a line a user drew
+     * @return true if its stroke thickness and coordinates are in range
+     */
+    private static boolean isValid(Line line) {
+        return isValidStrokeThickness(line.getStrokeThickness())
+                && isValidCoordinate(line.getX1())
+                && isValidCoordinate(line.getY1())
+                && isValidCoordinate(line.getX2())
+                && isValidCoordinate(line.getY2());
+    }
+
+    /**
+     * @return true for a number from 0 to MAX_STROKE_THICKNESS, false for
+     *         NaN too
+     */
+    private static boolean isValidStrokeThickness(float strokeThickness) {
+        return strokeThickness >= 0
+                && strokeThickness <= MessageHandler.MAX_STROKE_THICKNESS;
+    }
+
+    private static boolean isValidCoordinate(int coordinate) {
+        return coordinate >= -MessageHandler.MAX_COORDINATE
+                && coordinate <= MessageHandler.MAX_COORDINATE;
+    }
+
+    /**
+     * Req: get_tile_changes [version]
+     * Resp: tile_changes [version] [allChanged] [numberOfTiles] [tileX1] [tileY1] [tileX2] [tileY2]...
+     * (if not in a board): failed
+     * 
+     * Lists the tiles of the user's board touched by a line drawn after the
+     * given version, which is 0 for a board the user has nothing of.
+     * allChanged is true if the board was cleared or a line too big to list
+     * its tiles (TileIndex.MAX_TILES_PER_SEGMENT) was drawn since, so that
+     * every tile the user holds has to be asked for again. The version in the response is the one to ask with
+     * next time.
+     */
+    private static void handleRequestGetTileChanges(String input,
+            UserConnection userThread, LobbyModel lobbyModel) {
+        int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
+                .getUserID());
+        if (boardID == LobbyModel.LOBBY_ID) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        try {
+            long sinceVersion = Long.parseLong(input.split(" ")[1]);
+            TileChanges changes = lobbyModel.getTileChangesForBoardID(boardID,
+                    sinceVersion);
+            userThread.output(MessageHandler.makeResponseTileChanges(changes));
+        } catch (Exception ex) {
+            userThread.output(MessageHandler.makeResponseFailed());
+        }
+    }
+
+    /**
+     * Req: get_tile [tileX] [tileY]
+     * Resp: tile [tileX] [tileY] [version] [numberOfLines] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...
+     * (if not in a board): failed
+     * 
+     * Sends the lines of the user's board that touch the tile, in the order
+     * they were drawn, so the user can draw the tile without the rest of the
+     * board. Tile (tileX, tileY) covers the pixels from tileX*256, tileY*256
+     * (TileIndex.TILE_SIZE) to 256 further, excluded.
+     */
+    private static void handleRequestGetTile(String input,
+            UserConnection userThread, LobbyModel lobbyModel) {
+        int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
+                .getUserID());
+        if (boardID == LobbyModel.LOBBY_ID) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        try {
+            String[] splitInput = input.split(" ");
+            int tileX = Integer.parseInt(splitInput[1]);
+            int tileY = Integer.parseInt(splitInput[2]);
+            TileSnapshot tile = lobbyModel.getTileForBoardID(boardID, tileX,
+                    tileY);
+            userThread.output(MessageHandler.makeResponseTile(tile));
+        } catch (Exception ex) {
+            userThread.output(MessageHandler.makeResponseFailed());
+        }
+    }
+
+    /**
+     * Req: get_board_thumbnail [boardID]
+     * Resp (to user who made request): board_thumbnail [boardID] [base64PNG]
+     * (again, once it is drawn, if the board changed since it was last drawn): board_thumbnail [boardID] [base64PNG]
+     * (if there is no such board): failed
+     * 
+     * The thumbnail is drawn in the background, so the first response has
+     * it as it was last drawn, blank if it never was.
+     */
+    private static void handleRequestGetBoardThumbnail(String input,
+            final UserConnection userThread, LobbyModel lobbyModel) {
+        try {
+            int boardID = Integer.parseInt(input.split(" ")[1]);
+            lobbyModel.getThumbnailForBoardID(boardID, new ThumbnailListener() {
+                @Override
+                public void thumbnailReady(int boardID, byte[] png) {
+                    userThread.output(MessageHandler
+                            .makeResponseBoardThumbnail(boardID, png));
+                }
+            });
+        } catch (Exception ex) {
+            userThread.output(MessageHandler.makeResponseFailed());
+        }
+    }
+
+    /**
+     * Req: use_feature [feature]
+     * Resp (if the feature is known): feature_enabled [feature], as the last
+     * text message if the feature is binary
+     * (otherwise): failed
+     */
+    private static void handleRequestUseFeature(String input,
+            UserConnection userThread) {
+        String[] splitInput = input.split(" ");
+        if (splitInput.length == 2 && splitInput[1].equals(BinaryProtocol.FEATURE)) {
+            userThread.switchToBinaryProtocol(String.format("%s %s",
+                    MessageHandler.RESP_FEATURE_ENABLED, BinaryProtocol.FEATURE));
+        } else if (splitInput.length == 2 && splitInput[1].equals(FEATURE_POLYLINE)) {
+            userThread.enableFeature(FEATURE_POLYLINE);
+            userThread.output(String.format("%s %s",
+                    MessageHandler.RESP_FEATURE_ENABLED, FEATURE_POLYLINE));
+        } else {
+            userThread.output(MessageHandler.makeResponseFailed());
+        }
+    }
+
+    /**
+     * Sent right after welcome, so that clients can ask for the features
+     * they know
+     * @return features [feature1] [feature2]...
+     */
+    public static String makeResponseFeatures() {
+        return String.format("%s %s %s", MessageHandler.RESP_FEATURES,
+                BinaryProtocol.FEATURE, FEATURE_POLYLINE);
+    }
+
     /**
      * Req: req_clear_board
      * Resp (to all users in board including user who made request): clear_board
      */
-    private static void handleRequestClear(String input, UserThread userThread,
+    private static void handleRequestClear(String input, UserConnection userThread,
             LobbyModel lobbyModel) {
         int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
                 .getUserID());
         if (boardID != -1) {
             lobbyModel.clearBoard(boardID);
             String response = MessageHandler.makeResponseClearBoard();
-            Set<Integer> userIDsInSameBoard = lobbyModel.getUserIDsForBoardID(boardID);
-            userThread.broadcast(response, userIDsInSameBoard);
+            userThread.broadcastToBoard(response, boardID);
             userThread.output(response);
         } else {
             userThread.output(MessageHandler.makeResponseFailed());
@@ -316,7 +724,7 @@ public class MessageHandler {
      * @param userThread a thread to use for broadcasting
      * @param lobbyModel the lobby model
      */
-    public static void notifyLobbyUsers(UserThread userThread, LobbyModel lobbyModel,boolean includingSelf, int userThreadsBoardID){
+    public static void notifyLobbyUsers(UserConnection userThread, LobbyModel lobbyModel,boolean includingSelf, int userThreadsBoardID){
         Set<Integer> userIDs = lobbyModel.getUserIDsForBoardID(LobbyModel.LOBBY_ID);
         Set<String> userNames = lobbyModel.getUserNamesForBoardID(LobbyModel.LOBBY_ID);
         String response = MessageHandler.makeResponseUsersForBoardID(LobbyModel.LOBBY_ID, userNames);
@@ -401,11 +809,125 @@ public class MessageHandler {
      *            the line to draw
      * @return 'draw [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]'
      */
-    private static String makeResponseDraw(Line line) {
+    static String makeResponseDraw(Line line) {
         return String
                 .format("%s %s", MessageHandler.RESP_DRAW, line.toString());
     }
 
+    /**
+     * Encodes makeResponseDraw(line) and a newline with
+     * OutgoingServerMessage.CHARSET, without making the String
+     * 
+     * @param line
+     *            the line to draw
+     * @return the encoded response
+     */
+    static byte[] encodeResponseDraw(Line line) {
+        if (!ASCII_DRAWS)
+            return (makeResponseDraw(line) + "\n")
+                    .getBytes(OutgoingServerMessage.CHARSET);
+        byte[] thickness = formatStrokeThickness(line.getStrokeThickness());
+        int length = RESP_DRAW.length() + thickness.length + 10
+                + decimalLength(line.getX1()) + decimalLength(line.getY1())
+                + decimalLength(line.getX2()) + decimalLength(line.getY2())
+                + decimalLength(line.getR()) + decimalLength(line.getG())
+                + decimalLength(line.getB()) + decimalLength(line.getA());
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (int i = 0; i < RESP_DRAW.length(); i++) {
+            bytes[position++] = (byte) RESP_DRAW.charAt(i);
+        }
+        position = putDecimal(bytes, position, line.getX1());
+        position = putDecimal(bytes, position, line.getY1());
+        position = putDecimal(bytes, position, line.getX2());
+        position = putDecimal(bytes, position, line.getY2());
+        bytes[position++] = ' ';
+        System.arraycopy(thickness, 0, bytes, position, thickness.length);
+        position += thickness.length;
+        position = putDecimal(bytes, position, line.getR());
+        position = putDecimal(bytes, position, line.getG());
+        position = putDecimal(bytes, position, line.getB());
+        position = putDecimal(bytes, position, line.getA());
+        bytes[position] = '\n';
+        return bytes;
+    }
+
+    /**
+     * @return the stroke thickness as %f formats it, encoded
+     */
+    private static byte[] formatStrokeThickness(float strokeThickness) {
+        int bits = Float.floatToIntBits(strokeThickness);
+        int index = (bits * 0x9E3779B9) >>> 26;
+        FormattedThickness formatted = THICKNESSES[index];
+        if (formatted == null || formatted.bits != bits) {
+            formatted = new FormattedThickness(bits, String.format("%f",
+                    strokeThickness).getBytes(OutgoingServerMessage.CHARSET));
+            THICKNESSES[index] = formatted;
+        }
+        return formatted.text;
+    }
+
+    /**
+     * A stroke thickness and its text
+     */
+    private static final class FormattedThickness {
+        private final int bits;
+        private final byte[] text;
+
+        FormattedThickness(int bits, byte[] text) {
+            this.bits = bits;
+            this.text = text;
+        }
+    }
+
+    /**
+     * @return the number of characters of the number in decimal
+     */
+    private static int decimalLength(long value) {
+        int length = value < 0 ? 2 : 1;
+        for (long rest = Math.abs(value); rest >= 10; rest /= 10) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes a space and the number in decimal at the given position
+     * 
+     * @return the position after it
+     */
+    private static int putDecimal(byte[] bytes, int position, long value) {
+        bytes[position++] = ' ';
+        if (value < 0) {
+            bytes[position++] = '-';
+            value = -value;
+        }
+        int end = position + decimalLength(value);
+        for (int i = end - 1; i >= position; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    /**
+     * @param points
+     *            the points, x then y
+     * @param pointCount
+     *            the number of points
+     * @return 'polyline [strokeThickness] [r] [g] [b] [a] [numberOfPoints] [x1] [y1] [x2] [y2]...'
+     */
+    private static String makeResponsePolyline(float strokeThickness, int r,
+            int g, int b, int a, int[] points, int pointCount) {
+        StringBuilder response = new StringBuilder(String.format(
+                "%s %f %d %d %d %d %d", MessageHandler.RESP_POLYLINE,
+                strokeThickness, r, g, b, a, pointCount));
+        for (int i = 0; i < 2 * pointCount; i++) {
+            response.append(' ').append(points[i]);
+        }
+        return response.toString();
+    }
+
     /**
      * @param lines
      *            the list of lines
@@ -414,7 +936,7 @@ public class MessageHandler {
      *         [x2] [y2] [strokeThickness] [r] [g] [b] [a] [x1] [y1] [x2] [y2]
      *         [strokeThickness] [r] [g] [b] [a]...
      */
-    private static String makeResponseBoardLines(List<Line> lines, Set<String> userNames) {
+    private static String makeResponseBoardLines(StrokeSnapshot lines, Set<String> userNames) {
         StringBuilder response = new StringBuilder();
         response.append(MessageHandler.RESP_BOARD_LINES);
         response.append(" " + userNames.size());
@@ -422,8 +944,148 @@ public class MessageHandler {
         for (String userName : userNames){
             response.append(" " + userName);
         }
-        for (Line line : lines) {
-            response.append(" " + line.toString());
+        for (int i = 0; i < lines.size(); i++) {
+            response.append(" " + lines.toString(i));
+        }
+        return response.toString();
+    }
+
+    /**
+     * @param userNames
+     *            the users in the board
+     * @return board_lines [numberOfUserNames] 0 [userName1] ... [userName_N]
+     */
+    private static String makeResponseBoardUsers(Set<String> userNames) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_BOARD_LINES);
+        response.append(" " + userNames.size());
+        response.append(" 0");
+        for (String userName : userNames){
+            response.append(" " + userName);
+        }
+        return response.toString();
+    }
+
+    /**
+     * @param changes
+     *            the changed tiles
+     * @return tile_changes [version] [allChanged] [numberOfTiles] [tileX1] [tileY1] [tileX2] [tileY2]...
+     */
+    private static String makeResponseTileChanges(TileChanges changes) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_TILE_CHANGES);
+        response.append(" " + changes.getVersion());
+        response.append(" " + changes.isAllChanged());
+        response.append(" " + changes.getTileCount());
+        for (int i = 0; i < changes.getTileCount(); i++) {
+            response.append(' ').append(changes.getTileX(i));
+            response.append(' ').append(changes.getTileY(i));
+        }
+        return response.toString();
+    }
+
+    /**
+     * @param tile
+     *            the lines touching the tile
+     * @return tile [tileX] [tileY] [version] [numberOfLines] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...
+     */
+    private static String makeResponseTile(TileSnapshot tile) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_TILE);
+        response.append(" " + tile.getTileX());
+        response.append(" " + tile.getTileY());
+        response.append(" " + tile.getVersion());
+        response.append(" " + tile.size());
+        for (int i = 0; i < tile.size(); i++) {
+            response.append(" " + tile.toString(i));
+        }
+        return response.toString();
+    }
+
+    /**
+     * @param boardID
+     *            the id of the board
+     * @param png
+     *            the preview of the board
+     * @return board_thumbnail [boardID] [base64PNG]
+     */
+    private static String makeResponseBoardThumbnail(int boardID, byte[] png) {
+        return String.format("%s %d %s", MessageHandler.RESP_BOARD_THUMBNAIL,
+                boardID, Base64Codec.encode(png));
+    }
+
+    /**
+     * @param numberOfLines
+     *            the number of lines in the board
+     * @param userNames
+     *            the names of the users in the board
+     * @return board_lines_begin [numberOfUserNames] [numberOfLines] [userName1] ... [userName_N]
+     */
+    static String makeResponseBoardLinesBegin(int numberOfLines, Set<String> userNames) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_BOARD_LINES_BEGIN);
+        response.append(" " + userNames.size());
+        response.append(" " + numberOfLines);
+        for (String userName : userNames){
+            response.append(" " + userName);
+        }
+        return response.toString();
+    }
+
+    /**
+     * @param raster
+     *            the image and lines of the board
+     * @param userNames
+     *            the names of the users in the board
+     * @return board_raster [numberOfUserNames] [numberOfLinesAfterImage] [userName1] ... [userName_N] [base64PNG]
+     */
+    static String makeResponseBoardRaster(RasterSnapshot raster, Set<String> userNames) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_BOARD_RASTER);
+        response.append(" " + userNames.size());
+        response.append(" " + raster.getSegmentCount());
+        for (String userName : userNames){
+            response.append(" " + userName);
+        }
+        response.append(' ').append(Base64Codec.encode(raster.getPNG()));
+        return response.toString();
+    }
+
+    /**
+     * @param lines
+     *            the lines of the board
+     * @param from
+     *            the index of the first line of the chunk
+     * @param to
+     *            the index after the last line of the chunk
+     * @return board_lines_chunk [numberOfLinesInChunk] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...
+     */
+    static String makeResponseBoardLinesChunk(StrokeSnapshot lines, int from, int to) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_BOARD_LINES_CHUNK);
+        response.append(" " + (to - from));
+        for (int i = from; i < to; i++) {
+            response.append(" " + lines.toString(i));
+        }
+        return response.toString();
+    }
+
+    /**
+     * @param raster
+     *            the image and lines of the board
+     * @param from
+     *            the index of the first line of the chunk, among those not
+     *            in the image
+     * @param to
+     *            the index after the last line of the chunk
+     * @return board_lines_chunk [numberOfLinesInChunk] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...
+     */
+    static String makeResponseBoardRasterChunk(RasterSnapshot raster, int from, int to) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_BOARD_LINES_CHUNK);
+        response.append(" " + (to - from));
+        for (int i = from; i < to; i++) {
+            response.append(" " + raster.getLines().toString(raster.getSegment(i)));
         }
         return response.toString();
     }
@@ -462,6 +1124,30 @@ public class MessageHandler {
                 .format("%s %d", MessageHandler.REQ_JOIN_BOARD_ID, boardID);
     }
 
+    public static String makeRequestStringJoinBoardIDChunked(int boardID) {
+        return String.format("%s %d %s", MessageHandler.REQ_JOIN_BOARD_ID,
+                boardID, MessageHandler.JOIN_CHUNKED);
+    }
+
+    public static String makeRequestStringJoinBoardIDRaster(int boardID) {
+        return String.format("%s %d %s", MessageHandler.REQ_JOIN_BOARD_ID,
+                boardID, MessageHandler.JOIN_RASTER);
+    }
+
+    public static String makeRequestStringJoinBoardIDTiles(int boardID) {
+        return String.format("%s %d %s", MessageHandler.REQ_JOIN_BOARD_ID,
+                boardID, MessageHandler.JOIN_TILES);
+    }
+
+    public static String makeRequestStringGetBoardThumbnail(int boardID) {
+        return String.format("%s %d",
+                MessageHandler.REQ_GET_BOARD_THUMBNAIL, boardID);
+    }
+
+    public static String makeRequestStringUseFeature(String feature) {
+        return String.format("%s %s", MessageHandler.REQ_USE_FEATURE, feature);
+    }
+
     public static String makeRequestStringLogout() {
         return MessageHandler.REQ_LOGOUT;
     }
@@ -0,0 +1,166 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads messages from a blocking stream, either as newline-delimited text or
+ * as BinaryProtocol frames. It starts out reading text, and is switched to
+ * frames once both sides agreed on it; the bytes after the last text line
+ * are kept, so nothing read ahead is lost in the switch.
+ * 
+ * Lines are read like BufferedReader.readLine reads them: a trailing carriage
+ * return is dropped. A line of ASCII characters is handed over as a view of
+ * the buffer rather than as a new String.
+ * 
+ * Thread-safety:
+ * 
+ * Not threadsafe; a stream is read by one thread, which is also the one that
+ * switches it to frames.
+ */
+public class MessageInputStream {
+
+    /**
+     * The stream the messages come from
+     */
+    private final InputStream in;
+
+    /**
+     * The bytes read and not consumed yet, from start to end
+     */
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    /**
+     * True once the stream carries frames instead of lines
+     */
+    private boolean binary;
+
+    /**
+     * The view that ASCII lines are handed over in
+     */
+    private final AsciiCharSequence line;
+
+    /**
+     * Create a stream reading text lines
+     * 
+     * @param in
+     *            the stream the messages come from
+     */
+    public MessageInputStream(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[8192];
+        this.start = 0;
+        this.end = 0;
+        this.binary = false;
+        this.line = new AsciiCharSequence();
+    }
+
+    /**
+     * Reads frames instead of lines from now on
+     */
+    public void setBinary() {
+        this.binary = true;
+    }
+
+    /**
+     * @return true if the stream carries frames
+     */
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    /**
+     * Reads the next message and hands it to the receiver
+     * 
+     * @param receiver
+     *            told about the message
+     * @return false once the stream has ended
+     * @throws IOException
+     *             if reading fails or a frame is malformed
+     */
+    public boolean readMessage(BinaryProtocol.Receiver receiver) throws IOException {
+        if (!this.binary) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0)
+                return false;
+            int lineStart = this.start;
+            int length = lineEnd - lineStart;
+            if (length > 0 && this.buffer[lineEnd - 1] == '\r')
+                length--;
+            this.start = lineEnd + 1;
+            if (AsciiCharSequence.isAscii(this.buffer, lineStart, length))
+                receiver.onText(this.line.reset(this.buffer, lineStart, length));
+            else
+                receiver.onText(new String(this.buffer, lineStart, length,
+                        OutgoingServerMessage.CHARSET));
+            return true;
+        }
+        while (true) {
+            int consumed;
+            try {
+                consumed = BinaryProtocol.decode(this.buffer, this.start,
+                        this.end - this.start, receiver);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+            if (consumed > 0) {
+                this.start += consumed;
+                return true;
+            }
+            if (!fill())
+                return false;
+        }
+    }
+
+    /**
+     * Closes the underlying stream
+     * 
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    /**
+     * Reads until the buffer holds a complete line from start on
+     * 
+     * @return the index of the line's newline, or -1 if the stream ended
+     *         before a complete line
+     */
+    private int findLineEnd() throws IOException {
+        int searched = this.start;
+        while (true) {
+            for (int i = searched; i < this.end; i++) {
+                if (this.buffer[i] == '\n')
+                    return i;
+            }
+            searched = this.end - this.start;
+            if (!fill())
+                return -1;
+            searched += this.start;
+        }
+    }
+
+    /**
+     * Reads more bytes, moving or growing the buffer to make room
+     * 
+     * @return false once the stream has ended
+     */
+    private boolean fill() throws IOException {
+        if (this.start > 0) {
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+            this.end -= this.start;
+            this.start = 0;
+        }
+        if (this.end == this.buffer.length)
+            this.buffer = Arrays.copyOf(this.buffer, 2 * this.buffer.length);
+        int read = this.in.read(this.buffer, this.end, this.buffer.length - this.end);
+        if (read < 0)
+            return false;
+        this.end += read;
+        return true;
+    }
+}
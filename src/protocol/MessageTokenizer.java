@@ -0,0 +1,229 @@
+package protocol;
+
+/**
+ * Reads the space-separated tokens of a text protocol message in place, and
+ * parses numbers straight from the characters, so that handling a message
+ * like req_draw makes no Strings and no arrays. A tokenizer is reset for each
+ * message and reused.
+ *
+ * Runs of spaces count as one separator, and leading or trailing spaces are
+ * skipped.
+ *
+ * Thread-safety:
+ *
+ * Not threadsafe; each thread handling messages uses its own tokenizer.
+ */
+public class MessageTokenizer {
+
+    /**
+     * Powers of ten that a double holds exactly
+     */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * The most digits read into a long mantissa
+     */
+    private static final int MAX_MANTISSA_DIGITS = 15;
+
+    private CharSequence input;
+    private int position;
+    private int tokenStart;
+    private int tokenEnd;
+
+    /**
+     * Create a tokenizer with no message
+     */
+    public MessageTokenizer() {
+        reset("");
+    }
+
+    /**
+     * Starts reading a message from its first token
+     *
+     * @param input
+     *            the message, which must not change while it is read
+     * @return this tokenizer
+     */
+    public MessageTokenizer reset(CharSequence input) {
+        this.input = input;
+        this.position = 0;
+        this.tokenStart = 0;
+        this.tokenEnd = 0;
+        return this;
+    }
+
+    /**
+     * Moves to the next token
+     *
+     * @return false if there are no more tokens
+     */
+    public boolean next() {
+        int length = this.input.length();
+        while (this.position < length && this.input.charAt(this.position) == ' ') {
+            this.position++;
+        }
+        if (this.position == length)
+            return false;
+        this.tokenStart = this.position;
+        while (this.position < length && this.input.charAt(this.position) != ' ') {
+            this.position++;
+        }
+        this.tokenEnd = this.position;
+        return true;
+    }
+
+    /**
+     * @return where the current token starts in the message
+     */
+    public int getTokenStart() {
+        return this.tokenStart;
+    }
+
+    /**
+     * @return where the current token ends in the message, exclusive
+     */
+    public int getTokenEnd() {
+        return this.tokenEnd;
+    }
+
+    /**
+     * @return the message being read
+     */
+    public CharSequence getInput() {
+        return this.input;
+    }
+
+    /**
+     * Moves to the next token and parses it
+     *
+     * @return the next token as an int
+     * @throws NumberFormatException
+     *             if there are no more tokens or the token is not an int
+     */
+    public int nextInt() {
+        requireNext();
+        return parseInt(this.input, this.tokenStart, this.tokenEnd);
+    }
+
+    /**
+     * Moves to the next token and parses it
+     *
+     * @return the next token as a float
+     * @throws NumberFormatException
+     *             if there are no more tokens or the token is not a float
+     */
+    public float nextFloat() {
+        requireNext();
+        return parseFloat(this.input, this.tokenStart, this.tokenEnd);
+    }
+
+    /**
+     * Moves to the next token
+     *
+     * @return the next token, as a new String
+     * @throws NumberFormatException
+     *             if there are no more tokens
+     */
+    public String nextString() {
+        requireNext();
+        return this.input.subSequence(this.tokenStart, this.tokenEnd).toString();
+    }
+
+    private void requireNext() {
+        if (!next())
+            throw new NumberFormatException("missing token");
+    }
+
+    /**
+     * Parses a decimal int the way Integer.parseInt does
+     *
+     * @param input
+     *            the characters holding the number
+     * @param start
+     *            where the number starts
+     * @param end
+     *            where the number ends, exclusive
+     * @return the number
+     * @throws NumberFormatException
+     *             if the range is not an int
+     */
+    public static int parseInt(CharSequence input, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (input.charAt(i) == '-' || input.charAt(i) == '+')) {
+            negative = input.charAt(i) == '-';
+            i++;
+        }
+        if (i == end)
+            throw notANumber(input, start, end);
+        // accumulate negatively, so that Integer.MIN_VALUE fits
+        long limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = input.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw notANumber(input, start, end);
+            value = value * 10 - digit;
+            if (value < limit)
+                throw notANumber(input, start, end);
+        }
+        return (int) (negative ? value : -value);
+    }
+
+    /**
+     * Parses a float. Plain decimals like the ones Line.toString makes are
+     * parsed here; anything else (exponents, NaN, a comma as the decimal
+     * separator, many digits) is handed to Float.parseFloat.
+     *
+     * @param input
+     *            the characters holding the number
+     * @param start
+     *            where the number starts
+     * @param end
+     *            where the number ends, exclusive
+     * @return the number
+     * @throws NumberFormatException
+     *             if the range is not a float
+     */
+    public static float parseFloat(CharSequence input, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (input.charAt(i) == '-' || input.charAt(i) == '+')) {
+            negative = input.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            char c = input.charAt(i);
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (c >= '0' && c <= '9' && digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fractionDigits >= 0)
+                    fractionDigits++;
+            } else {
+                return Float.parseFloat(input.subSequence(start, end).toString());
+            }
+        }
+        if (digits == 0)
+            throw notANumber(input, start, end);
+        // exact mantissa over an exact power of ten, rounded once to a double
+        double value = mantissa / POWERS_OF_TEN[Math.max(0, fractionDigits)];
+        return (float) (negative ? -value : value);
+    }
+
+    private static NumberFormatException notANumber(CharSequence input,
+            int start, int end) {
+        return new NumberFormatException("For input string: \""
+                + input.subSequence(start, end) + "\"");
+    }
+}
@@ -1,19 +1,151 @@
 package protocol;
 
-import java.io.PrintWriter;
-import java.util.Collection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
+import adts.Line;
+
+/**
+ * A single message waiting to be written to users' output streams.
+ * 
+ * The message is encoded to bytes once, when it is created, so a broadcast
+ * to many users shares one encoding: each recipient writes from its own
+ * read-only view of the same bytes. The BinaryProtocol frame for users who
+ * switched to it is likewise made once, by whichever writer needs it first.
+ * 
+ * Draw and polyline messages are marked droppable: a slow consumer that falls
+ * behind on strokes can lose some of them without corrupting its view of the
+ * lobby, whereas every other response (board lists, user lists, board lines...)
+ * must always be delivered.
+ */
 public class OutgoingServerMessage {
-    private final Collection<PrintWriter> out;
+    
+    /**
+     * The charset messages are encoded with, the same one the clients'
+     * readers use
+     */
+    public static final Charset CHARSET = Charset.defaultCharset();
+    
+    /**
+     * The text of the message, or null for a draw message made from its
+     * line, whose text is only made if asked for
+     */
     private final String message;
-    public OutgoingServerMessage(Collection<PrintWriter> out, String message){
-        this.out = out;
+    private final boolean droppable;
+    
+    /**
+     * The message followed by a newline, encoded with CHARSET. Never written
+     * to or moved: recipients only see duplicates of it.
+     */
+    private final ByteBuffer encoded;
+    
+    /**
+     * The line of a draw message, sent as a draw frame to binary users, or
+     * null for any other message
+     */
+    private final Line line;
+    
+    /**
+     * The message as a BinaryProtocol frame, made the first time it is needed.
+     * Two writers may both make it; they make the same bytes.
+     */
+    private volatile ByteBuffer frame;
+    
+    public OutgoingServerMessage(String message){
+        this(message, null);
+    }
+    
+    /**
+     * @param message the text of the message
+     * @param line the line the message draws, if it is a draw message, so
+     *             that binary users get it as a draw frame
+     */
+    public OutgoingServerMessage(String message, Line line){
         this.message = message;
+        this.droppable = message.startsWith(MessageHandler.RESP_DRAW + " ")
+                || message.startsWith(MessageHandler.RESP_POLYLINE + " ");
+        this.encoded = ByteBuffer.wrap((message + "\n").getBytes(CHARSET))
+                .asReadOnlyBuffer();
+        this.line = line;
+        this.frame = null;
     }
-    public Collection<PrintWriter> getOutStreams(){
-        return this.out;
+    
+    /**
+     * Makes the draw message of a line, encoded straight from its fields
+     * rather than through a String
+     * @param line the line the message draws, also sent as a draw frame to
+     *             binary users
+     */
+    public OutgoingServerMessage(Line line){
+        this.message = null;
+        this.droppable = true;
+        this.encoded = ByteBuffer.wrap(MessageHandler.encodeResponseDraw(line))
+                .asReadOnlyBuffer();
+        this.line = line;
+        this.frame = null;
     }
+    
     public String getMessage(){
-        return this.message;
+        if (this.message != null)
+            return this.message;
+        ByteBuffer encoded = getEncoded();
+        byte[] text = new byte[encoded.remaining() - 1];
+        encoded.get(text);
+        return new String(text, CHARSET);
+    }
+    public boolean isDroppable(){
+        return this.droppable;
+    }
+    
+    /**
+     * @return a read-only view of the encoded message and its newline, with
+     *         its own position so that each recipient can consume it
+     *         independently
+     */
+    public ByteBuffer getEncoded(){
+        return this.encoded.duplicate();
+    }
+    
+    /**
+     * @param binary true for a user who switched to BinaryProtocol frames
+     * @return a read-only view of the message encoded for the user, with its
+     *         own position
+     */
+    public ByteBuffer getEncoded(boolean binary){
+        if (!binary)
+            return getEncoded();
+        ByteBuffer frame = this.frame;
+        if (frame == null) {
+            frame = ByteBuffer.wrap(this.line != null
+                    ? BinaryProtocol.encodeDraw(this.line)
+                    : BinaryProtocol.encodeText(this.message)).asReadOnlyBuffer();
+            this.frame = frame;
+        }
+        return frame.duplicate();
+    }
+    
+    /**
+     * @return the number of bytes of the encoded message and its newline
+     */
+    public int getEncodedLength(){
+        return this.encoded.remaining();
+    }
+    
+    /**
+     * @return true if another message must be written right after this one,
+     *         before anything queued later
+     */
+    public boolean hasNext(){
+        return false;
+    }
+    
+    /**
+     * Makes the message that goes right after this one. It is only made once
+     * this one is being written, so a long response can be written piece by
+     * piece without all of it being in memory at once.
+     * @return the next message, or null if hasNext() is false
+     */
+    public OutgoingServerMessage next(){
+        return null;
     }
 }
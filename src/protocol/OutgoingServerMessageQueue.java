@@ -1,47 +1,409 @@
 package protocol;
 
-import java.io.PrintWriter;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class OutgoingServerMessageQueue extends Thread{
+/**
+ * The writer for a single connection. Messages for the connection are put on
+ * the queue by any thread and written out, in order, by whichever thread runs
+ * this task.
+ * 
+ * The writer parks on the queue while there is nothing to send. When it wakes
+ * up it copies every message already waiting into one batch and flushes the
+ * stream once, so a burst of strokes costs one write rather than one per
+ * line. Messages arrive already encoded, so a broadcast is not re-encoded for
+ * every recipient.
+ * 
+ * Under load the writer also flushes at most once per maxFlushDelayNanos: a
+ * message that comes less than that after the last flush waits out the rest
+ * of the interval, collecting whatever arrives meanwhile, so that many
+ * messages share one write and one TCP packet. A message that comes after a
+ * quiet spell is still flushed at once. A batch ends once its flush is due or
+ * it holds MAX_BATCH_MESSAGES messages, even while more keep coming, so a
+ * steady stream is flushed at least once per interval.
+ * 
+ * Once more than highWaterMark messages are pending, droppable messages
+ * (strokes) are dropped instead of queued so that one slow consumer cannot grow
+ * the server's memory without bound.
+ */
+public class OutgoingServerMessageQueue implements Runnable{
+    
+    /**
+     * The high water mark used when none is given
+     */
+    public static final int DEFAULT_HIGH_WATER_MARK = 10000;
+    
+    /**
+     * The size of the buffer messages are batched in before being written
+     */
+    private static final int BATCH_SIZE = 8192;
+    
+    /**
+     * The shortest time between flushes under load, when none is given
+     */
+    public static final long DEFAULT_MAX_FLUSH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    
+    /**
+     * The most messages written in one batch before it is flushed
+     */
+    public static final int MAX_BATCH_MESSAGES = 1024;
+    
+    /**
+     * Put on the queue to tell the writer to stop
+     */
+    private static final Entry CLOSE = new Entry(null, false, 0);
     
     /**
      * The queue of outgoing messages
      */
-    private final ConcurrentLinkedQueue<OutgoingServerMessage> outgoingServerMessages;
+    private final BlockingQueue<Entry> outgoingServerMessages;
+    
+    /**
+     * The output stream this queue writes to
+     */
+    private final OutputStream out;
+    
+    /**
+     * The bytes waiting to be written to the output stream; only touched by
+     * the writer
+     */
+    private final byte[] batch;
+    
+    /**
+     * The number of bytes used in batch
+     */
+    private int batchLength;
+    
+    /**
+     * The number of pending messages above which droppable messages are dropped
+     */
+    private final int highWaterMark;
+    
+    /**
+     * The shortest time between flushes under load, and so the longest a
+     * message waits for the next flush, in nanoseconds; 0 to always flush at
+     * once
+     */
+    private final long maxFlushDelayNanos;
+    
+    /**
+     * The number of messages dropped because the queue was above its high water mark
+     */
+    private final AtomicLong droppedMessages;
+    
+    /**
+     * The number of messages written to the output stream
+     */
+    private final AtomicLong flushedMessages;
+    
+    /**
+     * The sum of the enqueue-to-flush latencies of all flushed messages, in nanoseconds
+     */
+    private final AtomicLong totalFlushLatencyNanos;
+    
+    /**
+     * The largest enqueue-to-flush latency seen so far, in nanoseconds
+     */
+    private volatile long maxFlushLatencyNanos;
+    
+    /**
+     * The number of times the output stream was flushed
+     */
+    private final AtomicLong flushes;
+    
+    /**
+     * The number of writes to the output stream
+     */
+    private final AtomicLong writes;
+    
+    /**
+     * True once the queue has been closed
+     */
+    private volatile boolean closed;
+    
+    /**
+     * True once the user switched to BinaryProtocol frames; guarded by this
+     * queue's lock so that every message is encoded the way the user expects
+     * it at its place in the queue
+     */
+    private boolean binary;
     
     /**
      * Construct the outgoing messages queue
+     * @param out the output stream to write messages to
+     * @param highWaterMark the number of pending messages above which
+     *                      droppable messages are dropped
+     * @param maxFlushDelayNanos the shortest time between flushes under
+     *                           load, or 0 to always flush at once
+     */
+    public OutgoingServerMessageQueue(OutputStream out, int highWaterMark, long maxFlushDelayNanos){
+        if (highWaterMark <= 0)
+            throw new IllegalArgumentException("high water mark must be positive");
+        if (maxFlushDelayNanos < 0)
+            throw new IllegalArgumentException("max flush delay must not be negative");
+        this.outgoingServerMessages = new LinkedBlockingQueue<Entry>();
+        this.out = out;
+        this.batch = new byte[BATCH_SIZE];
+        this.batchLength = 0;
+        this.highWaterMark = highWaterMark;
+        this.maxFlushDelayNanos = maxFlushDelayNanos;
+        this.droppedMessages = new AtomicLong(0);
+        this.flushedMessages = new AtomicLong(0);
+        this.totalFlushLatencyNanos = new AtomicLong(0);
+        this.maxFlushLatencyNanos = 0;
+        this.flushes = new AtomicLong(0);
+        this.writes = new AtomicLong(0);
+        this.closed = false;
+        this.binary = false;
+    }
+    
+    /**
+     * Construct the outgoing messages queue with the default flush delay
+     * @param out the output stream to write messages to
+     * @param highWaterMark the number of pending messages above which
+     *                      droppable messages are dropped
+     */
+    public OutgoingServerMessageQueue(OutputStream out, int highWaterMark){
+        this(out, highWaterMark, DEFAULT_MAX_FLUSH_DELAY_NANOS);
+    }
+    
+    /**
+     * Construct the outgoing messages queue with the default high water mark
+     * @param out the output stream to write messages to
      */
-    public OutgoingServerMessageQueue(){
-        this.outgoingServerMessages = new ConcurrentLinkedQueue<OutgoingServerMessage>();
+    public OutgoingServerMessageQueue(OutputStream out){
+        this(out, DEFAULT_HIGH_WATER_MARK);
     }
     
     /**
-     * Adds a message to the queue
+     * Adds a message to the queue. The message is dropped if the queue is
+     * closed, or if it is droppable and the queue is above its high water mark.
      * @param outgoingMessage the message to add
      */
-    public void addMessage(OutgoingServerMessage outgoingMessage){
-        this.outgoingServerMessages.add(outgoingMessage);
+    public synchronized void addMessage(OutgoingServerMessage outgoingMessage){
+        if (this.closed)
+            return;
+        if (outgoingMessage.isDroppable()
+                && this.outgoingServerMessages.size() >= this.highWaterMark) {
+            this.droppedMessages.incrementAndGet();
+            return;
+        }
+        this.outgoingServerMessages.add(new Entry(outgoingMessage, this.binary, System.nanoTime()));
+    }
+    
+    /**
+     * Adds the last message to be sent as text, and sends everything added
+     * after it as BinaryProtocol frames
+     * @param lastTextMessage the message to add
+     */
+    public synchronized void switchToBinary(OutgoingServerMessage lastTextMessage){
+        addMessage(lastTextMessage);
+        this.binary = true;
+    }
+    
+    /**
+     * Stops the writer once the messages already on the queue have been
+     * written, then closes the output stream
+     */
+    public void close(){
+        if (this.closed)
+            return;
+        this.closed = true;
+        this.outgoingServerMessages.add(CLOSE);
+    }
+    
+    /**
+     * @return the number of messages waiting to be written
+     */
+    public int getQueueDepth(){
+        return this.outgoingServerMessages.size();
+    }
+    
+    /**
+     * @return the number of messages dropped because the queue was full
+     */
+    public long getDroppedMessageCount(){
+        return this.droppedMessages.get();
+    }
+    
+    /**
+     * @return the number of messages written so far
+     */
+    public long getFlushedMessageCount(){
+        return this.flushedMessages.get();
+    }
+    
+    /**
+     * @return the average time between a message being queued and being
+     *         flushed, in nanoseconds, or 0 if nothing was flushed yet
+     */
+    public long getAverageFlushLatencyNanos(){
+        long flushed = this.flushedMessages.get();
+        return flushed == 0 ? 0 : this.totalFlushLatencyNanos.get() / flushed;
+    }
+    
+    /**
+     * @return the longest time between a message being queued and being
+     *         flushed, in nanoseconds
+     */
+    public long getMaxFlushLatencyNanos(){
+        return this.maxFlushLatencyNanos;
+    }
+    
+    /**
+     * @return the number of times the output stream was flushed
+     */
+    public long getFlushCount(){
+        return this.flushes.get();
+    }
+    
+    /**
+     * @return the number of writes to the output stream, at least one per
+     *         flush and more when a batch outgrows its buffer
+     */
+    public long getWriteCount(){
+        return this.writes.get();
+    }
+    
+    /**
+     * @return the average number of messages written per flush, or 0 if
+     *         nothing was flushed yet
+     */
+    public double getAverageBatchSize(){
+        long flushes = this.flushes.get();
+        return flushes == 0 ? 0 : (double) this.flushedMessages.get() / flushes;
     }
     
     /**
-     * Outputs messages as they come on the queue
+     * Outputs messages as they come on the queue, parking while it is empty
+     * and flushing once for all the messages that were waiting, or that came
+     * before the next flush is due, up to MAX_BATCH_MESSAGES at a time
      */
     @Override
     public void run() {
-        OutgoingServerMessage outgoingServerMessage;
+        List<Entry> written = new ArrayList<Entry>();
         try {
-            while (true) {
-                if(!outgoingServerMessages.isEmpty()){
-                    outgoingServerMessage = outgoingServerMessages.remove();
-                    for(PrintWriter out : outgoingServerMessage.getOutStreams()){
-                        out.println(outgoingServerMessage.getMessage());
+            boolean open = true;
+            long lastFlushNanos = System.nanoTime() - this.maxFlushDelayNanos;
+            while (open) {
+                Entry entry = outgoingServerMessages.take();
+                long deadline = lastFlushNanos + this.maxFlushDelayNanos;
+                // a batch that starts after its flush was due only takes the
+                // messages already waiting
+                boolean delayed = deadline - System.nanoTime() > 0;
+                while (entry != null && entry != CLOSE) {
+                    OutgoingServerMessage message = entry.message;
+                    append(message.getEncoded(entry.binary));
+                    while (message.hasNext()) {
+                        message = message.next();
+                        append(message.getEncoded(entry.binary));
+                    }
+                    written.add(entry);
+                    if (written.size() >= MAX_BATCH_MESSAGES
+                            || delayed && System.nanoTime() - deadline >= 0) {
+                        entry = null;
+                        break;
                     }
+                    entry = outgoingServerMessages.poll();
+                    if (entry == null)
+                        entry = pollUntil(deadline);
                 }
+                open = entry != CLOSE;
+                if (written.isEmpty())
+                    continue;
+                writeBatch();
+                out.flush();
+                this.flushes.incrementAndGet();
+                long now = System.nanoTime();
+                lastFlushNanos = now;
+                for (Entry flushed : written) {
+                    recordFlush(now - flushed.enqueuedAtNanos);
+                }
+                written.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+        } finally {
+            this.closed = true;
+            this.outgoingServerMessages.clear();
+            try {
+                out.close();
+            } catch (IOException e) {
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Waits for the next message until the next flush is due
+     * @param deadline when the next flush is due, in System.nanoTime
+     * @return the next message, or null to flush now
+     * @throws InterruptedException if the writer is interrupted while waiting
+     */
+    private Entry pollUntil(long deadline) throws InterruptedException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0)
+            return null;
+        return this.outgoingServerMessages.poll(remaining, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Copies an encoded message into the batch, writing the batch out
+     * whenever it fills up
+     * @param bytes the encoded message
+     * @throws IOException if writing the batch fails
+     */
+    private void append(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (this.batchLength == this.batch.length)
+                writeBatch();
+            int length = Math.min(bytes.remaining(), this.batch.length - this.batchLength);
+            bytes.get(this.batch, this.batchLength, length);
+            this.batchLength += length;
+        }
+    }
+    
+    /**
+     * Writes the batch to the output stream and empties it
+     * @throws IOException if the write fails
+     */
+    private void writeBatch() throws IOException {
+        if (this.batchLength == 0)
+            return;
+        this.out.write(this.batch, 0, this.batchLength);
+        this.writes.incrementAndGet();
+        this.batchLength = 0;
+    }
+    
+    /**
+     * Updates the counters after a message was flushed
+     * @param latencyNanos the time the message spent on the queue
+     */
+    private void recordFlush(long latencyNanos){
+        this.flushedMessages.incrementAndGet();
+        this.totalFlushLatencyNanos.addAndGet(latencyNanos);
+        if (latencyNanos > this.maxFlushLatencyNanos)
+            this.maxFlushLatencyNanos = latencyNanos;
+    }
+    
+    /**
+     * A message on the queue together with the time it was queued
+     */
+    private static class Entry {
+        private final OutgoingServerMessage message;
+        private final boolean binary;
+        private final long enqueuedAtNanos;
+        private Entry(OutgoingServerMessage message, boolean binary, long enqueuedAtNanos){
+            this.message = message;
+            this.binary = binary;
+            this.enqueuedAtNanos = enqueuedAtNanos;
         }
     }
 
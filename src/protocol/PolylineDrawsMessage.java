@@ -0,0 +1,89 @@
+package protocol;
+
+import adts.Line;
+
+/**
+ * A polyline sent as one draw message per segment, for users who did not ask
+ * for the polyline feature and so only know draw:
+ * 
+ * draw [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]
+ * ... (one per segment)
+ * 
+ * The segments go out one after the other with nothing in between, so a
+ * recipient gets the whole polyline or, if the first draw is dropped because
+ * the recipient is behind, none of it. Each segment is only encoded when
+ * the previous one is being written, and carries its line so that users who
+ * switched to BinaryProtocol get draw frames.
+ */
+class PolylineDrawsMessage extends OutgoingServerMessage {
+
+    private final float strokeThickness;
+    private final int r;
+    private final int g;
+    private final int b;
+    private final int a;
+
+    /**
+     * The points of the polyline, x then y; shared, never changed
+     */
+    private final int[] points;
+    private final int pointCount;
+
+    /**
+     * The index of the segment of this message
+     */
+    private final int segment;
+
+    /**
+     * Make the draw message of the first segment
+     * @param points the points, x then y, of the polyline; not changed
+     *               afterwards
+     * @param pointCount the number of points, at least 2
+     */
+    PolylineDrawsMessage(float strokeThickness, int r, int g, int b, int a,
+            int[] points, int pointCount) {
+        this(strokeThickness, r, g, b, a, points, pointCount, 0);
+    }
+
+    private PolylineDrawsMessage(float strokeThickness, int r, int g, int b,
+            int a, int[] points, int pointCount, int segment) {
+        this(line(strokeThickness, r, g, b, a, points, segment),
+                strokeThickness, r, g, b, a, points, pointCount, segment);
+    }
+
+    private PolylineDrawsMessage(Line line, float strokeThickness, int r,
+            int g, int b, int a, int[] points, int pointCount, int segment) {
+        super(line);
+        this.strokeThickness = strokeThickness;
+        this.r = r;
+        this.g = g;
+        this.b = b;
+        this.a = a;
+        this.points = points;
+        this.pointCount = pointCount;
+        this.segment = segment;
+    }
+
+    private static Line line(float strokeThickness, int r, int g, int b,
+            int a, int[] points, int segment) {
+        return new Line(points[2 * segment], points[2 * segment + 1],
+                points[2 * segment + 2], points[2 * segment + 3],
+                strokeThickness, r, g, b, a);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.segment + 2 < this.pointCount;
+    }
+
+    /**
+     * @return the draw message of the next segment
+     */
+    @Override
+    public OutgoingServerMessage next() {
+        if (!hasNext())
+            return null;
+        return new PolylineDrawsMessage(this.strokeThickness, this.r, this.g,
+                this.b, this.a, this.points, this.pointCount, this.segment + 1);
+    }
+}
@@ -0,0 +1,1360 @@
+package server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import adts.BoardChangeListener;
+import adts.Line;
+import adts.LobbyModel;
+import adts.StrokeSnapshot;
+import adts.Whiteboard;
+
+/**
+ * Keeps the boards of a LobbyModel on disk, as one append-only log per board
+ * in a directory, so that they survive a restart of the server.
+ *
+ * The journal listens to the model's board changes. On the thread making a
+ * change, a stroke only marks its board's log as changed; names and clears
+ * are encoded into the log's buffer in memory. A committer thread then, at
+ * most once every commit interval, takes the lines drawn on each changed
+ * board since its last commit from the board itself, writes them after the
+ * buffer through the log's FileChannel, and forces the logs to disk; a
+ * burst of strokes thus costs one write and one fsync per board instead of
+ * one per stroke, and drawing does no encoding. A change reaches the disk
+ * within about a commit interval of being made, so a crash may lose the
+ * last interval's changes, but never reorders or tears them.
+ *
+ * If writing or forcing a log fails, the failure is logged and the journal
+ * is unhealthy until every log that failed is committed. The names and
+ * clears that failed are kept in front of the log's pending ones, the lines
+ * are taken from the board again, and its channel is closed. The committer
+ * retries every RETRY_INTERVAL_NANOS. It reopens the log and cuts it back to
+ * its last forced batch before writing, so no batch goes missing or is
+ * torn. sync and close throw while the journal is unhealthy. The server
+ * goes on in memory in the meantime; the journal only keeps the names and
+ * clears not written, up to the most pending bytes per board. A board whose
+ * pending bytes would take more has them dropped, with a SEVERE log, and
+ * its later names and clears are dropped too until the committer can write
+ * again; it then rewrites the board's log as a snapshot, as a compaction
+ * does, so only a crash in the meantime loses them.
+ *
+ * A log keeps every change ever made to its board, though a clear makes all
+ * the changes before it garbage. Once a log is over the compaction size and
+ * more than twice what its board's live lines take, the committer hands it
+ * to a compactor thread, which rewrites it as a snapshot: the board's name
+ * and its lines as they are now, written to a temporary file, forced, and
+ * moved over the log. Reading the boards back thus takes time in their live
+ * lines rather than in everything ever drawn on them, and a log is
+ * rewritten once per doubling, so each byte logged is rewritten about once.
+ *
+ * The log of board ID is board-ID.log. It is a sequence of batches:
+ * [int length] [int CRC32 of the records] [records], and each record is a
+ * type byte followed by:
+ *      CREATE, RENAME: [short length] [UTF-8 name]
+ *      LINE: [x1] [y1] [x2] [y2] [float strokeThickness] [int argb]
+ *      POLYLINE: [float strokeThickness] [int argb] [numberOfPoints] [x1] [y1]...
+ *      CLEAR: nothing
+ *      SEGMENTS: [numberOfSegments] then LINE's fields for each segment
+ * all ints and floats being 4 bytes, big-endian. Lines are written as
+ * SEGMENTS, at most SNAPSHOT_CHUNK to a batch; LINE and POLYLINE are still
+ * read. A crash while writing leaves a batch cut short or not matching its
+ * CRC at the end of a log; recover stops there and cuts it off.
+ *
+ * Thread-safety:
+ *
+ * The state of a log that changes with its board (its buffer, the lines
+ * logged, whether it is queued) is guarded by the board's lock, which the
+ * board holds while it tells its listeners, so changes reach the buffer in
+ * the order the board makes them, and the lines a commit takes always
+ * follow the names and clears in the buffer. Commits, by the committer or
+ * by sync, hold the commit lock, so each log is written by one of them at a
+ * time and batches are written in order. Channels are only used holding
+ * the commit lock. A board being drawn on is held by its drawing threads
+ * nearly all the time, so a commit does not wait for its lock: it asks for
+ * the log's changes, and the next change to the board, already holding the
+ * lock, hands the board's lines and the buffer over; only if none comes
+ * within HAND_OVER_NANOS does the commit take the board's lock itself. A
+ * compaction holds the commit lock, then the board's, only to take the
+ * board's lines and the buffer; the commit lock is always taken first, so
+ * this cannot deadlock with drawing threads.
+ */
+public class BoardJournal implements BoardChangeListener {
+
+	/**
+	 * The commit interval when none is given
+	 */
+	public static final long DEFAULT_COMMIT_INTERVAL_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(5);
+
+	/**
+	 * The compaction size when none is given: smaller logs are never compacted
+	 */
+	public static final long DEFAULT_COMPACTION_BYTES = 1 << 20;
+
+	/**
+	 * The time the committer waits after a failed commit before trying again
+	 */
+	public static final long RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The most pending bytes per board when none is given
+	 */
+	public static final int DEFAULT_MAX_PENDING_BYTES = 16 << 20;
+
+	private final static Logger LOGGER = Logger.getLogger(BoardJournal.class.getName());
+
+	private static final byte CREATE = 1;
+	private static final byte RENAME = 2;
+	private static final byte LINE = 3;
+	private static final byte POLYLINE = 4;
+	private static final byte CLEAR = 5;
+	private static final byte SEGMENTS = 6;
+
+	/**
+	 * Put on the dirty and compaction queues by close to wake the committer
+	 * and the compactor
+	 */
+	private static final BoardLog CLOSE = new BoardLog(Integer.MIN_VALUE, null);
+
+	private static final int BATCH_HEADER = 8;
+	private static final int SEGMENT_BYTES = 24;
+
+	/**
+	 * The segments in each batch of lines, so that reading one back does
+	 * not need the whole board in a buffer
+	 */
+	private static final int SNAPSHOT_CHUNK = 4096;
+
+	/**
+	 * The logs of boards with lower ids are found in an array rather than
+	 * the map
+	 */
+	private static final int INDEXED_BOARD_IDS = 1 << 16;
+
+	/**
+	 * The longest a commit waits for changes to a board to hand its log's
+	 * changes over before taking the board's lock, and how often it looks
+	 */
+	private static final long HAND_OVER_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long HAND_OVER_POLL_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(50);
+
+	private static final String PREFIX = "board-";
+	private static final String SUFFIX = ".log";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The changes of one board not yet committed, and its log
+	 */
+	private static final class BoardLog {
+		private final int boardID;
+		private final Whiteboard board;
+
+		/**
+		 * Guarded by the board's lock: the encoded names and clears not yet
+		 * committed, whether the log is on the dirty queue for them or for
+		 * lines, the number of the board's lines logged, and the number of
+		 * times the board was cleared
+		 */
+		private byte[] pending = new byte[256];
+		private int size;
+		private boolean queued;
+		private int linesLogged;
+		private int clears;
+
+		/**
+		 * Guarded by the board's lock: whether changes were dropped for
+		 * taking too much memory, so that the log is to be rewritten as a
+		 * snapshot and changes are dropped until it is
+		 */
+		private boolean overflowed;
+
+		/**
+		 * Guarded by the board's lock: about the bytes the board's live
+		 * lines take in the log, that is the bytes logged since it was last
+		 * cleared or compacted
+		 */
+		private long liveBytes;
+
+		/**
+		 * Set by a commit to have the next change to the board take the
+		 * log's changes for it, and the changes taken then, until the commit
+		 * picks them up
+		 */
+		private volatile boolean wanted;
+		private volatile Changes handed;
+
+		/**
+		 * Guarded by the commit lock: the log's file, null while it is
+		 * closed, the length of the log as last forced, whether the log was
+		 * opened before, whether it is on the compaction queue, and whether
+		 * its last commit failed
+		 */
+		private FileChannel channel;
+		private long length;
+		private boolean opened;
+		private boolean compacting;
+		private boolean failed;
+
+		private BoardLog(int boardID, Whiteboard board) {
+			this.boardID = boardID;
+			this.board = board;
+		}
+
+		/**
+		 * Takes the pending records and the lines not yet logged for a
+		 * commit, and counts them as logged; called holding the board's lock
+		 */
+		private Changes take() {
+			Changes changes = new Changes();
+			this.queued = false;
+			changes.overflowed = this.overflowed;
+			if (this.overflowed)
+				return changes;
+			changes.lines = this.board.peekLines();
+			changes.records = this.pending;
+			changes.length = this.size;
+			changes.firstLine = this.linesLogged;
+			changes.clears = this.clears;
+			if (this.size > 0) {
+				this.pending = new byte[256];
+				this.size = 0;
+			}
+			this.linesLogged = changes.lines.size();
+			this.liveBytes += (long) SEGMENT_BYTES
+					* (changes.lines.size() - changes.firstLine);
+			changes.liveBytes = this.liveBytes;
+			return changes;
+		}
+
+		/**
+		 * Makes room for a record of the given length after size, unless
+		 * that would take more than the most pending bytes; called holding
+		 * the board's lock
+		 *
+		 * @return the pending buffer, or null if the record is to be dropped
+		 */
+		private byte[] reserve(int length, int maxPendingBytes) {
+			if (this.overflowed)
+				return null;
+			if (this.size + length > maxPendingBytes) {
+				overflow(this.size + length);
+				return null;
+			}
+			if (this.size + length > this.pending.length)
+				this.pending = Arrays.copyOf(this.pending, Math.min(Math.max(
+						2 * this.pending.length, this.size + length),
+						maxPendingBytes));
+			return this.pending;
+		}
+
+		/**
+		 * Drops the pending records, to be rewritten from the board;
+		 * called holding the board's lock
+		 *
+		 * @param bytes
+		 *            the bytes the records would have taken
+		 */
+		private void overflow(long bytes) {
+			if (!this.overflowed)
+				LOGGER.severe("dropping " + bytes + " bytes of changes to board "
+						+ this.boardID + " not yet in the journal; its log is"
+						+ " rewritten from the board once it can be written");
+			this.overflowed = true;
+			this.pending = new byte[256];
+			this.size = 0;
+		}
+
+		/**
+		 * Puts records that could not be committed back in front of the
+		 * pending ones, or drops them all if they would take more than the
+		 * most pending bytes; called holding the board's lock
+		 */
+		private void giveBack(byte[] records, int length, int maxPendingBytes) {
+			if (this.overflowed)
+				return;
+			if ((long) length + this.size > maxPendingBytes) {
+				overflow((long) length + this.size);
+				return;
+			}
+			byte[] pending = new byte[Math.max(256, length + this.size)];
+			System.arraycopy(records, 0, pending, 0, length);
+			System.arraycopy(this.pending, 0, pending, length, this.size);
+			this.pending = pending;
+			this.size += length;
+		}
+
+		/**
+		 * Drops the first pending records, which are on disk by now; called
+		 * holding the board's lock
+		 */
+		private void dropPending(int length) {
+			System.arraycopy(this.pending, length, this.pending, 0,
+					this.size - length);
+			this.size -= length;
+		}
+	}
+
+	/**
+	 * The changes of a log taken by a commit: whether the log overflowed,
+	 * or else its pending records, its board's lines with those from
+	 * firstLine on not yet logged, the times the board was cleared, and the
+	 * log's live bytes once they are written
+	 */
+	private static final class Changes {
+		private boolean overflowed;
+		private byte[] records;
+		private int length;
+		private StrokeSnapshot lines;
+		private int firstLine;
+		private int clears;
+		private long liveBytes;
+
+		private boolean isEmpty() {
+			return this.length == 0 && this.firstLine == this.lines.size();
+		}
+	}
+
+	/**
+	 * Writes an int at the given position
+	 *
+	 * @return the position after it
+	 */
+	private static int putInt(byte[] bytes, int position, int value) {
+		bytes[position] = (byte) (value >>> 24);
+		bytes[position + 1] = (byte) (value >>> 16);
+		bytes[position + 2] = (byte) (value >>> 8);
+		bytes[position + 3] = (byte) value;
+		return position + 4;
+	}
+
+	private final File directory;
+	private final long commitIntervalNanos;
+	private final long compactionBytes;
+	private final int maxPendingBytes;
+	private final ConcurrentMap<Integer, BoardLog> logs;
+
+	/**
+	 * The logs of the boards with ids below INDEXED_BOARD_IDS, by id, so
+	 * that finding the log of a change neither hashes nor boxes its id;
+	 * grown holding the map's lock. A log missing here is looked for in the
+	 * map.
+	 */
+	private volatile BoardLog[] logsByID;
+
+	/**
+	 * The logs with changes to commit, each once
+	 */
+	private final LinkedBlockingQueue<BoardLog> dirty;
+
+	/**
+	 * The logs to compact, each once
+	 */
+	private final LinkedBlockingQueue<BoardLog> compactions;
+
+	/**
+	 * Whether recover was called; logs are only compacted once it was, so
+	 * that a log not read back is never cut down to what the model has
+	 */
+	private volatile boolean recovered;
+
+	private final Object commitLock;
+	private final Thread committer;
+	private final Thread compactor;
+	private final CRC32 crc;
+	private final ByteBuffer header;
+
+	/**
+	 * Guarded by the commit lock: where batches of lines are encoded
+	 */
+	private final byte[] segments;
+
+	private volatile boolean closed;
+
+	/**
+	 * The last commit's failure, null while commits succeed
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Guarded by the commit lock: the number of logs whose last commit
+	 * failed; the journal is only healthy again once none did
+	 */
+	private int failedLogs;
+
+	private final AtomicLong commits;
+	private final AtomicLong committedBytes;
+	private final AtomicLong compactionCount;
+
+	/**
+	 * Opens a journal in the given directory with the default commit
+	 * interval, making the directory if needed
+	 *
+	 * @param directory
+	 *            where the logs are
+	 * @throws IOException
+	 *             if the directory cannot be made
+	 */
+	public BoardJournal(File directory) throws IOException {
+		this(directory, DEFAULT_COMMIT_INTERVAL_NANOS);
+	}
+
+	/**
+	 * Opens a journal in the given directory, making the directory if needed.
+	 * The logs there are only read by recover.
+	 *
+	 * @param directory
+	 *            where the logs are
+	 * @param commitIntervalNanos
+	 *            the shortest time between commits while changes keep coming
+	 * @throws IOException
+	 *             if the directory cannot be made
+	 */
+	public BoardJournal(File directory, long commitIntervalNanos)
+			throws IOException {
+		this(directory, commitIntervalNanos, DEFAULT_COMPACTION_BYTES);
+	}
+
+	/**
+	 * Opens a journal in the given directory, making the directory if needed.
+	 * The logs there are only read by recover.
+	 *
+	 * @param directory
+	 *            where the logs are
+	 * @param commitIntervalNanos
+	 *            the shortest time between commits while changes keep coming
+	 * @param compactionBytes
+	 *            the length under which a log is never compacted on its own,
+	 *            Long.MAX_VALUE for never
+	 * @throws IOException
+	 *             if the directory cannot be made
+	 */
+	public BoardJournal(File directory, long commitIntervalNanos,
+			long compactionBytes) throws IOException {
+		this(directory, commitIntervalNanos, compactionBytes,
+				DEFAULT_MAX_PENDING_BYTES);
+	}
+
+	/**
+	 * Opens a journal in the given directory, making the directory if needed.
+	 * The logs there are only read by recover.
+	 *
+	 * @param directory
+	 *            where the logs are
+	 * @param commitIntervalNanos
+	 *            the shortest time between commits while changes keep coming
+	 * @param compactionBytes
+	 *            the length under which a log is never compacted on its own,
+	 *            Long.MAX_VALUE for never
+	 * @param maxPendingBytes
+	 *            the most bytes of changes a board keeps in memory while they
+	 *            cannot be written
+	 * @throws IOException
+	 *             if the directory cannot be made
+	 */
+	public BoardJournal(File directory, long commitIntervalNanos,
+			long compactionBytes, int maxPendingBytes) throws IOException {
+		if (commitIntervalNanos < 0)
+			throw new IllegalArgumentException("commit interval must not be negative");
+		if (compactionBytes < 0)
+			throw new IllegalArgumentException("compaction size must not be negative");
+		if (maxPendingBytes < 256)
+			throw new IllegalArgumentException("most pending bytes must be at least 256");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot make journal directory " + directory);
+		this.directory = directory;
+		this.commitIntervalNanos = commitIntervalNanos;
+		this.compactionBytes = compactionBytes;
+		this.maxPendingBytes = maxPendingBytes;
+		this.logs = new ConcurrentHashMap<Integer, BoardLog>();
+		this.logsByID = new BoardLog[16];
+		this.dirty = new LinkedBlockingQueue<BoardLog>();
+		this.compactions = new LinkedBlockingQueue<BoardLog>();
+		this.commitLock = new Object();
+		this.crc = new CRC32();
+		this.header = ByteBuffer.allocate(BATCH_HEADER);
+		this.segments = new byte[5 + SEGMENT_BYTES * SNAPSHOT_CHUNK];
+		this.commits = new AtomicLong();
+		this.committedBytes = new AtomicLong();
+		this.compactionCount = new AtomicLong();
+		this.committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commitLoop();
+			}
+		}, "BoardJournal");
+		this.committer.setDaemon(true);
+		this.committer.start();
+		this.compactor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				compactLoop();
+			}
+		}, "BoardJournal-compactor");
+		this.compactor.setDaemon(true);
+		this.compactor.start();
+	}
+
+	/**
+	 * Reads the boards back from the logs into the model, with their ids,
+	 * names and lines. Must be called before the journal is added to the
+	 * model as a BoardChangeListener, on a model without those boards. Logs
+	 * are compacted from then on.
+	 *
+	 * @param lobbyModel
+	 *            the model to add the boards to
+	 * @return the number of boards read back
+	 * @throws IOException
+	 *             if a log cannot be read
+	 */
+	public int recover(LobbyModel lobbyModel) throws IOException {
+		File[] files = this.directory.listFiles();
+		if (files == null)
+			throw new IOException("cannot list journal directory " + this.directory);
+		int recovered = 0;
+		synchronized (this.commitLock) {
+			this.recovered = true;
+			for (File file : files) {
+				if (file.getName().endsWith(SUFFIX + TEMP_SUFFIX)) {
+					// a snapshot a crash kept from replacing its log
+					file.delete();
+					continue;
+				}
+				int boardID = boardIDOf(file.getName());
+				if (boardID == Integer.MIN_VALUE || this.logs.containsKey(boardID))
+					continue;
+				FileChannel channel = open(boardID);
+				long end = replay(channel, boardID, lobbyModel);
+				if (end < channel.size()) {
+					// a batch torn by a crash while writing
+					channel.truncate(end);
+					channel.force(true);
+				}
+				Whiteboard board = lobbyModel.getWhiteboard(boardID);
+				if (board == null) {
+					// nothing whole in it, so a new board can have it
+					channel.close();
+					continue;
+				}
+				channel.position(end);
+				BoardLog log = new BoardLog(boardID, board);
+				log.channel = channel;
+				log.opened = true;
+				log.length = end;
+				log.linesLogged = board.peekLines().size();
+				log.liveBytes = snapshotLength(board.getBoardName(),
+						log.linesLogged);
+				this.logs.put(boardID, log);
+				index(log);
+				compactIfWasteful(log, log.liveBytes);
+				recovered++;
+			}
+		}
+		return recovered;
+	}
+
+	/**
+	 * Reads the batches of a log and makes their changes on the model
+	 *
+	 * @return the position after the last whole batch
+	 */
+	private static long replay(FileChannel channel, int boardID,
+			LobbyModel lobbyModel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER);
+		ByteBuffer records = ByteBuffer.allocate(4096);
+		CRC32 crc = new CRC32();
+		boolean created = false;
+		long position = 0;
+		long size = channel.size();
+		while (position + BATCH_HEADER <= size) {
+			header.clear();
+			readFully(channel, header, position);
+			int length = header.getInt(0);
+			int checksum = header.getInt(4);
+			if (length < 0 || position + BATCH_HEADER + length > size)
+				break;
+			if (records.capacity() < length)
+				records = ByteBuffer.allocate(Math.max(length, 2 * records.capacity()));
+			records.clear();
+			records.limit(length);
+			readFully(channel, records, position + BATCH_HEADER);
+			crc.reset();
+			crc.update(records.array(), 0, length);
+			if ((int) crc.getValue() != checksum)
+				break;
+			records.flip();
+			created = apply(records, boardID, created, lobbyModel);
+			position += BATCH_HEADER + length;
+		}
+		if (!created && position > 0)
+			lobbyModel.restoreBoard(boardID, "Board" + boardID);
+		return position;
+	}
+
+	/**
+	 * Makes the changes of one batch on the model
+	 *
+	 * @return whether the board exists in the model now
+	 */
+	private static boolean apply(ByteBuffer records, int boardID,
+			boolean created, LobbyModel lobbyModel) {
+		while (records.hasRemaining()) {
+			byte type = records.get();
+			if (type == CREATE || type == RENAME) {
+				byte[] name = new byte[records.getShort() & 0xffff];
+				records.get(name);
+				if (created) {
+					lobbyModel.renameBoard(boardID, new String(name, UTF8));
+				} else {
+					lobbyModel.restoreBoard(boardID, new String(name, UTF8));
+					created = true;
+				}
+				continue;
+			}
+			if (!created) {
+				// logged before the journal heard of the board
+				lobbyModel.restoreBoard(boardID, "Board" + boardID);
+				created = true;
+			}
+			if (type == LINE) {
+				int x1 = records.getInt();
+				int y1 = records.getInt();
+				int x2 = records.getInt();
+				int y2 = records.getInt();
+				float strokeThickness = records.getFloat();
+				int argb = records.getInt();
+				lobbyModel.addLineToBoardID(new Line(x1, y1, x2, y2,
+						strokeThickness, (argb >>> 16) & 0xff,
+						(argb >>> 8) & 0xff, argb & 0xff, argb >>> 24), boardID);
+			} else if (type == SEGMENTS) {
+				int segmentCount = records.getInt();
+				int[] points = new int[4];
+				for (int i = 0; i < segmentCount; i++) {
+					points[0] = records.getInt();
+					points[1] = records.getInt();
+					points[2] = records.getInt();
+					points[3] = records.getInt();
+					float strokeThickness = records.getFloat();
+					int argb = records.getInt();
+					lobbyModel.addPolylineToBoardID(strokeThickness,
+							(argb >>> 16) & 0xff, (argb >>> 8) & 0xff,
+							argb & 0xff, argb >>> 24, points, 2, boardID);
+				}
+			} else if (type == POLYLINE) {
+				float strokeThickness = records.getFloat();
+				int argb = records.getInt();
+				int pointCount = records.getInt();
+				int[] points = new int[2 * pointCount];
+				for (int i = 0; i < points.length; i++) {
+					points[i] = records.getInt();
+				}
+				lobbyModel.addPolylineToBoardID(strokeThickness,
+						(argb >>> 16) & 0xff, (argb >>> 8) & 0xff, argb & 0xff,
+						argb >>> 24, points, pointCount, boardID);
+			} else if (type == CLEAR) {
+				lobbyModel.clearBoard(boardID);
+			} else {
+				throw new IllegalStateException(String.format(
+						"unknown record %d in the log of board %d", type, boardID));
+			}
+		}
+		return created;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0)
+				throw new EOFException();
+			position += read;
+		}
+	}
+
+	@Override
+	public void boardCreated(Whiteboard board, String boardName) {
+		// told holding the model's lock only
+		synchronized (board) {
+			appendName(board, CREATE, boardName);
+		}
+	}
+
+	@Override
+	public void boardRenamed(Whiteboard board, String boardName) {
+		appendName(board, RENAME, boardName);
+	}
+
+	/**
+	 * Called holding the board's lock
+	 */
+	private void appendName(Whiteboard board, byte type, String boardName) {
+		byte[] name = boardName.getBytes(UTF8);
+		BoardLog log = log(board);
+		byte[] bytes = log.reserve(3 + name.length, this.maxPendingBytes);
+		if (bytes != null) {
+			int position = log.size;
+			bytes[position] = type;
+			bytes[position + 1] = (byte) (name.length >>> 8);
+			bytes[position + 2] = (byte) name.length;
+			System.arraycopy(name, 0, bytes, position + 3, name.length);
+			log.size = position + 3 + name.length;
+			log.liveBytes += 3 + name.length;
+		}
+		changed(log);
+	}
+
+	/**
+	 * The line is taken from the board by the next commit
+	 */
+	@Override
+	public void lineDrawn(Whiteboard board, Line line) {
+		changed(log(board));
+	}
+
+	/**
+	 * The segments are taken from the board by the next commit
+	 */
+	@Override
+	public void polylineDrawn(Whiteboard board, float strokeThickness, int r,
+			int g, int b, int a, int[] points, int pointCount) {
+		changed(log(board));
+	}
+
+	@Override
+	public void boardCleared(Whiteboard board) {
+		BoardLog log = log(board);
+		byte[] bytes = log.reserve(1, this.maxPendingBytes);
+		if (bytes != null)
+			bytes[log.size++] = CLEAR;
+		// the lines not yet logged are gone, and those logged are garbage
+		log.linesLogged = 0;
+		log.clears++;
+		log.liveBytes = 1;
+		changed(log);
+	}
+
+	/**
+	 * @return the log of the board, made if there is none
+	 */
+	private BoardLog log(Whiteboard board) {
+		int boardID = board.getBoardID();
+		BoardLog[] logsByID = this.logsByID;
+		if (boardID >= 0 && boardID < logsByID.length) {
+			BoardLog log = logsByID[boardID];
+			if (log != null)
+				return log;
+		}
+		BoardLog log = this.logs.get(boardID);
+		if (log == null) {
+			BoardLog made = new BoardLog(boardID, board);
+			log = this.logs.putIfAbsent(boardID, made);
+			if (log == null)
+				log = made;
+		}
+		index(log);
+		return log;
+	}
+
+	/**
+	 * Puts a log in the array of logs by id if its id is low enough
+	 */
+	private void index(BoardLog log) {
+		if (log.boardID < 0 || log.boardID >= INDEXED_BOARD_IDS)
+			return;
+		synchronized (this.logs) {
+			BoardLog[] logsByID = this.logsByID;
+			if (log.boardID >= logsByID.length)
+				logsByID = Arrays.copyOf(logsByID, Math.min(INDEXED_BOARD_IDS,
+						Math.max(2 * logsByID.length, log.boardID + 1)));
+			logsByID[log.boardID] = log;
+			this.logsByID = logsByID;
+		}
+	}
+
+	/**
+	 * Hands the log's changes over to the commit asking for them, or else
+	 * puts the log on the dirty queue if it is not there; called holding
+	 * the board's lock after each change, or each dropped one
+	 */
+	private void changed(BoardLog log) {
+		if (log.wanted) {
+			log.wanted = false;
+			log.handed = log.take();
+		} else {
+			markDirty(log);
+		}
+	}
+
+	/**
+	 * Puts the log on the dirty queue if it is not there; called holding
+	 * the board's lock
+	 */
+	private void markDirty(BoardLog log) {
+		if (!log.queued) {
+			log.queued = true;
+			this.dirty.add(log);
+		}
+	}
+
+	/**
+	 * Waits for a board to change, lets the commit interval since the last
+	 * commit go by so that more changes come in, and commits them all
+	 */
+	private void commitLoop() {
+		long lastCommit = System.nanoTime() - this.commitIntervalNanos;
+		List<BoardLog> batch = new ArrayList<BoardLog>();
+		try {
+			while (!this.closed) {
+				BoardLog first = this.dirty.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null || first == CLOSE)
+					continue;
+				long wait = lastCommit + this.commitIntervalNanos - System.nanoTime();
+				if (wait > 0)
+					TimeUnit.NANOSECONDS.sleep(wait);
+				batch.add(first);
+				this.dirty.drainTo(batch);
+				boolean committed;
+				synchronized (this.commitLock) {
+					committed = tryCommit(batch);
+				}
+				batch.clear();
+				lastCommit = System.nanoTime();
+				if (!committed)
+					TimeUnit.NANOSECONDS.sleep(RETRY_INTERVAL_NANOS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Commits the given logs, logging a failure and keeping it until every
+	 * log that failed is committed; called holding the commit lock
+	 *
+	 * @return whether the commit succeeded
+	 */
+	private boolean tryCommit(List<BoardLog> batch) {
+		try {
+			commit(batch);
+		} catch (IOException e) {
+			if (this.failure == null)
+				LOGGER.log(Level.SEVERE, "cannot write the journal in "
+						+ this.directory + ", keeping the changes in memory", e);
+			this.failure = e;
+			return false;
+		}
+		if (this.failure != null && this.failedLogs == 0) {
+			LOGGER.info("the journal in " + this.directory + " is written again");
+			this.failure = null;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the pending changes of the given logs and forces them to disk,
+	 * and rewrites those that overflowed as snapshots; called holding the
+	 * commit lock. The changes of a log that cannot be written or forced are
+	 * put back to be written again.
+	 *
+	 * @throws IOException
+	 *             the last failure, once every log was tried
+	 */
+	private void commit(List<BoardLog> batch) throws IOException {
+		List<BoardLog> written = new ArrayList<BoardLog>(batch.size());
+		Changes[] changes = new Changes[batch.size()];
+		long[] bytes = new long[batch.size()];
+		IOException failure = null;
+		for (BoardLog log : batch) {
+			if (log != CLOSE)
+				log.wanted = true;
+		}
+		long deadline = System.nanoTime() + HAND_OVER_NANOS;
+		for (BoardLog log : batch) {
+			if (log == CLOSE)
+				continue;
+			int i = written.size();
+			Changes taken = take(log, deadline);
+			if (taken.overflowed) {
+				try {
+					compact(log);
+					setFailed(log, false);
+				} catch (IOException e) {
+					failure = e;
+					setFailed(log, true);
+				}
+				continue;
+			}
+			if (taken.isEmpty())
+				continue;
+			changes[i] = taken;
+			try {
+				if (log.channel == null)
+					reopen(log);
+				bytes[i] = writeChanges(log.channel, taken.records,
+						taken.length, taken.lines, taken.firstLine);
+			} catch (IOException e) {
+				failure = e;
+				giveBack(log, taken);
+				continue;
+			}
+			written.add(log);
+		}
+		int forced = 0;
+		for (int i = 0; i < written.size(); i++) {
+			BoardLog log = written.get(i);
+			try {
+				log.channel.force(false);
+			} catch (IOException e) {
+				// what reached the disk is unknown, so the batches are
+				// written again after the last one forced
+				failure = e;
+				giveBack(log, changes[i]);
+				continue;
+			}
+			log.length += bytes[i];
+			setFailed(log, false);
+			this.committedBytes.addAndGet(bytes[i]);
+			written.set(forced, log);
+			changes[forced] = changes[i];
+			forced++;
+		}
+		if (forced > 0)
+			this.commits.incrementAndGet();
+		for (int i = 0; i < forced; i++) {
+			compactIfWasteful(written.get(i), changes[i].liveBytes);
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Takes the changes of a log asked for by a commit, waiting until the
+	 * deadline for a change to the board to hand them over and then taking
+	 * the board's lock; called holding the commit lock
+	 */
+	private Changes take(BoardLog log, long deadline) {
+		while (log.wanted && log.handed == null
+				&& System.nanoTime() < deadline) {
+			LockSupport.parkNanos(HAND_OVER_POLL_NANOS);
+		}
+		if (log.handed == null) {
+			synchronized (log.board) {
+				if (log.handed == null) {
+					log.wanted = false;
+					log.handed = log.take();
+				}
+			}
+		}
+		Changes changes = log.handed;
+		log.handed = null;
+		return changes;
+	}
+
+	/**
+	 * Writes the pending records of a log as one batch, then the lines from
+	 * the given one on as batches of SEGMENTS; called holding the commit lock
+	 *
+	 * @return the bytes written
+	 */
+	private long writeChanges(FileChannel channel, byte[] records, int length,
+			StrokeSnapshot lines, int from) throws IOException {
+		long written = 0;
+		if (length > 0)
+			written += writeBatch(channel, records, length);
+		for (int start = from; start < lines.size(); start += SNAPSHOT_CHUNK) {
+			int end = Math.min(start + SNAPSHOT_CHUNK, lines.size());
+			written += writeBatch(channel, this.segments,
+					encodeSegments(lines, start, end));
+		}
+		return written;
+	}
+
+	/**
+	 * Encodes lines as a SEGMENTS record at the start of segments; called
+	 * holding the commit lock
+	 *
+	 * @return the length of the record
+	 */
+	private int encodeSegments(StrokeSnapshot lines, int start, int end) {
+		byte[] records = this.segments;
+		records[0] = SEGMENTS;
+		int position = putInt(records, 1, end - start);
+		for (int i = start; i < end; i++) {
+			position = putInt(records, position, lines.getX1(i));
+			position = putInt(records, position, lines.getY1(i));
+			position = putInt(records, position, lines.getX2(i));
+			position = putInt(records, position, lines.getY2(i));
+			position = putInt(records, position,
+					Float.floatToIntBits(lines.getStrokeThickness(i)));
+			position = putInt(records, position, lines.getARGB(i));
+		}
+		return position;
+	}
+
+	/**
+	 * Counts a log as failed or not; called holding the commit lock
+	 */
+	private void setFailed(BoardLog log, boolean failed) {
+		if (log.failed != failed) {
+			log.failed = failed;
+			this.failedLogs += failed ? 1 : -1;
+		}
+	}
+
+	/**
+	 * Closes the channel of a log whose changes could not be committed, puts
+	 * their records back in front of its pending ones, and has their lines
+	 * taken again unless the board was cleared since; called holding the
+	 * commit lock
+	 */
+	private void giveBack(BoardLog log, Changes changes) {
+		setFailed(log, true);
+		if (log.channel != null) {
+			try {
+				log.channel.close();
+			} catch (IOException e) {
+				// reopened before the next write anyway
+			}
+			log.channel = null;
+		}
+		synchronized (log.board) {
+			if (log.clears == changes.clears) {
+				log.liveBytes -= (long) SEGMENT_BYTES
+						* (log.linesLogged - changes.firstLine);
+				log.linesLogged = changes.firstLine;
+			}
+			log.giveBack(changes.records, changes.length, this.maxPendingBytes);
+			markDirty(log);
+		}
+	}
+
+	/**
+	 * Opens the log's channel at the end of what was last forced, cutting
+	 * off what a failed commit may have left after it; called holding the
+	 * commit lock
+	 */
+	private void reopen(BoardLog log) throws IOException {
+		FileChannel channel = open(log.boardID);
+		try {
+			if (!log.opened) {
+				log.length = channel.size();
+			} else if (channel.size() > log.length) {
+				channel.truncate(log.length);
+				channel.position(log.length);
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		log.channel = channel;
+		log.opened = true;
+	}
+
+	/**
+	 * Writes records as one batch at the channel's position; called holding
+	 * the commit lock
+	 *
+	 * @return the bytes written
+	 */
+	private long writeBatch(FileChannel channel, byte[] records, int length)
+			throws IOException {
+		this.crc.reset();
+		this.crc.update(records, 0, length);
+		this.header.clear();
+		this.header.putInt(length).putInt((int) this.crc.getValue()).flip();
+		ByteBuffer[] buffers = { this.header, ByteBuffer.wrap(records, 0, length) };
+		while (buffers[1].hasRemaining()) {
+			channel.write(buffers);
+		}
+		return BATCH_HEADER + length;
+	}
+
+	/**
+	 * Puts the log on the compaction queue if it is long enough and mostly
+	 * garbage; called holding the commit lock
+	 *
+	 * @param liveBytes
+	 *            the log's live bytes as of its last commit
+	 */
+	private void compactIfWasteful(BoardLog log, long liveBytes) {
+		if (this.recovered && !log.compacting
+				&& log.length >= this.compactionBytes
+				&& log.length > 2 * liveBytes) {
+			log.compacting = true;
+			this.compactions.add(log);
+		}
+	}
+
+	/**
+	 * Waits for logs to compact and compacts them, one at a time
+	 */
+	private void compactLoop() {
+		try {
+			while (!this.closed) {
+				BoardLog log = this.compactions.poll(100, TimeUnit.MILLISECONDS);
+				if (log == null || log == CLOSE)
+					continue;
+				synchronized (this.commitLock) {
+					log.compacting = false;
+					if (this.closed)
+						continue;
+					try {
+						compact(log);
+					} catch (IOException e) {
+						// the log is left as it was, to be compacted after
+						// its next commit
+						LOGGER.log(Level.WARNING, "cannot compact the log of board "
+								+ log.boardID, e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Rewrites the log of a board as a snapshot of the board as it is now,
+	 * whatever its length, and returns once it is on disk
+	 *
+	 * @param boardID
+	 *            the id of the board
+	 * @throws IOException
+	 *             if it could not be written; the log is left as it was
+	 */
+	public void compact(int boardID) throws IOException {
+		BoardLog log = this.logs.get(boardID);
+		if (log == null)
+			return;
+		synchronized (this.commitLock) {
+			compact(log);
+		}
+	}
+
+	/**
+	 * Writes the board's name and lines to a temporary file and moves it
+	 * over the log, then drops the changes that were pending when the lines
+	 * were taken, which the lines have. Changes made once the lines are
+	 * taken are kept even if the log overflowed, and are dropped again if
+	 * the snapshot cannot be written. Called holding the commit lock.
+	 */
+	private void compact(BoardLog log) throws IOException {
+		Whiteboard board = log.board;
+		String name;
+		StrokeSnapshot lines;
+		int taken;
+		int linesLogged;
+		int clears;
+		boolean overflowed;
+		// the board tells its listeners holding its lock, so the changes
+		// pending when its lines are taken are exactly those the lines have
+		// that the log may not
+		synchronized (board) {
+			name = board.getBoardName();
+			lines = board.peekLines();
+			taken = log.size;
+			linesLogged = log.linesLogged;
+			clears = log.clears;
+			log.linesLogged = lines.size();
+			overflowed = log.overflowed;
+			log.overflowed = false;
+		}
+		long length;
+		try {
+			length = writeSnapshot(log.boardID, name, lines);
+		} catch (IOException e) {
+			synchronized (board) {
+				if (log.clears == clears)
+					log.linesLogged = linesLogged;
+				if (overflowed) {
+					log.overflowed = true;
+					log.pending = new byte[256];
+					log.size = 0;
+					markDirty(log);
+				}
+			}
+			throw e;
+		}
+		synchronized (board) {
+			log.dropPending(taken);
+			log.liveBytes = snapshotLength(name, lines.size()) + log.size;
+		}
+		// the snapshot is the log now, whatever happens to the old channel,
+		// and the next commit opens it
+		if (log.channel != null) {
+			FileChannel old = log.channel;
+			log.channel = null;
+			try {
+				old.close();
+			} catch (IOException e) {
+				// the file it had open is gone
+			}
+		}
+		log.length = length;
+		log.opened = true;
+		this.compactionCount.incrementAndGet();
+	}
+
+	/**
+	 * Writes a board's name and lines to a temporary file, forces it and
+	 * moves it over the board's log; called holding the commit lock
+	 *
+	 * @return the length of the log
+	 */
+	private long writeSnapshot(int boardID, String name, StrokeSnapshot lines)
+			throws IOException {
+		File file = logFile(boardID);
+		File temp = new File(this.directory, file.getName() + TEMP_SUFFIX);
+		FileChannel channel = FileChannel.open(temp.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		long length;
+		try {
+			byte[] nameBytes = name.getBytes(UTF8);
+			byte[] records = new byte[3 + nameBytes.length];
+			records[0] = CREATE;
+			records[1] = (byte) (nameBytes.length >>> 8);
+			records[2] = (byte) nameBytes.length;
+			System.arraycopy(nameBytes, 0, records, 3, nameBytes.length);
+			length = writeChanges(channel, records, records.length, lines, 0);
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		return length;
+	}
+
+	/**
+	 * @return the length of the snapshot of a board with the given name and
+	 *         number of lines
+	 */
+	private static long snapshotLength(String name, int lineCount) {
+		int chunks = (lineCount + SNAPSHOT_CHUNK - 1) / SNAPSHOT_CHUNK;
+		return BATCH_HEADER + 3 + name.getBytes(UTF8).length
+				+ (long) chunks * (BATCH_HEADER + 5)
+				+ (long) SEGMENT_BYTES * lineCount;
+	}
+
+	private File logFile(int boardID) {
+		return new File(this.directory, PREFIX + boardID + SUFFIX);
+	}
+
+	private FileChannel open(int boardID) throws IOException {
+		FileChannel channel = FileChannel.open(logFile(boardID).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		return channel;
+	}
+
+	/**
+	 * @return the id of the board whose log has the given file name, or
+	 *         Integer.MIN_VALUE if it is not a log
+	 */
+	private static int boardIDOf(String fileName) {
+		if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX))
+			return Integer.MIN_VALUE;
+		try {
+			return Integer.parseInt(fileName.substring(PREFIX.length(),
+					fileName.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * Commits every change made so far, without waiting for the commit
+	 * interval, and returns once they are on disk
+	 *
+	 * @throws IOException
+	 *             if they could not be written; they are kept to be written
+	 *             again
+	 */
+	public void sync() throws IOException {
+		synchronized (this.commitLock) {
+			if (!tryCommit(new ArrayList<BoardLog>(this.logs.values())))
+				throw this.failure;
+		}
+	}
+
+	/**
+	 * Commits every change made so far, stops the committer and closes the
+	 * logs. Changes made afterwards are not kept.
+	 *
+	 * @throws IOException
+	 *             if the changes could not be written
+	 */
+	public void close() throws IOException {
+		this.closed = true;
+		this.dirty.add(CLOSE);
+		this.compactions.add(CLOSE);
+		try {
+			this.committer.join();
+			this.compactor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			sync();
+		} finally {
+			synchronized (this.commitLock) {
+				for (BoardLog log : this.logs.values()) {
+					if (log.channel != null)
+						log.channel.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return false from a failed commit until one succeeds again, while
+	 *         changes are only kept in memory
+	 */
+	public boolean isHealthy() {
+		return this.failure == null;
+	}
+
+	/**
+	 * @return the number of commits made, each one write and fsync per
+	 *         board changed
+	 */
+	public long getCommitCount() {
+		return this.commits.get();
+	}
+
+	/**
+	 * @return the number of bytes written to the logs
+	 */
+	public long getCommittedBytes() {
+		return this.committedBytes.get();
+	}
+
+	/**
+	 * @return the number of logs rewritten as snapshots
+	 */
+	public long getCompactionCount() {
+		return this.compactionCount.get();
+	}
+}
@@ -0,0 +1,218 @@
+package server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import adts.BoardMembershipListener;
+import protocol.OutgoingServerMessage;
+
+/**
+ * Keeps track of the connected users and of which of them are in which board,
+ * so that a message for a board reaches its members without looking at anyone
+ * else on the server.
+ * 
+ * Board membership is learnt from the LobbyModel through
+ * BoardMembershipListener, so it is updated in the same critical section as
+ * the model itself. Membership is kept by user ID, independently of whether
+ * the user's connection is registered yet: a user joins the lobby before the
+ * server has created their connection.
+ * 
+ * A broadcast encodes its message once and hands the same OutgoingServerMessage
+ * to every recipient.
+ * 
+ * Thread-safety:
+ * 
+ * Both maps and the member sets are concurrent, so broadcasts never lock and
+ * may run while users come and go. A broadcast sees each member either before
+ * or after a concurrent change, never a corrupted set.
+ */
+public class ConnectionRegistry implements BoardMembershipListener {
+
+	/**
+	 * Key = user ID Value = connection of the user with the given ID
+	 */
+	private final ConcurrentMap<Integer, UserConnection> connectionForUserID;
+
+	/**
+	 * Key = board ID Value = IDs of the users in the board with the given ID
+	 */
+	private final ConcurrentMap<Integer, Set<Integer>> userIDsForBoardID;
+
+	/**
+	 * Create an empty registry
+	 */
+	public ConnectionRegistry() {
+		this.connectionForUserID = new ConcurrentHashMap<Integer, UserConnection>();
+		this.userIDsForBoardID = new ConcurrentHashMap<Integer, Set<Integer>>();
+	}
+
+	/**
+	 * Start sending broadcasts to a connection
+	 * 
+	 * @param connection
+	 *            the connection to add
+	 */
+	public void add(UserConnection connection) {
+		this.connectionForUserID.put(connection.getUserID(), connection);
+	}
+
+	/**
+	 * Stop sending broadcasts to a connection
+	 * 
+	 * @param connection
+	 *            the connection to remove
+	 */
+	public void remove(UserConnection connection) {
+		this.connectionForUserID.remove(connection.getUserID(), connection);
+	}
+
+	/**
+	 * Closes every registered connection; each one removes itself once its
+	 * user is logged out
+	 */
+	public void closeAll() {
+		for (UserConnection connection : this.connectionForUserID.values()) {
+			connection.closeSocket();
+		}
+	}
+
+	/**
+	 * @return the number of registered connections
+	 */
+	public int size() {
+		return this.connectionForUserID.size();
+	}
+
+	@Override
+	public void userJoinedBoard(int userID, int boardID) {
+		Set<Integer> userIDs = this.userIDsForBoardID.get(boardID);
+		if (userIDs == null) {
+			Set<Integer> newUserIDs = Collections
+					.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+			userIDs = this.userIDsForBoardID.putIfAbsent(boardID, newUserIDs);
+			if (userIDs == null)
+				userIDs = newUserIDs;
+		}
+		userIDs.add(userID);
+	}
+
+	@Override
+	public void userLeftBoard(int userID, int boardID) {
+		Set<Integer> userIDs = this.userIDsForBoardID.get(boardID);
+		if (userIDs != null)
+			userIDs.remove(userID);
+	}
+
+	/**
+	 * Output a message to every connected user except one
+	 * 
+	 * @param message
+	 *            the message to output
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcast(String message, int exceptUserID) {
+		OutgoingServerMessage outgoingMessage = new OutgoingServerMessage(message);
+		for (UserConnection connection : this.connectionForUserID.values()) {
+			if (connection.getUserID() != exceptUserID)
+				connection.output(outgoingMessage);
+		}
+	}
+
+	/**
+	 * Output a message to the given users except one
+	 * 
+	 * @param message
+	 *            the message to output
+	 * @param userIDs
+	 *            the ids of the users to output to
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcast(String message, Set<Integer> userIDs, int exceptUserID) {
+		OutgoingServerMessage outgoingMessage = null;
+		for (int userID : userIDs) {
+			if (userID == exceptUserID)
+				continue;
+			UserConnection connection = this.connectionForUserID.get(userID);
+			if (connection == null)
+				continue;
+			if (outgoingMessage == null)
+				outgoingMessage = new OutgoingServerMessage(message);
+			connection.output(outgoingMessage);
+		}
+	}
+
+	/**
+	 * Output a message to the members of a board except one. This only looks
+	 * at the members of the board, however many users are connected.
+	 * 
+	 * @param message
+	 *            the message to output
+	 * @param boardID
+	 *            the id of the board whose members get the message
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcastToBoard(String message, int boardID, int exceptUserID) {
+		Set<Integer> userIDs = this.userIDsForBoardID.get(boardID);
+		if (userIDs != null)
+			broadcast(message, userIDs, exceptUserID);
+	}
+
+	/**
+	 * Output an already encoded message to the members of a board except one
+	 * 
+	 * @param message
+	 *            the message to output
+	 * @param boardID
+	 *            the id of the board whose members get the message
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcastToBoard(OutgoingServerMessage message, int boardID,
+			int exceptUserID) {
+		Set<Integer> userIDs = this.userIDsForBoardID.get(boardID);
+		if (userIDs == null)
+			return;
+		for (int userID : userIDs) {
+			if (userID == exceptUserID)
+				continue;
+			UserConnection connection = this.connectionForUserID.get(userID);
+			if (connection != null)
+				connection.output(message);
+		}
+	}
+
+	/**
+	 * Output an already encoded message to the members of a board who asked
+	 * for a feature, and another one to the rest, except one member
+	 * 
+	 * @param message
+	 *            the message for the members with the feature
+	 * @param feature
+	 *            the feature
+	 * @param fallback
+	 *            the message for the members without the feature
+	 * @param boardID
+	 *            the id of the board whose members get the message
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcastToBoard(OutgoingServerMessage message, String feature,
+			OutgoingServerMessage fallback, int boardID, int exceptUserID) {
+		Set<Integer> userIDs = this.userIDsForBoardID.get(boardID);
+		if (userIDs == null)
+			return;
+		for (int userID : userIDs) {
+			if (userID == exceptUserID)
+				continue;
+			UserConnection connection = this.connectionForUserID.get(userID);
+			if (connection != null)
+				connection.output(connection.hasFeature(feature) ? message
+						: fallback);
+		}
+	}
+}
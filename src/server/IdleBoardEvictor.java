@@ -0,0 +1,200 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import adts.BoardMembershipListener;
+import adts.LobbyModel;
+import adts.Whiteboard;
+
+/**
+ * Moves the lines of boards nobody has been in for a while off the heap,
+ * into one memory-mapped file per board in a directory (see
+ * Whiteboard.evict), so that the heap holds the lines of the boards in use
+ * rather than of every board ever made. The next user to join such a board,
+ * or anything else reading or drawing its lines, pages them back in.
+ *
+ * A sweeper thread goes through the boards every quarter of the idle time.
+ * A board is idle from the first sweep that finds nobody in it, so it is
+ * evicted between one and one and a quarter idle times after its last user
+ * left. A user joining it starts that over, and so does paging it back in
+ * by reading or drawing its lines with nobody in it: the first sweep to
+ * find an evicted board back on the heap counts it idle from then.
+ *
+ * The files are only a cache for this run of the server: they are not kept
+ * in sync with the disk, and the ones left by an earlier run are deleted.
+ *
+ * Thread-safety:
+ *
+ * The idle times are in a concurrent map, written by the sweeper and by the
+ * model's threads when a user joins, and the boards evicted in a concurrent
+ * set, written by the sweeper. A user may join a board while it is
+ * being evicted; the board is then paged back in as soon as its lines are
+ * asked for, so it costs time but never loses a line.
+ */
+public class IdleBoardEvictor implements BoardMembershipListener {
+
+	/**
+	 * The idle time when none is given
+	 */
+	public static final long DEFAULT_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+	private static final String PREFIX = "board-";
+	private static final String SUFFIX = ".cold";
+
+	private final static Logger LOGGER = Logger.getLogger(IdleBoardEvictor.class.getName());
+
+	private final LobbyModel lobbyModel;
+	private final File directory;
+	private final long idleNanos;
+
+	/**
+	 * When each board with nobody in it was first found so, by id
+	 */
+	private final ConcurrentMap<Integer, Long> idleSince;
+
+	/**
+	 * The ids of the boards evicted and not since found paged back in
+	 */
+	private final Set<Integer> evicted;
+
+	private final Thread sweeper;
+	private volatile boolean closed;
+	private final AtomicLong evictions;
+
+	/**
+	 * Starts evicting the idle boards of a model into the given directory,
+	 * making the directory if needed. The evictor must also be added to the
+	 * model as a BoardMembershipListener.
+	 *
+	 * @param lobbyModel
+	 *            the model whose boards to evict
+	 * @param directory
+	 *            where the files of evicted boards are kept
+	 * @param idleNanos
+	 *            how long a board must have had nobody in it to be evicted
+	 * @throws IOException
+	 *             if the directory cannot be made
+	 */
+	public IdleBoardEvictor(LobbyModel lobbyModel, File directory,
+			long idleNanos) throws IOException {
+		if (idleNanos <= 0)
+			throw new IllegalArgumentException("idle time must be positive");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("cannot make eviction directory " + directory);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(PREFIX)
+						&& file.getName().endsWith(SUFFIX))
+					file.delete();
+			}
+		}
+		this.lobbyModel = lobbyModel;
+		this.directory = directory;
+		this.idleNanos = idleNanos;
+		this.idleSince = new ConcurrentHashMap<Integer, Long>();
+		this.evicted = Collections
+				.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		this.evictions = new AtomicLong();
+		this.sweeper = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sweepLoop();
+			}
+		}, "IdleBoardEvictor");
+		this.sweeper.setDaemon(true);
+		this.sweeper.start();
+	}
+
+	@Override
+	public void userJoinedBoard(int userID, int boardID) {
+		this.idleSince.remove(boardID);
+	}
+
+	@Override
+	public void userLeftBoard(int userID, int boardID) {
+		// the next sweep finds out whether it was the last one
+	}
+
+	private void sweepLoop() {
+		long interval = Math.max(this.idleNanos / 4,
+				TimeUnit.MILLISECONDS.toNanos(10));
+		try {
+			while (!this.closed) {
+				TimeUnit.NANOSECONDS.sleep(interval);
+				sweep();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Notes the boards with nobody in them and evicts those that have had
+	 * nobody in them, and were not paged back in, for the idle time
+	 *
+	 * @return the number of boards evicted
+	 */
+	public int sweep() {
+		long now = System.nanoTime();
+		int evicted = 0;
+		for (Whiteboard board : this.lobbyModel.getWhiteboards()) {
+			int boardID = board.getBoardID();
+			if (boardID == LobbyModel.LOBBY_ID || board.isEvicted())
+				continue;
+			if (this.evicted.remove(boardID)) {
+				// paged back in since it was evicted
+				this.idleSince.put(boardID, now);
+			}
+			Set<Integer> userIDs = this.lobbyModel.getUserIDsForBoardID(boardID);
+			if (userIDs != null && !userIDs.isEmpty()) {
+				this.idleSince.remove(boardID);
+				continue;
+			}
+			Long since = this.idleSince.putIfAbsent(boardID, now);
+			if (since == null || now - since < this.idleNanos)
+				continue;
+			try {
+				if (board.evict(new File(this.directory, PREFIX + boardID
+						+ SUFFIX))) {
+					evicted++;
+					this.evicted.add(boardID);
+					this.evictions.incrementAndGet();
+				}
+			} catch (IOException e) {
+				// the board stays on the heap
+				LOGGER.log(Level.WARNING, "cannot evict board " + boardID, e);
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Stops the sweeper; boards evicted stay so until they are paged back in
+	 */
+	public void close() {
+		this.closed = true;
+		this.sweeper.interrupt();
+		try {
+			this.sweeper.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the number of boards evicted so far
+	 */
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+}
@@ -0,0 +1,216 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One selector thread of the NIO server. It owns a share of the connections:
+ * it reads their requests, cuts them into lines and hands each line to
+ * MessageHandler, and writes out whatever has been queued for them.
+ * 
+ * Thread-safety:
+ * 
+ * The selector and the selection keys are only touched by the loop's own
+ * thread. Other threads (the acceptor, or another loop broadcasting to one of
+ * our users) hand work over through the task queue and wake the selector up.
+ * 
+ * A request that fails while being handled, with an IOException or anything
+ * else thrown, an Error included, disconnects only the user who sent it, the
+ * way UserThread does: the loop goes on serving its other users. Should the
+ * selector itself fail, the loop disconnects its users, is no longer alive
+ * and is given no new connections.
+ */
+public class NioEventLoop implements Runnable {
+
+	private final static Logger LOGGER = Logger.getLogger(NioEventLoop.class.getName());
+
+	/**
+	 * The size of the buffer that socket reads go into
+	 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The selector watching this loop's channels
+	 */
+	private final Selector selector;
+
+	/**
+	 * Work handed to this loop by other threads
+	 */
+	private final Queue<Runnable> tasks;
+
+	/**
+	 * Shared by all the connections of this loop, since only one of them is
+	 * read at a time
+	 */
+	private final ByteBuffer readBuffer;
+
+	/**
+	 * The thread running this loop
+	 */
+	private volatile Thread loopThread;
+
+	/**
+	 * True once the loop stopped serving its channels
+	 */
+	private volatile boolean dead;
+
+	/**
+	 * Create an event loop
+	 * 
+	 * @throws IOException
+	 *             if the selector cannot be opened
+	 */
+	public NioEventLoop() throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	}
+
+	/**
+	 * Start serving a newly accepted connection on this loop
+	 * 
+	 * @param connection
+	 *            the connection to serve
+	 */
+	public void register(final NioUserConnection connection) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					SelectionKey key = connection.getChannel().register(
+							selector, SelectionKey.OP_READ, connection);
+					connection.onRegistered(key);
+				} catch (ClosedChannelException e) {
+					connection.disconnect();
+				} catch (Throwable e) {
+					fail(connection, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run a task on this loop's thread
+	 * 
+	 * @param task
+	 *            the task to run
+	 */
+	public void execute(Runnable task) {
+		this.tasks.add(task);
+		if (Thread.currentThread() != this.loopThread) {
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Selects and serves ready channels until the thread is interrupted
+	 */
+	@Override
+	public void run() {
+		this.loopThread = Thread.currentThread();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				this.selector.select();
+				Iterator<SelectionKey> keys = this.selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handleKey(key);
+				}
+				// also runs the flushes queued while handling the keys above
+				runTasks();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "the event loop stopped", e);
+		} finally {
+			this.dead = true;
+			for (SelectionKey key : this.selector.keys()) {
+				NioUserConnection connection = (NioUserConnection) key.attachment();
+				try {
+					connection.disconnect();
+				} catch (Throwable e) {
+					LOGGER.log(Level.WARNING, "cannot log out user " + connection.getUserID(), e);
+				}
+			}
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+			}
+			// connections handed over meanwhile fail to register on the
+			// closed selector, and so are disconnected
+			runTasks();
+		}
+	}
+
+	/**
+	 * @return false once the loop stopped serving its channels
+	 */
+	public boolean isAlive() {
+		return !this.dead;
+	}
+
+	/**
+	 * Runs all the tasks other threads have handed over so far. A task that
+	 * fails, even with an Error, is logged and does not keep the others from
+	 * running.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = this.tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				LOGGER.log(Level.WARNING, "task failed on the event loop", e);
+			}
+		}
+	}
+
+	/**
+	 * Serves one ready channel
+	 * 
+	 * @param key
+	 *            the key of the ready channel
+	 */
+	private void handleKey(SelectionKey key) {
+		NioUserConnection connection = (NioUserConnection) key.attachment();
+		try {
+			if (key.isValid() && key.isReadable()) {
+				this.readBuffer.clear();
+				connection.onReadable(this.readBuffer);
+			}
+			if (key.isValid() && key.isWritable()) {
+				connection.flush();
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+		} catch (Throwable e) {
+			fail(connection, e);
+		}
+	}
+
+	/**
+	 * Disconnects a user whose request could not be handled
+	 * 
+	 * @param connection
+	 *            the connection of the user
+	 * @param e
+	 *            what went wrong
+	 */
+	static void fail(NioUserConnection connection, Throwable e) {
+		LOGGER.log(Level.WARNING, "disconnecting user " + connection.getUserID(), e);
+		try {
+			connection.disconnect();
+		} catch (Throwable again) {
+			LOGGER.log(Level.WARNING, "cannot log out user " + connection.getUserID(), again);
+		}
+	}
+}
@@ -0,0 +1,709 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import adts.Line;
+import adts.LobbyModel;
+import protocol.AsciiCharSequence;
+import protocol.BinaryProtocol;
+import protocol.MessageHandler;
+import protocol.OutgoingServerMessage;
+
+/**
+ * A user connection served by a NioEventLoop instead of its own threads.
+ * 
+ * Incoming bytes are cut into the same newline-delimited lines that UserThread
+ * reads, and each complete line is passed to MessageHandler. Once the user
+ * switched to BinaryProtocol, they are cut into frames instead. Outgoing
+ * messages are queued by any thread and written by the event loop whenever the
+ * channel can take them, several at a time with a gathering write. A broadcast
+ * message is queued as a read-only view of bytes shared with all its other
+ * recipients, so nothing is copied per recipient.
+ * 
+ * Like OutgoingServerMessageQueue, once more than highWaterMark messages are
+ * waiting, droppable messages (strokes) are dropped instead of queued, and
+ * the queue depth, the messages dropped and the enqueue-to-write latencies
+ * are counted. A user who sends more than MAX_LINE_LENGTH bytes without
+ * ending the line (or frame) is disconnected, so neither direction can grow
+ * the server's memory without bound.
+ * 
+ * Thread-safety:
+ * 
+ * Reading, the partial line, the input mode and the selection key are only
+ * touched by the event loop thread. Whether a queued message is encoded as a
+ * frame is decided under this connection's lock, so nothing queued before
+ * the switch goes out as a frame and nothing queued after it as text. The
+ * outgoing queue and its counters are concurrent, and the loop is asked to
+ * flush the queue through NioEventLoop.execute.
+ */
+public class NioUserConnection implements UserConnection {
+
+	/**
+	 * The charset lines are decoded and encoded with, the same one UserThread's
+	 * readers and writers use
+	 */
+	private static final Charset CHARSET = OutgoingServerMessage.CHARSET;
+
+	/**
+	 * The most pending messages handed to a single gathering write
+	 */
+	private static final int MAX_GATHERED_WRITES = 64;
+
+	/**
+	 * The most bytes of a line, or of a frame, that are kept while waiting
+	 * for the rest of it
+	 */
+	public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	/**
+	 * The channel of this connection
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The loop serving this connection
+	 */
+	private final NioEventLoop loop;
+
+	/**
+	 * The ID of the user
+	 */
+	private final int userID;
+
+	/**
+	 * All the connected users, including this one
+	 */
+	private final ConnectionRegistry connections;
+
+	/**
+	 * The lobby model
+	 */
+	private final LobbyModel lobbyModel;
+
+	/**
+	 * Encoded messages waiting to be written
+	 */
+	private final Queue<PendingWrite> pendingWrites;
+
+	/**
+	 * The number of messages on pendingWrites, which the queue itself only
+	 * counts by walking it
+	 */
+	private final AtomicInteger pendingWriteCount;
+
+	/**
+	 * The number of pending messages above which droppable messages are
+	 * dropped
+	 */
+	private final int highWaterMark;
+
+	/**
+	 * The number of messages dropped because the queue was above its high
+	 * water mark
+	 */
+	private final AtomicLong droppedMessages;
+
+	/**
+	 * The number of messages written to the channel
+	 */
+	private final AtomicLong writtenMessages;
+
+	/**
+	 * The sum of the enqueue-to-write latencies of all written messages, in
+	 * nanoseconds
+	 */
+	private final AtomicLong totalWriteLatencyNanos;
+
+	/**
+	 * The largest enqueue-to-write latency seen so far, in nanoseconds; only
+	 * written by the event loop thread
+	 */
+	private volatile long maxWriteLatencyNanos;
+
+	/**
+	 * The continuation of a message that was written in pieces (see
+	 * OutgoingServerMessage.next), which goes out before anything on
+	 * pendingWrites; only touched by the event loop thread
+	 */
+	private PendingWrite continuation;
+
+	/**
+	 * The buffers of the gathering write in progress; only touched by the
+	 * event loop thread
+	 */
+	private final ByteBuffer[] gatheredWrites;
+
+	/**
+	 * True while a flush has been handed to the loop and not run yet
+	 */
+	private final AtomicBoolean flushScheduled;
+
+	/**
+	 * True once the user has logged out, either by asking to or by
+	 * disconnecting
+	 */
+	private final AtomicBoolean loggedOut;
+
+	/**
+	 * True once incoming bytes are frames instead of lines; only touched by
+	 * the event loop thread
+	 */
+	private boolean binaryIn;
+
+	/**
+	 * True once outgoing messages are encoded as frames; guarded by this
+	 */
+	private boolean binaryOut;
+
+	/**
+	 * The features the user asked for, besides binary
+	 */
+	private final Set<String> features;
+
+	/**
+	 * The view that ASCII lines are handled in; only touched by the event
+	 * loop thread
+	 */
+	private final AsciiCharSequence lineView;
+
+	/**
+	 * Handles the frames read once the user switched to BinaryProtocol
+	 */
+	private final BinaryProtocol.Receiver frameReceiver;
+
+	/**
+	 * Set by the loop once the channel is registered
+	 */
+	private SelectionKey key;
+
+	/**
+	 * The bytes of a line that has only partly arrived, allocated lazily so
+	 * that idle connections cost nothing here
+	 */
+	private byte[] partialLine;
+
+	/**
+	 * The number of bytes used in partialLine
+	 */
+	private int partialLineLength;
+
+	/**
+	 * True once closeSocket was called; the channel is closed as soon as the
+	 * pending writes are out
+	 */
+	private volatile boolean closeRequested;
+
+	/**
+	 * Create a connection for an accepted channel
+	 * 
+	 * @param channel
+	 *            the accepted channel, which is made non-blocking
+	 * @param loop
+	 *            the loop that will serve this connection
+	 * @param userID
+	 *            the id of the user
+	 * @param connections
+	 *            the registry of all the connected users
+	 * @param lobbyModel
+	 *            the lobby model
+	 * @param highWaterMark
+	 *            the number of pending outgoing messages above which strokes
+	 *            sent to this user are dropped
+	 * @throws IOException
+	 */
+	public NioUserConnection(SocketChannel channel, NioEventLoop loop,
+			int userID, ConnectionRegistry connections,
+			LobbyModel lobbyModel, int highWaterMark) throws IOException {
+		if (highWaterMark <= 0)
+			throw new IllegalArgumentException("high water mark must be positive");
+		this.channel = channel;
+		this.channel.configureBlocking(false);
+		this.loop = loop;
+		this.userID = userID;
+		this.connections = connections;
+		this.lobbyModel = lobbyModel;
+		this.pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+		this.pendingWriteCount = new AtomicInteger(0);
+		this.highWaterMark = highWaterMark;
+		this.droppedMessages = new AtomicLong(0);
+		this.writtenMessages = new AtomicLong(0);
+		this.totalWriteLatencyNanos = new AtomicLong(0);
+		this.maxWriteLatencyNanos = 0;
+		this.continuation = null;
+		this.gatheredWrites = new ByteBuffer[MAX_GATHERED_WRITES];
+		this.flushScheduled = new AtomicBoolean(false);
+		this.loggedOut = new AtomicBoolean(false);
+		this.partialLine = null;
+		this.partialLineLength = 0;
+		this.closeRequested = false;
+		this.binaryIn = false;
+		this.binaryOut = false;
+		this.features = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.lineView = new AsciiCharSequence();
+		this.frameReceiver = new BinaryProtocol.Receiver() {
+			@Override
+			public void onText(CharSequence message) {
+				MessageHandler.handleMessage(message, NioUserConnection.this,
+						NioUserConnection.this.lobbyModel);
+			}
+
+			@Override
+			public void onDraw(Line line) {
+				MessageHandler.handleDraw(line, NioUserConnection.this,
+						NioUserConnection.this.lobbyModel);
+			}
+		};
+	}
+
+	/**
+	 * @return the channel of this connection
+	 */
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Called by the loop once the channel is registered. Welcomes the user the
+	 * same way UserThread does.
+	 * 
+	 * @param key
+	 *            the key of the channel
+	 */
+	void onRegistered(SelectionKey key) {
+		this.key = key;
+		this.output(String.format("%s %d", MessageHandler.RESP_WELCOME, this.userID));
+		this.output(MessageHandler.makeResponseFeatures());
+		MessageHandler.notifyLobbyUsers(this, lobbyModel, true, LobbyModel.LOBBY_ID);
+	}
+
+	@Override
+	public int getUserID() {
+		return this.userID;
+	}
+
+	@Override
+	public void output(String message) {
+		this.output(new OutgoingServerMessage(message));
+	}
+
+	/**
+	 * Queues a message to be written. The message is dropped if the
+	 * connection is closing, or if it is droppable and more than
+	 * highWaterMark messages are waiting.
+	 */
+	@Override
+	public void output(OutgoingServerMessage message) {
+		if (this.closeRequested || !this.channel.isOpen())
+			return;
+		if (message.isDroppable()
+				&& this.pendingWriteCount.get() >= this.highWaterMark) {
+			this.droppedMessages.incrementAndGet();
+			return;
+		}
+		synchronized (this) {
+			this.pendingWrites.add(new PendingWrite(message, this.binaryOut,
+					System.nanoTime()));
+			this.pendingWriteCount.incrementAndGet();
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * @return the number of messages waiting to be written
+	 */
+	public int getQueueDepth() {
+		return this.pendingWriteCount.get();
+	}
+
+	/**
+	 * @return the number of messages dropped because the queue was above its
+	 *         high water mark
+	 */
+	public long getDroppedMessageCount() {
+		return this.droppedMessages.get();
+	}
+
+	/**
+	 * @return the number of messages written so far
+	 */
+	public long getWrittenMessageCount() {
+		return this.writtenMessages.get();
+	}
+
+	/**
+	 * @return the average time between a message being queued and all of it
+	 *         being written, in nanoseconds, or 0 if nothing was written yet
+	 */
+	public long getAverageWriteLatencyNanos() {
+		long written = this.writtenMessages.get();
+		return written == 0 ? 0 : this.totalWriteLatencyNanos.get() / written;
+	}
+
+	/**
+	 * @return the longest time between a message being queued and all of it
+	 *         being written, in nanoseconds
+	 */
+	public long getMaxWriteLatencyNanos() {
+		return this.maxWriteLatencyNanos;
+	}
+
+	@Override
+	public void broadcast(String message) {
+		this.connections.broadcast(message, this.userID);
+	}
+
+	@Override
+	public void broadcast(String message, Set<Integer> userIDs) {
+		this.connections.broadcast(message, userIDs, this.userID);
+	}
+
+	@Override
+	public void broadcastToBoard(String message, int boardID) {
+		this.connections.broadcastToBoard(message, boardID, this.userID);
+	}
+
+	@Override
+	public void broadcastToBoard(OutgoingServerMessage message, int boardID) {
+		this.connections.broadcastToBoard(message, boardID, this.userID);
+	}
+
+	@Override
+	public void broadcastToBoard(OutgoingServerMessage message, String feature,
+			OutgoingServerMessage fallback, int boardID) {
+		this.connections.broadcastToBoard(message, feature, fallback, boardID,
+				this.userID);
+	}
+
+	@Override
+	public void enableFeature(String feature) {
+		this.features.add(feature);
+	}
+
+	@Override
+	public boolean hasFeature(String feature) {
+		return this.features.contains(feature);
+	}
+
+	/**
+	 * Only called by the event loop thread, while it handles this user's
+	 * request, so the bytes after that request are read as frames
+	 */
+	@Override
+	public void switchToBinaryProtocol(String lastTextMessage) {
+		if (this.binaryIn) {
+			this.output(lastTextMessage);
+			return;
+		}
+		synchronized (this) {
+			this.output(lastTextMessage);
+			this.binaryOut = true;
+		}
+		this.binaryIn = true;
+	}
+
+	@Override
+	public void closeSocket() {
+		this.loggedOut.set(true);
+		this.closeRequested = true;
+		scheduleFlush();
+	}
+
+	/**
+	 * Reads what is available on the channel and handles every complete line
+	 * or frame
+	 * 
+	 * @param buffer
+	 *            a cleared buffer to read into
+	 * @throws IOException
+	 *             if the read fails, a frame is malformed or a line or frame
+	 *             is longer than MAX_LINE_LENGTH
+	 */
+	void onReadable(ByteBuffer buffer) throws IOException {
+		int read = this.channel.read(buffer);
+		if (read < 0) {
+			disconnect();
+			return;
+		}
+		byte[] bytes = buffer.array();
+		int consumed = this.binaryIn ? 0 : readLines(bytes, buffer.position());
+		if (this.binaryIn && this.channel.isOpen())
+			readFrames(bytes, consumed, buffer.position() - consumed);
+	}
+
+	/**
+	 * Handles every complete line, and keeps the rest as the partial line
+	 * 
+	 * @return the number of bytes handled, which is less than length if a
+	 *         line switched the user to frames
+	 * @throws IOException
+	 *             if a line is longer than MAX_LINE_LENGTH
+	 */
+	private int readLines(byte[] bytes, int length) throws IOException {
+		int lineStart = 0;
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] != '\n')
+				continue;
+			CharSequence line;
+			if (this.partialLineLength > 0) {
+				appendPartialLine(bytes, lineStart, i - lineStart);
+				line = decodeLine(this.partialLine, 0, this.partialLineLength);
+				this.partialLineLength = 0;
+			} else {
+				line = decodeLine(bytes, lineStart, i - lineStart);
+			}
+			lineStart = i + 1;
+			MessageHandler.handleMessage(line, this, this.lobbyModel);
+			if (!this.channel.isOpen() || this.binaryIn)
+				return lineStart;
+		}
+		appendPartialLine(bytes, lineStart, length - lineStart);
+		checkPartialLineLength();
+		return length;
+	}
+
+	/**
+	 * Handles every complete frame, and keeps the rest in the partial line
+	 * buffer
+	 * 
+	 * @throws IOException
+	 *             if a frame is malformed
+	 */
+	private void readFrames(byte[] bytes, int offset, int length)
+			throws IOException {
+		if (this.partialLineLength > 0) {
+			appendPartialLine(bytes, offset, length);
+			bytes = this.partialLine;
+			offset = 0;
+			length = this.partialLineLength;
+			this.partialLineLength = 0;
+		}
+		try {
+			for (int consumed = BinaryProtocol.decode(bytes, offset, length,
+					this.frameReceiver); consumed > 0; consumed = BinaryProtocol
+					.decode(bytes, offset, length, this.frameReceiver)) {
+				offset += consumed;
+				length -= consumed;
+				if (!this.channel.isOpen())
+					return;
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		if (bytes == this.partialLine) {
+			System.arraycopy(bytes, offset, bytes, 0, length);
+			this.partialLineLength = length;
+		} else {
+			appendPartialLine(bytes, offset, length);
+		}
+		checkPartialLineLength();
+	}
+
+	/**
+	 * Checks that the rest of a line or frame still to come does not make
+	 * the partial line too long; so it never holds more than MAX_LINE_LENGTH
+	 * bytes plus one read
+	 * 
+	 * @throws IOException
+	 *             if the partial line is longer than MAX_LINE_LENGTH
+	 */
+	private void checkPartialLineLength() throws IOException {
+		if (this.partialLineLength > MAX_LINE_LENGTH)
+			throw new IOException("user " + this.userID
+					+ " sent a line longer than " + MAX_LINE_LENGTH + " bytes");
+	}
+
+	/**
+	 * Writes as many pending messages as the channel takes, and asks the
+	 * selector to tell us when it can take the rest
+	 * 
+	 * @throws IOException
+	 *             if the write fails
+	 */
+	void flush() throws IOException {
+		this.flushScheduled.set(false);
+		if (this.key == null || !this.key.isValid())
+			return;
+		while (this.continuation != null || !this.pendingWrites.isEmpty()) {
+			if (this.continuation != null) {
+				this.channel.write(this.continuation.bytes);
+				if (this.continuation.bytes.hasRemaining()) {
+					this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				PendingWrite written = this.continuation;
+				this.continuation = written.next();
+				if (this.continuation == null)
+					recordWrite(written);
+				continue;
+			}
+			// only this thread polls, so the head of the queue stays put. A
+			// message with a continuation ends the batch, since its
+			// continuation must go out before the messages after it.
+			int count = 0;
+			for (PendingWrite write : this.pendingWrites) {
+				if (count == this.gatheredWrites.length)
+					break;
+				this.gatheredWrites[count++] = write.bytes;
+				if (write.message.hasNext())
+					break;
+			}
+			this.channel.write(this.gatheredWrites, 0, count);
+			boolean blocked = false;
+			for (int i = 0; i < count; i++) {
+				if (this.gatheredWrites[i].hasRemaining()) {
+					blocked = true;
+					break;
+				}
+				PendingWrite written = this.pendingWrites.poll();
+				this.pendingWriteCount.decrementAndGet();
+				this.continuation = written.next();
+				if (this.continuation == null)
+					recordWrite(written);
+			}
+			Arrays.fill(this.gatheredWrites, 0, count, null);
+			if (blocked) {
+				this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		this.key.interestOps(SelectionKey.OP_READ);
+		if (this.closeRequested) {
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Updates the counters once all of a message was written
+	 * 
+	 * @param write
+	 *            the message, or the last of its continuations
+	 */
+	private void recordWrite(PendingWrite write) {
+		long latencyNanos = System.nanoTime() - write.enqueuedAtNanos;
+		this.writtenMessages.incrementAndGet();
+		this.totalWriteLatencyNanos.addAndGet(latencyNanos);
+		if (latencyNanos > this.maxWriteLatencyNanos)
+			this.maxWriteLatencyNanos = latencyNanos;
+	}
+
+	/**
+	 * Logs the user out if they have not already, and closes the channel
+	 */
+	void disconnect() {
+		this.connections.remove(this);
+		try {
+			if (this.loggedOut.compareAndSet(false, true)) {
+				MessageHandler.handleMessage(MessageHandler.REQ_LOGOUT, this,
+						this.lobbyModel);
+			}
+		} finally {
+			closeChannel();
+		}
+	}
+
+	/**
+	 * Asks the loop to flush this connection, unless that is already pending
+	 */
+	private void scheduleFlush() {
+		if (!this.flushScheduled.compareAndSet(false, true))
+			return;
+		this.loop.execute(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (IOException e) {
+					disconnect();
+				} catch (Throwable e) {
+					NioEventLoop.fail(NioUserConnection.this, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds bytes to the partial line (or partial frame)
+	 */
+	private void appendPartialLine(byte[] bytes, int offset, int length) {
+		if (length == 0)
+			return;
+		if (this.partialLine == null) {
+			this.partialLine = new byte[Math.max(128, length)];
+		} else if (this.partialLineLength + length > this.partialLine.length) {
+			this.partialLine = Arrays.copyOf(this.partialLine, Math.max(
+					2 * this.partialLine.length, this.partialLineLength + length));
+		}
+		System.arraycopy(bytes, offset, this.partialLine,
+				this.partialLineLength, length);
+		this.partialLineLength += length;
+	}
+
+	/**
+	 * Decodes a line, dropping a trailing carriage return the way readLine
+	 * does. An ASCII line is not copied: it comes back as a view of the bytes,
+	 * valid until the next line is decoded.
+	 */
+	private CharSequence decodeLine(byte[] bytes, int offset, int length) {
+		if (length > 0 && bytes[offset + length - 1] == '\r')
+			length--;
+		if (AsciiCharSequence.isAscii(bytes, offset, length))
+			return this.lineView.reset(bytes, offset, length);
+		return new String(bytes, offset, length, CHARSET);
+	}
+
+	/**
+	 * Closes the channel and drops whatever was still waiting to be written
+	 */
+	private void closeChannel() {
+		this.closeRequested = true;
+		this.pendingWrites.clear();
+		this.pendingWriteCount.set(0);
+		this.continuation = null;
+		if (this.key != null)
+			this.key.cancel();
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * A message waiting to be written, this connection's view of its bytes,
+	 * as text or as a frame, and the time it was queued
+	 */
+	private static class PendingWrite {
+		private final OutgoingServerMessage message;
+		private final boolean binary;
+		private final ByteBuffer bytes;
+		private final long enqueuedAtNanos;
+
+		private PendingWrite(OutgoingServerMessage message, boolean binary,
+				long enqueuedAtNanos) {
+			this.message = message;
+			this.binary = binary;
+			this.bytes = message.getEncoded(binary);
+			this.enqueuedAtNanos = enqueuedAtNanos;
+		}
+
+		/**
+		 * @return the continuation of this message, or null if it has none
+		 */
+		private PendingWrite next() {
+			return this.message.hasNext() ? new PendingWrite(this.message.next(),
+					this.binary, this.enqueuedAtNanos) : null;
+		}
+	}
+}
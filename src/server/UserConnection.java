@@ -0,0 +1,122 @@
+package server;
+
+import java.util.Set;
+
+import protocol.OutgoingServerMessage;
+
+/**
+ * The server's side of a single user's connection. MessageHandler only talks
+ * to users through this interface, so the same request handling works whether
+ * a connection is served by its own UserThread or by a NioEventLoop.
+ */
+public interface UserConnection {
+
+	/**
+	 * @return the id of this user
+	 */
+	public int getUserID();
+
+	/**
+	 * Queue a message to be written to this user
+	 * 
+	 * @param message
+	 *            the message to write
+	 */
+	public void output(String message);
+
+	/**
+	 * Queue an already encoded message to be written to this user. Broadcasts
+	 * use this so that every recipient shares one encoding of the message.
+	 * 
+	 * @param message
+	 *            the message to write
+	 */
+	public void output(OutgoingServerMessage message);
+
+	/**
+	 * Output a message to all users except this one
+	 * 
+	 * @param message
+	 *            the message to output
+	 */
+	public void broadcast(String message);
+
+	/**
+	 * Output a message to selected set of users (except this one)
+	 * 
+	 * @param message
+	 *            the message to output
+	 * @param userIDs
+	 *            the list of userIDs to output to
+	 */
+	public void broadcast(String message, Set<Integer> userIDs);
+
+	/**
+	 * Output a message to the members of a board (except this user)
+	 * 
+	 * @param message
+	 *            the message to output
+	 * @param boardID
+	 *            the id of the board whose members get the message
+	 */
+	public void broadcastToBoard(String message, int boardID);
+
+	/**
+	 * Output an already encoded message to the members of a board (except
+	 * this user)
+	 * 
+	 * @param message
+	 *            the message to output
+	 * @param boardID
+	 *            the id of the board whose members get the message
+	 */
+	public void broadcastToBoard(OutgoingServerMessage message, int boardID);
+
+	/**
+	 * Output an already encoded message to the members of a board (except
+	 * this user) who asked for a feature, and another one to the rest
+	 * 
+	 * @param message
+	 *            the message for the members with the feature
+	 * @param feature
+	 *            the feature, as passed to enableFeature
+	 * @param fallback
+	 *            the message for the members without the feature
+	 * @param boardID
+	 *            the id of the board whose members get the message
+	 */
+	public void broadcastToBoard(OutgoingServerMessage message, String feature,
+			OutgoingServerMessage fallback, int boardID);
+
+	/**
+	 * Remember that this user asked for a feature of the protocol that only
+	 * changes the messages sent to them, such as
+	 * MessageHandler.FEATURE_POLYLINE
+	 * 
+	 * @param feature
+	 *            the name of the feature
+	 */
+	public void enableFeature(String feature);
+
+	/**
+	 * @param feature
+	 *            the name of a feature
+	 * @return true if this user asked for the feature
+	 */
+	public boolean hasFeature(String feature);
+
+	/**
+	 * Send a last message as text, then read and write BinaryProtocol frames
+	 * with this user. Only called while handling this user's own request, so
+	 * nothing more is read in text.
+	 * 
+	 * @param lastTextMessage
+	 *            the message to send before switching
+	 */
+	public void switchToBinaryProtocol(String lastTextMessage);
+
+	/**
+	 * Close the connection to this user
+	 */
+	public void closeSocket();
+}
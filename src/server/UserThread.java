@@ -1,21 +1,30 @@
 package server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import adts.LobbyModel;
+import adts.Line;
+import protocol.BinaryProtocol;
 import protocol.MessageHandler;
+import protocol.MessageInputStream;
 import protocol.OutgoingServerMessage;
 import protocol.OutgoingServerMessageQueue;
 
-public class UserThread extends Thread {
+/**
+ * Serves one user over a blocking socket. Despite the name this is a task
+ * rather than a thread: run() reads and handles the user's requests until they
+ * disconnect, and the user's OutgoingServerMessageQueue writes the responses.
+ * Both are handed to an Executor, so the server decides whether they run on
+ * platform threads, virtual threads or a bounded pool.
+ */
+public class UserThread implements Runnable, UserConnection {
 
 	/**
 	 * The socket associated with this thread
@@ -25,12 +34,12 @@ public class UserThread extends Thread {
 	/**
 	 * The input stream which this thread reads from
 	 */
-	private final BufferedReader in;
+	private final MessageInputStream in;
 
 	/**
 	 * The output stream which this thread writes to
 	 */
-	private final PrintWriter out;
+	private final OutputStream out;
 
 	/**
 	 * The ID of the user
@@ -38,9 +47,9 @@ public class UserThread extends Thread {
 	private final int userID;
 
 	/**
-	 * The list of other user thread
+	 * All the connected users, including this one
 	 */
-	private final List<UserThread> otherThreads;
+	private final ConnectionRegistry connections;
 
 	/**
 	 * The lobby model
@@ -52,41 +61,85 @@ public class UserThread extends Thread {
 	 * The queue of outgoing messages
 	 */
 	private final OutgoingServerMessageQueue outgoingServerMessageQueue; 
+
+	/**
+	 * The features the user asked for, besides binary
+	 */
+	private final Set<String> features;
+
+	/**
+	 * The number of this user's tasks, the reader and the writer, still
+	 * running. The last one to end removes the user from the connections,
+	 * so a bounded executor only takes another user once both its threads
+	 * are free.
+	 */
+	private final AtomicInteger runningTasks;
 	
 	/**
-	 * Create the user thread
+	 * Create the user thread. The writer for the user's responses starts
+	 * right away on the given executor; the caller runs this task itself.
 	 * 
 	 * @param socket
 	 *            the socket associated with this thread
 	 * @param userID
 	 *            the id of the user
-	 * @param otherThreads
-	 *            the list of other user threads
+	 * @param connections
+	 *            the registry of all connected users
+	 * @param highWaterMark
+	 *            the number of pending outgoing messages above which strokes
+	 *            sent to this user are dropped
+	 * @param maxFlushDelayNanos
+	 *            the shortest time between flushes of the user's writer while
+	 *            messages keep coming
+	 * @param writerExecutor
+	 *            the executor that runs the user's writer
 	 * @throws IOException
 	 */
-	public UserThread(Socket socket, int userID, List<UserThread> otherThreads,
-			LobbyModel lobbyModel) throws IOException {
-	    this.outgoingServerMessageQueue = new OutgoingServerMessageQueue();
+	public UserThread(Socket socket, int userID, ConnectionRegistry connections,
+			LobbyModel lobbyModel, int highWaterMark, long maxFlushDelayNanos,
+			Executor writerExecutor) throws IOException {
 		this.socket = socket;
 		this.userID = userID;
-		this.otherThreads = otherThreads;
+		this.connections = connections;
 		this.lobbyModel = lobbyModel;
-		this.in = new BufferedReader(new InputStreamReader(
-				socket.getInputStream()));
-		this.out = new PrintWriter(socket.getOutputStream(), true);
-		this.outgoingServerMessageQueue.start();
+		this.in = new MessageInputStream(socket.getInputStream());
+		this.out = socket.getOutputStream();
+		this.outgoingServerMessageQueue = new OutgoingServerMessageQueue(
+				this.out, highWaterMark, maxFlushDelayNanos);
+		this.features = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.runningTasks = new AtomicInteger(2);
+		writerExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					UserThread.this.outgoingServerMessageQueue.run();
+				} finally {
+					taskEnded();
+				}
+			}
+		});
 	}
 
 	/**
-	 * Write a message to the output stream
+	 * Queue a message to be written to this user's output stream
 	 * 
 	 * @param message
 	 *            the message to write
 	 */
 	public void output(String message) {
-	    Collection<PrintWriter> outputStreams = new ArrayList<PrintWriter>();
-	    outputStreams.add(this.getOutputStream());
-        this.outgoingServerMessageQueue.addMessage(new OutgoingServerMessage(outputStreams, message));
+		this.output(new OutgoingServerMessage(message));
+	}
+
+	/**
+	 * Queue an already encoded message to be written to this user's output
+	 * stream
+	 * 
+	 * @param message
+	 *            the message to write
+	 */
+	public void output(OutgoingServerMessage message) {
+		this.outgoingServerMessageQueue.addMessage(message);
 	}
 
 	/**
@@ -97,10 +150,11 @@ public class UserThread extends Thread {
 	}
 	
 	/**
-	 * @return the output stream
+	 * @return the queue of messages waiting to be written to this user, which
+	 *         also keeps the queue depth, latency and dropped message counters
 	 */
-	public PrintWriter getOutputStream(){
-	    return this.out;
+	public OutgoingServerMessageQueue getOutgoingServerMessageQueue(){
+	    return this.outgoingServerMessageQueue;
 	}
 
 	/**
@@ -110,13 +164,7 @@ public class UserThread extends Thread {
 	 *            the message to output
 	 */
 	public void broadcast(String message) {
-	    Collection<PrintWriter> outputStreams = new ArrayList<PrintWriter>();
-		for (UserThread thread : this.otherThreads) {
-			if (thread.getUserID() == this.userID)
-				continue;
-			outputStreams.add(thread.getOutputStream());
-		}
-		this.outgoingServerMessageQueue.addMessage(new OutgoingServerMessage(outputStreams, message));
+		this.connections.broadcast(message, this.userID);
 	}
 
 	/**
@@ -128,18 +176,88 @@ public class UserThread extends Thread {
 	 *            the list of userIDs to output to
 	 */
 	public void broadcast(String message, Set<Integer> userIDs) {
-	    Collection<PrintWriter> outputStreams = new ArrayList<PrintWriter>();
-		for (UserThread thread : this.otherThreads) {
-			if (thread.getUserID() == this.userID)
-				continue;
-			if (userIDs.contains(thread.getUserID())) {
-			    outputStreams.add(thread.getOutputStream());
-			}
+		this.connections.broadcast(message, userIDs, this.userID);
+	}
+
+	/**
+	 * Output a message to the members of a board (except this one)
+	 * 
+	 * @param message
+	 *            the message to output
+	 * @param boardID
+	 *            the id of the board whose members get the message
+	 */
+	public void broadcastToBoard(String message, int boardID) {
+		this.connections.broadcastToBoard(message, boardID, this.userID);
+	}
+
+	/**
+	 * Output a message to all the users in a board except this one
+	 * 
+	 * @param message
+	 *            the message to output
+	 * @param boardID
+	 *            the id of the board whose members get the message
+	 */
+	public void broadcastToBoard(OutgoingServerMessage message, int boardID) {
+		this.connections.broadcastToBoard(message, boardID, this.userID);
+	}
+
+	/**
+	 * Output a message to the users in a board who asked for a feature, and
+	 * another one to the rest, except this one
+	 * 
+	 * @param message
+	 *            the message for the users with the feature
+	 * @param feature
+	 *            the feature
+	 * @param fallback
+	 *            the message for the users without the feature
+	 * @param boardID
+	 *            the id of the board whose members get the message
+	 */
+	public void broadcastToBoard(OutgoingServerMessage message, String feature,
+			OutgoingServerMessage fallback, int boardID) {
+		this.connections.broadcastToBoard(message, feature, fallback, boardID,
+				this.userID);
+	}
+
+	/**
+	 * Remember that this user asked for a feature
+	 * 
+	 * @param feature
+	 *            the name of the feature
+	 */
+	public void enableFeature(String feature) {
+		this.features.add(feature);
+	}
+
+	/**
+	 * @param feature
+	 *            the name of a feature
+	 * @return true if this user asked for the feature
+	 */
+	public boolean hasFeature(String feature) {
+		return this.features.contains(feature);
+	}
+
+	/**
+	 * Send a last text message, then read and write BinaryProtocol frames.
+	 * Called on this thread while it handles the request, so the next
+	 * message read is already a frame.
+	 * 
+	 * @param lastTextMessage
+	 *            the message to send before switching
+	 */
+	public void switchToBinaryProtocol(String lastTextMessage) {
+		if (this.in.isBinary()) {
+			this.output(lastTextMessage);
+			return;
 		}
-		this.outgoingServerMessageQueue.addMessage(new OutgoingServerMessage(outputStreams, message));;
+		this.outgoingServerMessageQueue.switchToBinary(new OutgoingServerMessage(
+				lastTextMessage));
+		this.in.setBinary();
 	}
-	
-	public void cancel() { interrupt(); }
 
 	/**
 	 * Welcomes the user and handles all their input
@@ -148,15 +266,30 @@ public class UserThread extends Thread {
 	public void run() {
 		try {
 			this.output(String.format("%s %d", MessageHandler.RESP_WELCOME, this.userID));
+			this.output(MessageHandler.makeResponseFeatures());
 			MessageHandler.notifyLobbyUsers(this, lobbyModel, true, LobbyModel.LOBBY_ID);
 			handleConnection();
 		} catch (Exception e) {
 		} finally {
-			MessageHandler.handleMessage(MessageHandler.REQ_LOGOUT, this,
-					this.lobbyModel);
+			try {
+				MessageHandler.handleMessage(MessageHandler.REQ_LOGOUT, this,
+						this.lobbyModel);
+				this.outgoingServerMessageQueue.close();
+			} finally {
+				taskEnded();
+			}
 		}
 	}
 
+	/**
+	 * Called as the reader or the writer ends; removes the user from the
+	 * connections once both have
+	 */
+	private void taskEnded() {
+		if (this.runningTasks.decrementAndGet() == 0)
+			this.connections.remove(this);
+	}
+
 	/**
 	 * Close the socket
 	 */
@@ -174,11 +307,22 @@ public class UserThread extends Thread {
 	 */
 	private void handleConnection() throws IOException {
 		try {
-			for (String line = in.readLine(); line != null; line = in.readLine()) {
-				MessageHandler.handleMessage(line, this, this.lobbyModel);
+			BinaryProtocol.Receiver receiver = new BinaryProtocol.Receiver() {
+				@Override
+				public void onText(CharSequence message) {
+					MessageHandler.handleMessage(message, UserThread.this,
+							UserThread.this.lobbyModel);
+				}
+
+				@Override
+				public void onDraw(Line line) {
+					MessageHandler.handleDraw(line, UserThread.this,
+							UserThread.this.lobbyModel);
+				}
+			};
+			while (in.readMessage(receiver)) {
 			}
 		} finally {
-			out.close();
 			in.close();
 		}
 	}
@@ -1,28 +1,95 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import protocol.OutgoingServerMessageQueue;
 import adts.LobbyModel;
 
 /**
  * Creates a new WhiteboardServer instance which is bound to a socket and will
  * multi-thread to handle multiple clients. Its main method allows for a
  * connection to socket number 4444.
+ * 
+ * In the default THREADS mode every user gets a UserThread reading its
+ * requests and a writer for its responses, both run by the connection
+ * executor (see ThreadMode). In NIO mode a small fixed number of
+ * NioEventLoops serve all the users with non-blocking channels.
  */
 public class WhiteboardServer {
+
+	/**
+	 * How the server serves its connections
+	 */
+	public enum IOMode {
+		/**
+		 * A reader and a writer thread per connection
+		 */
+		THREADS,
+		/**
+		 * A fixed pool of selector threads for all connections
+		 */
+		NIO
+	}
+
+	/**
+	 * What runs the reader and writer tasks of each connection in THREADS mode
+	 */
+	public enum ThreadMode {
+		/**
+		 * A new platform thread for every task
+		 */
+		PLATFORM,
+		/**
+		 * A new virtual thread for every task (needs Java 21 or later)
+		 */
+		VIRTUAL,
+		/**
+		 * A fixed pool of platform threads. Every connected user holds two of
+		 * them until they disconnect, so the pool caps the number of users:
+		 * a connection beyond half the pool is closed as soon as it is
+		 * accepted, rather than left waiting for threads that never free up.
+		 */
+		POOL
+	}
+
+	/**
+	 * The number of threads in POOL mode when none is given, enough for 128
+	 * connected users
+	 */
+	public static final int DEFAULT_POOL_SIZE = 256;
+
 	private Socket socket;
 	private final ServerSocket serverSocket;
+	private final ServerSocketChannel serverSocketChannel;
 	private final LobbyModel lobbyModel;
-	private final List<UserThread> userThreads;
+	private final ConnectionRegistry connections;
 	private final Thread serverThread;
 	private final WhiteboardServer thisServer;
+	private final int highWaterMark;
+	private long maxFlushDelayNanos;
+	private final IOMode ioMode;
+	private final NioEventLoop[] eventLoops;
+	private final ExecutorService connectionExecutor;
+	private final int maxConnections;
+	private final Thread[] loopThreads;
+	private volatile boolean closed;
+	private BoardJournal journal;
+	private IdleBoardEvictor evictor;
 
 	/**
 	 * Initializes a server by binding it to its port, creating an array of
@@ -33,51 +100,371 @@ public class WhiteboardServer {
 	 * @throws IOException
 	 */
 	public WhiteboardServer(int port) throws IOException {
-		this.serverSocket = new ServerSocket(port);
+		this(port, OutgoingServerMessageQueue.DEFAULT_HIGH_WATER_MARK);
+	}
+
+	/**
+	 * Initializes a server by binding it to its port, creating an array of
+	 * incoming userThreads. Will serve with a single thread.
+	 * 
+	 * @param port
+	 *            the socket port to connect to
+	 * @param highWaterMark
+	 *            the number of messages that may be waiting for a user before
+	 *            strokes sent to that user are dropped
+	 * @throws IOException
+	 */
+	public WhiteboardServer(int port, int highWaterMark) throws IOException {
+		this(port, highWaterMark, IOMode.THREADS, 0);
+	}
+
+	/**
+	 * Initializes a server by binding it to its port. Connections are served
+	 * as given by ioMode.
+	 * 
+	 * @param port
+	 *            the socket port to connect to
+	 * @param highWaterMark
+	 *            the number of messages that may be waiting for a user before
+	 *            strokes sent to that user are dropped
+	 * @param ioMode
+	 *            how to serve the connections
+	 * @param ioThreads
+	 *            the number of event loops to run in NIO mode, or 0 for one
+	 *            per available processor
+	 * @throws IOException
+	 */
+	public WhiteboardServer(int port, int highWaterMark, IOMode ioMode,
+			int ioThreads) throws IOException {
+		this(port, highWaterMark, ioMode, ioThreads,
+				ioMode == IOMode.THREADS ? createConnectionExecutor(
+						ThreadMode.PLATFORM, 0) : null);
+	}
+
+	/**
+	 * Initializes a server by binding it to its port. Connections are served
+	 * as given by ioMode, and in THREADS mode their tasks are run by
+	 * connectionExecutor.
+	 * 
+	 * @param port
+	 *            the socket port to connect to
+	 * @param highWaterMark
+	 *            the number of messages that may be waiting for a user before
+	 *            strokes sent to that user are dropped
+	 * @param ioMode
+	 *            how to serve the connections
+	 * @param ioThreads
+	 *            the number of event loops to run in NIO mode, or 0 for one
+	 *            per available processor
+	 * @param connectionExecutor
+	 *            runs the reader and writer of every connection in THREADS
+	 *            mode, see createConnectionExecutor; null in NIO mode
+	 * @throws IOException
+	 */
+	public WhiteboardServer(int port, int highWaterMark, IOMode ioMode,
+			int ioThreads, ExecutorService connectionExecutor) throws IOException {
+		if (ioMode == IOMode.THREADS && connectionExecutor == null)
+			throw new IllegalArgumentException("THREADS mode needs a connection executor");
+		this.highWaterMark = highWaterMark;
+		this.maxFlushDelayNanos = OutgoingServerMessageQueue.DEFAULT_MAX_FLUSH_DELAY_NANOS;
+		this.connectionExecutor = connectionExecutor;
+		this.maxConnections = maxConnections(ioMode, connectionExecutor);
+		this.ioMode = ioMode;
+		if (ioMode == IOMode.NIO) {
+			this.serverSocketChannel = ServerSocketChannel.open();
+			this.serverSocketChannel.bind(new InetSocketAddress(port));
+			this.serverSocket = this.serverSocketChannel.socket();
+			int loops = ioThreads > 0 ? ioThreads : Runtime.getRuntime()
+					.availableProcessors();
+			this.eventLoops = new NioEventLoop[loops];
+			for (int i = 0; i < loops; i++) {
+				this.eventLoops[i] = new NioEventLoop();
+			}
+		} else {
+			this.serverSocketChannel = null;
+			this.serverSocket = new ServerSocket(port);
+			this.eventLoops = new NioEventLoop[0];
+		}
+		this.loopThreads = new Thread[this.eventLoops.length];
+		this.closed = false;
 		this.lobbyModel = new LobbyModel();
-		this.userThreads = new ArrayList<UserThread>();
+		this.connections = new ConnectionRegistry();
+		this.lobbyModel.addBoardMembershipListener(this.connections);
 		this.thisServer = this;
 		this.serverThread = new Thread(new Runnable() {
 			public void run() {
 				try {
-					thisServer.singleThreadedServe();
+					if (thisServer.ioMode == IOMode.NIO) {
+						thisServer.nioServe();
+					} else {
+						thisServer.singleThreadedServe();
+					}
 				} catch (IOException e) {
-					e.printStackTrace();
+					if (!thisServer.closed)
+						e.printStackTrace();
 				}
 			}
 		});
 	}
 
+	/**
+	 * @return the number of users the executor can serve at once in THREADS
+	 *         mode: half its threads if it has a bounded number of them,
+	 *         since every user holds a reader and a writer
+	 */
+	private static int maxConnections(IOMode ioMode,
+			ExecutorService connectionExecutor) {
+		if (ioMode == IOMode.THREADS
+				&& connectionExecutor instanceof ThreadPoolExecutor) {
+			return Math.max(1, ((ThreadPoolExecutor) connectionExecutor)
+					.getMaximumPoolSize() / 2);
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Sets the shortest time between flushes of a user's writer while
+	 * messages keep coming, which is also the longest a message may wait for
+	 * its flush (THREADS mode only). Only affects users who
+	 * connect afterwards, so it is meant to be called before serve.
+	 * 
+	 * @param maxFlushDelayNanos
+	 *            the longest delay in nanoseconds, or 0 to always flush at once
+	 */
+	public void setMaxFlushDelayNanos(long maxFlushDelayNanos) {
+		if (maxFlushDelayNanos < 0)
+			throw new IllegalArgumentException("max flush delay must not be negative");
+		this.maxFlushDelayNanos = maxFlushDelayNanos;
+	}
+
+	/**
+	 * Keeps the boards in a BoardJournal in the given directory: reads back
+	 * the boards logged there, then logs every change to the boards. The
+	 * journal is closed, committing what is left, when the JVM shuts down.
+	 * Meant to be called once, before serve.
+	 * 
+	 * @param directory
+	 *            where the board logs are
+	 * @return the number of boards read back
+	 * @throws IOException
+	 *             if the logs cannot be read
+	 */
+	public int openJournal(File directory) throws IOException {
+		if (this.journal != null)
+			throw new IllegalStateException("the journal is already open");
+		final BoardJournal journal = new BoardJournal(directory);
+		int recovered = journal.recover(this.lobbyModel);
+		this.lobbyModel.addBoardChangeListener(journal);
+		this.journal = journal;
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}));
+		return recovered;
+	}
+
+	/**
+	 * @return false while the journal cannot write the boards' changes to
+	 *         disk, so that they would be lost if the server stopped; true
+	 *         without a journal
+	 */
+	public boolean isHealthy() {
+		return this.journal == null || this.journal.isHealthy();
+	}
+
+	/**
+	 * Moves the lines of boards nobody has been in for the given time off
+	 * the heap, into memory-mapped files in the given directory, until they
+	 * are needed again. Meant to be called once, before serve.
+	 * 
+	 * @param directory
+	 *            where to keep the lines of idle boards
+	 * @param idleNanos
+	 *            how long a board must have had nobody in it to be evicted
+	 * @throws IOException
+	 *             if the directory cannot be made
+	 */
+	public void evictIdleBoards(File directory, long idleNanos)
+			throws IOException {
+		if (this.evictor != null)
+			throw new IllegalStateException("idle boards are already evicted");
+		IdleBoardEvictor evictor = new IdleBoardEvictor(this.lobbyModel,
+				directory, idleNanos);
+		this.lobbyModel.addBoardMembershipListener(evictor);
+		this.evictor = evictor;
+	}
+
 	/**
 	 * Begins a server thread.
 	 */
 	public void serve() throws IOException {
+		for (int i = 0; i < this.eventLoops.length; i++) {
+			Thread loopThread = new Thread(this.eventLoops[i],
+					"NioEventLoop-" + i);
+			loopThread.setDaemon(true);
+			loopThread.start();
+			this.loopThreads[i] = loopThread;
+		}
 		this.serverThread.start();
 	}
 
+	/**
+	 * Stops the server: stops accepting, disconnects every user, stops the
+	 * event loops and shuts the connection executor down. The journal, if
+	 * any, is still closed when the JVM shuts down.
+	 * 
+	 * @throws IOException
+	 *             if the server socket cannot be closed
+	 */
+	public void close() throws IOException {
+		this.closed = true;
+		try {
+			this.serverSocket.close();
+		} finally {
+			this.connections.closeAll();
+			for (Thread loopThread : this.loopThreads) {
+				if (loopThread != null)
+					loopThread.interrupt();
+			}
+			if (this.connectionExecutor != null)
+				this.connectionExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * @return the number of users served at once; more are disconnected as
+	 *         soon as they connect
+	 */
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	/**
+	 * @return the port the server is bound to, useful when it was created
+	 *         with port 0
+	 */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Creates an executor for the reader and writer tasks of the connections
+	 * 
+	 * @param threadMode
+	 *            what kind of threads run the tasks
+	 * @param poolSize
+	 *            the number of threads in POOL mode, ignored otherwise
+	 * @return the executor
+	 * @throws IllegalArgumentException
+	 *             if virtual threads are asked for on a Java runtime without
+	 *             them, or the pool size is less than 2 in POOL mode
+	 */
+	public static ExecutorService createConnectionExecutor(
+			ThreadMode threadMode, int poolSize) {
+		switch (threadMode) {
+		case VIRTUAL:
+			// looked up reflectively so the server still builds and runs
+			// on runtimes that predate virtual threads
+			try {
+				Method factory = Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException(
+						"virtual threads need Java 21 or later");
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException(e);
+			} catch (InvocationTargetException e) {
+				throw new IllegalArgumentException(e.getCause());
+			}
+		case POOL:
+			if (poolSize < 2)
+				throw new IllegalArgumentException(
+						"pool size must be at least 2, a reader and a writer");
+			return Executors.newFixedThreadPool(poolSize);
+		default:
+			return Executors.newCachedThreadPool();
+		}
+	}
+
 	/**
 	 * Begins a server without threading. Once started, it will listen in for
-	 * new user connections and create a new thread for each successful one.
+	 * new user connections and hand each successful one to the connection
+	 * executor, or close it if the executor already serves as many users as
+	 * it can.
 	 * 
 	 * @throws IOException
 	 */
 	public void singleThreadedServe() throws IOException {
 		while (true) {
 			socket = serverSocket.accept();
+			// only this thread adds connections, so the count cannot grow
+			// past the check
+			if (this.connections.size() >= this.maxConnections) {
+				socket.close();
+				continue;
+			}
 			int userID = this.lobbyModel.addUser();
 			UserThread thread = new UserThread(socket, userID,
-					this.userThreads, this.lobbyModel);
-			this.userThreads.add(thread);
-			thread.start();
+					this.connections, this.lobbyModel, this.highWaterMark,
+					this.maxFlushDelayNanos, this.connectionExecutor);
+			this.connections.add(thread);
+			this.connectionExecutor.execute(thread);
 		}
 
 	}
 
+	/**
+	 * Accepts new user connections and hands them to the event loops that
+	 * are still alive in turn. Nothing but accepting happens on this thread.
+	 * 
+	 * @throws IOException
+	 */
+	private void nioServe() throws IOException {
+		int nextLoop = 0;
+		while (true) {
+			SocketChannel channel = this.serverSocketChannel.accept();
+			NioEventLoop loop = null;
+			for (int i = 0; i < this.eventLoops.length && loop == null; i++) {
+				NioEventLoop candidate = this.eventLoops[nextLoop];
+				nextLoop = (nextLoop + 1) % this.eventLoops.length;
+				if (candidate.isAlive())
+					loop = candidate;
+			}
+			if (loop == null) {
+				// no loop left to serve it
+				channel.close();
+				continue;
+			}
+			int userID = this.lobbyModel.addUser();
+			NioUserConnection connection = new NioUserConnection(channel,
+					loop, userID, this.connections, this.lobbyModel,
+					this.highWaterMark);
+			this.connections.add(connection);
+			loop.register(connection);
+		}
+	}
+
 	/**
 	 * This is the main method.
 	 */
 	public static void main(String[] args) {
 		int port = 4444;
+		int highWaterMark = OutgoingServerMessageQueue.DEFAULT_HIGH_WATER_MARK;
+		long maxFlushDelayNanos = OutgoingServerMessageQueue.DEFAULT_MAX_FLUSH_DELAY_NANOS;
+		IOMode ioMode = IOMode.THREADS;
+		int ioThreads = 0;
+		ThreadMode threadMode = ThreadMode.PLATFORM;
+		int poolSize = 0;
+		boolean threadOptions = false;
+		File journalDirectory = null;
+		long evictAfterNanos = 0;
+		File coldDirectory = null;
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         
         try {
@@ -89,6 +476,56 @@ public class WhiteboardServer {
                         if (port < 0 || port > 65535) {
                             throw new IllegalArgumentException("port " + port + " out of range");
                         }
+                    } else if (flag.equals("--high-water-mark")) {
+                        highWaterMark = Integer.parseInt(arguments.remove());
+                        if (highWaterMark <= 0) {
+                            throw new IllegalArgumentException("high water mark must be positive");
+                        }
+                    } else if (flag.equals("--max-flush-delay")) {
+                        long micros = Long.parseLong(arguments.remove());
+                        if (micros < 0) {
+                            throw new IllegalArgumentException("max flush delay must not be negative");
+                        }
+                        maxFlushDelayNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+                    } else if (flag.equals("--io")) {
+                        String mode = arguments.remove();
+                        if (mode.equals("threads")) {
+                            ioMode = IOMode.THREADS;
+                        } else if (mode.equals("nio")) {
+                            ioMode = IOMode.NIO;
+                        } else {
+                            throw new IllegalArgumentException("unknown io mode: \"" + mode + "\"");
+                        }
+                    } else if (flag.equals("--io-threads")) {
+                        ioThreads = Integer.parseInt(arguments.remove());
+                        if (ioThreads <= 0) {
+                            throw new IllegalArgumentException("io threads must be positive");
+                        }
+                    } else if (flag.equals("--threads")) {
+                        threadOptions = true;
+                        String mode = arguments.remove();
+                        if (mode.equals("platform")) {
+                            threadMode = ThreadMode.PLATFORM;
+                        } else if (mode.equals("virtual")) {
+                            threadMode = ThreadMode.VIRTUAL;
+                        } else if (mode.equals("pool")) {
+                            threadMode = ThreadMode.POOL;
+                        } else {
+                            throw new IllegalArgumentException("unknown thread mode: \"" + mode + "\"");
+                        }
+                    } else if (flag.equals("--pool-size")) {
+                        threadOptions = true;
+                        poolSize = Integer.parseInt(arguments.remove());
+                    } else if (flag.equals("--journal")) {
+                        journalDirectory = new File(arguments.remove());
+                    } else if (flag.equals("--evict-after")) {
+                        long minutes = Long.parseLong(arguments.remove());
+                        if (minutes <= 0) {
+                            throw new IllegalArgumentException("evict after must be positive");
+                        }
+                        evictAfterNanos = TimeUnit.MINUTES.toNanos(minutes);
+                    } else if (flag.equals("--cold-dir")) {
+                        coldDirectory = new File(arguments.remove());
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
                     }
@@ -97,15 +534,30 @@ public class WhiteboardServer {
                     throw new IllegalArgumentException("unable to parse number for " + flag);
                 } 
             }
-            runWhiteboardServer(port);
+            if (ioMode == IOMode.NIO && threadOptions) {
+                throw new IllegalArgumentException("--threads and --pool-size only apply to --io threads");
+            }
+            if (threadMode == ThreadMode.POOL && poolSize == 0) {
+                poolSize = DEFAULT_POOL_SIZE;
+            }
+            if (evictAfterNanos > 0 && coldDirectory == null) {
+                coldDirectory = new File(System.getProperty("java.io.tmpdir"),
+                        "whiteboard-cold");
+            }
+            // event loops serve every connection in NIO mode
+            ExecutorService connectionExecutor = ioMode == IOMode.THREADS
+                    ? createConnectionExecutor(threadMode, poolSize) : null;
+            runWhiteboardServer(port, highWaterMark, maxFlushDelayNanos, ioMode,
+                    ioThreads, connectionExecutor, journalDirectory,
+                    evictAfterNanos, coldDirectory);
 
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: WhiteboardServer [--port PORT]");
+            System.err.println("usage: WhiteboardServer [--port PORT] [--high-water-mark MESSAGES] [--max-flush-delay MICROS] [--io threads|nio] [--io-threads N] [--threads platform|virtual|pool] [--pool-size N] [--journal DIR] [--evict-after MINUTES] [--cold-dir DIR]");
             return;
         } catch (IOException ioe) {
             System.err.println(ioe.getMessage());
-            System.err.println("usage: WhiteboardServer [--port PORT]");
+            System.err.println("usage: WhiteboardServer [--port PORT] [--high-water-mark MESSAGES] [--max-flush-delay MICROS] [--io threads|nio] [--io-threads N] [--threads platform|virtual|pool] [--pool-size N] [--journal DIR] [--evict-after MINUTES] [--cold-dir DIR]");
             return;
         }
 	}
@@ -115,12 +567,43 @@ public class WhiteboardServer {
 	 * 
 	 * @param port
 	 *            socket integer to connect to.
+	 * @param highWaterMark
+	 *            the number of messages that may be waiting for a user before
+	 *            strokes sent to that user are dropped
+	 * @param maxFlushDelayNanos
+	 *            the shortest time between flushes of a user's writer while
+	 *            messages keep coming
+	 * @param ioMode
+	 *            how to serve the connections
+	 * @param ioThreads
+	 *            the number of event loops in NIO mode, or 0 for the default
+	 * @param connectionExecutor
+	 *            runs the reader and writer of every connection in THREADS
+	 *            mode; null in NIO mode
+	 * @param journalDirectory
+	 *            where to keep the boards' logs, or null to keep the boards
+	 *            in memory only
+	 * @param evictAfterNanos
+	 *            how long a board must have had nobody in it for its lines
+	 *            to be moved off the heap, or 0 to keep every board's lines
+	 *            on the heap
+	 * @param coldDirectory
+	 *            where to keep the lines moved off the heap
 	 * @throws IOException
 	 */
-	public static void runWhiteboardServer(int port) throws IOException {
+	public static void runWhiteboardServer(int port, int highWaterMark,
+			long maxFlushDelayNanos, IOMode ioMode, int ioThreads,
+			ExecutorService connectionExecutor, File journalDirectory,
+			long evictAfterNanos, File coldDirectory) throws IOException {
 		WhiteboardServer server;
 		try {
-			server = new WhiteboardServer(port);
+			server = new WhiteboardServer(port, highWaterMark, ioMode,
+					ioThreads, connectionExecutor);
+			server.setMaxFlushDelayNanos(maxFlushDelayNanos);
+			if (journalDirectory != null)
+				server.openJournal(journalDirectory);
+			if (evictAfterNanos > 0)
+				server.evictIdleBoards(coldDirectory, evictAfterNanos);
 			server.serve();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -2,11 +2,37 @@ package tests;
 
 import static org.junit.Assert.*;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.imageio.ImageIO;
+
 import org.junit.Test;
 
 import adts.Line;
+import adts.LobbyModel;
+import adts.RasterSnapshot;
+import adts.StrokeSnapshot;
+import adts.SegmentSelection;
+import adts.StrokeStore;
+import adts.ThumbnailCache;
+import adts.ThumbnailListener;
+import adts.TileChanges;
+import adts.TileIndex;
+import adts.TileSnapshot;
 import adts.User;
 import adts.Whiteboard;
+import server.BoardJournal;
+import server.IdleBoardEvictor;
 
 /**
  * Tests that the adts have the proper behavior
@@ -101,5 +127,804 @@ public class ADTTests {
         assertEquals(board.getBoardName(), "other name");
     }    
     
+    /**
+     * Add lines to a stroke store, read them back and check that a snapshot
+     * does not change when the store does
+     */
+    @Test
+    public void test_stroke_store(){
+        StrokeStore store = new StrokeStore();
+        for (int i = 0; i < 3000; i++) {
+            store.add(new Line(i, i + 1, i + 2, i + 3, 2.5f, 10, 20, 30, 255));
+        }
+        StrokeSnapshot lines = store.snapshot();
+        assertEquals(3000, lines.size());
+        assertEquals(42, lines.getX1(42));
+        assertEquals(2045, lines.getY2(2042));
+        assertEquals(2.5, lines.getStrokeThickness(42), 0.01);
+        assertEquals(10, lines.getR(42));
+        assertEquals(20, lines.getG(42));
+        assertEquals(30, lines.getB(42));
+        assertEquals(255, lines.getA(42));
+        assertEquals(new Line(7, 8, 9, 10, 2.5f, 10, 20, 30, 255).toString(), lines.toString(7));
+        assertEquals(lines.toString(1500), lines.getLine(1500).toString());
+        
+        store.add(new Line(0, 0, 0, 0, 1, 0, 0, 0, 0));
+        assertEquals(3000, lines.size());
+        assertEquals(3001, store.size());
+        assertEquals(3001, store.snapshot().size());
+    }
+    
+    /**
+     * A polyline is stored as one segment per pair of consecutive points,
+     * and snapshots see all of its segments or none
+     */
+    @Test
+    public void test_stroke_store_polyline(){
+        StrokeStore store = new StrokeStore();
+        store.add(new Line(0, 0, 1, 1, 1, 0, 0, 0, 255));
+        StrokeSnapshot before = store.snapshot();
+        int[] points = new int[2 * 2000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = i;
+        }
+        store.addPolyline(3.5f, 10, 20, 30, 40, points, 2000);
+        assertEquals(1, before.size());
+        StrokeSnapshot lines = store.snapshot();
+        assertEquals(2000, lines.size());
+        assertEquals(new Line(0, 1, 2, 3, 3.5f, 10, 20, 30, 40).toString(), lines.toString(1));
+        assertEquals(new Line(3996, 3997, 3998, 3999, 3.5f, 10, 20, 30, 40).toString(), lines.toString(1999));
+    }
+    
+    /**
+     * Read snapshots of a board while another thread keeps drawing on it
+     * and clearing it: every snapshot must be complete and in order
+     */
+    @Test(timeout=20000)
+    public void test_whiteboard_snapshots_while_drawing() throws InterruptedException{
+        final Whiteboard board = new Whiteboard(1);
+        final int lines = 200000;
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < lines; i++) {
+                    if (i % 50000 == 0)
+                        board.clearBoard();
+                    board.addLine(new Line(i % 50000, 0, 0, 0, 1, 0, 0, 0, 255));
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            StrokeSnapshot snapshot = board.getLines();
+            for (int i = 0; i < snapshot.size(); i++) {
+                assertEquals(i, snapshot.getX1(i));
+            }
+        }
+        writer.join();
+        assertEquals(50000, board.getLines().size());
+    }
+    
+    /**
+     * Boards with the same name get numbered names, and users move
+     * between boards without ever being in two at once
+     */
+    /**
+     * Index segments and check the tiles they are found in: a short one in its
+     * tile, one on a tile edge in both tiles its stroke covers, and a long
+     * diagonal in the tiles along it but not the rest of its bounding box
+     */
+    @Test
+    public void test_tile_index(){
+        TileIndex index = new TileIndex();
+        index.add(0, 10, 10, 20, 20, 2, 1);
+        index.add(1, 250, 100, 250, 120, 20, 2);
+        index.add(2, 0, 0, 1023, 1023, 1, 3);
+        index.add(3, -10, -10, -5, -5, 1, 4);
+        
+        assertArrayEquals(new int[] { 0, 1, 2 }, index.getSegments(0, 0));
+        assertArrayEquals(new int[] { 1, 2 }, index.getSegments(1, 0));
+        assertArrayEquals(new int[] { 2 }, index.getSegments(3, 3));
+        assertArrayEquals(new int[0], index.getSegments(0, 3));
+        assertArrayEquals(new int[0], index.getSegments(3, 0));
+        assertArrayEquals(new int[0], index.getSegments(2, 0));
+        assertArrayEquals(new int[] { 2, 3 }, index.getSegments(-1, -1));
+        assertEquals(4, index.getVersion(-1, -1));
+        assertEquals(3, index.getVersion(0, 0));
+        
+        // the diagonal goes through 4 tiles, and its stroke comes within a
+        // pixel or two of the tiles on either side of each corner it crosses
+        // and of its ends: 16 of the 36 tiles its widened bounding box covers
+        assertEquals(16, index.getTileCount());
+        assertEquals(4, index.getSegmentCount());
+        assertArrayEquals(new int[] { -1, -1 }, index.getTilesChangedSince(3));
+        assertEquals(0, index.getTilesChangedSince(4).length);
+    }
+    
+    /**
+     * A segment across too many tiles is kept aside rather than in its tiles,
+     * and is still found by every query near its bounding box
+     */
+    @Test
+    public void test_tile_index_oversize(){
+        TileIndex index = new TileIndex();
+        index.add(0, 10, 10, 20, 20, 2, 1);
+        index.add(1, 0, 0, 1000000, 0, 1, 2);
+        index.add(2, 30, 30, 40, 40, 2, 3);
+        
+        assertEquals(1, index.getOversizeCount());
+        assertEquals(3, index.getSegmentCount());
+        assertEquals(1, index.getTileCount());
+        assertArrayEquals(new int[] { 0, 1, 2 }, index.getSegments(0, 0));
+        assertArrayEquals(new int[] { 1 }, index.getSegments(1000, 0));
+        assertArrayEquals(new int[0], index.getSegments(1000, 1));
+        assertEquals(2, index.getVersion(1000, 0));
+        assertArrayEquals(new int[] { 1 }, index.getSegmentsInRegion(5000, 0, 5010, 10));
+        assertTrue(index.hasOversizeSince(1));
+        assertFalse(index.hasOversizeSince(2));
+        assertArrayEquals(new int[] { 0, 0 }, index.getTilesChangedSince(2));
+    }
+    
+    /**
+     * Draw lines and a polyline on a board and check its tiles, and that a
+     * clear is reported to a client that had the board from before
+     */
+    @Test
+    public void test_whiteboard_tiles(){
+        Whiteboard board = new Whiteboard(1);
+        board.addLine(new Line(10, 10, 20, 20, 2, 1, 2, 3, 255));
+        board.addPolyline(2, 4, 5, 6, 255, new int[] { 300, 10, 310, 10, 320, 10 }, 3);
+        assertEquals(2, board.getVersion());
+        
+        TileSnapshot tile = board.getTile(1, 0);
+        assertEquals(2, tile.size());
+        assertEquals(1, tile.getIndex(0));
+        assertEquals(new Line(310, 10, 320, 10, 2, 4, 5, 6, 255).toString(), tile.getLine(1).toString());
+        
+        TileChanges changes = board.getTileChangesSince(1);
+        assertEquals(2, changes.getVersion());
+        assertFalse(changes.isAllChanged());
+        assertEquals(1, changes.getTileCount());
+        assertEquals(1, changes.getTileX(0));
+        assertEquals(0, changes.getTileY(0));
+        
+        board.clearBoard();
+        board.addLine(new Line(600, 600, 610, 610, 2, 1, 2, 3, 255));
+        changes = board.getTileChangesSince(2);
+        assertTrue(changes.isAllChanged());
+        assertEquals(4, changes.getVersion());
+        assertEquals(1, changes.getTileCount());
+        assertEquals(0, board.getTile(1, 0).size());
+        assertEquals(0, board.getLines().getX1(0) - 600);
+        assertFalse(board.getTileChangesSince(3).isAllChanged());
+        
+        // the tile snapshot taken before the clear is unchanged
+        assertEquals(2, tile.size());
+    }
+    
+    /**
+     * Query regions of a board: a line is found where its stroke is, not
+     * just its ends, and not where only its bounding box is; and on a random
+     * board every query agrees with checking all the lines
+     */
+    @Test
+    public void test_whiteboard_region_query(){
+        Whiteboard board = new Whiteboard(1);
+        board.addLine(new Line(0, 0, 1000, 1000, 2, 1, 2, 3, 255));
+        board.addLine(new Line(500, 100, 500, 110, 20, 1, 2, 3, 255));
+        
+        SegmentSelection middle = board.getLinesInRegion(495, 495, 10, 10);
+        assertEquals(1, middle.size());
+        assertEquals(0, middle.getIndex(0));
+        // in the bounding box of the diagonal, far from it
+        assertEquals(0, board.getLinesInRegion(900, 10, 50, 50).size());
+        // within half the stroke thickness of the short line
+        SegmentSelection near = board.getLinesInRegion(505, 105, 1, 1);
+        assertEquals(1, near.size());
+        assertEquals("500 100 500 110 20.000000 1 2 3 255", near.toString(0));
+        assertEquals(2, board.getLinesInRegion(-5000, -5000, 10000, 10000).size());
+        
+        Random random = new Random(3);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(3000) - 500;
+            int y = random.nextInt(3000) - 500;
+            board.addLine(new Line(x, y, x + random.nextInt(201) - 100,
+                    y + random.nextInt(201) - 100, 1 + random.nextInt(30), 0, 0, 0, 255));
+        }
+        StrokeSnapshot lines = board.getLines();
+        for (int query = 0; query < 200; query++) {
+            int x = random.nextInt(3000) - 500;
+            int y = random.nextInt(3000) - 500;
+            int width = 1 + random.nextInt(query % 2 == 0 ? 20 : 700);
+            int height = 1 + random.nextInt(query % 2 == 0 ? 20 : 700);
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int j = 0; j < lines.size(); j++) {
+                if (TileIndex.intersects(lines.getX1(j), lines.getY1(j),
+                        lines.getX2(j), lines.getY2(j), lines.getStrokeThickness(j),
+                        x, y, x + width - 1, y + height - 1))
+                    expected.add(j);
+            }
+            SegmentSelection found = board.getLinesInRegion(x, y, width, height);
+            assertEquals(expected.size(), found.size());
+            for (int j = 0; j < found.size(); j++) {
+                assertEquals((int) expected.get(j), found.getIndex(j));
+            }
+        }
+    }
+    
+    /**
+     * Take the raster of a board: the image is drawn in the background, the
+     * lines it does not have yet are sent after it, it has the lines where
+     * they were drawn and is transparent elsewhere, a line reaching past the
+     * size of a Canvas is sent after it instead, lines drawn since are sent
+     * after it until enough of them make it refresh, and a clear starts it
+     * over
+     */
+    @Test(timeout=20000)
+    public void test_whiteboard_raster() throws IOException, InterruptedException{
+        RasterSnapshot empty = new Whiteboard(2).getRaster();
+        assertEquals(0, empty.getFirstLineAfterImage());
+        assertEquals(0, empty.getSegmentCount());
+        assertEquals(1, image(empty).getWidth());
+        
+        Whiteboard board = new Whiteboard(1);
+        
+        board.addLine(new Line(10, 20, 100, 20, 5, 255, 0, 0, 255));
+        board.addLine(new Line(300, 40, 300, 600, 3, 0, 0, 255, 255));
+        RasterSnapshot first = board.getRaster();
+        assertEquals(0, first.getFirstLineAfterImage());
+        assertEquals(2, first.getSegmentCount());
+        assertEquals(1, first.getSegment(1));
+        RasterSnapshot raster = awaitRaster(board, 2);
+        assertEquals(0, raster.getSegmentCount());
+        assertEquals(2, raster.getLines().size());
+        BufferedImage image = image(raster);
+        assertEquals(512, image.getWidth());
+        assertEquals(768, image.getHeight());
+        assertEquals(0xffff0000, image.getRGB(50, 20));
+        assertEquals(0xff0000ff, image.getRGB(300, 500));
+        assertEquals(0, image.getRGB(200, 200) >>> 24);
+        
+        board.addLine(new Line(5000, 100, 6000, 100, 1, 0, 0, 0, 255));
+        RasterSnapshot after = board.getRaster();
+        assertEquals(2, after.getFirstLineAfterImage());
+        assertEquals(3, after.getLines().size());
+        assertEquals(1, after.getSegmentCount());
+        for (int i = 0; i < 1000; i++) {
+            board.addLine(new Line(i, 700, i, 710, 1, 0, 255, 0, 255));
+        }
+        board.getRaster();
+        RasterSnapshot refreshed = awaitRaster(board, 1003);
+        // the line past the image is the only one sent after it
+        assertEquals(1, refreshed.getSegmentCount());
+        assertEquals(2, refreshed.getSegment(0));
+        image = image(refreshed);
+        assertEquals(1024, image.getWidth());
+        assertEquals(768, image.getHeight());
+        assertEquals(0xff00ff00, image.getRGB(999, 705));
+        assertEquals(0xffff0000, image.getRGB(50, 20));
+        
+        board.clearBoard();
+        board.addLine(new Line(1, 1, 2, 2, 1, 0, 0, 0, 255));
+        board.getRaster();
+        RasterSnapshot cleared = awaitRaster(board, 1);
+        assertEquals(256, image(cleared).getWidth());
+    }
+    
+    /**
+     * @return the raster of a board once its image covers the given number
+     *         of lines
+     */
+    private static RasterSnapshot awaitRaster(Whiteboard board, int lines) throws InterruptedException{
+        RasterSnapshot raster = board.getRaster();
+        while (raster.getFirstLineAfterImage() < lines) {
+            Thread.sleep(1);
+            raster = board.getRaster();
+        }
+        return raster;
+    }
+    
+    /**
+     * @return the image of a raster snapshot
+     */
+    private static BufferedImage image(RasterSnapshot raster) throws IOException{
+        return ImageIO.read(new ByteArrayInputStream(raster.getPNG()));
+    }
+    
+    /**
+     * Get thumbnails of boards: a blank one comes back at once and the
+     * drawn one once it is drawn, a line shows up scaled down, a board that
+     * did not change is not drawn again, not even paged in when evicted, an
+     * evicted board is drawn without paging it in, new lines are drawn on
+     * what was there, a clear starts over, and the thumbnails drawn least
+     * recently are dropped to stay in the budget
+     */
+    @Test(timeout=10000)
+    public void test_thumbnail_cache() throws IOException, InterruptedException{
+        ThumbnailCache cache = new ThumbnailCache(ThumbnailCache.DEFAULT_BUDGET_BYTES);
+        Whiteboard board = new Whiteboard(1);
+        board.addLine(new Line(0, 600, 1920, 600, 2, 0, 0, 0, 255));
+        // a thumbnail never drawn is blank, whatever its board has
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                new ThumbnailCache(ThumbnailCache.DEFAULT_BUDGET_BYTES).get(board)));
+        assertEquals(ThumbnailCache.WIDTH, image.getWidth());
+        assertEquals(ThumbnailCache.HEIGHT, image.getHeight());
+        assertEquals(0xffffffff, image.getRGB(40, 25));
+        byte[] png = awaitThumbnail(cache, board);
+        image = ImageIO.read(new ByteArrayInputStream(png));
+        assertTrue((image.getRGB(40, 25) & 0xff) < 0x80);
+        assertEquals(0xffffffff, image.getRGB(40, 5));
+        assertEquals(1, cache.getDrawnLines());
+        assertSame(png, cache.get(board));
+        
+        File file = File.createTempFile("board", ".cold");
+        assertTrue(board.evict(file));
+        assertSame(png, cache.get(board));
+        assertTrue(board.isEvicted());
+        
+        board.addLine(new Line(960, 0, 960, 1200, 2, 0, 0, 0, 255));
+        image = ImageIO.read(new ByteArrayInputStream(awaitThumbnail(cache, board, png)));
+        assertEquals(2, cache.getDrawnLines());
+        assertTrue((image.getRGB(40, 25) & 0xff) < 0x80);
+        assertTrue((image.getRGB(40, 5) & 0xff) < 0x80);
+        
+        board.clearBoard();
+        image = ImageIO.read(new ByteArrayInputStream(awaitThumbnail(cache, board)));
+        assertEquals(0xffffffff, image.getRGB(40, 25));
+        assertEquals(2, cache.getDrawnLines());
+        
+        // a board evicted before its thumbnail is drawn stays evicted
+        Whiteboard cold = new Whiteboard(2);
+        cold.addLine(new Line(0, 600, 1920, 600, 2, 0, 0, 0, 255));
+        assertTrue(cold.evict(File.createTempFile("board", ".cold")));
+        image = ImageIO.read(new ByteArrayInputStream(awaitThumbnail(cache, cold)));
+        assertTrue((image.getRGB(40, 25) & 0xff) < 0x80);
+        assertTrue(cold.isEvicted());
+        
+        ThumbnailCache small = new ThumbnailCache(2 * ThumbnailCache.WIDTH
+                * ThumbnailCache.HEIGHT * 4 + 4000);
+        Whiteboard[] boards = new Whiteboard[3];
+        for (int i = 0; i < boards.length; i++) {
+            boards[i] = new Whiteboard(i);
+            boards[i].addLine(new Line(10 * i, 0, 100, 100, 5, 0, 0, 0, 255));
+            awaitThumbnail(small, boards[i]);
+        }
+        assertEquals(2, small.size());
+        assertTrue(small.getBytes() <= 2 * ThumbnailCache.WIDTH
+                * ThumbnailCache.HEIGHT * 4 + 4000);
+        small.get(boards[2]);
+        small.get(boards[1]);
+        assertEquals(3, small.getDrawnLines());
+        awaitThumbnail(small, boards[0]);
+        assertEquals(4, small.getDrawnLines());
+        assertEquals(2, small.size());
+    }
+    
+    /**
+     * @return the thumbnail of a board once it is drawn, which it must be
+     *         behind, with no refresh of it started before
+     */
+    private static byte[] awaitThumbnail(ThumbnailCache cache, Whiteboard board) throws InterruptedException{
+        return awaitThumbnail(cache, board, null);
+    }
+    
+    /**
+     * @param behind the thumbnail as it must be handed out first, or null
+     * @return the thumbnail of a board once it is drawn, which it must be
+     *         behind, with no refresh of it started before
+     */
+    private static byte[] awaitThumbnail(ThumbnailCache cache, Whiteboard board, byte[] behind) throws InterruptedException{
+        final BlockingQueue<byte[]> ready = new LinkedBlockingQueue<byte[]>();
+        byte[] png = cache.get(board, new ThumbnailListener() {
+            @Override
+            public void thumbnailReady(int boardID, byte[] png) {
+                ready.add(png);
+            }
+        });
+        assertSame(png, ready.take());
+        if (behind != null)
+            assertSame(behind, png);
+        return ready.take();
+    }
+    
+    /**
+     * Evict a board and page it back in by reading, drawing on and clearing
+     * it, then let an IdleBoardEvictor evict a board once its last user left,
+     * and again only a sweep after it was paged back in
+     */
+    @Test(timeout=20000)
+    public void test_board_eviction() throws IOException, InterruptedException{
+        File directory = Files.createTempDirectory("cold").toFile();
+        Whiteboard board = new Whiteboard(1);
+        File file = new File(directory, "board-1.cold");
+        assertFalse(board.evict(file));
+        board.addLine(new Line(1, 2, 300, 4, 5, 6, 7, 8, 9));
+        board.addPolyline(3, 1, 2, 3, 255, new int[] { 0, 0, 5, 5, 600, 0 }, 3);
+        StrokeSnapshot before = board.getLines();
+        long version = board.getVersion();
+        int tiles = board.getTileChangesSince(0).getTileCount();
+        assertTrue(board.evict(file));
+        assertTrue(board.isEvicted());
+        assertEquals(3 * 24, file.length());
+        assertEquals(3, before.size());
+        
+        assertEquals(version, board.getVersion());
+        assertTrue(board.isEvicted());
+        StrokeSnapshot after = board.getLines();
+        assertFalse(board.isEvicted());
+        assertFalse(file.exists());
+        for (int i = 0; i < before.size(); i++) {
+            assertEquals(before.toString(i), after.toString(i));
+        }
+        assertEquals(0, board.getTileChangesSince(version).getTileCount());
+        assertEquals(tiles, board.getTileChangesSince(0).getTileCount());
+        
+        assertTrue(board.evict(file));
+        board.addLine(new Line(7, 7, 8, 8, 1, 0, 0, 0, 255));
+        assertEquals(4, board.getLines().size());
+        assertEquals(4, board.getLinesInRegion(0, 0, 10, 10).size());
+        assertTrue(board.evict(file));
+        board.clearBoard();
+        assertFalse(file.exists());
+        assertEquals(0, board.getLines().size());
+        
+        LobbyModel lobby = new LobbyModel();
+        IdleBoardEvictor evictor = new IdleBoardEvictor(lobby, directory, 1);
+        lobby.addBoardMembershipListener(evictor);
+        int boardID = lobby.addBoard("board");
+        int userID = lobby.addUser("user");
+        lobby.userJoinBoard(userID, boardID);
+        lobby.addLineToBoardID(new Line(1, 2, 3, 4, 5, 6, 7, 8, 9), boardID);
+        evictor.sweep();
+        evictor.sweep();
+        Whiteboard idle = lobby.getWhiteboard(boardID);
+        assertFalse(idle.isEvicted());
+        lobby.userLeaveBoard(userID, boardID);
+        while (!idle.isEvicted()) {
+            evictor.sweep();
+            Thread.sleep(1);
+        }
+        evictor.close();
+        idle.getTile(0, 0);
+        assertFalse(idle.isEvicted());
+        assertEquals(0, evictor.sweep());
+        assertFalse(idle.isEvicted());
+        while (!idle.isEvicted()) {
+            evictor.sweep();
+            Thread.sleep(1);
+        }
+        lobby.userJoinBoard(userID, boardID);
+        assertEquals(1, lobby.getLinesForBoardID(boardID).size());
+        assertFalse(idle.isEvicted());
+    }
+    
+    /**
+     * Make boards, draw, clear and rename them with a journal listening, then
+     * read them back into a new model, also after garbage was appended to a
+     * log as a crash in the middle of a write would leave
+     */
+    @Test(timeout=20000)
+    public void test_board_journal_recovery() throws IOException{
+        File directory = Files.createTempDirectory("journal").toFile();
+        LobbyModel lobby = new LobbyModel();
+        BoardJournal journal = new BoardJournal(directory);
+        assertEquals(0, journal.recover(lobby));
+        lobby.addBoardChangeListener(journal);
+        
+        int first = lobby.addBoard("first");
+        int second = lobby.addBoard("first");
+        lobby.addLineToBoardID(new Line(1, 2, 3, 4, 5, 6, 7, 8, 9), first);
+        lobby.clearBoard(first);
+        lobby.addLineToBoardID(new Line(10, 20, 30, 40, 2.5f, 255, 0, 128, 200), first);
+        journal.sync();
+        lobby.addPolylineToBoardID(3, 1, 2, 3, 255, new int[] { 0, 0, 5, 5, 10, 0 }, 3, second);
+        lobby.renameBoard(second, "renamed");
+        journal.close();
+        
+        LobbyModel recovered = recover(directory);
+        assertEquals("first", boardName(recovered, first));
+        assertEquals("renamed", boardName(recovered, second));
+        assertEquals(lines(lobby, first), lines(recovered, first));
+        assertEquals(lines(lobby, second), lines(recovered, second));
+        assertEquals(1, recovered.getLinesForBoardID(first).size());
+        assertEquals(2, recovered.getLinesForBoardID(second).size());
+        
+        // a torn batch at the end is dropped and cut off the log
+        File log = new File(directory, "board-" + second + ".log");
+        long length = log.length();
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+        out.close();
+        recovered = recover(directory);
+        assertEquals(lines(lobby, second), lines(recovered, second));
+        assertEquals(length, log.length());
+        
+        // boards made after recovering get new ids
+        int third = recovered.addBoard("third");
+        assertTrue(third > second);
+    }
+    
+    /**
+     * Compact a log with a clear and lines in it, draw more after, and read
+     * it back; then let a journal compact a log on its own once it is mostly
+     * garbage
+     */
+    @Test(timeout=20000)
+    public void test_board_journal_compaction() throws IOException, InterruptedException{
+        File directory = Files.createTempDirectory("journal").toFile();
+        LobbyModel lobby = new LobbyModel();
+        BoardJournal journal = new BoardJournal(directory,
+                BoardJournal.DEFAULT_COMMIT_INTERVAL_NANOS, Long.MAX_VALUE);
+        journal.recover(lobby);
+        lobby.addBoardChangeListener(journal);
+
+        int first = lobby.addBoard("first");
+        int second = lobby.addBoard("second");
+        for (int i = 0; i < 1000; i++) {
+            lobby.addLineToBoardID(new Line(i, 0, i, 10, 1, 0, 0, 0, 255), first);
+        }
+        // logged, so that the clear makes them garbage
+        journal.sync();
+        lobby.clearBoard(first);
+        lobby.addLineToBoardID(new Line(1, 2, 3, 4, 5, 6, 7, 8, 9), first);
+        lobby.addPolylineToBoardID(3, 1, 2, 3, 255, new int[] { 0, 0, 5, 5, 10, 0 }, 3, first);
+        lobby.addLineToBoardID(new Line(10, 20, 30, 40, 2.5f, 255, 0, 128, 200), second);
+        journal.sync();
+        File log = new File(directory, "board-" + first + ".log");
+        long length = log.length();
+        journal.compact(first);
+        assertTrue(log.length() < length / 10);
+        assertEquals(1, journal.getCompactionCount());
+        // an evicted board is compacted from its file and stays evicted
+        Whiteboard evicted = lobby.getWhiteboard(second);
+        assertTrue(evicted.evict(new File(directory, "board-" + second + ".cold")));
+        journal.compact(second);
+        assertTrue(evicted.isEvicted());
+        assertEquals(2, journal.getCompactionCount());
+        lobby.renameBoard(first, "renamed");
+        lobby.addLineToBoardID(new Line(7, 7, 8, 8, 1, 0, 0, 0, 255), first);
+        journal.close();
+
+        LobbyModel recovered = recover(directory);
+        assertEquals("renamed", boardName(recovered, first));
+        assertEquals(4, recovered.getLinesForBoardID(first).size());
+        assertEquals(lines(lobby, first), lines(recovered, first));
+        assertEquals(lines(lobby, second), lines(recovered, second));
+
+        // compacted by the journal itself once the clears make it garbage
+        lobby = new LobbyModel();
+        journal = new BoardJournal(directory,
+                BoardJournal.DEFAULT_COMMIT_INTERVAL_NANOS, 1000);
+        journal.recover(lobby);
+        lobby.addBoardChangeListener(journal);
+        for (int i = 0; i < 200; i++) {
+            lobby.addLineToBoardID(new Line(i, 0, i, 10, 1, 0, 0, 0, 255), second);
+        }
+        journal.sync();
+        lobby.clearBoard(second);
+        journal.sync();
+        while (journal.getCompactionCount() == 0) {
+            Thread.sleep(10);
+        }
+        journal.close();
+        recovered = recover(directory);
+        assertEquals(0, recovered.getLinesForBoardID(second).size());
+        assertEquals(lines(lobby, first), lines(recovered, first));
+    }
+
+    /**
+     * Take a journal's directory away so that a new log cannot be written,
+     * then put it back: the changes are kept while the journal is unhealthy
+     * and written once it can again
+     */
+    @Test(timeout=20000)
+    public void test_board_journal_failure() throws IOException{
+        File directory = Files.createTempDirectory("journal").toFile();
+        File away = new File(directory.getPath() + "-away");
+        LobbyModel lobby = new LobbyModel();
+        BoardJournal journal = new BoardJournal(directory);
+        journal.recover(lobby);
+        lobby.addBoardChangeListener(journal);
+        
+        int first = lobby.addBoard("first");
+        lobby.addLineToBoardID(new Line(1, 2, 3, 4, 5, 6, 7, 8, 9), first);
+        journal.sync();
+        assertTrue(journal.isHealthy());
+        
+        assertTrue(directory.renameTo(away));
+        int second = lobby.addBoard("second");
+        lobby.addLineToBoardID(new Line(10, 20, 30, 40, 2.5f, 255, 0, 128, 200), second);
+        try {
+            journal.sync();
+            fail("the log of the second board cannot be made");
+        } catch (IOException e) {
+        }
+        assertFalse(journal.isHealthy());
+        lobby.addLineToBoardID(new Line(7, 7, 8, 8, 1, 0, 0, 0, 255), second);
+        
+        assertTrue(away.renameTo(directory));
+        journal.sync();
+        assertTrue(journal.isHealthy());
+        journal.close();
+        
+        LobbyModel recovered = recover(directory);
+        assertEquals("second", boardName(recovered, second));
+        assertEquals(lines(lobby, first), lines(recovered, first));
+        assertEquals(lines(lobby, second), lines(recovered, second));
+        assertEquals(2, recovered.getLinesForBoardID(second).size());
+    }
+    
+    /**
+     * Rename a board whose log cannot be written more than a journal keeps
+     * in memory: the changes are dropped, and the log is rewritten from the
+     * board once it can be
+     */
+    @Test(timeout=20000)
+    public void test_board_journal_overflow() throws IOException{
+        File directory = Files.createTempDirectory("journal").toFile();
+        File away = new File(directory.getPath() + "-away");
+        LobbyModel lobby = new LobbyModel();
+        BoardJournal journal = new BoardJournal(directory,
+                BoardJournal.DEFAULT_COMMIT_INTERVAL_NANOS, Long.MAX_VALUE, 256);
+        journal.recover(lobby);
+        lobby.addBoardChangeListener(journal);
+        
+        int first = lobby.addBoard("first");
+        lobby.addLineToBoardID(new Line(1, 2, 3, 4, 5, 6, 7, 8, 9), first);
+        journal.sync();
+        
+        assertTrue(directory.renameTo(away));
+        int second = lobby.addBoard("second");
+        for (int i = 0; i < 20; i++) {
+            lobby.addLineToBoardID(new Line(i, i, 30, 40, 2.5f, 255, 0, 128, 200), second);
+        }
+        try {
+            journal.sync();
+            fail("the log of the second board cannot be made");
+        } catch (IOException e) {
+        }
+        assertFalse(journal.isHealthy());
+        for (int i = 0; i < 20; i++) {
+            lobby.renameBoard(second, "second, renamed " + i);
+        }
+        lobby.addLineToBoardID(new Line(7, 7, 8, 8, 1, 0, 0, 0, 255), second);
+        
+        assertTrue(away.renameTo(directory));
+        journal.sync();
+        assertTrue(journal.isHealthy());
+        lobby.addLineToBoardID(new Line(9, 9, 8, 8, 1, 0, 0, 0, 255), second);
+        journal.close();
+        
+        LobbyModel recovered = recover(directory);
+        assertEquals("second, renamed 19", boardName(recovered, second));
+        assertEquals(lines(lobby, first), lines(recovered, first));
+        assertEquals(lines(lobby, second), lines(recovered, second));
+        assertEquals(22, recovered.getLinesForBoardID(second).size());
+    }
+    
+    private static LobbyModel recover(File directory) throws IOException{
+        LobbyModel lobby = new LobbyModel();
+        BoardJournal journal = new BoardJournal(directory);
+        assertEquals(2, journal.recover(lobby));
+        journal.close();
+        return lobby;
+    }
+    
+    private static String boardName(LobbyModel lobby, int boardID){
+        for (Whiteboard board : lobby.getWhiteboards()) {
+            if (board.getBoardID() == boardID)
+                return board.getBoardName();
+        }
+        return null;
+    }
+    
+    private static List<String> lines(LobbyModel lobby, int boardID){
+        StrokeSnapshot snapshot = lobby.getLinesForBoardID(boardID);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < snapshot.size(); i++) {
+            lines.add(snapshot.toString(i));
+        }
+        return lines;
+    }
+    
+    @Test
+    public void test_lobby_boards_and_membership(){
+        LobbyModel lobby = new LobbyModel();
+        int first = lobby.addBoard("sketch");
+        int second = lobby.addBoard("sketch");
+        assertTrue(lobby.getWhiteboardNames().contains("sketch"));
+        assertTrue(lobby.getWhiteboardNames().contains("sketch(1)"));
+        assertTrue(first != second);
+        
+        int user = lobby.addUser("rob");
+        assertEquals(LobbyModel.LOBBY_ID, lobby.getBoardIDThatUserIDIsIn(user));
+        lobby.userJoinBoard(user, first);
+        lobby.userJoinBoard(user, second);
+        assertEquals(second, lobby.getBoardIDThatUserIDIsIn(user));
+        assertFalse(lobby.getUserIDsForBoardID(first).contains(user));
+        assertTrue(lobby.checkRep());
+        
+        lobby.userLeaveBoard(user, second);
+        assertEquals(LobbyModel.LOBBY_ID, lobby.getBoardIDThatUserIDIsIn(user));
+        assertTrue(lobby.checkRep());
+    }
+    
+    /**
+     * With many boards and users, every user is found in the board they
+     * joined, and moves and deletions keep that right
+     */
+    @Test(timeout=20000)
+    public void test_lobby_user_board_index(){
+        LobbyModel lobby = new LobbyModel();
+        int boards = 10000;
+        int users = 50000;
+        int[] boardIDs = new int[boards];
+        for (int i = 0; i < boards; i++) {
+            boardIDs[i] = lobby.addBoard("board" + i);
+        }
+        int[] userIDs = new int[users];
+        for (int i = 0; i < users; i++) {
+            userIDs[i] = lobby.addUser("user" + i);
+            lobby.userJoinBoard(userIDs[i], boardIDs[i % boards]);
+        }
+        for (int i = 0; i < users; i++) {
+            assertEquals(boardIDs[i % boards], lobby.getBoardIDThatUserIDIsIn(userIDs[i]));
+        }
+        assertEquals(5, lobby.getUserIDsOfUsersInSameBoardAsGivenUserID(userIDs[7]).size());
+        
+        lobby.userLeaveBoard(userIDs[0], boardIDs[0]);
+        assertEquals(LobbyModel.LOBBY_ID, lobby.getBoardIDThatUserIDIsIn(userIDs[0]));
+        lobby.deleteUser(userIDs[1]);
+        assertEquals(LobbyModel.LOBBY_ID, lobby.getBoardIDThatUserIDIsIn(userIDs[1]));
+        assertFalse(lobby.getUserIDsForBoardID(boardIDs[1]).contains(userIDs[1]));
+        assertTrue(lobby.checkRep());
+    }
+    
+    /**
+     * Draw on several boards from several threads while other users
+     * keep logging in and moving between boards, then check that no
+     * line was lost and the rep invariant still holds
+     */
+    @Test(timeout=20000)
+    public void test_lobby_concurrent_draws() throws InterruptedException{
+        final LobbyModel lobby = new LobbyModel();
+        final int boards = 4;
+        final int linesPerBoard = 5000;
+        final int[] boardIDs = new int[boards];
+        for (int i = 0; i < boards; i++) {
+            boardIDs[i] = lobby.addBoard();
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < boards; i++) {
+            final int boardID = boardIDs[i];
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < linesPerBoard; j++) {
+                        lobby.addLineToBoardID(new Line(j, j, j, j, 1, 0, 0, 0, 255), boardID);
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                for (int j = 0; j < 500; j++) {
+                    int userID = lobby.addUser();
+                    lobby.userJoinBoard(userID, boardIDs[j % boards]);
+                    if (j % 3 == 0)
+                        lobby.deleteUser(userID);
+                }
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int boardID : boardIDs) {
+            assertEquals(linesPerBoard, lobby.getLinesForBoardID(boardID).size());
+        }
+        assertTrue(lobby.checkRep());
+    }
+
 
 }
@@ -1,10 +1,18 @@
 package tests;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+
 import adts.Line;
+import protocol.AsciiCharSequence;
 import protocol.ClientSideMessageMaker;
+import protocol.CommandTable;
+import protocol.MessageHandler;
+import protocol.MessageTokenizer;
+import protocol.OutgoingServerMessage;
 
 /**
  * Tests that the client-side messages being sent to the server are properly
@@ -23,6 +31,23 @@ public class MessageMakerTests {
 	 * testing suite to work.
 	 */
 
+	@Test
+	public void draw_message_test() {
+		Line[] lines = { new Line(1, 2, 3, 4, 5, 6, 7, 8, 9),
+				new Line(-1048576, 0, 1048576, -7, 2.3f, 255, 0, 128, 200),
+				new Line(10, 20, 30, 40, 0.1234567f, -1, 256, 1000, 0),
+				new Line(10, 20, 30, 40, 2.3f, 255, 0, 128, 200) };
+		for (Line line : lines) {
+			String draw = MessageHandler.RESP_DRAW + " " + line;
+			OutgoingServerMessage message = new OutgoingServerMessage(line);
+			ByteBuffer encoded = message.getEncoded();
+			byte[] bytes = new byte[encoded.remaining()];
+			encoded.get(bytes);
+			assertArrayEquals((draw + "\n").getBytes(OutgoingServerMessage.CHARSET), bytes);
+			assertEquals(draw, message.getMessage());
+		}
+	}
+
 	@Test
 	public void get_board_IDs_test() {
 		assertEquals("get_board_ids",
@@ -60,6 +85,24 @@ public class MessageMakerTests {
 				ClientSideMessageMaker.makeRequestStringGetUsersInMyBoard());
 	}
 
+	@Test
+	public void join_board_test() {
+		assertEquals("join_board_id 3",
+				ClientSideMessageMaker.makeRequestStringJoinBoardID(3));
+		assertEquals("join_board_id 3 chunked",
+				ClientSideMessageMaker.makeRequestStringJoinBoardIDChunked(3));
+		assertEquals("join_board_id 3 raster",
+				ClientSideMessageMaker.makeRequestStringJoinBoardIDRaster(3));
+		assertEquals("join_board_id 3 tiles",
+				ClientSideMessageMaker.makeRequestStringJoinBoardIDTiles(3));
+	}
+
+	@Test
+	public void get_board_thumbnail_test() {
+		assertEquals("get_board_thumbnail 3",
+				ClientSideMessageMaker.makeRequestStringGetBoardThumbnail(3));
+	}
+
 	@Test
 	public void leave_board_test() {
 		assertEquals("leave_board",
@@ -85,4 +128,39 @@ public class MessageMakerTests {
 				ClientSideMessageMaker.makeRequestStringDraw(line));
 	}
 
+	@Test
+	public void req_draw_parse_test() {
+		Line line = new Line(-30, 60, 90, -2147483648, 2.5f, 125, 255, 0, 10);
+		byte[] bytes = ("  " + ClientSideMessageMaker.makeRequestStringDraw(line) + " ")
+				.getBytes();
+		AsciiCharSequence input = new AsciiCharSequence().reset(bytes, 0,
+				bytes.length);
+		MessageTokenizer tokenizer = new MessageTokenizer().reset(input);
+		CommandTable commands = new CommandTable("req_clear", "req_draw",
+				"req");
+
+		tokenizer.next();
+		assertEquals(1, commands.lookup(input, tokenizer.getTokenStart(),
+				tokenizer.getTokenEnd()));
+		assertEquals(-30, tokenizer.nextInt());
+		assertEquals(60, tokenizer.nextInt());
+		assertEquals(90, tokenizer.nextInt());
+		assertEquals(Integer.MIN_VALUE, tokenizer.nextInt());
+		assertEquals(2.5f, tokenizer.nextFloat(), 0);
+		assertEquals(125, tokenizer.nextInt());
+		assertEquals(255, tokenizer.nextInt());
+		assertEquals(0, tokenizer.nextInt());
+		assertEquals("10", tokenizer.nextString());
+		assertEquals(false, tokenizer.next());
+
+		assertEquals(-1, commands.lookup("req_dra", 0, 7));
+		assertEquals(100f, MessageTokenizer.parseFloat("1e2", 0, 3), 0);
+		assertEquals(0.1f, MessageTokenizer.parseFloat("0.100000", 0, 8), 0);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void req_draw_parse_overflow_test() {
+		MessageTokenizer.parseInt("2147483648", 0, 10);
+	}
+
 }
\ No newline at end of file
@@ -1,19 +1,48 @@
 package tests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.junit.Test;
 
 import adts.Line;
+import adts.LobbyModel;
+import protocol.BinaryProtocol;
 import protocol.ClientSideMessageMaker;
+import protocol.MessageHandler;
+import protocol.MessageInputStream;
+import protocol.OutgoingServerMessage;
+import protocol.OutgoingServerMessageQueue;
+import server.ConnectionRegistry;
+import server.NioEventLoop;
+import server.NioUserConnection;
+import server.UserConnection;
 import server.WhiteboardServer;
 
 /**
@@ -258,6 +287,106 @@ public class Server_Client_protocolTests {
         
     }
     
+    /**
+     * Client 1 draws strokes too thick, with no thickness or too far out,
+     * as text and as a polyline, which all fail and are not drawn; a long
+     * stroke within range is drawn and makes every tile change
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void req_draw_out_of_range_test() throws IOException{
+        this.initialize();
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        
+        client1.makeRequest("req_draw 0 0 10 0 20000000 1 2 3 255");
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+        client1.makeRequest("req_draw 0 0 10 0 NaN 1 2 3 255");
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+        client1.makeRequest("req_draw 0 0 10 0 -1 1 2 3 255");
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+        client1.makeRequest("req_draw 0 0 2000000000 0 1 1 2 3 255");
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringPolyline(2, 1, 2, 3, 255, new int[] { 0, 0, 10, -2000000, 20, 0 }, 3));
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetTileChanges(0));
+        pollQueueForMessage(client1.getQueue(), "tile_changes 0 false 0", false);
+        
+        client1.makeRequest("req_draw 0 0 1000000 1000000 1 1 2 3 255");
+        pollQueueForMessage(client1.getQueue(), "draw 0 0 1000000 1000000 1.000000 1 2 3 255", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetTileChanges(0));
+        pollQueueForMessage(client1.getQueue(), "tile_changes 1 true 0", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetTile(1000, 1000));
+        pollQueueForMessage(client1.getQueue(), "tile 1000 1000 1 1 0 0 1000000 1000000 1.000000 1 2 3 255", false);
+    }
+    
+    /**
+     * Client 1 draws a polyline, which Client 2 on the same board, having
+     * asked for polylines, gets as a unit. Client 1 did not ask for them, so
+     * it gets the polyline back as draws, one after the other. Client 3
+     * joining later gets it as lines.
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void req_polyline_test() throws IOException{
+        this.initialize();
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringUseFeature(MessageHandler.FEATURE_POLYLINE));
+        pollQueueForMessage(client2.getQueue(), "feature_enabled polyline", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client1.getQueue(), "users_for_board_id 0 User0 User1", false);
+        
+        // a polyline needs at least two points
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringPolyline(2, 1, 2, 3, 255, new int[] { 0, 0 }, 1));
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+        
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringPolyline(2, 1, 2, 3, 255, new int[] { 0, 0, 10, 10, 20, 0 }, 3));
+        pollQueueForMessage(client2.getQueue(), "polyline 2.000000 1 2 3 255 3 0 0 10 10 20 0", false);
+        String message = takeMessage(client1.getQueue());
+        while (!message.startsWith(MessageHandler.RESP_DRAW)) {
+            message = takeMessage(client1.getQueue());
+        }
+        assertEquals("draw 0 0 10 10 2.000000 1 2 3 255", message);
+        assertEquals("draw 10 10 20 0 2.000000 1 2 3 255", takeMessage(client1.getQueue()));
+        
+        client3.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client3.getQueue(), "board_lines 3 2 User0 User1 User2 0 0 10 10 2.000000 1 2 3 255 10 10 20 0 2.000000 1 2 3 255", false);
+    }
+    
+    /**
+     * Client 1 draws on two tiles of a board and asks which tiles changed and
+     * for the lines of one; Client 2, in the lobby, cannot ask for tiles
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void get_tile_test() throws IOException{
+        this.initialize();
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(0, 1, 2, 3, 4, 5, 6, 7, 8)));
+        pollQueueForMessage(client1.getQueue(), "draw 0 1 2 3 4.000000 5 6 7 8", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(300, 10, 310, 20, 2, 5, 6, 7, 8)));
+        pollQueueForMessage(client1.getQueue(), "draw 300 10 310 20 2.000000 5 6 7 8", false);
+        
+        // only the second line was drawn after version 1
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetTileChanges(1));
+        pollQueueForMessage(client1.getQueue(), "tile_changes 2 false 1 1 0", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetTile(1, 0));
+        pollQueueForMessage(client1.getQueue(), "tile 1 0 2 1 300 10 310 20 2.000000 5 6 7 8", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetTile(5, 5));
+        pollQueueForMessage(client1.getQueue(), "tile 5 5 2 0", false);
+        
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringClear());
+        pollQueueForMessage(client1.getQueue(), "clear_board", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetTileChanges(2));
+        pollQueueForMessage(client1.getQueue(), "tile_changes 3 true 0", false);
+        
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetTile(0, 0));
+        pollQueueForMessage(client2.getQueue(), "failed", false);
+    }
+    
     @Test(timeout = 2000)
     public void req_clear_board_test() throws IOException{
         this.initialize();
@@ -371,6 +500,664 @@ public class Server_Client_protocolTests {
         pollQueueForMessage(client2.getQueue(), "users_for_board_id -1 User1 User0", false);
     }
     
+    /**
+     * The same board session as req_clear_board_test, served by the NIO
+     * server: Client 1 creates a board and draws, Client 2 joins and gets the
+     * board lines, Client 2 clears the board and Client 1 sees it
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void nio_board_session_test() throws IOException{
+        this.initialize(WhiteboardServer.IOMode.NIO);
+        // Client 1 creates a board
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        
+        // Client 1 checks that the board has been created
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        
+        // Client 1 draws a line
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(0, 1, 2, 3, 4, 5, 6, 7, 8)));
+        
+        // Client 1 checks that the line has been drawn
+        pollQueueForMessage(client1.getQueue(), "draw 0 1 2 3 4.000000 5 6 7 8", false);
+        
+        // Client 2 joins the board
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        
+        // Client 2 checks that it has joined and that the board lines are correct 
+        pollQueueForMessage(client2.getQueue(), "board_lines 2 1 User0 User1 0 1 2 3 4.000000 5 6 7 8", false);
+        
+        // Client 2 clears the board
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringClear());
+        
+        // Client 1 checks if the clear message is there
+        pollQueueForMessage(client1.getQueue(), "clear_board", false);
+    }
+    
+    /**
+     * A task that throws an Error on an event loop does not stop the loop:
+     * the tasks after it still run and the loop stays alive
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Test(timeout = 2000)
+    public void event_loop_survives_error_test() throws IOException, InterruptedException{
+        NioEventLoop loop = new NioEventLoop();
+        Thread loopThread = new Thread(loop);
+        loopThread.setDaemon(true);
+        loopThread.start();
+        final CountDownLatch ran = new CountDownLatch(1);
+        loop.execute(new Runnable() {
+            public void run() {
+                throw new OutOfMemoryError("thrown by the test");
+            }
+        });
+        loop.execute(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        });
+        ran.await();
+        assertTrue(loop.isAlive());
+        assertTrue(loopThread.isAlive());
+        loopThread.interrupt();
+        loopThread.join();
+        assertFalse(loop.isAlive());
+    }
+    
+    /**
+     * Client 1 and Client 3, served by the same event loop in NIO mode, send
+     * requests missing their argument or with a word for a number; only
+     * they are disconnected, and the server still serves Client 2 and new
+     * clients, including one on the loop they were on, on both kinds of
+     * server
+     * @throws IOException
+     */
+    @Test(timeout = 4000)
+    public void malformed_request_test() throws IOException{
+        for (WhiteboardServer.IOMode ioMode : WhiteboardServer.IOMode.values()) {
+            this.initialize(ioMode);
+            
+            // Client 1 and Client 3 send malformed requests
+            client1.makeRequest(MessageHandler.REQ_SET_USERNAME);
+            client3.makeRequest(MessageHandler.REQ_GET_USERS_FOR_BOARD_ID + " abc");
+            
+            // Client 2 sees them both leave the lobby
+            pollQueueForMessage(client2.getQueue(), "users_for_board_id -1 User1", false);
+            
+            // two new clients connect, the second on the loop of Client 1 and Client 3
+            SimpleClient client4 = new SimpleClient(testHost, port);
+            pollQueueForMessage(client4.getQueue(), "welcome 3", false);
+            SimpleClient client5 = new SimpleClient(testHost, port);
+            pollQueueForMessage(client5.getQueue(), "welcome 4", false);
+            
+            // Client 5 creates a board, and Client 2 sees it
+            client5.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+            pollQueueForMessage(client5.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+            pollQueueForMessage(client2.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        }
+    }
+    
+    /**
+     * Client 1 sends a line longer than the NIO server keeps without ending
+     * it; Client 1 is disconnected, and Client 2 sees it leave the lobby
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void nio_line_too_long_test() throws IOException{
+        this.initialize(WhiteboardServer.IOMode.NIO);
+        char[] name = new char[NioUserConnection.MAX_LINE_LENGTH + 1];
+        Arrays.fill(name, 'a');
+        client1.out.print(MessageHandler.REQ_SET_USERNAME + " ");
+        client1.out.print(name);
+        client1.out.flush();
+        
+        // Client 2 sees Client 1 leave the lobby
+        pollQueueForMessage(client2.getQueue(), "users_for_board_id -1 User1 User2", false);
+    }
+    
+    /**
+     * A NIO connection whose loop is not running, so nothing is written:
+     * strokes past the high water mark are dropped and counted, while other
+     * messages are still queued
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void nio_high_water_mark_test() throws IOException{
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        SocketChannel channel = SocketChannel.open(serverChannel.getLocalAddress());
+        try {
+            NioUserConnection connection = new NioUserConnection(channel,
+                    new NioEventLoop(), 0, new ConnectionRegistry(),
+                    new LobbyModel(), 3);
+            Line line = new Line(0, 1, 2, 3, 4, 5, 6, 7, 8);
+            for (int i = 0; i < 5; i++) {
+                connection.output(new OutgoingServerMessage(MessageHandler.RESP_DRAW + " " + line, line));
+            }
+            assertEquals(3, connection.getQueueDepth());
+            assertEquals(2, connection.getDroppedMessageCount());
+            
+            connection.output(MessageHandler.RESP_CLEAR);
+            assertEquals(4, connection.getQueueDepth());
+            assertEquals(2, connection.getDroppedMessageCount());
+            assertEquals(0, connection.getWrittenMessageCount());
+        } finally {
+            channel.close();
+            serverChannel.close();
+        }
+    }
+    
+    /**
+     * A server whose readers and writers run on a pool of four threads
+     * serves two users; a third is disconnected at once instead of being
+     * left without threads, and once a user leaves another can connect
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void connection_pool_limit_test() throws IOException{
+        this.server = new WhiteboardServer(0,
+                OutgoingServerMessageQueue.DEFAULT_HIGH_WATER_MARK,
+                WhiteboardServer.IOMode.THREADS, 0,
+                WhiteboardServer.createConnectionExecutor(WhiteboardServer.ThreadMode.POOL, 4));
+        assertEquals(2, this.server.getMaxConnections());
+        this.server.serve();
+        this.port = this.server.getPort();
+        try {
+            this.client1 = new SimpleClient(testHost, port);
+            pollQueueForMessage(client1.getQueue(), "welcome 0", false);
+            this.client2 = new SimpleClient(testHost, port);
+            pollQueueForMessage(client2.getQueue(), "welcome 1", false);
+            
+            // a third user is turned away
+            Socket rejected = new Socket(testHost, port);
+            assertEquals(-1, rejected.getInputStream().read());
+            rejected.close();
+            
+            // Client 1 leaves, and Client 2 sees it
+            client1.disconnect();
+            pollQueueForMessage(client2.getQueue(), "users_for_board_id -1 User1", false);
+            
+            // now another user gets in
+            this.client3 = new SimpleClient(testHost, port);
+            pollQueueForMessage(client3.getQueue(), "welcome 2", false);
+        } finally {
+            this.server.close();
+        }
+    }
+    
+    /**
+     * The executors the THREADS server can run its connections on: a fixed
+     * pool must have room for a reader and a writer, and virtual threads
+     * either run tasks or are refused on runtimes without them
+     * @throws InterruptedException
+     */
+    @Test(timeout = 2000)
+    public void connection_executor_test() throws InterruptedException{
+        ExecutorService pool = WhiteboardServer.createConnectionExecutor(
+                WhiteboardServer.ThreadMode.POOL, 6);
+        assertEquals(6, ((ThreadPoolExecutor) pool).getMaximumPoolSize());
+        pool.shutdown();
+        try {
+            WhiteboardServer.createConnectionExecutor(WhiteboardServer.ThreadMode.POOL, 1);
+            fail("a pool of one thread cannot serve a user");
+        } catch (IllegalArgumentException e) {
+        }
+        
+        ExecutorService virtual;
+        try {
+            virtual = WhiteboardServer.createConnectionExecutor(
+                    WhiteboardServer.ThreadMode.VIRTUAL, 0);
+        } catch (IllegalArgumentException e) {
+            // a runtime before Java 21
+            return;
+        }
+        final CountDownLatch ran = new CountDownLatch(1);
+        virtual.execute(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        });
+        ran.await();
+        virtual.shutdown();
+    }
+    
+    /**
+     * Client 1 draws more lines than fit in one chunk, then Client 2 joins
+     * asking for the lines in chunks, on both kinds of server
+     * @throws IOException
+     */
+    @Test(timeout = 10000)
+    public void join_board_chunked_test() throws IOException{
+        for (WhiteboardServer.IOMode ioMode : WhiteboardServer.IOMode.values()) {
+            this.initialize(ioMode);
+            // Client 1 creates a board
+            client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+            pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+            
+            // Client 1 draws 1500 lines, and waits for the last one to come back
+            int lines = MessageHandler.BOARD_LINES_CHUNK_SIZE + 500;
+            for (int i = 0; i < lines; i++) {
+                client1.out.println(ClientSideMessageMaker.makeRequestStringDraw(new Line(i, 1, 2, 3, 4, 5, 6, 7, 8)));
+            }
+            pollQueueForMessage(client1.getQueue(), "draw " + (lines - 1) + " 1 2 3 4.000000 5 6 7 8", false);
+            
+            // Client 2 joins the board and gets its lines in two chunks
+            client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardIDChunked(0));
+            String begin = takeMessage(client2.getQueue());
+            while (!begin.startsWith(MessageHandler.RESP_BOARD_LINES_BEGIN))
+                begin = takeMessage(client2.getQueue());
+            assertTrue(correctMessage("board_lines_begin 2 " + lines + " User0 User1", begin));
+            String chunk = takeMessage(client2.getQueue());
+            assertTrue(chunk.startsWith("board_lines_chunk " + MessageHandler.BOARD_LINES_CHUNK_SIZE + " 0 1 2 3 4.000000 5 6 7 8 1 1 2 3"));
+            assertEquals(2 + 9 * MessageHandler.BOARD_LINES_CHUNK_SIZE, chunk.split(" ").length);
+            chunk = takeMessage(client2.getQueue());
+            assertTrue(chunk.startsWith("board_lines_chunk 500 1000 1 2 3"));
+            assertEquals(2 + 9 * 500, chunk.split(" ").length);
+            assertEquals("board_lines_end", takeMessage(client2.getQueue()));
+        }
+    }
+    
+    /**
+     * Client 1 draws a line, then Client 2 joins asking for the board as an
+     * image, and gets an empty image with the line after it while the image
+     * is drawn in the background, then the image of the line once it is;
+     * Client 1 draws three more and Client 3 joins the same way, and gets the
+     * image of the first line with the three after it as lines, on both kinds
+     * of server
+     * @throws IOException
+     */
+    @Test(timeout = 10000)
+    public void join_board_raster_test() throws IOException{
+        for (WhiteboardServer.IOMode ioMode : WhiteboardServer.IOMode.values()) {
+            this.initialize(ioMode);
+            client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+            pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+            client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(10, 10, 50, 10, 3, 255, 0, 0, 255)));
+            pollQueueForMessage(client1.getQueue(), "draw 10 10 50 10 3.000000 255 0 0 255", false);
+            
+            client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardIDRaster(0));
+            String raster = takeMessage(client2.getQueue());
+            while (!raster.startsWith(MessageHandler.RESP_BOARD_RASTER))
+                raster = takeMessage(client2.getQueue());
+            String[] tokens = raster.split(" ");
+            assertEquals(6, tokens.length);
+            assertEquals("board_raster 2 1", tokens[0] + " " + tokens[1] + " " + tokens[2]);
+            // the PNG signature in base64
+            assertTrue(tokens[5].startsWith("iVBORw0KGgo"));
+            assertEquals("board_lines_chunk 1 10 10 50 10 3.000000 255 0 0 255",
+                    takeMessage(client2.getQueue()));
+            assertEquals("board_lines_end", takeMessage(client2.getQueue()));
+            do {
+                client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardIDRaster(0));
+                raster = takeMessage(client2.getQueue());
+                while (!raster.startsWith(MessageHandler.RESP_BOARD_RASTER))
+                    raster = takeMessage(client2.getQueue());
+                while (!takeMessage(client2.getQueue()).equals("board_lines_end")) {
+                }
+            } while (!raster.startsWith("board_raster 2 0 "));
+            
+            for (int i = 0; i < 3; i++) {
+                client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(i, 1, 2, 3, 4, 5, 6, 7, 8)));
+            }
+            pollQueueForMessage(client1.getQueue(), "draw 2 1 2 3 4.000000 5 6 7 8", false);
+            client3.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardIDRaster(0));
+            raster = takeMessage(client3.getQueue());
+            while (!raster.startsWith(MessageHandler.RESP_BOARD_RASTER))
+                raster = takeMessage(client3.getQueue());
+            tokens = raster.split(" ");
+            assertEquals(7, tokens.length);
+            assertEquals("board_raster 3 3", tokens[0] + " " + tokens[1] + " " + tokens[2]);
+            assertTrue(tokens[6].startsWith("iVBORw0KGgo"));
+            assertEquals("board_lines_chunk 3 0 1 2 3 4.000000 5 6 7 8 1 1 2 3 4.000000 5 6 7 8 2 1 2 3 4.000000 5 6 7 8",
+                    takeMessage(client3.getQueue()));
+            assertEquals("board_lines_end", takeMessage(client3.getQueue()));
+        }
+    }
+    
+    /**
+     * Client 1 draws a line on a board, then Client 2 joins it asking for
+     * tiles, and gets the users without the line, then the line by asking
+     * for the tile it is on
+     * @throws IOException
+     */
+    @Test(timeout = 10000)
+    public void join_board_tiles_test() throws IOException{
+        this.initialize();
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(10, 10, 50, 10, 3, 255, 0, 0, 255)));
+        pollQueueForMessage(client1.getQueue(), "draw 10 10 50 10 3.000000 255 0 0 255", false);
+        
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardIDTiles(0));
+        pollQueueForMessage(client2.getQueue(), "board_lines 2 0 User0 User1", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetTileChanges(0));
+        pollQueueForMessage(client2.getQueue(), "tile_changes 1 false 1 0 0", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetTile(0, 0));
+        pollQueueForMessage(client2.getQueue(), "tile 0 0 1 1 10 10 50 10 3.000000 255 0 0 255", false);
+    }
+    
+    /**
+     * Client 1 draws on a board and Client 2, in the lobby, asks for its
+     * thumbnail, then for the thumbnail of a board that does not exist
+     * @throws IOException
+     */
+    @Test(timeout = 10000)
+    public void get_board_thumbnail_test() throws IOException{
+        this.initialize();
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(10, 10, 500, 10, 3, 255, 0, 0, 255)));
+        pollQueueForMessage(client1.getQueue(), "draw 10 10 500 10 3.000000 255 0 0 255", false);
+        
+        // a blank thumbnail at once, then the one with the line
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetBoardThumbnail(0));
+        String thumbnail = takeMessage(client2.getQueue());
+        while (!thumbnail.startsWith(MessageHandler.RESP_BOARD_THUMBNAIL))
+            thumbnail = takeMessage(client2.getQueue());
+        String[] tokens = thumbnail.split(" ");
+        assertEquals(3, tokens.length);
+        assertEquals("0", tokens[1]);
+        // the PNG signature in base64
+        assertTrue(tokens[2].startsWith("iVBORw0KGgo"));
+        String drawn = takeMessage(client2.getQueue());
+        assertTrue(drawn.startsWith("board_thumbnail 0 iVBORw0KGgo"));
+        assertFalse(drawn.equals(thumbnail));
+        
+        // a board that did not change gets the same thumbnail, once
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetBoardThumbnail(0));
+        assertEquals(drawn, takeMessage(client2.getQueue()));
+        
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetBoardThumbnail(7));
+        pollQueueForMessage(client2.getQueue(), "failed", false);
+    }
+    
+    /**
+     * A fourth client switches to the binary protocol and joins Client 1's
+     * board; draws sent as frames reach Client 1 as text and the other way
+     * around, on both kinds of server
+     * @throws IOException
+     */
+    @Test(timeout = 10000)
+    public void binary_protocol_test() throws IOException{
+        for (WhiteboardServer.IOMode ioMode : WhiteboardServer.IOMode.values()) {
+            this.initialize(ioMode);
+            client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+            pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+            
+            // the binary client asks for frames once the server offers them
+            Socket socket = new Socket(testHost, port);
+            MessageInputStream in = new MessageInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            assertEquals("features binary polyline", readMessageStartingWith(in, "features"));
+            out.write((ClientSideMessageMaker.makeRequestStringUseFeature(BinaryProtocol.FEATURE) + "\n").getBytes());
+            assertEquals("feature_enabled binary", readMessageStartingWith(in, "feature_enabled"));
+            in.setBinary();
+            
+            // text requests still work, wrapped in frames
+            out.write(BinaryProtocol.encodeText(ClientSideMessageMaker.makeRequestStringJoinBoardID(0)));
+            pollQueueForMessage(client1.getQueue(), "users_for_board_id 0 User0 User3", false);
+            
+            // a draw frame reaches Client 1 as text, and comes back as a frame
+            Line line = new Line(-10, 20, 30, -40, 2.5f, 1, 2, 255, 128);
+            out.write(BinaryProtocol.encodeDraw(line));
+            pollQueueForMessage(client1.getQueue(), "draw -10 20 30 -40 2.500000 1 2 255 128", false);
+            assertEquals("frame " + line, readMessageStartingWith(in, "frame"));
+            
+            // a text draw from Client 1 reaches the binary client as a frame
+            client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(1, 2, 3, 4, 5, 6, 7, 8, 9)));
+            assertEquals("frame 1 2 3 4 5.000000 6 7 8 9", readMessageStartingWith(in, "frame"));
+            socket.close();
+        }
+    }
+    
+    /**
+     * A message after a quiet spell is flushed at once, even with a long
+     * flush delay; messages that follow it closely wait for the next flush
+     * and share one write, in order
+     * @throws InterruptedException
+     */
+    @Test(timeout = 2000)
+    public void outgoing_queue_flush_delay_test() throws InterruptedException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutgoingServerMessageQueue queue = new OutgoingServerMessageQueue(out,
+                OutgoingServerMessageQueue.DEFAULT_HIGH_WATER_MARK, 300000000L);
+        Thread writer = new Thread(queue);
+        writer.start();
+        StringBuilder expected = new StringBuilder();
+        
+        // the first message does not wait out the delay
+        long start = System.nanoTime();
+        queue.addMessage(new OutgoingServerMessage("clear_board"));
+        expected.append("clear_board\n");
+        while (queue.getFlushedMessageCount() < 1) {
+            Thread.sleep(1);
+        }
+        assertTrue(System.nanoTime() - start < 200000000L);
+        
+        // a burst right after it is flushed together once the delay is over
+        for (int i = 0; i < 20; i++) {
+            String message = "draw " + i + " 0 1 1 2.000000 0 0 0 255";
+            queue.addMessage(new OutgoingServerMessage(message));
+            expected.append(message).append("\n");
+        }
+        while (queue.getFlushedMessageCount() < 21) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, queue.getFlushCount());
+        assertEquals(2, queue.getWriteCount());
+        assertEquals(10.5, queue.getAverageBatchSize(), 0);
+        
+        // after a quiet spell a message is flushed at once again
+        Thread.sleep(400);
+        start = System.nanoTime();
+        queue.addMessage(new OutgoingServerMessage("clear_board"));
+        expected.append("clear_board\n");
+        while (queue.getFlushedMessageCount() < 22) {
+            Thread.sleep(1);
+        }
+        assertTrue(System.nanoTime() - start < 200000000L);
+        assertEquals(3, queue.getFlushCount());
+        
+        queue.close();
+        writer.join();
+        assertEquals(expected.toString(), new String(out.toByteArray(),
+                OutgoingServerMessage.CHARSET));
+    }
+    
+    /**
+     * A backlog longer than a batch is flushed in several batches rather
+     * than all at once, in order
+     * @throws InterruptedException
+     */
+    @Test(timeout = 2000)
+    public void outgoing_queue_batch_cap_test() throws InterruptedException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutgoingServerMessageQueue queue = new OutgoingServerMessageQueue(out,
+                Integer.MAX_VALUE, 0);
+        StringBuilder expected = new StringBuilder();
+        int messages = OutgoingServerMessageQueue.MAX_BATCH_MESSAGES * 3 + 1;
+        
+        // no writer yet, so the messages pile up
+        for (int i = 0; i < messages; i++) {
+            String message = "draw " + i + " 0 1 1 2.000000 0 0 0 255";
+            queue.addMessage(new OutgoingServerMessage(message));
+            expected.append(message).append("\n");
+        }
+        Thread writer = new Thread(queue);
+        writer.start();
+        while (queue.getFlushedMessageCount() < messages) {
+            Thread.sleep(1);
+        }
+        assertEquals(4, queue.getFlushCount());
+        
+        queue.close();
+        writer.join();
+        assertEquals(expected.toString(), new String(out.toByteArray(),
+                OutgoingServerMessage.CHARSET));
+    }
+    
+    /**
+     * A writer with nothing to send parks on its queue rather than spinning,
+     * and wakes up to write a message as soon as it comes
+     * @throws InterruptedException
+     */
+    @Test(timeout = 2000)
+    public void outgoing_queue_parks_when_idle_test() throws InterruptedException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutgoingServerMessageQueue queue = new OutgoingServerMessageQueue(out,
+                OutgoingServerMessageQueue.DEFAULT_HIGH_WATER_MARK, 0);
+        Thread writer = new Thread(queue);
+        writer.start();
+        
+        // the writer parks while the queue is empty
+        while (writer.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertEquals(Thread.State.WAITING, writer.getState());
+        assertEquals(0, queue.getFlushCount());
+        
+        // and wakes up for a message
+        queue.addMessage(new OutgoingServerMessage("clear_board"));
+        while (queue.getFlushedMessageCount() < 1) {
+            Thread.sleep(1);
+        }
+        while (writer.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, queue.getFlushCount());
+        
+        queue.close();
+        writer.join();
+        assertEquals("clear_board\n", new String(out.toByteArray(),
+                OutgoingServerMessage.CHARSET));
+    }
+    
+    /**
+     * Above its high water mark the queue drops strokes but still takes
+     * every other message, and counts its depth, the messages dropped and
+     * how long the others waited
+     * @throws InterruptedException
+     */
+    @Test(timeout = 2000)
+    public void outgoing_queue_high_water_mark_test() throws InterruptedException{
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutgoingServerMessageQueue queue = new OutgoingServerMessageQueue(out, 3, 0);
+        Line line = new Line(0, 1, 2, 3, 4, 5, 6, 7, 8);
+        String draw = MessageHandler.RESP_DRAW + " " + line;
+        
+        // no writer yet, so the messages pile up
+        for (int i = 0; i < 5; i++) {
+            queue.addMessage(new OutgoingServerMessage(draw, line));
+        }
+        assertEquals(3, queue.getQueueDepth());
+        assertEquals(2, queue.getDroppedMessageCount());
+        queue.addMessage(new OutgoingServerMessage(MessageHandler.RESP_CLEAR));
+        queue.addMessage(new OutgoingServerMessage(draw, line));
+        assertEquals(4, queue.getQueueDepth());
+        assertEquals(3, queue.getDroppedMessageCount());
+        assertEquals(0, queue.getFlushedMessageCount());
+        assertEquals(0, queue.getAverageFlushLatencyNanos());
+        
+        // the writer sends what was kept, in order
+        Thread.sleep(10);
+        Thread writer = new Thread(queue);
+        writer.start();
+        while (queue.getFlushedMessageCount() < 4) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, queue.getQueueDepth());
+        assertTrue(queue.getAverageFlushLatencyNanos() >= 10000000L);
+        assertTrue(queue.getMaxFlushLatencyNanos() >= queue.getAverageFlushLatencyNanos());
+        
+        queue.close();
+        writer.join();
+        assertEquals(draw + "\n" + draw + "\n" + draw + "\n" + MessageHandler.RESP_CLEAR + "\n",
+                new String(out.toByteArray(), OutgoingServerMessage.CHARSET));
+    }
+    
+    /**
+     * The registry sends a board's messages to the members of that board
+     * only, but for the sender, follows users joining and leaving boards,
+     * and skips members whose connection is not registered (yet or any more)
+     */
+    @Test(timeout = 2000)
+    public void connection_registry_board_test(){
+        ConnectionRegistry registry = new ConnectionRegistry();
+        RecordingConnection[] users = new RecordingConnection[4];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = new RecordingConnection(i);
+        }
+        registry.add(users[0]);
+        registry.add(users[1]);
+        registry.add(users[2]);
+        assertEquals(3, registry.size());
+        
+        // users 0, 1 and 3 are in board 7, user 2 in board 8; user 3 has no
+        // connection yet
+        registry.userJoinedBoard(0, 7);
+        registry.userJoinedBoard(1, 7);
+        registry.userJoinedBoard(3, 7);
+        registry.userJoinedBoard(2, 8);
+        registry.broadcastToBoard("clear_board", 7, 0);
+        assertEquals(Arrays.asList(), users[0].getMessages());
+        assertEquals(Arrays.asList("clear_board"), users[1].getMessages());
+        assertEquals(Arrays.asList(), users[2].getMessages());
+        
+        // user 3 connects, user 1 leaves the board and user 2 disconnects
+        registry.add(users[3]);
+        registry.userLeftBoard(1, 7);
+        registry.remove(users[2]);
+        registry.broadcastToBoard("clear_board", 7, 1);
+        registry.broadcastToBoard("clear_board", 8, 0);
+        assertEquals(Arrays.asList("clear_board"), users[0].getMessages());
+        assertEquals(Arrays.asList("clear_board"), users[1].getMessages());
+        assertEquals(Arrays.asList(), users[2].getMessages());
+        assertEquals(Arrays.asList("clear_board"), users[3].getMessages());
+        assertEquals(3, registry.size());
+        
+        // a board nobody ever joined
+        registry.broadcastToBoard("clear_board", 9, 0);
+        assertEquals(1, users[0].getMessages().size());
+    }
+    
+    /**
+     * A broadcast is encoded once: every recipient is handed the same
+     * message, and each one reads the shared bytes through its own view
+     */
+    @Test(timeout = 2000)
+    public void broadcast_encoded_once_test(){
+        ConnectionRegistry registry = new ConnectionRegistry();
+        RecordingConnection[] users = new RecordingConnection[3];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = new RecordingConnection(i);
+            registry.add(users[i]);
+            registry.userJoinedBoard(i, 7);
+        }
+        registry.broadcast("board_ids -1 Lobby", 0);
+        registry.broadcast("users_for_board_id 7 User0 User1 User2",
+                new HashSet<Integer>(Arrays.asList(0, 1, 2)), 0);
+        registry.broadcastToBoard("clear_board", 7, 0);
+        assertEquals(0, users[0].getOutgoingMessages().size());
+        for (int i = 0; i < 3; i++) {
+            assertSame(users[1].getOutgoingMessages().get(i),
+                    users[2].getOutgoingMessages().get(i));
+        }
+        
+        // the views share the bytes but not their positions
+        OutgoingServerMessage message = users[1].getOutgoingMessages().get(2);
+        ByteBuffer first = message.getEncoded();
+        ByteBuffer second = message.getEncoded();
+        assertTrue(first.isReadOnly());
+        byte[] bytes = new byte[first.remaining()];
+        first.get(bytes);
+        assertEquals("clear_board\n", new String(bytes, OutgoingServerMessage.CHARSET));
+        assertEquals(0, first.remaining());
+        assertEquals(bytes.length, second.remaining());
+        assertEquals(bytes.length, message.getEncodedLength());
+    }
+    
 	/**
 	 * Randomly finds an open port and returns it if it is available.
 	 */
@@ -427,9 +1214,22 @@ public class Server_Client_protocolTests {
 	 *             if there is a connection timeout, an IOException is thrown.
 	 */
 	public void initialize() throws IOException {
+		this.initialize(WhiteboardServer.IOMode.THREADS);
+	}
+
+	/**
+	 * Same as initialize(), with the server serving its connections as given
+	 * by ioMode
+	 * 
+	 * @param ioMode
+	 *            how the server serves its connections
+	 * @throws IOException
+	 */
+	public void initialize(WhiteboardServer.IOMode ioMode) throws IOException {
 		port = getAvailablePort();
 
-		this.server = new WhiteboardServer(port);
+		this.server = new WhiteboardServer(port,
+				OutgoingServerMessageQueue.DEFAULT_HIGH_WATER_MARK, ioMode, 2);
 		this.server.serve();
 		
 		this.client1 = new SimpleClient(testHost, port);
@@ -469,6 +1269,45 @@ public class Server_Client_protocolTests {
 	    
 	}
 
+	/**
+	 * Reads messages until one starts with the given prefix; a draw frame is
+	 * read as "frame" followed by its line
+	 * @param in the input of a client
+	 * @param prefix the start of the message to wait for
+	 * @return the message, or null if the input ended first
+	 * @throws IOException
+	 */
+	private String readMessageStartingWith(MessageInputStream in, String prefix) throws IOException{
+	    final String[] message = new String[1];
+	    BinaryProtocol.Receiver receiver = new BinaryProtocol.Receiver() {
+	        public void onText(CharSequence text) {
+	            message[0] = text.toString();
+	        }
+	        
+	        public void onDraw(Line line) {
+	            message[0] = "frame " + line;
+	        }
+	    };
+	    while(in.readMessage(receiver)){
+	        if(message[0].startsWith(prefix))
+	            return message[0];
+	    }
+	    return null;
+	}
+
+	/**
+	 * Waits for the next message on the queue and pops it
+	 * @param queue the queue of a client
+	 * @return the next message the client received
+	 */
+	private String takeMessage(ConcurrentLinkedQueue<String> queue){
+	    String input;
+	    while((input = queue.poll()) == null){
+	        Thread.yield();
+	    }
+	    return input;
+	}
+
 	/**
 	 * Keep popping elements off the message queue until we find an input such that
 	 * correctMessage(input, expectedMessage) is true
@@ -629,3 +1468,81 @@ class SimpleClient {
 	}
 	
 }
+
+
+/**
+ * A user connection that only records what is sent to it
+ */
+class RecordingConnection implements UserConnection {
+    
+    private final int userID;
+    
+    /**
+     * The messages output to this user, in order
+     */
+    private final List<OutgoingServerMessage> messages;
+    
+    public RecordingConnection(int userID) {
+        this.userID = userID;
+        this.messages = new ArrayList<OutgoingServerMessage>();
+    }
+    
+    /**
+     * @return the messages output to this user, as sent
+     */
+    public synchronized List<OutgoingServerMessage> getOutgoingMessages() {
+        return new ArrayList<OutgoingServerMessage>(this.messages);
+    }
+    
+    /**
+     * @return the text of the messages output to this user
+     */
+    public synchronized List<String> getMessages() {
+        List<String> text = new ArrayList<String>();
+        for (OutgoingServerMessage message : this.messages) {
+            text.add(message.getMessage());
+        }
+        return text;
+    }
+    
+    public int getUserID() {
+        return this.userID;
+    }
+    
+    public void output(String message) {
+        this.output(new OutgoingServerMessage(message));
+    }
+    
+    public synchronized void output(OutgoingServerMessage message) {
+        this.messages.add(message);
+    }
+    
+    public void broadcast(String message) {
+    }
+    
+    public void broadcast(String message, Set<Integer> userIDs) {
+    }
+    
+    public void broadcastToBoard(String message, int boardID) {
+    }
+    
+    public void broadcastToBoard(OutgoingServerMessage message, int boardID) {
+    }
+    
+    public void broadcastToBoard(OutgoingServerMessage message, String feature,
+            OutgoingServerMessage fallback, int boardID) {
+    }
+    
+    public void enableFeature(String feature) {
+    }
+    
+    public boolean hasFeature(String feature) {
+        return false;
+    }
+    
+    public void switchToBinaryProtocol(String lastTextMessage) {
+    }
+    
+    public void closeSocket() {
+    }
+}
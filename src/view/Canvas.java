@@ -8,9 +8,13 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.GraphicsConfiguration;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.Stroke;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.MouseEvent;
@@ -19,6 +23,7 @@ import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -36,13 +41,17 @@ import java.util.logging.Logger;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import logger.BoardLogger;
 import protocol.Client;
 import protocol.ClientSideMessageMaker;
+import protocol.MessageHandler;
 import turtle.DrawableTurtle;
 import turtle.LineSegment;
 import adts.Line;
+import adts.LineRenderer;
+import adts.TileIndex;
 import controller.WhiteboardClient;
 
 /**
@@ -64,6 +73,23 @@ import controller.WhiteboardClient;
  * for each Canvas connected to the same Lobby Model to have the lastest,
  * "master" copy of the board on the server.
  * 
+ * Segments and clears received from the server are queued on a SegmentDrain and
+ * drawn on the event dispatch thread in batches, with one Graphics2D per batch.
+ * They only repaint the part of the screen they cover: their bounding boxes are
+ * collected in a DirtyRegion that is repainted at most once per FRAME_MILLIS,
+ * so a busy board does not repaint the whole window for every segment.
+ * 
+ * The board is shown through a TiledRaster rather than drawn whole: on
+ * joining, the Canvas asks only for the tiles in view (get_tile) and draws the
+ * segments it receives on the tiles it holds. Dragging with the right mouse
+ * button moves the view over the board and asks for the tiles that come into
+ * view; the raster holds no more tiles than cover the view, so the memory the
+ * Canvas takes does not grow with the board. The server drops strokes to a
+ * user who falls behind, so every TILE_POLL_MILLIS the Canvas asks which tiles
+ * changed (get_tile_changes) and counts the changes it received since it last
+ * asked; if the board moved on by more than that, the tiles in view that
+ * changed are asked for again.
+ * 
  * Testing:
  * 
  * @category general aesthetics are the first thing to notice. Do the buttons
@@ -122,8 +148,53 @@ public class Canvas extends JPanel implements Client {
 	 */
 	private static final long serialVersionUID = 1L;
 
-	// image where the user's drawing is stored
-	private Image drawingBuffer;
+	// image where the user's drawing is stored, in the screen's pixel format
+	private BufferedImage drawingBuffer;
+
+	/**
+	 * The shortest time between two repaints of drawn segments, about 60
+	 * frames per second
+	 */
+	private static final int FRAME_MILLIS = 16;
+
+	// the part of drawingBuffer drawn on since it was last repainted, the
+	// timer that repaints it once the current frame is over, and when it
+	// was last repainted
+	private final DirtyRegion dirtyRegion;
+	private final Timer repaintTimer;
+	private long lastRepaintNanos;
+
+	// the segments and clears received from the server, waiting to be drawn
+	private final SegmentDrain incoming;
+
+	// draws segments on drawingBuffer, reusing strokes and colors
+	private final LineRenderer lineRenderer;
+
+	/**
+	 * How often the Canvas asks the server which tiles changed, to find out
+	 * whether strokes to it were dropped
+	 */
+	private static final int TILE_POLL_MILLIS = 1000;
+
+	// the tiles of the board around the view, the tiles asked for and not
+	// received yet, and the point of the board at the top left corner of the
+	// drawable area; only used on the event dispatch thread
+	private final TiledRaster tiles;
+	private final Set<Point> pendingTiles;
+	private int viewX;
+	private int viewY;
+
+	// asks the server which tiles changed, once the user is in the board
+	private final Timer tilePollTimer;
+
+	// the version of the board as of the last tile_changes, the one before,
+	// which polls ask from, and the changes received since the last one;
+	// only used by the thread reading from the server, though the poll
+	// timer reads checkedVersion
+	private boolean tilesLoaded;
+	private long tileVersion;
+	private volatile long checkedVersion;
+	private long changesReceived;
 
 	/**
 	 * Logger for Canvas. Level 0.
@@ -266,6 +337,33 @@ public class Canvas extends JPanel implements Client {
 		this.user = user;
 		this.boardID = boardID;
 
+		this.dirtyRegion = new DirtyRegion();
+		this.repaintTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				repaintDirtyRegion();
+			}
+		});
+		this.repaintTimer.setRepeats(false);
+		this.lastRepaintNanos = System.nanoTime();
+		this.lineRenderer = new LineRenderer();
+		this.incoming = new SegmentDrain(new SegmentDrain.Target() {
+			@Override
+			public void drawSegments(List<Line> segments) {
+				drawLineSegments(segments);
+			}
+
+			@Override
+			public void clear() {
+				clearTiles();
+			}
+
+			@Override
+			public void drawImage(BufferedImage image) {
+				drawBoardImage(image);
+			}
+		});
+
 		window = new JFrame("Collaborative Whiteboard: " + boardName);
 		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		window.setLayout(new BorderLayout());
@@ -341,6 +439,20 @@ public class Canvas extends JPanel implements Client {
 				Color.DARK_GRAY, Color.GRAY, Color.GREEN, Color.MAGENTA,
 				Color.ORANGE, Color.PINK, Color.RED, Color.WHITE, Color.YELLOW);
 
+		// the view starts with the board's pixels where they are on screen
+		Rectangle area = getBoardArea();
+		this.viewX = area.x;
+		this.viewY = area.y;
+		this.tiles = new TiledRaster(TiledRaster.maxTilesFor(area.width,
+				area.height), boardColor);
+		this.pendingTiles = new HashSet<Point>();
+		this.tilePollTimer = new Timer(TILE_POLL_MILLIS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				pollTiles();
+			}
+		});
+
 		window.add(this, BorderLayout.CENTER);
 		window.pack();
 		// Initialize the user list
@@ -348,12 +460,10 @@ public class Canvas extends JPanel implements Client {
 		// Add windowListener
 		window.addWindowListener(new WindowListen());
 		// Add a listener for resizing events
-		window.addComponentListener(new ComponentAdapter() {
+		this.addComponentListener(new ComponentAdapter() {
 			@Override
 			public void componentResized(ComponentEvent e) {
-				// resetSizes();
-				// should implement this later. It works but I forgot to also
-				// add lines that were already there.
+				growDrawingBuffer();
 			}
 		});
 
@@ -450,12 +560,59 @@ public class Canvas extends JPanel implements Client {
 	 * all necessary starting components such as backgrounds and buttons
 	 */
 	private void makeDrawingBuffer() {
-		drawingBuffer = createImage(getWidth(), getHeight());
+		drawingBuffer = createBuffer(getWidth(), getHeight());
 		fillWithWhite();
 		createButtonLayout();
 		Set<String> oneUser = new HashSet<String>();
 		oneUser.add(this.user);
 		createUserList(oneUser);
+		paintTiles(null);
+	}
+
+	/**
+	 * Makes an opaque image in the pixel format of the screen this Canvas is
+	 * on, so that copying it to the screen needs no conversion, filled with
+	 * the panel's background. Off screen it is an int RGB image.
+	 * 
+	 * @param width
+	 *            the width of the image, at least 1
+	 * @param height
+	 *            the height of the image, at least 1
+	 */
+	private BufferedImage createBuffer(int width, int height) {
+		width = Math.max(1, width);
+		height = Math.max(1, height);
+		GraphicsConfiguration config = getGraphicsConfiguration();
+		BufferedImage image = config != null ? config.createCompatibleImage(
+				width, height) : new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(getBackground());
+		g.fillRect(0, 0, width, height);
+		g.dispose();
+		return image;
+	}
+
+	/**
+	 * When the Canvas grows past its drawing buffer, copies the buffer into a
+	 * bigger one instead of drawing everything again. The buffer never
+	 * shrinks, so nothing drawn is lost when the window is made smaller and
+	 * then bigger again.
+	 */
+	private synchronized void growDrawingBuffer() {
+		if (drawingBuffer == null)
+			return;
+		int width = Math.max(getWidth(), drawingBuffer.getWidth());
+		int height = Math.max(getHeight(), drawingBuffer.getHeight());
+		if (width == drawingBuffer.getWidth()
+				&& height == drawingBuffer.getHeight())
+			return;
+		BufferedImage grown = createBuffer(width, height);
+		Graphics2D g = grown.createGraphics();
+		g.drawImage(drawingBuffer, 0, 0, null);
+		g.dispose();
+		drawingBuffer = grown;
+		this.repaint();
 	}
 
 	/**
@@ -477,7 +634,8 @@ public class Canvas extends JPanel implements Client {
 		 * Create the white drawable area and the button window
 		 */
 		g.setColor(boardColor);
-		g.fillRect(margins + windowW, margins, drawableCanvasW-margins*5, drawableCanvasH-margins*6);
+		Rectangle area = getBoardArea();
+		g.fillRect(area.x, area.y, area.width, area.height);
 		createButtonLayout();
 
 		// IMPORTANT! every time we draw on the internal drawing buffer, we
@@ -485,6 +643,220 @@ public class Canvas extends JPanel implements Client {
 		this.repaint();
 	}
 
+	/**
+	 * @return the white drawable area, in the drawing buffer's coordinates
+	 */
+	private Rectangle getBoardArea() {
+		return new Rectangle(margins + windowW, margins, drawableCanvasW
+				- margins * 5, drawableCanvasH - margins * 6);
+	}
+
+	/**
+	 * @return the part of the board in view, in board coordinates. Must be
+	 *         called on the event dispatch thread.
+	 */
+	private Rectangle getViewport() {
+		Rectangle area = getBoardArea();
+		return new Rectangle(viewX, viewY, area.width, area.height);
+	}
+
+	/**
+	 * @return the board x coordinate shown at the given x in the drawing
+	 *         buffer
+	 */
+	private int boardX(int x) {
+		return x - getBoardArea().x + viewX;
+	}
+
+	/**
+	 * @return the board y coordinate shown at the given y in the drawing
+	 *         buffer
+	 */
+	private int boardY(int y) {
+		return y - getBoardArea().y + viewY;
+	}
+
+	/**
+	 * @return a context drawing on the drawing buffer in board coordinates,
+	 *         clipped to the drawable area
+	 */
+	private Graphics2D createBoardGraphics() {
+		Rectangle area = getBoardArea();
+		Graphics2D g = drawingBuffer.createGraphics();
+		g.clip(area);
+		g.translate(area.x - viewX, area.y - viewY);
+		return g;
+	}
+
+	/**
+	 * @return true if a segment may touch the given part of the board
+	 */
+	private static boolean touches(Line l, Rectangle viewport) {
+		int pad = (int) Math.ceil(l.getStrokeThickness() / 2) + 1;
+		return Math.max(l.getX1(), l.getX2()) + pad >= viewport.x
+				&& Math.min(l.getX1(), l.getX2()) - pad < viewport.x
+						+ viewport.width
+				&& Math.max(l.getY1(), l.getY2()) + pad >= viewport.y
+				&& Math.min(l.getY1(), l.getY2()) - pad < viewport.y
+						+ viewport.height;
+	}
+
+	/**
+	 * Paints the tiles held over the drawable area, the background where a
+	 * tile is missing, then repaints it with the next frame. Must be called
+	 * on the event dispatch thread.
+	 * 
+	 * @param part
+	 *            the part of the board to paint, in board coordinates, or
+	 *            null for all of the view
+	 */
+	private synchronized void paintTiles(Rectangle part) {
+		if (drawingBuffer == null)
+			return;
+		Rectangle area = getBoardArea();
+		Rectangle viewport = getViewport();
+		Rectangle painted = area;
+		if (part != null) {
+			painted = area.intersection(new Rectangle(part.x - viewport.x
+					+ area.x, part.y - viewport.y + area.y, part.width,
+					part.height));
+			if (painted.isEmpty())
+				return;
+		}
+		Graphics2D g = drawingBuffer.createGraphics();
+		g.clip(painted);
+		g.translate(area.x, area.y);
+		this.tiles.paint(g, viewport);
+		g.dispose();
+		this.dirtyRegion.add(painted.x, painted.y, painted.x + painted.width,
+				painted.y + painted.height);
+		scheduleRepaint();
+	}
+
+	/**
+	 * Blanks the tiles held and the view, as the board was cleared. Must be
+	 * called on the event dispatch thread.
+	 */
+	private synchronized void clearTiles() {
+		this.tiles.clear();
+		paintTiles(null);
+	}
+
+	/**
+	 * Once the user is in the board, asks which tiles changed since version
+	 * 0, to count the changes received from then on, then asks for the tiles
+	 * in view, and starts asking which tiles changed every TILE_POLL_MILLIS.
+	 * Must be called on the event dispatch thread.
+	 */
+	private synchronized void startTiles() {
+		if (this.tilePollTimer.isRunning() || !this.window.isDisplayable())
+			return;
+		pollTiles();
+		requestMissingTiles();
+		this.tilePollTimer.start();
+	}
+
+	/**
+	 * Asks which tiles changed since the version before the last one
+	 * answered, so that a change missed just before a poll is answered is
+	 * still listed by the next
+	 */
+	private void pollTiles() {
+		lobby.makeRequest(ClientSideMessageMaker
+				.makeRequestStringGetTileChanges(this.checkedVersion));
+	}
+
+	/**
+	 * Asks for the tiles in view that are neither held nor asked for. Must
+	 * be called on the event dispatch thread, holding this Canvas's lock.
+	 */
+	private void requestMissingTiles() {
+		for (int[] tile : this.tiles.getMissingTiles(getViewport())) {
+			requestTile(tile[0], tile[1]);
+		}
+	}
+
+	/**
+	 * Asks for a tile unless it was asked for already. Must be called on the
+	 * event dispatch thread, holding this Canvas's lock.
+	 */
+	private void requestTile(int tileX, int tileY) {
+		if (this.pendingTiles.add(new Point(tileX, tileY)))
+			lobby.makeRequest(ClientSideMessageMaker.makeRequestStringGetTile(
+					tileX, tileY));
+	}
+
+	/**
+	 * Draws a tile from the lines the server sent for it, if it is still in
+	 * view; one that went out of view meanwhile is let go. Must be called on
+	 * the event dispatch thread.
+	 */
+	private synchronized void drawTile(int tileX, int tileY, List<Line> lines) {
+		this.pendingTiles.remove(new Point(tileX, tileY));
+		if (!TiledRaster.isVisible(tileX, tileY, getViewport()))
+			return;
+		this.tiles.setTile(tileX, tileY, lines);
+		paintTiles(new Rectangle(tileX * TileIndex.TILE_SIZE, tileY
+				* TileIndex.TILE_SIZE, TileIndex.TILE_SIZE, TileIndex.TILE_SIZE));
+	}
+
+	/**
+	 * Asks again for the tiles in view that changed, after changes were
+	 * dropped on the way; changed tiles out of view are dropped, to be asked
+	 * for once they are in view. The tiles held are shown until the new ones
+	 * arrive. Must be called on the event dispatch thread.
+	 * 
+	 * @param allChanged
+	 *            true if every tile may have changed
+	 * @param changed
+	 *            the tiles that changed, if not all of them
+	 */
+	private synchronized void refetchTiles(boolean allChanged,
+			List<Point> changed) {
+		Rectangle viewport = getViewport();
+		if (allChanged) {
+			this.tiles.retainVisible(viewport);
+			for (int[] tile : TiledRaster.getVisibleTiles(viewport)) {
+				requestTile(tile[0], tile[1]);
+			}
+			return;
+		}
+		for (Point tile : changed) {
+			if (TiledRaster.isVisible(tile.x, tile.y, viewport))
+				requestTile(tile.x, tile.y);
+			else
+				this.tiles.invalidate(tile.x, tile.y);
+		}
+	}
+
+	/**
+	 * Moves the view over the board, paints it from the tiles held and asks
+	 * for the tiles that came into view. Must be called on the event
+	 * dispatch thread.
+	 * 
+	 * @param dx
+	 *            the pixels to move the view right by
+	 * @param dy
+	 *            the pixels to move the view down by
+	 */
+	private synchronized void pan(int dx, int dy) {
+		Rectangle area = getBoardArea();
+		this.viewX = clampView(this.viewX + dx, area.width);
+		this.viewY = clampView(this.viewY + dy, area.height);
+		paintTiles(null);
+		if (this.tilePollTimer.isRunning())
+			requestMissingTiles();
+	}
+
+	/**
+	 * @return the view's coordinate, kept within the coordinates the server
+	 *         takes (MessageHandler.MAX_COORDINATE)
+	 */
+	private static int clampView(int view, int size) {
+		return Math.max(-MessageHandler.MAX_COORDINATE, Math.min(
+				MessageHandler.MAX_COORDINATE - size, view));
+	}
+
 	/**
 	 * Creates a rectangle with a given stroke width, color, x and y positions
 	 * as referenced from the top left corner, and width and height
@@ -762,26 +1134,105 @@ public class Canvas extends JPanel implements Client {
 
 	/**
 	 * Draw a line between two points (x1, y1) and (x2, y2), specified in pixels
-	 * relative to the upper-left corner of the drawing buffer.
+	 * of the board, on the tiles held and the view.
 	 * 
 	 * @param l
 	 *            Line to draw
 	 * @param withRepaint
-	 *            will repaint if true, wont otherwise
+	 *            will repaint the segment's area with the next frame if true,
+	 *            wont otherwise
 	 * 
 	 */
 	public synchronized void drawLineSegment(Line l, boolean withRepaint) {
-		Graphics2D g = (Graphics2D) drawingBuffer.getGraphics();
+		this.tiles.draw(l);
+		this.lineRenderer.begin(createBoardGraphics());
+		this.lineRenderer.draw(l);
+		this.lineRenderer.end();
+		if (withRepaint) {
+			Rectangle area = getBoardArea();
+			this.dirtyRegion.add(l, area.x - viewX, area.y - viewY);
+			scheduleRepaint();
+		}
+	}
 
-		g.setStroke(new BasicStroke(l.getStrokeThickness(), 1, 1));
-		g.setColor(new Color(l.getR(), l.getG(), l.getB(), l.getA()));
+	/**
+	 * Draws segments on the tiles held, and those in view on the view with
+	 * one Graphics2D, then repaints their area with the next frame. Must be
+	 * called on the event dispatch thread.
+	 * 
+	 * @param segments
+	 *            the segments to draw, in order
+	 */
+	private synchronized void drawLineSegments(List<Line> segments) {
+		for (Line l : segments) {
+			this.tiles.draw(l);
+		}
+		if (drawingBuffer == null)
+			return;
+		Rectangle area = getBoardArea();
+		Rectangle viewport = getViewport();
+		this.lineRenderer.begin(createBoardGraphics());
+		for (Line l : segments) {
+			if (!touches(l, viewport))
+				continue;
+			this.lineRenderer.draw(l);
+			this.dirtyRegion.add(l, area.x - viewX, area.y - viewY);
+		}
+		this.lineRenderer.end();
+		scheduleRepaint();
+	}
 
-		g.drawLine(l.getX1(), l.getY1(), l.getX2(), l.getY2());
-		if (withRepaint) {
-			this.repaint();
+	/**
+	 * Draws an image of the board's lines, as sent by the server when joining
+	 * it, over the tiles held and the view, then repaints it with the next
+	 * frame. The image is transparent where there are no lines, so what is
+	 * drawn shows through. Must be called on the event dispatch thread.
+	 * 
+	 * @param image
+	 *            the image, its top left corner at 0, 0 on the board
+	 */
+	private synchronized void drawBoardImage(BufferedImage image) {
+		this.tiles.drawImage(image);
+		if (drawingBuffer == null)
+			return;
+		Graphics2D g = createBoardGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		Rectangle area = getBoardArea();
+		this.dirtyRegion.add(area.x, area.y, area.x + area.width, area.y
+				+ area.height);
+		scheduleRepaint();
+	}
+
+	/**
+	 * Repaints the dirty region now if the last repaint was at least a frame
+	 * ago, or else once the frame is over. Must be called on the event
+	 * dispatch thread, holding this Canvas's lock.
+	 */
+	private void scheduleRepaint() {
+		if (this.repaintTimer.isRunning())
+			return;
+		long sinceLastMillis = (System.nanoTime() - this.lastRepaintNanos) / 1000000;
+		if (sinceLastMillis >= FRAME_MILLIS) {
+			repaintDirtyRegion();
+		} else {
+			this.repaintTimer.setInitialDelay((int) (FRAME_MILLIS - sinceLastMillis));
+			this.repaintTimer.start();
 		}
 	}
 
+	/**
+	 * Asks Swing to repaint the part of the screen drawn on since the last
+	 * repaint
+	 */
+	private synchronized void repaintDirtyRegion() {
+		Rectangle dirty = this.dirtyRegion.take();
+		if (dirty != null) {
+			this.repaint(dirty);
+		}
+		this.lastRepaintNanos = System.nanoTime();
+	}
+
 	/**
 	 * Set strokeWidth
 	 * 
@@ -843,29 +1294,49 @@ public class Canvas extends JPanel implements Client {
 		private int[] lastPos = new int[2];
 		private List<LineSegment> turtleLines;
 
+		/*
+		 * where the right mouse button, which moves the view, was last seen
+		 */
+		private int[] panPos = new int[2];
+
+		/*
+		 * collects the segments of a stroke into polylines, so that a stroke
+		 * is sent as a few requests rather than one per mouse event
+		 */
+		private final StrokeBatcher batcher = new StrokeBatcher(lobby);
+
 		/*
 		 * When mouse button is pressed down, start drawing.
 		 */
 		public void mousePressed(MouseEvent e) {
+			if (SwingUtilities.isRightMouseButton(e)) {
+				panPos = new int[] { e.getX(), e.getY() };
+				return;
+			}
 
 			lastPos = adjustedPos(e.getX(), e.getY());
 
 		}
 
 		/*
-		 * When mouse moves while a button is pressed down, send the server a
-		 * line segment.
+		 * When mouse moves while a button is pressed down, add a line segment
+		 * to the stroke being sent to the server.
 		 */
 		public void mouseDragged(MouseEvent e) {
+			if (SwingUtilities.isRightMouseButton(e)) {
+				pan(panPos[0] - e.getX(), panPos[1] - e.getY());
+				panPos = new int[] { e.getX(), e.getY() };
+				return;
+			}
 
 			int[] pos = adjustedPos(e.getX(), e.getY());
 			int x = pos[0];
 			int y = pos[1];
 
-			Line l = new Line(lastPos[0], lastPos[1], x, y, lineStroke,
+			batcher.addSegment(boardX(lastPos[0]), boardY(lastPos[1]),
+					boardX(x), boardY(y), lineStroke,
 					lineColor.getRed(), lineColor.getGreen(),
 					lineColor.getBlue(), lineColor.getAlpha());
-			lobby.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(l));
 			lastPos = adjustedPos(x, y);
 		}
 
@@ -935,24 +1406,26 @@ public class Canvas extends JPanel implements Client {
 				drawTurtle(turtle);
 				turtleLines = turtle.draw();
 				for (int i = 0; i < turtleLines.size(); i++) {
-					Line l = new Line((int) turtleLines.get(i).start.x,
-							(int) turtleLines.get(i).start.y,
-							(int) turtleLines.get(i).end.x,
-							(int) turtleLines.get(i).end.y, 1,
+					batcher.addSegment(boardX((int) turtleLines.get(i).start.x),
+							boardY((int) turtleLines.get(i).start.y),
+							boardX((int) turtleLines.get(i).end.x),
+							boardY((int) turtleLines.get(i).end.y), 1,
 							lineColor.getRed(), lineColor.getGreen(),
 							lineColor.getBlue(), lineColor.getAlpha());
-					lobby.makeRequest(ClientSideMessageMaker
-							.makeRequestStringDraw(l));
 				}
+				batcher.flush();
 
 			}
 
 			if (action.equals("Clear board")) {
+				batcher.flush();
 				lobby.makeRequest(ClientSideMessageMaker
 						.makeRequestStringClear());
 			}
 
 			if (action.equals("LEAVE BOARD")) {
+				batcher.flush();
+				tilePollTimer.stop();
 				window.dispose();
 				lobby.setVisible(true);
 				lobby.makeRequest(ClientSideMessageMaker
@@ -1011,6 +1484,7 @@ public class Canvas extends JPanel implements Client {
 		}
 
 		public void mouseReleased(MouseEvent e) {
+			batcher.flush();
 		}
 
 		public void mouseEntered(MouseEvent e) {
@@ -1062,6 +1536,11 @@ public class Canvas extends JPanel implements Client {
 		return;
 	}
 
+	@Override
+	public void onReceiveBoardThumbnail(int boardID, BufferedImage image) {
+		return;
+	}
+
 	@Override
 	public void onReceiveWelcome(int id) {
 		return;
@@ -1069,34 +1548,126 @@ public class Canvas extends JPanel implements Client {
 
 	@Override
 	public void onReceiveDraw(Line l) {
-		final Line line = l;
+		this.changesReceived++;
+		this.incoming.add(l);
+	}
+
+	@Override
+	public void onReceivePolyline(List<Line> segments) {
+		this.changesReceived++;
+		this.incoming.addAll(segments);
+	}
+
+	/**
+	 * Once joined, asks for the tiles in view
+	 */
+	@Override
+	public void onReceiveBoardLines(List<Line> ls, Set<String> uNames) {
+		final Set<String> uN = uNames;
+		this.incoming.addAll(ls);
 		SwingUtilities.invokeLater(new Thread() {
 			@Override
 			public void run() {
-				drawLineSegment(line, true);
+				createUserList(uN);
+				startTiles();
 			}
 		});
+	}
 
+	@Override
+	public void onReceiveBoardLinesBegin(int numberOfLines, Set<String> uNames) {
+		final Set<String> uN = uNames;
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				createUserList(uN);
+			}
+		});
 	}
 
+	/**
+	 * Draws the image before the chunks of lines drawn after it
+	 */
 	@Override
-	public void onReceiveBoardLines(List<Line> ls, Set<String> uNames) {
-		final List<Line> lines = ls;
+	public void onReceiveBoardRaster(BufferedImage image, int numberOfLines,
+			Set<String> uNames) {
 		final Set<String> uN = uNames;
+		if (image != null)
+			this.incoming.addImage(image);
 		SwingUtilities.invokeLater(new Thread() {
 			@Override
 			public void run() {
-				for (Line line : lines) {
-					drawLineSegment(line, false);
-				}
 				createUserList(uN);
 			}
 		});
 	}
 
+	/**
+	 * Draws each chunk as soon as it arrives, so a big board shows up piece
+	 * by piece instead of all at once at the end
+	 */
+	@Override
+	public void onReceiveBoardLinesChunk(List<Line> ls) {
+		this.incoming.addAll(ls);
+	}
+
+	@Override
+	public void onReceiveBoardLinesEnd() {
+		return;
+	}
+
 	@Override
 	public void onReceiveClear() {
-		this.fillWithWhite();
+		this.changesReceived++;
+		this.incoming.addClear();
+	}
+
+	/**
+	 * Counts the changes received against the board's versions. If fewer
+	 * came than the board moved on by since the last poll, some were dropped
+	 * on the way, and the tiles that changed since the poll before are asked
+	 * for again. A change received before a poll is answered but made after
+	 * it is counted towards the next poll, which is why polls look back two.
+	 */
+	@Override
+	public void onReceiveTileChanges(long version, final boolean allChanged,
+			final List<Point> changed) {
+		long missed = version - this.tileVersion - this.changesReceived;
+		if (!this.tilesLoaded) {
+			// the tiles in view were asked for after this poll, so they
+			// have every change up to its version
+			this.tilesLoaded = true;
+			missed = 0;
+			this.changesReceived = 0;
+			this.checkedVersion = version;
+		} else {
+			this.changesReceived = Math.max(0, -missed);
+			this.checkedVersion = this.tileVersion;
+		}
+		this.tileVersion = version;
+		if (missed > 0) {
+			LOGGER.info(missed + " changes to the board were dropped");
+			this.incoming.addTask(new Runnable() {
+				@Override
+				public void run() {
+					refetchTiles(allChanged, changed);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Draws the tile in order with the segments received around it
+	 */
+	@Override
+	public void onReceiveTile(final int tileX, final int tileY, long version,
+			final List<Line> lines) {
+		this.incoming.addTask(new Runnable() {
+			@Override
+			public void run() {
+				drawTile(tileX, tileY, lines);
+			}
+		});
 	}
 
 	@Override
@@ -1106,9 +1677,18 @@ public class Canvas extends JPanel implements Client {
 		this.createUserList(users);
 	}
 
+	/**
+	 * Once a board made by the user is made, asks for the tiles in view
+	 */
 	@Override
 	public void onReceiveCurrentBoardID(int boardID) {
 		this.boardID = boardID;
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				startTiles();
+			}
+		});
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+package view;
+
+import java.awt.Rectangle;
+
+import adts.Line;
+
+/**
+ * The part of the Canvas drawn on since it was last repainted: the union of
+ * the bounding boxes of the segments drawn, each grown by half its stroke
+ * width so that the whole stroke is covered.
+ *
+ * Thread-safety:
+ *
+ * Not threadsafe; the Canvas only touches it while holding its own lock.
+ */
+public class DirtyRegion {
+
+	/**
+	 * The bounds of the region, x2 and y2 exclusive; only meaningful if the
+	 * region is not empty
+	 */
+	private int x1;
+	private int y1;
+	private int x2;
+	private int y2;
+	private boolean empty;
+
+	/**
+	 * Create an empty region
+	 */
+	public DirtyRegion() {
+		this.empty = true;
+	}
+
+	/**
+	 * Adds the pixels a segment may have touched to the region
+	 *
+	 * @param l
+	 *            the segment drawn
+	 */
+	public void add(Line l) {
+		add(l, 0, 0);
+	}
+
+	/**
+	 * Adds the pixels a segment may have touched to the region, for a
+	 * segment drawn moved by an offset
+	 *
+	 * @param l
+	 *            the segment drawn
+	 * @param offsetX
+	 *            added to the segment's x coordinates
+	 * @param offsetY
+	 *            added to the segment's y coordinates
+	 */
+	public void add(Line l, int offsetX, int offsetY) {
+		// a round cap reaches half the stroke past the end points; one more
+		// pixel covers antialiasing and rounding
+		int pad = (int) Math.ceil(l.getStrokeThickness() / 2) + 1;
+		add(Math.min(l.getX1(), l.getX2()) - pad + offsetX,
+				Math.min(l.getY1(), l.getY2()) - pad + offsetY,
+				Math.max(l.getX1(), l.getX2()) + pad + 1 + offsetX,
+				Math.max(l.getY1(), l.getY2()) + pad + 1 + offsetY);
+	}
+
+	/**
+	 * Adds a rectangle to the region
+	 *
+	 * @param x1
+	 *            the left edge
+	 * @param y1
+	 *            the top edge
+	 * @param x2
+	 *            the right edge, exclusive
+	 * @param y2
+	 *            the bottom edge, exclusive
+	 */
+	public void add(int x1, int y1, int x2, int y2) {
+		if (this.empty) {
+			this.x1 = x1;
+			this.y1 = y1;
+			this.x2 = x2;
+			this.y2 = y2;
+			this.empty = false;
+		} else {
+			this.x1 = Math.min(this.x1, x1);
+			this.y1 = Math.min(this.y1, y1);
+			this.x2 = Math.max(this.x2, x2);
+			this.y2 = Math.max(this.y2, y2);
+		}
+	}
+
+	/**
+	 * @return true if nothing was added since the region was last taken
+	 */
+	public boolean isEmpty() {
+		return this.empty;
+	}
+
+	/**
+	 * Empties the region
+	 *
+	 * @return the bounds of the region before it was emptied, or null if it
+	 *         was empty
+	 */
+	public Rectangle take() {
+		if (this.empty)
+			return null;
+		this.empty = true;
+		return new Rectangle(this.x1, this.y1, this.x2 - this.x1, this.y2
+				- this.y1);
+	}
+}
@@ -0,0 +1,236 @@
+package view;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+import adts.Line;
+
+/**
+ * Hands the segments received from the server to the Swing event dispatch
+ * thread in batches, instead of one invokeLater per segment.
+ *
+ * The thread reading from the server adds segments (and clears and images of
+ * the board) to a lock-free queue. The first one added after a drain schedules
+ * the next drain; everything added until it runs is drawn by that one task, in
+ * order, in a single call to the target. Other work that has to happen in
+ * order with the segments, such as drawing a tile, is queued as a task and
+ * run by the drain at its place. A drain draws at most
+ * MAX_SEGMENTS_PER_DRAIN segments and leaves the rest to a drain scheduled
+ * behind the events already waiting, so that a busy board cannot hold up the
+ * user's own input.
+ *
+ * Thread-safety:
+ *
+ * add, addAll, addClear, addImage and addTask may be called by any thread. The
+ * target and the tasks are only called on the event dispatch thread, by one
+ * drain at a time.
+ */
+public class SegmentDrain {
+
+	/**
+	 * Draws what was drained, on the event dispatch thread
+	 */
+	public interface Target {
+
+		/**
+		 * Draws segments, in order
+		 *
+		 * @param segments
+		 *            the segments, only valid during the call
+		 */
+		public void drawSegments(List<Line> segments);
+
+		/**
+		 * Clears the board
+		 */
+		public void clear();
+
+		/**
+		 * Draws an image of the board's lines over what is drawn
+		 *
+		 * @param image
+		 *            the image, its top left corner at 0, 0
+		 */
+		public void drawImage(BufferedImage image);
+	}
+
+	/**
+	 * The most segments drawn by one drain
+	 */
+	public static final int MAX_SEGMENTS_PER_DRAIN = 2048;
+
+	/**
+	 * Put on the queue in place of a segment to clear the board at that
+	 * point
+	 */
+	private static final Line CLEAR = new Line(0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+	/**
+	 * Put on the queue in place of a segment to draw the next image at that
+	 * point
+	 */
+	private static final Line IMAGE = new Line(0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+	/**
+	 * Put on the queue in place of a segment to run the next task at that
+	 * point
+	 */
+	private static final Line TASK = new Line(0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+	private final Target target;
+	private final ConcurrentLinkedQueue<Line> queue;
+
+	/**
+	 * The images to draw, in the order of their places on the queue
+	 */
+	private final ConcurrentLinkedQueue<BufferedImage> images;
+
+	/**
+	 * The tasks to run, in the order of their places on the queue
+	 */
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+
+	/**
+	 * True from the time a drain is scheduled until it starts
+	 */
+	private final AtomicBoolean scheduled;
+
+	/**
+	 * The one task that drains the queue, reused for every drain
+	 */
+	private final Runnable drainTask;
+
+	/**
+	 * The segments of the drain in progress; only used on the event dispatch
+	 * thread
+	 */
+	private final List<Line> batch;
+
+	/**
+	 * Create a drain drawing on the given target
+	 *
+	 * @param target
+	 *            what draws the segments
+	 */
+	public SegmentDrain(Target target) {
+		this.target = target;
+		this.queue = new ConcurrentLinkedQueue<Line>();
+		this.images = new ConcurrentLinkedQueue<BufferedImage>();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.scheduled = new AtomicBoolean(false);
+		this.batch = new ArrayList<Line>();
+		this.drainTask = new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+	}
+
+	/**
+	 * Queues a segment to be drawn
+	 *
+	 * @param l
+	 *            the segment
+	 */
+	public void add(Line l) {
+		this.queue.add(l);
+		schedule();
+	}
+
+	/**
+	 * Queues segments to be drawn, in order
+	 *
+	 * @param segments
+	 *            the segments
+	 */
+	public void addAll(List<Line> segments) {
+		this.queue.addAll(segments);
+		schedule();
+	}
+
+	/**
+	 * Queues a clear of the board, after the segments queued so far and
+	 * before any queued later
+	 */
+	public void addClear() {
+		this.queue.add(CLEAR);
+		schedule();
+	}
+
+	/**
+	 * Queues an image of the board to be drawn, after the segments queued so
+	 * far and before any queued later. Meant to be called by the one thread
+	 * reading from the server, so that the images come off their queue in
+	 * the order of their places on the other.
+	 *
+	 * @param image
+	 *            the image
+	 */
+	public void addImage(BufferedImage image) {
+		this.images.add(image);
+		this.queue.add(IMAGE);
+		schedule();
+	}
+
+	/**
+	 * Queues a task to run on the event dispatch thread, after the segments
+	 * queued so far are drawn and before any queued later. Meant to be called
+	 * by the one thread reading from the server, as addImage.
+	 *
+	 * @param task
+	 *            the task
+	 */
+	public void addTask(Runnable task) {
+		this.tasks.add(task);
+		this.queue.add(TASK);
+		schedule();
+	}
+
+	private void schedule() {
+		if (this.scheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(this.drainTask);
+		}
+	}
+
+	/**
+	 * Draws what is queued, up to MAX_SEGMENTS_PER_DRAIN segments. Anything
+	 * queued once this has started, or left over, schedules another drain.
+	 */
+	private void drain() {
+		this.scheduled.set(false);
+		int drawn = 0;
+		Line l;
+		while (drawn < MAX_SEGMENTS_PER_DRAIN && (l = this.queue.poll()) != null) {
+			if (l == CLEAR) {
+				drawBatch();
+				this.target.clear();
+			} else if (l == IMAGE) {
+				drawBatch();
+				this.target.drawImage(this.images.poll());
+			} else if (l == TASK) {
+				drawBatch();
+				this.tasks.poll().run();
+			} else {
+				this.batch.add(l);
+				drawn++;
+			}
+		}
+		drawBatch();
+		if (!this.queue.isEmpty()) {
+			schedule();
+		}
+	}
+
+	private void drawBatch() {
+		if (this.batch.isEmpty())
+			return;
+		this.target.drawSegments(this.batch);
+		this.batch.clear();
+	}
+}
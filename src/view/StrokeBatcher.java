@@ -0,0 +1,169 @@
+package view;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+import adts.Line;
+import protocol.ClientSideMessageMaker;
+import controller.WhiteboardClient;
+
+/**
+ * Collects the segments of a freehand stroke into req_polyline requests
+ * instead of sending one req_draw per mouse event. Until the server has
+ * enabled the polyline feature, the segments collected are sent as draws.
+ *
+ * Consecutive segments with the same style, each starting where the last one
+ * ended, are kept as the points of one polyline. The polyline is sent when
+ * FLUSH_MILLIS have passed since its first point, when it reaches MAX_POINTS,
+ * when the style changes or the stroke breaks, and when flush is called (the
+ * mouse is released, or before a request that must come after the stroke).
+ *
+ * Thread-safety:
+ *
+ * Only used on the Swing event dispatch thread: mouse events and the Swing
+ * Timer both run there, so nothing is locked.
+ */
+public class StrokeBatcher {
+
+	/**
+	 * The longest a point waits before it is sent, short enough that other
+	 * users still see the stroke grow smoothly
+	 */
+	public static final int FLUSH_MILLIS = 30;
+
+	/**
+	 * The most points sent in one polyline
+	 */
+	public static final int MAX_POINTS = 64;
+
+	private final WhiteboardClient lobby;
+	private final Timer timer;
+
+	/**
+	 * The points of the polyline being collected, x then y
+	 */
+	private final int[] points;
+	private int pointCount;
+
+	/**
+	 * The style of the polyline being collected
+	 */
+	private float strokeThickness;
+	private int r;
+	private int g;
+	private int b;
+	private int a;
+
+	/**
+	 * Create a batcher sending its polylines through the given client
+	 *
+	 * @param lobby
+	 *            the client to send requests through
+	 */
+	public StrokeBatcher(WhiteboardClient lobby) {
+		this.lobby = lobby;
+		this.points = new int[2 * MAX_POINTS];
+		this.pointCount = 0;
+		this.timer = new Timer(FLUSH_MILLIS, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				flush();
+			}
+		});
+		this.timer.setRepeats(false);
+	}
+
+	/**
+	 * Adds a segment to the stroke
+	 *
+	 * @param x1
+	 *            The first x coordinate
+	 * @param y1
+	 *            The first y coordinate
+	 * @param x2
+	 *            The second x coordinate
+	 * @param y2
+	 *            The second y coordinate
+	 * @param strokeThickness
+	 *            The stroke thickness
+	 * @param r
+	 *            The red value
+	 * @param g
+	 *            The green value
+	 * @param b
+	 *            The blue value
+	 * @param a
+	 *            The alpha value
+	 */
+	public void addSegment(int x1, int y1, int x2, int y2,
+			float strokeThickness, int r, int g, int b, int a) {
+		if (this.pointCount > 0
+				&& !continues(x1, y1, strokeThickness, r, g, b, a)) {
+			flush();
+		}
+		if (this.pointCount == 0) {
+			this.strokeThickness = strokeThickness;
+			this.r = r;
+			this.g = g;
+			this.b = b;
+			this.a = a;
+			addPoint(x1, y1);
+			this.timer.restart();
+		}
+		addPoint(x2, y2);
+		if (this.pointCount == MAX_POINTS) {
+			flush();
+			// the next polyline goes on from where this one ended
+			addSegmentStart(x2, y2);
+		}
+	}
+
+	/**
+	 * Sends the polyline collected so far, if it has a segment
+	 */
+	public void flush() {
+		this.timer.stop();
+		if (this.pointCount >= 2 && this.lobby.usesPolylines()) {
+			this.lobby.makeRequest(ClientSideMessageMaker
+					.makeRequestStringPolyline(this.strokeThickness, this.r,
+							this.g, this.b, this.a, this.points,
+							this.pointCount));
+		} else {
+			for (int i = 1; i < this.pointCount; i++) {
+				this.lobby.makeDrawRequest(new Line(this.points[2 * i - 2],
+						this.points[2 * i - 1], this.points[2 * i],
+						this.points[2 * i + 1], this.strokeThickness, this.r,
+						this.g, this.b, this.a));
+			}
+		}
+		this.pointCount = 0;
+	}
+
+	/**
+	 * Starts the next polyline at the given point, with the current style
+	 */
+	private void addSegmentStart(int x, int y) {
+		addPoint(x, y);
+		this.timer.restart();
+	}
+
+	/**
+	 * @return true if a segment from (x1, y1) in the given style goes on
+	 *         from the last point collected
+	 */
+	private boolean continues(int x1, int y1, float strokeThickness, int r,
+			int g, int b, int a) {
+		return this.points[2 * this.pointCount - 2] == x1
+				&& this.points[2 * this.pointCount - 1] == y1
+				&& this.strokeThickness == strokeThickness && this.r == r
+				&& this.g == g && this.b == b && this.a == a;
+	}
+
+	private void addPoint(int x, int y) {
+		this.points[2 * this.pointCount] = x;
+		this.points[2 * this.pointCount + 1] = y;
+		this.pointCount++;
+	}
+}
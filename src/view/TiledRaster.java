@@ -0,0 +1,293 @@
+package view;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import adts.Line;
+import adts.LineRenderer;
+import adts.TileIndex;
+
+/**
+ * The raster of a board too big to keep as one image, as tiles of
+ * TileIndex.TILE_SIZE pixels that are only drawn once they are visible. The
+ * Canvas shows its board through one.
+ *
+ * A tile is drawn from the lines the server sends for it (get_tile), and
+ * kept up to date by drawing new lines on the tiles they touch. Tiles that
+ * are not held are left out: getMissingTiles lists the visible ones to ask
+ * the server for, and get_tile_changes tells which held ones to ask for
+ * again after being away.
+ *
+ * At most maxTiles tiles are held; the least recently painted are dropped
+ * to make room, so memory is bounded by the viewport however big the board
+ * is. maxTilesFor gives the number that covers a viewport.
+ *
+ * Thread-safety:
+ *
+ * Not threadsafe; the Canvas only uses it on the event dispatch thread,
+ * holding its own lock.
+ */
+public class TiledRaster {
+
+	private static final int TILE_SIZE = TileIndex.TILE_SIZE;
+
+	private final int maxTiles;
+	private final Color background;
+	private final LineRenderer lineRenderer;
+
+	/**
+	 * The tiles held, by packed coordinates, least recently painted first
+	 */
+	private final LinkedHashMap<Long, BufferedImage> tiles;
+
+	/**
+	 * Create a raster holding no tiles
+	 *
+	 * @param maxTiles
+	 *            the most tiles held at once, at least 1
+	 * @param background
+	 *            the color of the board where nothing is drawn
+	 */
+	public TiledRaster(int maxTiles, Color background) {
+		if (maxTiles < 1)
+			throw new IllegalArgumentException("maxTiles=" + maxTiles);
+		this.maxTiles = maxTiles;
+		this.background = background;
+		this.lineRenderer = new LineRenderer();
+		this.tiles = new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+				return size() > TiledRaster.this.maxTiles;
+			}
+		};
+	}
+
+	/**
+	 * @return the number of tiles that a viewport of the given size overlaps
+	 *         at most, wherever it is on the board
+	 */
+	public static int maxTilesFor(int viewportWidth, int viewportHeight) {
+		return ((viewportWidth + TILE_SIZE - 2) / TILE_SIZE + 1)
+				* ((viewportHeight + TILE_SIZE - 2) / TILE_SIZE + 1);
+	}
+
+	/**
+	 * Draws a tile from all the lines touching it, replacing the tile held
+	 *
+	 * @param tileX
+	 *            the column of the tile
+	 * @param tileY
+	 *            the row of the tile
+	 * @param lines
+	 *            the lines touching the tile, in the order they were drawn
+	 */
+	public void setTile(int tileX, int tileY, List<Line> lines) {
+		BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = tile.createGraphics();
+		g.setColor(this.background);
+		g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+		g.translate(-tileX * TILE_SIZE, -tileY * TILE_SIZE);
+		this.lineRenderer.begin(g);
+		for (Line l : lines) {
+			this.lineRenderer.draw(l);
+		}
+		this.lineRenderer.end();
+		this.tiles.put(key(tileX, tileY), tile);
+	}
+
+	/**
+	 * Draws a new line on the tiles held that it touches. Tiles not held are
+	 * left for the server to send whole.
+	 *
+	 * @param l
+	 *            the line
+	 */
+	public void draw(Line l) {
+		int pad = (int) Math.ceil(l.getStrokeThickness() / 2) + 1;
+		int left = TileIndex.tileOf(Math.min(l.getX1(), l.getX2()) - pad);
+		int right = TileIndex.tileOf(Math.max(l.getX1(), l.getX2()) + pad);
+		int top = TileIndex.tileOf(Math.min(l.getY1(), l.getY2()) - pad);
+		int bottom = TileIndex.tileOf(Math.max(l.getY1(), l.getY2()) + pad);
+		// a plain get would count as painting the tile
+		for (Map.Entry<Long, BufferedImage> entry : this.tiles.entrySet()) {
+			long key = entry.getKey();
+			int tileX = (int) (key >> 32);
+			int tileY = (int) key;
+			if (tileX < left || tileX > right || tileY < top || tileY > bottom)
+				continue;
+			Graphics2D g = entry.getValue().createGraphics();
+			g.translate(-tileX * TILE_SIZE, -tileY * TILE_SIZE);
+			this.lineRenderer.begin(g);
+			this.lineRenderer.draw(l);
+			this.lineRenderer.end();
+		}
+	}
+
+	/**
+	 * Draws an image of the board's lines on the tiles held that it covers
+	 *
+	 * @param image
+	 *            the image, its top left corner at 0, 0 on the board
+	 */
+	public void drawImage(BufferedImage image) {
+		int right = TileIndex.tileOf(image.getWidth() - 1);
+		int bottom = TileIndex.tileOf(image.getHeight() - 1);
+		// a plain get would count as painting the tile
+		for (Map.Entry<Long, BufferedImage> entry : this.tiles.entrySet()) {
+			long key = entry.getKey();
+			int tileX = (int) (key >> 32);
+			int tileY = (int) key;
+			if (tileX < 0 || tileX > right || tileY < 0 || tileY > bottom)
+				continue;
+			Graphics2D g = entry.getValue().createGraphics();
+			g.drawImage(image, -tileX * TILE_SIZE, -tileY * TILE_SIZE, null);
+			g.dispose();
+		}
+	}
+
+	/**
+	 * Drops a tile, so that it is listed as missing again
+	 *
+	 * @param tileX
+	 *            the column of the tile
+	 * @param tileY
+	 *            the row of the tile
+	 */
+	public void invalidate(int tileX, int tileY) {
+		this.tiles.remove(key(tileX, tileY));
+	}
+
+	/**
+	 * Fills every tile held with the background, as after the board is
+	 * cleared. Tiles not held stay missing.
+	 */
+	public void clear() {
+		for (BufferedImage tile : this.tiles.values()) {
+			Graphics2D g = tile.createGraphics();
+			g.setColor(this.background);
+			g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+			g.dispose();
+		}
+	}
+
+	/**
+	 * @return true if the tile is held
+	 */
+	public boolean hasTile(int tileX, int tileY) {
+		return this.tiles.containsKey(key(tileX, tileY));
+	}
+
+	/**
+	 * @return the number of tiles held
+	 */
+	public int getTileCount() {
+		return this.tiles.size();
+	}
+
+	/**
+	 * @param viewport
+	 *            the part of the board shown, in board coordinates
+	 * @return the column then row of each visible tile that is not held
+	 */
+	public List<int[]> getMissingTiles(Rectangle viewport) {
+		List<int[]> missing = new ArrayList<int[]>();
+		for (int[] tile : getVisibleTiles(viewport)) {
+			if (!hasTile(tile[0], tile[1]))
+				missing.add(tile);
+		}
+		return missing;
+	}
+
+	/**
+	 * @param viewport
+	 *            the part of the board shown, in board coordinates
+	 * @return the column then row of each visible tile, held or not
+	 */
+	public static List<int[]> getVisibleTiles(Rectangle viewport) {
+		List<int[]> visible = new ArrayList<int[]>();
+		for (int tileY = firstTile(viewport.y); tileY <= lastTile(viewport.y,
+				viewport.height); tileY++) {
+			for (int tileX = firstTile(viewport.x); tileX <= lastTile(
+					viewport.x, viewport.width); tileX++) {
+				visible.add(new int[] { tileX, tileY });
+			}
+		}
+		return visible;
+	}
+
+	/**
+	 * @param viewport
+	 *            the part of the board shown, in board coordinates
+	 * @return true if the tile overlaps the viewport
+	 */
+	public static boolean isVisible(int tileX, int tileY, Rectangle viewport) {
+		return tileX >= firstTile(viewport.x)
+				&& tileX <= lastTile(viewport.x, viewport.width)
+				&& tileY >= firstTile(viewport.y)
+				&& tileY <= lastTile(viewport.y, viewport.height);
+	}
+
+	/**
+	 * Paints the visible tiles held, the rest in the background color
+	 *
+	 * @param g
+	 *            the context to paint with, its origin at the viewport's
+	 *            top left corner
+	 * @param viewport
+	 *            the part of the board shown, in board coordinates
+	 */
+	public void paint(Graphics2D g, Rectangle viewport) {
+		for (int tileY = firstTile(viewport.y); tileY <= lastTile(viewport.y,
+				viewport.height); tileY++) {
+			for (int tileX = firstTile(viewport.x); tileX <= lastTile(
+					viewport.x, viewport.width); tileX++) {
+				int x = tileX * TILE_SIZE - viewport.x;
+				int y = tileY * TILE_SIZE - viewport.y;
+				BufferedImage tile = this.tiles.get(key(tileX, tileY));
+				if (tile != null) {
+					g.drawImage(tile, x, y, null);
+				} else {
+					g.setColor(this.background);
+					g.fillRect(x, y, TILE_SIZE, TILE_SIZE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the tiles that are not visible, to give their memory back
+	 *
+	 * @param viewport
+	 *            the part of the board shown, in board coordinates
+	 */
+	public void retainVisible(Rectangle viewport) {
+		Iterator<Long> keys = this.tiles.keySet().iterator();
+		while (keys.hasNext()) {
+			long key = keys.next();
+			if (!isVisible((int) (key >> 32), (int) key, viewport))
+				keys.remove();
+		}
+	}
+
+	private static int firstTile(int start) {
+		return TileIndex.tileOf(start);
+	}
+
+	private static int lastTile(int start, int length) {
+		return TileIndex.tileOf(start + Math.max(length, 1) - 1);
+	}
+
+	private static long key(int tileX, int tileY) {
+		return ((long) tileX << 32) | (tileY & 0xffffffffL);
+	}
+}